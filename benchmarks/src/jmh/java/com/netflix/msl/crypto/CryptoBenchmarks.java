@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.crypto;
+
+import java.security.Provider;
+import java.security.Security;
+import java.util.Random;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import com.netflix.msl.MslCryptoException;
+import com.netflix.msl.MslEncodingException;
+import com.netflix.msl.entityauth.EntityAuthenticationScheme;
+import com.netflix.msl.util.MockMslContext;
+import com.netflix.msl.util.MslContext;
+
+/**
+ * <p>Shared setup for the crypto context benchmarks.</p>
+ * 
+ * <p>Every benchmark is parameterized over the preferred JCE provider.
+ * {@link #SUNJCE} leaves the JDK providers first with BouncyCastle last, so
+ * BouncyCastle is only used for algorithms the JDK does not implement.
+ * {@link #BC} moves BouncyCastle to the front so it is used for
+ * everything it implements.</p>
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+class CryptoBenchmarks {
+    /** JDK providers first. */
+    public static final String SUNJCE = "SunJCE";
+    /** BouncyCastle provider first. */
+    public static final String BC = "BC";
+    
+    /**
+     * Installs the BouncyCastle provider at the front or back of the
+     * provider list.
+     * 
+     * @param provider {@link #SUNJCE} or {@link #BC}.
+     * @throws IllegalArgumentException if the provider is unknown.
+     */
+    public static void installProvider(final String provider) {
+        Security.removeProvider(BouncyCastleProvider.PROVIDER_NAME);
+        final Provider bc = new BouncyCastleProvider();
+        if (SUNJCE.equals(provider))
+            Security.addProvider(bc);
+        else if (BC.equals(provider))
+            Security.insertProviderAt(bc, 1);
+        else
+            throw new IllegalArgumentException("Unknown provider " + provider + ".");
+    }
+    
+    /**
+     * @return a new MSL context.
+     * @throws MslEncodingException if there is an error creating the context.
+     * @throws MslCryptoException if there is an error creating the context.
+     */
+    public static MslContext getMslContext() throws MslEncodingException, MslCryptoException {
+        return new MockMslContext(EntityAuthenticationScheme.PSK, false);
+    }
+    
+    /**
+     * @param size payload size in bytes.
+     * @return a random payload of the specified size.
+     */
+    public static byte[] getPayload(final int size) {
+        final byte[] payload = new byte[size];
+        random.nextBytes(payload);
+        return payload;
+    }
+    
+    /** Random. */
+    private static final Random random = new Random();
+}
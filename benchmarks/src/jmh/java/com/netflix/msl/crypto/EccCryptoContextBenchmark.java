@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.crypto;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.spec.ECGenParameterSpec;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.netflix.msl.MslCryptoException;
+
+/**
+ * <p>ECC crypto context benchmarks. These measure the
+ * {@link AsymmetricCryptoContext} sign/verify path with an elliptic curve
+ * key.</p>
+ * 
+ * <p>ECIES encrypt/decrypt is not measured because it is not currently
+ * supported.</p>
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+public class EccCryptoContextBenchmark {
+    /** Key pair ID. */
+    private static final String KEYPAIR_ID = "keypairid";
+    /** Named curve. */
+    private static final String CURVE = "secp256r1";
+    
+    /** Preferred JCE provider. */
+    @Param({ CryptoBenchmarks.SUNJCE, CryptoBenchmarks.BC })
+    public String provider;
+    /** Payload size in bytes. */
+    @Param({ "64", "1024", "16384", "262144", "1048576" })
+    public int payloadSize;
+    
+    @Setup
+    public void setup() throws NoSuchAlgorithmException, NoSuchProviderException, InvalidAlgorithmParameterException, MslCryptoException {
+        CryptoBenchmarks.installProvider(provider);
+        final KeyPairGenerator keypairGenerator = KeyPairGenerator.getInstance("ECDSA", BouncyCastleProvider.PROVIDER_NAME);
+        keypairGenerator.initialize(new ECGenParameterSpec(CURVE));
+        final KeyPair keyPair = keypairGenerator.generateKeyPair();
+        cryptoContext = new EccCryptoContext(KEYPAIR_ID, keyPair.getPrivate(), keyPair.getPublic(), EccCryptoContext.Mode.SIGN_VERIFY);
+        
+        payload = CryptoBenchmarks.getPayload(payloadSize);
+        signature = cryptoContext.sign(payload);
+    }
+    
+    @Benchmark
+    public byte[] sign() throws MslCryptoException {
+        return cryptoContext.sign(payload);
+    }
+    
+    @Benchmark
+    public boolean verify() throws MslCryptoException {
+        return cryptoContext.verify(payload, signature);
+    }
+    
+    /** Crypto context. */
+    private ICryptoContext cryptoContext;
+    /** Payload. */
+    private byte[] payload;
+    /** Payload signature. */
+    private byte[] signature;
+}
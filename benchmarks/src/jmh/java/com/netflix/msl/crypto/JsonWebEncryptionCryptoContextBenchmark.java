@@ -0,0 +1,112 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.crypto;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.netflix.msl.MslCryptoException;
+import com.netflix.msl.MslEncodingException;
+import com.netflix.msl.crypto.JsonWebEncryptionCryptoContext.AesKwCryptoContext;
+import com.netflix.msl.crypto.JsonWebEncryptionCryptoContext.CekCryptoContext;
+import com.netflix.msl.crypto.JsonWebEncryptionCryptoContext.Encryption;
+import com.netflix.msl.crypto.JsonWebEncryptionCryptoContext.Format;
+import com.netflix.msl.crypto.JsonWebEncryptionCryptoContext.RsaOaepCryptoContext;
+import com.netflix.msl.util.MslContext;
+
+/**
+ * <p>JSON Web Encryption crypto context benchmarks.</p>
+ * 
+ * <p>JSON Web Encryption crypto contexts only support wrap/unwrap.</p>
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+public class JsonWebEncryptionCryptoContextBenchmark {
+    /** RSA-OAEP content encryption key encryption. */
+    private static final String RSA_OAEP = "RSA-OAEP";
+    /** AES key wrap content encryption key encryption. */
+    private static final String A128KW = "A128KW";
+    
+    /** Preferred JCE provider. */
+    @Param({ CryptoBenchmarks.SUNJCE, CryptoBenchmarks.BC })
+    public String provider;
+    /** Content encryption key encryption algorithm. */
+    @Param({ RSA_OAEP, A128KW })
+    public String algorithm;
+    /** Plaintext encryption algorithm. */
+    @Param({ "A128GCM", "A256GCM" })
+    public String encryption;
+    /** Payload size in bytes. */
+    @Param({ "64", "1024", "16384", "262144", "1048576" })
+    public int payloadSize;
+    
+    @Setup
+    public void setup() throws NoSuchAlgorithmException, MslEncodingException, MslCryptoException {
+        CryptoBenchmarks.installProvider(provider);
+        final MslContext ctx = CryptoBenchmarks.getMslContext();
+        
+        final CekCryptoContext cekCryptoContext;
+        if (RSA_OAEP.equals(algorithm)) {
+            final KeyPairGenerator keypairGenerator = KeyPairGenerator.getInstance("RSA");
+            keypairGenerator.initialize(2048);
+            final KeyPair keyPair = keypairGenerator.generateKeyPair();
+            cekCryptoContext = new RsaOaepCryptoContext(keyPair.getPrivate(), keyPair.getPublic());
+        } else {
+            final SecretKey wrappingKey = new SecretKeySpec(CryptoBenchmarks.getPayload(16), JcaAlgorithm.AESKW);
+            cekCryptoContext = new AesKwCryptoContext(wrappingKey);
+        }
+        cryptoContext = new JsonWebEncryptionCryptoContext(ctx, cekCryptoContext, Encryption.valueOf(encryption), Format.JWE_CS);
+        
+        payload = CryptoBenchmarks.getPayload(payloadSize);
+        wrapped = cryptoContext.wrap(payload);
+    }
+    
+    @Benchmark
+    public byte[] wrap() throws MslCryptoException {
+        return cryptoContext.wrap(payload);
+    }
+    
+    @Benchmark
+    public byte[] unwrap() throws MslCryptoException {
+        return cryptoContext.unwrap(wrapped);
+    }
+    
+    /** Crypto context. */
+    private ICryptoContext cryptoContext;
+    /** Plaintext payload. */
+    private byte[] payload;
+    /** Wrapped payload. */
+    private byte[] wrapped;
+}
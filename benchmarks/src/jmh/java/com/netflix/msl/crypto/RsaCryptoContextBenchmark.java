@@ -0,0 +1,144 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.crypto;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.netflix.msl.MslCryptoException;
+import com.netflix.msl.MslEncodingException;
+import com.netflix.msl.util.MslContext;
+
+/**
+ * <p>RSA crypto context benchmarks.</p>
+ * 
+ * <p>RSA encryption is limited to less than the modulus size so encrypt and
+ * decrypt use a fixed payload size. Sign and verify are measured across all
+ * payload sizes.</p>
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+public class RsaCryptoContextBenchmark {
+    /** Key pair ID. */
+    private static final String KEYPAIR_ID = "keypairid";
+    /** RSA key size in bits. */
+    private static final int KEY_SIZE = 2048;
+    /** Encrypt/decrypt payload size in bytes. */
+    private static final int ENCRYPT_PAYLOAD_SIZE = 64;
+    
+    /**
+     * @return a new RSA key pair.
+     * @throws NoSuchAlgorithmException if RSA is not supported.
+     */
+    private static KeyPair generateKeyPair() throws NoSuchAlgorithmException {
+        final KeyPairGenerator keypairGenerator = KeyPairGenerator.getInstance("RSA");
+        keypairGenerator.initialize(KEY_SIZE);
+        return keypairGenerator.generateKeyPair();
+    }
+    
+    /** Encrypt/decrypt state. */
+    @State(Scope.Benchmark)
+    public static class EncryptDecrypt {
+        /** Preferred JCE provider. */
+        @Param({ CryptoBenchmarks.SUNJCE, CryptoBenchmarks.BC })
+        public String provider;
+        /** Crypto context mode. */
+        @Param({ "ENCRYPT_DECRYPT_OAEP", "ENCRYPT_DECRYPT_PKCS1" })
+        public String mode;
+        
+        @Setup
+        public void setup() throws NoSuchAlgorithmException, MslEncodingException, MslCryptoException {
+            CryptoBenchmarks.installProvider(provider);
+            final MslContext ctx = CryptoBenchmarks.getMslContext();
+            final KeyPair keyPair = generateKeyPair();
+            cryptoContext = new RsaCryptoContext(ctx, KEYPAIR_ID, keyPair.getPrivate(), keyPair.getPublic(), RsaCryptoContext.Mode.valueOf(mode));
+            
+            payload = CryptoBenchmarks.getPayload(ENCRYPT_PAYLOAD_SIZE);
+            ciphertext = cryptoContext.encrypt(payload);
+        }
+        
+        /** Crypto context. */
+        private ICryptoContext cryptoContext;
+        /** Plaintext payload. */
+        private byte[] payload;
+        /** Encrypted payload. */
+        private byte[] ciphertext;
+    }
+    
+    /** Sign/verify state. */
+    @State(Scope.Benchmark)
+    public static class SignVerify {
+        /** Preferred JCE provider. */
+        @Param({ CryptoBenchmarks.SUNJCE, CryptoBenchmarks.BC })
+        public String provider;
+        /** Payload size in bytes. */
+        @Param({ "64", "1024", "16384", "262144", "1048576" })
+        public int payloadSize;
+        
+        @Setup
+        public void setup() throws NoSuchAlgorithmException, MslEncodingException, MslCryptoException {
+            CryptoBenchmarks.installProvider(provider);
+            final MslContext ctx = CryptoBenchmarks.getMslContext();
+            final KeyPair keyPair = generateKeyPair();
+            cryptoContext = new RsaCryptoContext(ctx, KEYPAIR_ID, keyPair.getPrivate(), keyPair.getPublic(), RsaCryptoContext.Mode.SIGN_VERIFY);
+            
+            payload = CryptoBenchmarks.getPayload(payloadSize);
+            signature = cryptoContext.sign(payload);
+        }
+        
+        /** Crypto context. */
+        private ICryptoContext cryptoContext;
+        /** Payload. */
+        private byte[] payload;
+        /** Payload signature. */
+        private byte[] signature;
+    }
+    
+    @Benchmark
+    public byte[] encrypt(final EncryptDecrypt state) throws MslCryptoException {
+        return state.cryptoContext.encrypt(state.payload);
+    }
+    
+    @Benchmark
+    public byte[] decrypt(final EncryptDecrypt state) throws MslCryptoException {
+        return state.cryptoContext.decrypt(state.ciphertext);
+    }
+    
+    @Benchmark
+    public byte[] sign(final SignVerify state) throws MslCryptoException {
+        return state.cryptoContext.sign(state.payload);
+    }
+    
+    @Benchmark
+    public boolean verify(final SignVerify state) throws MslCryptoException {
+        return state.cryptoContext.verify(state.payload, state.signature);
+    }
+}
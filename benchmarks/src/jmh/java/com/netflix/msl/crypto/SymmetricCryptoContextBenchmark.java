@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.crypto;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.netflix.msl.MslCryptoException;
+import com.netflix.msl.MslEncodingException;
+import com.netflix.msl.entityauth.MockPresharedAuthenticationFactory;
+import com.netflix.msl.util.MslContext;
+
+/**
+ * Symmetric crypto context benchmarks.
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+public class SymmetricCryptoContextBenchmark {
+    /** Key set ID. */
+    private static final String KEYSET_ID = "keysetid";
+    
+    /** Preferred JCE provider. */
+    @Param({ CryptoBenchmarks.SUNJCE, CryptoBenchmarks.BC })
+    public String provider;
+    /** Signature key algorithm. */
+    @Param({ JcaAlgorithm.HMAC_SHA256, JcaAlgorithm.AES_CMAC })
+    public String signatureAlgorithm;
+    /** Ciphertext envelope version. */
+    @Param({ "V1", "V3" })
+    public String envelope;
+    /** Payload size in bytes. */
+    @Param({ "64", "1024", "16384", "262144", "1048576" })
+    public int payloadSize;
+    
+    @Setup
+    public void setup() throws MslEncodingException, MslCryptoException {
+        CryptoBenchmarks.installProvider(provider);
+        final MslContext ctx = CryptoBenchmarks.getMslContext();
+        final MslCiphertextEnvelope.Version version = MslCiphertextEnvelope.Version.valueOf(envelope);
+        final SecretKey signatureKey = (JcaAlgorithm.AES_CMAC.equals(signatureAlgorithm))
+            ? new SecretKeySpec(MockPresharedAuthenticationFactory.KPE.getEncoded(), JcaAlgorithm.AES_CMAC)
+            : MockPresharedAuthenticationFactory.KPH;
+        cryptoContext = new SymmetricCryptoContext(ctx, KEYSET_ID, MockPresharedAuthenticationFactory.KPE, signatureKey, MockPresharedAuthenticationFactory.KPW, version);
+        
+        payload = CryptoBenchmarks.getPayload(payloadSize);
+        ciphertext = cryptoContext.encrypt(payload);
+        signature = cryptoContext.sign(payload);
+        wrapped = cryptoContext.wrap(payload);
+    }
+    
+    @Benchmark
+    public byte[] encrypt() throws MslCryptoException {
+        return cryptoContext.encrypt(payload);
+    }
+    
+    @Benchmark
+    public byte[] decrypt() throws MslCryptoException {
+        return cryptoContext.decrypt(ciphertext);
+    }
+    
+    @Benchmark
+    public byte[] sign() throws MslCryptoException {
+        return cryptoContext.sign(payload);
+    }
+    
+    @Benchmark
+    public boolean verify() throws MslCryptoException {
+        return cryptoContext.verify(payload, signature);
+    }
+    
+    @Benchmark
+    public byte[] wrap() throws MslCryptoException {
+        return cryptoContext.wrap(payload);
+    }
+    
+    @Benchmark
+    public byte[] unwrap() throws MslCryptoException {
+        return cryptoContext.unwrap(wrapped);
+    }
+    
+    /** Crypto context. */
+    private ICryptoContext cryptoContext;
+    /** Plaintext payload. */
+    private byte[] payload;
+    /** Encrypted payload. */
+    private byte[] ciphertext;
+    /** Payload signature. */
+    private byte[] signature;
+    /** Wrapped payload. */
+    private byte[] wrapped;
+}
@@ -67,6 +67,36 @@ public abstract class MslConstants {
         }
     }
     
+    /** Message encoder formats. */
+    public static enum EncoderFormat {
+        // In order of most preferred to least preferred.
+        /** Length-prefixed binary */
+        BINARY,
+        /** JSON */
+        JSON;
+        
+        /**
+         * Returns the most preferred encoder format from the provided set of
+         * formats. JSON is always supported so it is returned if the set does
+         * not contain a more preferred format.
+         * 
+         * @param formats the set of formats to choose from. May be
+         *        {@code null}.
+         * @return the most preferred encoder format.
+         */
+        public static EncoderFormat getPreferredFormat(final Set<EncoderFormat> formats) {
+            // Enum.values() returns the values in declaration order which will
+            // be the preferred order as promised above.
+            if (formats == null)
+                return JSON;
+            for (final EncoderFormat format : EncoderFormat.values()) {
+                if (formats.contains(format))
+                    return format;
+            }
+            return JSON;
+        }
+    }
+    
     /** Encryption algorithms. */
     public static enum EncryptionAlgo {
         /** AES */
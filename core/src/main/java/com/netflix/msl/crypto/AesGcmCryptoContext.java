@@ -0,0 +1,302 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import com.netflix.msl.MslConstants;
+import com.netflix.msl.MslCryptoException;
+import com.netflix.msl.MslError;
+import com.netflix.msl.MslInternalException;
+import com.netflix.msl.util.MslContext;
+
+/**
+ * <p>An AES-GCM crypto context performs authenticated encryption/decryption
+ * and sign/verify using a single AES key. Wrap/unwrap are unsupported.</p>
+ * 
+ * <p>Ciphertext is returned in a binary (version 3)
+ * {@link MslCiphertextEnvelope} whose ciphertext ends with the 128-bit GCM
+ * authentication tag. The key ID is included as additional authenticated
+ * data.</p>
+ * 
+ * <p>Signatures are {@code 0 || iv || tag} where the tag is an AES-GMAC
+ * computed over the data with a random initialization vector. The leading
+ * byte identifies the signature type.</p>
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+public class AesGcmCryptoContext implements ICryptoContext {
+    /** AES-GCM cipher transform. */
+    private static final String AES_GCM_TRANSFORM = "AES/GCM/NoPadding";
+    /** AES-GCM initialization vector size in bytes. */
+    private static final int AES_GCM_IV_SIZE = 12;
+    /** AES-GCM authentication tag size in bits. */
+    private static final int AES_GCM_TAG_BITS = 128;
+    /** AES-GCM authentication tag size in bytes. */
+    private static final int AES_GCM_TAG_SIZE = AES_GCM_TAG_BITS / Byte.SIZE;
+    
+    /** AES-GMAC signature type. */
+    private static final byte SIGNATURE_GMAC = 0;
+    
+    /**
+     * <p>Create a new AES-GCM crypto context using the provided key.</p>
+     * 
+     * <p>If there is no encryption key, all operations are unsupported.</p>
+     * 
+     * @param ctx MSL context.
+     * @param id the key set identity.
+     * @param encryptionKey the key used for encryption/decryption and
+     *        sign/verify.
+     */
+    public AesGcmCryptoContext(final MslContext ctx, final String id, final SecretKey encryptionKey) {
+        if (encryptionKey != null && !encryptionKey.getAlgorithm().equals(JcaAlgorithm.AES))
+            throw new IllegalArgumentException("Encryption key must be an " + JcaAlgorithm.AES + " key.");
+        
+        this.ctx = ctx;
+        this.id = id;
+        this.idBytes = id.getBytes(MslConstants.DEFAULT_CHARSET);
+        this.encryptionKey = encryptionKey;
+    }
+    
+    /* (non-Javadoc)
+     * @see com.netflix.msl.crypto.ICryptoContext#encrypt(byte[])
+     */
+    @Override
+    public byte[] encrypt(final byte[] data) throws MslCryptoException {
+        if (encryptionKey == null)
+            throw new MslCryptoException(MslError.ENCRYPT_NOT_SUPPORTED, "no encryption/decryption key");
+        try {
+            // Generate IV.
+            final Random random = ctx.getRandom();
+            final byte[] iv = new byte[AES_GCM_IV_SIZE];
+            random.nextBytes(iv);
+            
+            // Encrypt plaintext and append the authentication tag.
+            final Cipher cipher = getCipher();
+            cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new GCMParameterSpec(AES_GCM_TAG_BITS, iv));
+            cipher.updateAAD(idBytes);
+            final byte[] ciphertext = cipher.doFinal(data);
+            ciphers.offer(cipher);
+            
+            // Return encryption envelope byte representation.
+            return new MslCiphertextEnvelope(id, iv, ciphertext, MslCiphertextEnvelope.Version.V3).getBytes();
+        } catch (final NoSuchPaddingException e) {
+            throw new MslInternalException("Unsupported padding exception.", e);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new MslInternalException("Invalid cipher algorithm specified.", e);
+        } catch (final InvalidKeyException e) {
+            throw new MslCryptoException(MslError.INVALID_ENCRYPTION_KEY, e);
+        } catch (final InvalidAlgorithmParameterException e) {
+            throw new MslCryptoException(MslError.INVALID_ALGORITHM_PARAMS, e);
+        } catch (final IllegalBlockSizeException e) {
+            throw new MslCryptoException(MslError.PLAINTEXT_ILLEGAL_BLOCK_SIZE, "not expected when padding is not required", e);
+        } catch (final BadPaddingException e) {
+            throw new MslCryptoException(MslError.PLAINTEXT_BAD_PADDING, "not expected when encrypting", e);
+        }
+    }
+    
+    /* (non-Javadoc)
+     * @see com.netflix.msl.crypto.ICryptoContext#decrypt(byte[])
+     */
+    @Override
+    public byte[] decrypt(final byte[] data) throws MslCryptoException {
+        if (encryptionKey == null)
+            throw new MslCryptoException(MslError.DECRYPT_NOT_SUPPORTED, "no encryption/decryption key");
+        try {
+            // Reconstitute encryption envelope.
+            if (!MslCiphertextEnvelope.isBinary(data))
+                throw new MslCryptoException(MslError.CIPHERTEXT_ENVELOPE_PARSE_ERROR, "ciphertext envelope is not version " + MslCiphertextEnvelope.Version.V3);
+            final MslCiphertextEnvelope encryptionEnvelope = MslCiphertextEnvelope.parse(data);
+            
+            // Verify key ID.
+            if (!encryptionEnvelope.getKeyId().equals(id))
+                throw new MslCryptoException(MslError.ENVELOPE_KEY_ID_MISMATCH);
+            
+            // Verify the authentication tag and decrypt ciphertext.
+            final byte[] iv = encryptionEnvelope.getIv();
+            if (iv == null || iv.length != AES_GCM_IV_SIZE)
+                throw new MslCryptoException(MslError.INVALID_IV, "iv length " + ((iv != null) ? iv.length : 0));
+            final byte[] ciphertext = encryptionEnvelope.getCiphertext();
+            if (ciphertext.length < AES_GCM_TAG_SIZE)
+                throw new MslCryptoException(MslError.INSUFFICIENT_CIPHERTEXT, "ciphertext length " + ciphertext.length);
+            final Cipher cipher = getCipher();
+            cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new GCMParameterSpec(AES_GCM_TAG_BITS, iv));
+            cipher.updateAAD(idBytes);
+            final byte[] plaintext = cipher.doFinal(ciphertext);
+            ciphers.offer(cipher);
+            return plaintext;
+        } catch (final NoSuchPaddingException e) {
+            throw new MslInternalException("Unsupported padding exception.", e);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new MslInternalException("Invalid cipher algorithm specified.", e);
+        } catch (final InvalidKeyException e) {
+            throw new MslCryptoException(MslError.INVALID_ENCRYPTION_KEY, e);
+        } catch (final InvalidAlgorithmParameterException e) {
+            throw new MslCryptoException(MslError.INVALID_ALGORITHM_PARAMS, e);
+        } catch (final IllegalBlockSizeException e) {
+            throw new MslCryptoException(MslError.CIPHERTEXT_ILLEGAL_BLOCK_SIZE, e);
+        } catch (final AEADBadTagException e) {
+            throw new MslCryptoException(MslError.DECRYPT_ERROR, "authentication tag mismatch", e);
+        } catch (final BadPaddingException e) {
+            throw new MslCryptoException(MslError.CIPHERTEXT_BAD_PADDING, e);
+        }
+    }
+    
+    /* (non-Javadoc)
+     * @see com.netflix.msl.crypto.ICryptoContext#wrap(byte[])
+     */
+    @Override
+    public byte[] wrap(final byte[] data) throws MslCryptoException {
+        throw new MslCryptoException(MslError.WRAP_NOT_SUPPORTED);
+    }
+    
+    /* (non-Javadoc)
+     * @see com.netflix.msl.crypto.ICryptoContext#unwrap(byte[])
+     */
+    @Override
+    public byte[] unwrap(final byte[] data) throws MslCryptoException {
+        throw new MslCryptoException(MslError.UNWRAP_NOT_SUPPORTED);
+    }
+    
+    /* (non-Javadoc)
+     * @see com.netflix.msl.crypto.ICryptoContext#sign(byte[])
+     */
+    @Override
+    public byte[] sign(final byte[] data) throws MslCryptoException {
+        if (encryptionKey == null)
+            throw new MslCryptoException(MslError.SIGN_NOT_SUPPORTED, "no encryption/decryption key");
+        
+        // Compute the GMAC.
+        try {
+            final Random random = ctx.getRandom();
+            final byte[] iv = new byte[AES_GCM_IV_SIZE];
+            random.nextBytes(iv);
+            
+            final Cipher cipher = getCipher();
+            cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new GCMParameterSpec(AES_GCM_TAG_BITS, iv));
+            cipher.updateAAD(data);
+            final byte[] tag = cipher.doFinal();
+            ciphers.offer(cipher);
+            
+            final ByteBuffer signature = ByteBuffer.allocate(1 + iv.length + tag.length);
+            signature.put(SIGNATURE_GMAC);
+            signature.put(iv);
+            signature.put(tag);
+            return signature.array();
+        } catch (final NoSuchPaddingException e) {
+            throw new MslInternalException("Unsupported padding exception.", e);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new MslInternalException("Invalid cipher algorithm specified.", e);
+        } catch (final InvalidKeyException e) {
+            throw new MslCryptoException(MslError.INVALID_ENCRYPTION_KEY, e);
+        } catch (final InvalidAlgorithmParameterException e) {
+            throw new MslCryptoException(MslError.INVALID_ALGORITHM_PARAMS, e);
+        } catch (final IllegalBlockSizeException e) {
+            throw new MslCryptoException(MslError.SIGNATURE_ERROR, e);
+        } catch (final BadPaddingException e) {
+            throw new MslCryptoException(MslError.SIGNATURE_ERROR, e);
+        }
+    }
+    
+    /* (non-Javadoc)
+     * @see com.netflix.msl.crypto.ICryptoContext#verify(byte[], byte[])
+     */
+    @Override
+    public boolean verify(final byte[] data, final byte[] signature) throws MslCryptoException {
+        if (encryptionKey == null)
+            throw new MslCryptoException(MslError.VERIFY_NOT_SUPPORTED, "no encryption/decryption key");
+        if (signature.length == 0)
+            throw new MslCryptoException(MslError.SIGNATURE_ENVELOPE_PARSE_ERROR, "empty signature");
+        
+        switch (signature[0]) {
+            case SIGNATURE_GMAC:
+            {
+                if (signature.length != 1 + AES_GCM_IV_SIZE + AES_GCM_TAG_SIZE)
+                    return false;
+                try {
+                    final Cipher cipher = getCipher();
+                    final GCMParameterSpec params = new GCMParameterSpec(AES_GCM_TAG_BITS, signature, 1, AES_GCM_IV_SIZE);
+                    cipher.init(Cipher.DECRYPT_MODE, encryptionKey, params);
+                    cipher.updateAAD(data);
+                    try {
+                        cipher.doFinal(signature, 1 + AES_GCM_IV_SIZE, AES_GCM_TAG_SIZE);
+                    } catch (final AEADBadTagException e) {
+                        return false;
+                    }
+                    ciphers.offer(cipher);
+                    return true;
+                } catch (final NoSuchPaddingException e) {
+                    throw new MslInternalException("Unsupported padding exception.", e);
+                } catch (final NoSuchAlgorithmException e) {
+                    throw new MslInternalException("Invalid cipher algorithm specified.", e);
+                } catch (final InvalidKeyException e) {
+                    throw new MslCryptoException(MslError.INVALID_ENCRYPTION_KEY, e);
+                } catch (final InvalidAlgorithmParameterException e) {
+                    throw new MslCryptoException(MslError.INVALID_ALGORITHM_PARAMS, e);
+                } catch (final IllegalBlockSizeException e) {
+                    throw new MslCryptoException(MslError.SIGNATURE_ERROR, e);
+                } catch (final BadPaddingException e) {
+                    throw new MslCryptoException(MslError.SIGNATURE_ERROR, e);
+                }
+            }
+            default:
+                throw new MslCryptoException(MslError.UNIDENTIFIED_SIGNATURE_ENVELOPE, "signature type " + signature[0]);
+        }
+    }
+    
+    /**
+     * Returns an AES-GCM cipher from the pool, or a new cipher if the pool is
+     * empty. The cipher must be initialized before use. The cipher should be
+     * returned to the pool once the operation completes successfully.
+     * 
+     * @return the cipher.
+     * @throws NoSuchAlgorithmException if the cipher algorithm is not
+     *         supported.
+     * @throws NoSuchPaddingException if the cipher padding is not supported.
+     */
+    private Cipher getCipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        final Cipher cipher = ciphers.poll();
+        if (cipher != null)
+            return cipher;
+        return Cipher.getInstance(AES_GCM_TRANSFORM);
+    }
+    
+    /** MSL context. */
+    private final MslContext ctx;
+    /** Key set identity. */
+    private final String id;
+    /** UTF-8 encoded key set identity. */
+    private final byte[] idBytes;
+    /** Encryption/decryption key. */
+    private final SecretKey encryptionKey;
+    
+    /** Pool of AES-GCM ciphers used with the encryption key. */
+    private final Queue<Cipher> ciphers = new ConcurrentLinkedQueue<Cipher>();
+}
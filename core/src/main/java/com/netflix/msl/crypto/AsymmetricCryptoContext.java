@@ -15,6 +15,8 @@
  */
 package com.netflix.msl.crypto;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
@@ -23,11 +25,16 @@ import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
 import java.security.spec.AlgorithmParameterSpec;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -47,6 +54,68 @@ import com.netflix.msl.MslInternalException;
 public abstract class AsymmetricCryptoContext implements ICryptoContext {
     /** Null transform or algorithm. */
     protected static final String NULL_OP = "nullOp";
+    /** Maximum number of signatures verified by one batch verify task. */
+    private static final int BATCH_VERIFY_THRESHOLD = 2;
+    
+    /**
+     * A fork-join task that verifies a range of a signature batch, splitting
+     * the range in half until it is small enough to verify directly.
+     */
+    private class BatchVerifyTask extends RecursiveAction {
+        private static final long serialVersionUID = -1416727036429476519L;
+        
+        /**
+         * Create a new batch verify task over the range [from, to).
+         * 
+         * @param data the data.
+         * @param signatures the signatures.
+         * @param verified the verification results.
+         * @param error the first verification error.
+         * @param from the first index, inclusive.
+         * @param to the last index, exclusive.
+         */
+        public BatchVerifyTask(final List<byte[]> data, final List<byte[]> signatures, final boolean[] verified, final AtomicReference<MslCryptoException> error, final int from, final int to) {
+            this.data = data;
+            this.signatures = signatures;
+            this.verified = verified;
+            this.error = error;
+            this.from = from;
+            this.to = to;
+        }
+        
+        /* (non-Javadoc)
+         * @see java.util.concurrent.RecursiveAction#compute()
+         */
+        @Override
+        protected void compute() {
+            if (to - from > BATCH_VERIFY_THRESHOLD) {
+                final int mid = (from + to) >>> 1;
+                invokeAll(new BatchVerifyTask(data, signatures, verified, error, from, mid),
+                          new BatchVerifyTask(data, signatures, verified, error, mid, to));
+                return;
+            }
+            for (int i = from; i < to && error.get() == null; ++i) {
+                try {
+                    verified[i] = verify(data.get(i), signatures.get(i));
+                } catch (final MslCryptoException e) {
+                    error.compareAndSet(null, e);
+                }
+            }
+        }
+        
+        /** Data. */
+        private final List<byte[]> data;
+        /** Signatures. */
+        private final List<byte[]> signatures;
+        /** Verification results. */
+        private final boolean[] verified;
+        /** First verification error. */
+        private final AtomicReference<MslCryptoException> error;
+        /** First index, inclusive. */
+        private final int from;
+        /** Last index, exclusive. */
+        private final int to;
+    }
     
     /**
      * <p>Create a new asymmetric crypto context using the provided public and
@@ -98,6 +167,7 @@ public abstract class AsymmetricCryptoContext implements ICryptoContext {
             final Cipher cipher = CryptoCache.getCipher(transform);
             cipher.init(Cipher.ENCRYPT_MODE, publicKey, params);
             final byte[] ciphertext = cipher.doFinal(data);
+            CryptoCache.releaseCipher(transform, cipher);
             
             // Return encryption envelope byte representation.
             return new MslCiphertextEnvelope(id, null, ciphertext).toJSONString().getBytes(MslConstants.DEFAULT_CHARSET);
@@ -141,8 +211,13 @@ public abstract class AsymmetricCryptoContext implements ICryptoContext {
         Throwable reset = null;
         try {
             // Reconstitute encryption envelope.
-            final JSONObject encryptionEnvelopeJsonObj = new JSONObject(new String(data, MslConstants.DEFAULT_CHARSET));
-            final MslCiphertextEnvelope encryptionEnvelope = new MslCiphertextEnvelope(encryptionEnvelopeJsonObj, MslCiphertextEnvelope.Version.V1);
+            final MslCiphertextEnvelope encryptionEnvelope;
+            if (MslCiphertextEnvelope.isBinary(data)) {
+                encryptionEnvelope = MslCiphertextEnvelope.parse(data);
+            } else {
+                final JSONObject encryptionEnvelopeJsonObj = new JSONObject(new String(data, MslConstants.DEFAULT_CHARSET));
+                encryptionEnvelope = new MslCiphertextEnvelope(encryptionEnvelopeJsonObj, MslCiphertextEnvelope.Version.V1);
+            }
             
             // Verify key ID.
             if (!encryptionEnvelope.getKeyId().equals(id))
@@ -151,7 +226,9 @@ public abstract class AsymmetricCryptoContext implements ICryptoContext {
             // Decrypt ciphertext.
             final Cipher cipher = CryptoCache.getCipher(transform);
             cipher.init(Cipher.DECRYPT_MODE, privateKey, params);
-            return cipher.doFinal(encryptionEnvelope.getCiphertext());
+            final byte[] plaintext = cipher.doFinal(encryptionEnvelope.getCiphertext());
+            CryptoCache.releaseCipher(transform, cipher);
+            return plaintext;
         } catch (final NoSuchPaddingException e) {
             reset = e;
             throw new MslInternalException("Unsupported padding exception.", e);
@@ -216,6 +293,7 @@ public abstract class AsymmetricCryptoContext implements ICryptoContext {
             sig.initSign(privateKey);
             sig.update(data);
             final byte[] signature = sig.sign();
+            CryptoCache.releaseSignature(algo, sig);
             
             // Return the signature envelope byte representation.
             return new MslSignatureEnvelope(signature).getBytes();
@@ -244,7 +322,228 @@ public abstract class AsymmetricCryptoContext implements ICryptoContext {
             final Signature sig = CryptoCache.getSignature(algo);
             sig.initVerify(publicKey);
             sig.update(data);
-            return sig.verify(envelope.getSignature());
+            final boolean verified = sig.verify(envelope.getSignature());
+            CryptoCache.releaseSignature(algo, sig);
+            return verified;
+        } catch (final NoSuchAlgorithmException e) {
+            throw new MslInternalException("Invalid signature algorithm specified.", e);
+        } catch (final InvalidKeyException e) {
+            throw new MslCryptoException(MslError.INVALID_PUBLIC_KEY, e);
+        } catch (final SignatureException e) {
+            throw new MslCryptoException(MslError.SIGNATURE_ERROR, e);
+        } catch (final MslEncodingException e) {
+            throw new MslCryptoException(MslError.SIGNATURE_ENVELOPE_PARSE_ERROR, e);
+        }
+    }
+    
+    /* (non-Javadoc)
+     * @see com.netflix.msl.crypto.ICryptoContext#encrypt(java.nio.ByteBuffer, java.nio.ByteBuffer)
+     */
+    @Override
+    public int encrypt(final ByteBuffer data, final ByteBuffer out) throws MslCryptoException {
+        if (NULL_OP.equals(transform))
+            return ICryptoContext.super.encrypt(data, out);
+        if (publicKey == null)
+            throw new MslCryptoException(MslError.ENCRYPT_NOT_SUPPORTED, "no public key");
+        final int start = out.position();
+        boolean success = false;
+        Throwable reset = null;
+        try {
+            // Encrypt plaintext. The ciphertext is at most one key in size.
+            final Cipher cipher = CryptoCache.getCipher(transform);
+            cipher.init(Cipher.ENCRYPT_MODE, publicKey, params);
+            final byte[] ciphertext = new byte[cipher.getOutputSize(data.remaining())];
+            final int ciphertextLength = cipher.doFinal(data.duplicate(), ByteBuffer.wrap(ciphertext));
+            CryptoCache.releaseCipher(transform, cipher);
+            
+            // Write the encryption envelope byte representation.
+            final byte[] header = MslCiphertextEnvelope.getJsonHeader(id, null);
+            final int length = MslCiphertextEnvelope.getJsonLength(header, ciphertextLength);
+            if (out.remaining() < length)
+                throw new BufferOverflowException();
+            out.put(header);
+            MslCiphertextEnvelope.putBase64(out, ciphertext, 0, ciphertextLength);
+            MslCiphertextEnvelope.putJsonTrailer(out);
+            data.position(data.limit());
+            success = true;
+            return length;
+        } catch (final NoSuchPaddingException e) {
+            reset = e;
+            throw new MslInternalException("Unsupported padding exception.", e);
+        } catch (final NoSuchAlgorithmException e) {
+            reset = e;
+            throw new MslInternalException("Invalid cipher algorithm specified.", e);
+        } catch (final InvalidKeyException e) {
+            reset = e;
+            throw new MslCryptoException(MslError.INVALID_PUBLIC_KEY, e);
+        } catch (final ShortBufferException e) {
+            reset = e;
+            throw new MslInternalException("Cipher output size underestimated.", e);
+        } catch (final IllegalBlockSizeException e) {
+            reset = e;
+            throw new MslCryptoException(MslError.PLAINTEXT_ILLEGAL_BLOCK_SIZE, "not expected when padding is specified", e);
+        } catch (final BadPaddingException e) {
+            reset = e;
+            throw new MslCryptoException(MslError.PLAINTEXT_BAD_PADDING, "not expected when encrypting", e);
+        } catch (final InvalidAlgorithmParameterException e) {
+            reset = e;
+            throw new MslCryptoException(MslError.INVALID_ALGORITHM_PARAMS, e);
+        } catch (final RuntimeException e) {
+            reset = e;
+            throw e;
+        } finally {
+            if (!success)
+                out.position(start);
+            // FIXME Remove this once BouncyCastle Cipher is fixed in v1.48+
+            if (reset != null)
+                CryptoCache.resetCipher(transform);
+        }
+    }
+    
+    /* (non-Javadoc)
+     * @see com.netflix.msl.crypto.ICryptoContext#decrypt(java.nio.ByteBuffer, java.nio.ByteBuffer)
+     */
+    @Override
+    public int decrypt(final ByteBuffer data, final ByteBuffer out) throws MslCryptoException {
+        if (NULL_OP.equals(transform))
+            return ICryptoContext.super.decrypt(data, out);
+        if (privateKey == null)
+            throw new MslCryptoException(MslError.DECRYPT_NOT_SUPPORTED, "no private key");
+        
+        // Envelopes not in compact JSON form are parsed by the byte array
+        // operation.
+        final ByteBuffer envelope = data.duplicate();
+        final MslCiphertextEnvelope header = (data.hasRemaining() && data.get(data.position()) == '{')
+            ? MslCiphertextEnvelope.parseJsonHeader(envelope)
+            : null;
+        if (header == null)
+            return ICryptoContext.super.decrypt(data, out);
+        
+        // Verify key ID.
+        if (!header.getKeyId().equals(id))
+            throw new MslCryptoException(MslError.ENVELOPE_KEY_ID_MISMATCH);
+        
+        final int start = out.position();
+        boolean success = false;
+        Throwable reset = null;
+        try {
+            // Decode and decrypt the ciphertext, which is at most one key in
+            // size. The cipher requires room for a full key's worth of output
+            // so the plaintext is written into the destination buffer after.
+            final byte[] ciphertext = new byte[envelope.remaining() / 4 * 3];
+            final int ciphertextLength = MslCiphertextEnvelope.getBase64(envelope, ciphertext);
+            final Cipher cipher = CryptoCache.getCipher(transform);
+            cipher.init(Cipher.DECRYPT_MODE, privateKey, params);
+            final byte[] plaintext = cipher.doFinal(ciphertext, 0, ciphertextLength);
+            CryptoCache.releaseCipher(transform, cipher);
+            out.put(plaintext);
+            data.position(data.limit());
+            success = true;
+            return plaintext.length;
+        } catch (final NoSuchPaddingException e) {
+            reset = e;
+            throw new MslInternalException("Unsupported padding exception.", e);
+        } catch (final NoSuchAlgorithmException e) {
+            reset = e;
+            throw new MslInternalException("Invalid cipher algorithm specified.", e);
+        } catch (final InvalidKeyException e) {
+            reset = e;
+            throw new MslCryptoException(MslError.INVALID_PRIVATE_KEY, e);
+        } catch (final IllegalBlockSizeException e) {
+            reset = e;
+            throw new MslCryptoException(MslError.CIPHERTEXT_ILLEGAL_BLOCK_SIZE, e);
+        } catch (final BadPaddingException e) {
+            reset = e;
+            throw new MslCryptoException(MslError.CIPHERTEXT_BAD_PADDING, e);
+        } catch (final InvalidAlgorithmParameterException e) {
+            reset = e;
+            throw new MslCryptoException(MslError.INVALID_ALGORITHM_PARAMS, e);
+        } catch (final RuntimeException e) {
+            reset = e;
+            throw e;
+        } finally {
+            if (!success)
+                out.position(start);
+            // FIXME Remove this once BouncyCastle Cipher is fixed in v1.48+
+            if (reset != null)
+                CryptoCache.resetCipher(transform);
+        }
+    }
+    
+    /* (non-Javadoc)
+     * @see com.netflix.msl.crypto.ICryptoContext#wrap(java.nio.ByteBuffer, java.nio.ByteBuffer)
+     */
+    @Override
+    public int wrap(final ByteBuffer data, final ByteBuffer out) throws MslCryptoException {
+        throw new MslCryptoException(MslError.WRAP_NOT_SUPPORTED);
+    }
+    
+    /* (non-Javadoc)
+     * @see com.netflix.msl.crypto.ICryptoContext#unwrap(java.nio.ByteBuffer, java.nio.ByteBuffer)
+     */
+    @Override
+    public int unwrap(final ByteBuffer data, final ByteBuffer out) throws MslCryptoException {
+        throw new MslCryptoException(MslError.UNWRAP_NOT_SUPPORTED);
+    }
+    
+    /* (non-Javadoc)
+     * @see com.netflix.msl.crypto.ICryptoContext#sign(java.nio.ByteBuffer, java.nio.ByteBuffer)
+     */
+    @Override
+    public int sign(final ByteBuffer data, final ByteBuffer out) throws MslCryptoException {
+        if (NULL_OP.equals(algo)) {
+            data.position(data.limit());
+            return 0;
+        }
+        if (privateKey == null)
+            throw new MslCryptoException(MslError.SIGN_NOT_SUPPORTED, "no private key.");
+        try {
+            final Signature sig = CryptoCache.getSignature(algo);
+            sig.initSign(privateKey);
+            sig.update(data.duplicate());
+            final byte[] rawSignature = sig.sign();
+            CryptoCache.releaseSignature(algo, sig);
+            final byte[] signature = new MslSignatureEnvelope(rawSignature).getBytes();
+            
+            // Write the signature envelope byte representation.
+            if (out.remaining() < signature.length)
+                throw new BufferOverflowException();
+            out.put(signature);
+            data.position(data.limit());
+            return signature.length;
+        } catch (final NoSuchAlgorithmException e) {
+            throw new MslInternalException("Invalid signature algorithm specified.", e);
+        } catch (final InvalidKeyException e) {
+            throw new MslCryptoException(MslError.INVALID_PRIVATE_KEY, e);
+        } catch (final SignatureException e) {
+            throw new MslCryptoException(MslError.SIGNATURE_ERROR, e);
+        }
+    }
+    
+    /* (non-Javadoc)
+     * @see com.netflix.msl.crypto.ICryptoContext#verify(java.nio.ByteBuffer, java.nio.ByteBuffer)
+     */
+    @Override
+    public boolean verify(final ByteBuffer data, final ByteBuffer signature) throws MslCryptoException {
+        if (NULL_OP.equals(algo)) {
+            data.position(data.limit());
+            signature.position(signature.limit());
+            return true;
+        }
+        if (publicKey == null)
+            throw new MslCryptoException(MslError.VERIFY_NOT_SUPPORTED, "no public key.");
+        try {
+            // Reconstitute the signature envelope.
+            final byte[] signatureBytes = new byte[signature.remaining()];
+            signature.get(signatureBytes);
+            final MslSignatureEnvelope envelope = MslSignatureEnvelope.parse(signatureBytes);
+            
+            final Signature sig = CryptoCache.getSignature(algo);
+            sig.initVerify(publicKey);
+            sig.update(data);
+            final boolean verified = sig.verify(envelope.getSignature());
+            CryptoCache.releaseSignature(algo, sig);
+            return verified;
         } catch (final NoSuchAlgorithmException e) {
             throw new MslInternalException("Invalid signature algorithm specified.", e);
         } catch (final InvalidKeyException e) {
@@ -256,6 +555,34 @@ public abstract class AsymmetricCryptoContext implements ICryptoContext {
         }
     }
 
+    /**
+     * <p>Verifies the signatures in parallel on the common fork-join pool.
+     * Public key signature verification is expensive enough that a batch of
+     * handshake messages completes much faster than verifying each one on
+     * the calling thread.</p>
+     * 
+     * <p>If any verification fails with an exception, the remaining
+     * verifications are abandoned and the first exception is thrown.</p>
+     * 
+     * @see com.netflix.msl.crypto.ICryptoContext#verifyAll(java.util.List, java.util.List)
+     */
+    @Override
+    public boolean[] verifyAll(final List<byte[]> data, final List<byte[]> signatures) throws MslCryptoException {
+        if (data.size() != signatures.size())
+            throw new MslInternalException("Batch verification of " + data.size() + " data items with " + signatures.size() + " signatures.");
+        if (NULL_OP.equals(algo) || data.size() <= BATCH_VERIFY_THRESHOLD)
+            return ICryptoContext.super.verifyAll(data, signatures);
+        if (publicKey == null)
+            throw new MslCryptoException(MslError.VERIFY_NOT_SUPPORTED, "no public key.");
+        
+        final boolean[] verified = new boolean[data.size()];
+        final AtomicReference<MslCryptoException> error = new AtomicReference<MslCryptoException>();
+        ForkJoinPool.commonPool().invoke(new BatchVerifyTask(data, signatures, verified, error, 0, verified.length));
+        if (error.get() != null)
+            throw error.get();
+        return verified;
+    }
+
     /** Key pair identity. */
     protected final String id;
     /** Encryption/decryption cipher. */
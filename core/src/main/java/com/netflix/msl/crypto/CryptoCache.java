@@ -4,9 +4,9 @@
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
- *
+ * 
  *    http://www.apache.org/licenses/LICENSE-2.0
- *
+ * 
  * Unless required by applicable law or agreed to in writing, software
  * distributed under the License is distributed on an "AS IS" BASIS,
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
@@ -20,76 +20,138 @@ import java.security.KeyPairGenerator;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.Signature;
-import java.util.HashMap;
-import java.util.Map;
 
 import javax.crypto.Cipher;
 import javax.crypto.KeyAgreement;
 import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 
+import com.netflix.msl.MslInternalException;
+
 /**
- * <p>The crypto context cache provides a thread-local cache of cipher and
- * signature objects.</p>
+ * <p>The crypto context cache provides a cache of cipher and signature
+ * objects.</p>
+ * 
+ * <p>How instances are cached is decided by the configured
+ * {@link CryptoCacheStrategy}. The default {@link ThreadLocalCryptoCacheStrategy}
+ * keeps one instance per thread. The {@link PooledCryptoCacheStrategy} and
+ * {@link StripedCryptoCacheStrategy} bound the number of instances and are
+ * better suited to thread-per-request servers and virtual threads.</p>
+ * 
+ * <p>Each instance returned by this class must be passed back to the
+ * matching {@code release} method once the caller is done with it. If the
+ * instance throws an exception it must not be released.</p>
  * 
  * @author Wesley Miaw <wmiaw@netflix.com>
  */
 public class CryptoCache {
-    /** Cache of transforms onto ciphers. */
-    private static ThreadLocal<Map<String,Cipher>> cipherCache = new ThreadLocal<Map<String,Cipher>>() {
-        @Override
-        protected Map<String,Cipher> initialValue() {
-            return new HashMap<String,Cipher>();
-        }
-    };
-    
-    /** Cache of algorithms onto signatures. */
-    private static ThreadLocal<Map<String,Signature>> signatureCache = new ThreadLocal<Map<String,Signature>>() {
-        @Override
-        protected Map<String,Signature> initialValue() {
-            return new HashMap<String,Signature>();
-        }
-    };
+    /**
+     * Cryptographic primitive types.
+     */
+    public static enum Primitive {
+        CIPHER {
+            @Override
+            protected Object getInstance(final String algorithm) throws NoSuchAlgorithmException, NoSuchPaddingException {
+                return Cipher.getInstance(algorithm);
+            }
+        },
+        SIGNATURE {
+            @Override
+            protected Object getInstance(final String algorithm) throws NoSuchAlgorithmException {
+                return Signature.getInstance(algorithm);
+            }
+        },
+        MESSAGE_DIGEST {
+            @Override
+            protected Object getInstance(final String algorithm) throws NoSuchAlgorithmException {
+                return MessageDigest.getInstance(algorithm);
+            }
+        },
+        MAC {
+            @Override
+            protected Object getInstance(final String algorithm) throws NoSuchAlgorithmException {
+                return Mac.getInstance(algorithm);
+            }
+        },
+        KEY_FACTORY {
+            @Override
+            protected Object getInstance(final String algorithm) throws NoSuchAlgorithmException {
+                return KeyFactory.getInstance(algorithm);
+            }
+        },
+        KEY_AGREEMENT {
+            @Override
+            protected Object getInstance(final String algorithm) throws NoSuchAlgorithmException {
+                return KeyAgreement.getInstance(algorithm);
+            }
+        },
+        KEY_PAIR_GENERATOR {
+            @Override
+            protected Object getInstance(final String algorithm) throws NoSuchAlgorithmException {
+                return KeyPairGenerator.getInstance(algorithm);
+            }
+        };
+        
+        /**
+         * Creates a new instance of this primitive type.
+         * 
+         * @param algorithm the algorithm or transform.
+         * @return the new instance.
+         * @throws NoSuchAlgorithmException if no Provider supports the
+         *         specified algorithm.
+         * @throws NoSuchPaddingException if a cipher transform contains a
+         *         padding scheme that is not available.
+         */
+        protected abstract Object getInstance(final String algorithm) throws NoSuchAlgorithmException, NoSuchPaddingException;
+    }
     
-    /** Cache of algorithms onto message digests. */
-    private static ThreadLocal<Map<String,MessageDigest>> digestCache = new ThreadLocal<Map<String,MessageDigest>>() {
-        @Override
-        protected Map<String,MessageDigest> initialValue() {
-            return new HashMap<String,MessageDigest>();
-        }
-    };
+    /** Crypto cache strategy. */
+    private static volatile CryptoCacheStrategy strategy = new ThreadLocalCryptoCacheStrategy();
     
-    /** Cache of algorithms onto MACs. */
-    private static ThreadLocal<Map<String,Mac>> macCache = new ThreadLocal<Map<String,Mac>>() {
-        @Override
-        protected Map<String,Mac> initialValue() {
-            return new HashMap<String,Mac>();
-        }
-    };
+    /**
+     * <p>Sets the crypto cache strategy.</p>
+     * 
+     * <p>This should be done once at startup. Instances acquired from the
+     * previous strategy may be released into the new strategy.</p>
+     * 
+     * @param strategy the crypto cache strategy.
+     */
+    public static void setStrategy(final CryptoCacheStrategy strategy) {
+        if (strategy == null)
+            throw new NullPointerException("Crypto cache strategy cannot be null.");
+        CryptoCache.strategy = strategy;
+    }
     
-    /** Cache of algorithms onto key factories. */
-    private static ThreadLocal<Map<String,KeyFactory>> keyFactoryCache = new ThreadLocal<Map<String,KeyFactory>>() {
-        @Override
-        protected Map<String,KeyFactory> initialValue() {
-            return new HashMap<String,KeyFactory>();
-        }
-    };
+    /**
+     * @return the crypto cache strategy.
+     */
+    public static CryptoCacheStrategy getStrategy() {
+        return strategy;
+    }
     
-    /** Cache of algorithms onto key agreements. */
-    private static ThreadLocal<Map<String,KeyAgreement>> keyAgreementCache = new ThreadLocal<Map<String,KeyAgreement>>() {
-        @Override
-        protected Map<String,KeyAgreement> initialValue() {
-            return new HashMap<String,KeyAgreement>();
-        }
-    };
+    /**
+     * @return a snapshot of the current crypto cache strategy's statistics.
+     */
+    public static CryptoCacheStatistics getStatistics() {
+        return strategy.getStatistics();
+    }
     
-    /** Cache of algorithms onto key pair generators. */
-    private static ThreadLocal<Map<String,KeyPairGenerator>> keyPairGeneratorCache = new ThreadLocal<Map<String,KeyPairGenerator>>() {
-        @Override
-        protected Map<String,KeyPairGenerator> initialValue() {
-            return new HashMap<String,KeyPairGenerator>();
+    /**
+     * Returns an instance of a primitive that never requires padding.
+     * 
+     * @param primitive the primitive type.
+     * @param algorithm the algorithm.
+     * @return the instance.
+     * @throws NoSuchAlgorithmException if no Provider supports the specified
+     *         algorithm.
+     */
+    private static Object get(final Primitive primitive, final String algorithm) throws NoSuchAlgorithmException {
+        try {
+            return strategy.get(primitive, algorithm);
+        } catch (final NoSuchPaddingException e) {
+            throw new MslInternalException("Padding is not applicable to " + primitive + ".", e);
         }
-    };
+    }
     
     /**
      * Returns a {@code Cipher} object that implements the specified transform.
@@ -101,15 +163,22 @@ public class CryptoCache {
      *         implementation for the specified algorithm.
      * @throws NoSuchPaddingException if transformation contains a padding
      *         scheme that is not available.
+     * @see #releaseCipher(String, Cipher)
      * @see #resetCipher(String)
      */
     public static Cipher getCipher(final String transform) throws NoSuchAlgorithmException, NoSuchPaddingException {
-        final Map<String,Cipher> ciphers = cipherCache.get();
-        if (!ciphers.containsKey(transform)) {
-            final Cipher cipher = Cipher.getInstance(transform);
-            ciphers.put(transform, cipher);
-        }
-        return ciphers.get(transform);
+        return (Cipher)strategy.get(Primitive.CIPHER, transform);
+    }
+    
+    /**
+     * Releases a {@code Cipher} object returned by
+     * {@link #getCipher(String)}.
+     * 
+     * @param transform encrypt/decrypt transform.
+     * @param cipher the cipher instance.
+     */
+    public static void releaseCipher(final String transform, final Cipher cipher) {
+        strategy.release(Primitive.CIPHER, transform, cipher);
     }
     
     /**
@@ -122,8 +191,7 @@ public class CryptoCache {
      * @see #getCipher(String)
      */
     public static void resetCipher(final String transform) {
-        final Map<String,Cipher> ciphers = cipherCache.get();
-        ciphers.remove(transform);
+        strategy.reset(Primitive.CIPHER, transform);
     }
     
     /**
@@ -134,14 +202,21 @@ public class CryptoCache {
      * @return the signature instance.
      * @throws NoSuchAlgorithmException if no Provider supports a Signature
      *         implementation for the specified algorithm.
+     * @see #releaseSignature(String, Signature)
      */
     public static Signature getSignature(final String algorithm) throws NoSuchAlgorithmException {
-        final Map<String,Signature> signatures = signatureCache.get();
-        if (!signatures.containsKey(algorithm)) {
-            final Signature signature = Signature.getInstance(algorithm);
-            signatures.put(algorithm, signature);
-        }
-        return signatures.get(algorithm);
+        return (Signature)get(Primitive.SIGNATURE, algorithm);
+    }
+    
+    /**
+     * Releases a {@code Signature} object returned by
+     * {@link #getSignature(String)}.
+     * 
+     * @param algorithm the sign/verify algorithm.
+     * @param signature the signature instance.
+     */
+    public static void releaseSignature(final String algorithm, final Signature signature) {
+        strategy.release(Primitive.SIGNATURE, algorithm, signature);
     }
     
     /**
@@ -152,14 +227,21 @@ public class CryptoCache {
      * @return the message digest instance.
      * @throws NoSuchAlgorithmException if no Provider supports a MessageDigest
      *         implementation for the specified algorithm.
+     * @see #releaseMessageDigest(String, MessageDigest)
      */
     public static MessageDigest getMessageDigest(final String algorithm) throws NoSuchAlgorithmException {
-        final Map<String,MessageDigest> digests = digestCache.get();
-        if (!digests.containsKey(algorithm)) {
-            final MessageDigest digest = MessageDigest.getInstance(algorithm);
-            digests.put(algorithm, digest);
-        }
-        return digests.get(algorithm);
+        return (MessageDigest)get(Primitive.MESSAGE_DIGEST, algorithm);
+    }
+    
+    /**
+     * Releases a {@code MessageDigest} object returned by
+     * {@link #getMessageDigest(String)}.
+     * 
+     * @param algorithm the digest algorithm.
+     * @param digest the message digest instance.
+     */
+    public static void releaseMessageDigest(final String algorithm, final MessageDigest digest) {
+        strategy.release(Primitive.MESSAGE_DIGEST, algorithm, digest);
     }
     
     /**
@@ -169,14 +251,20 @@ public class CryptoCache {
      * @return the MAC instance.
      * @throws NoSuchAlgorithmException if no Provider supports a Mac
      *         implementation for the specified algorithm.
+     * @see #releaseMac(String, Mac)
      */
     public static Mac getMac(final String algorithm) throws NoSuchAlgorithmException {
-        final Map<String,Mac> macs = macCache.get();
-        if (!macs.containsKey(algorithm)) {
-            final Mac mac = Mac.getInstance(algorithm);
-            macs.put(algorithm, mac);
-        }
-        return macs.get(algorithm);
+        return (Mac)get(Primitive.MAC, algorithm);
+    }
+    
+    /**
+     * Releases a {@code Mac} object returned by {@link #getMac(String)}.
+     * 
+     * @param algorithm the MAC algorithm.
+     * @param mac the MAC instance.
+     */
+    public static void releaseMac(final String algorithm, final Mac mac) {
+        strategy.release(Primitive.MAC, algorithm, mac);
     }
     
     /**
@@ -187,14 +275,21 @@ public class CryptoCache {
      * @return the key factory instance.
      * @throws NoSuchAlgorithmException if no Provider supports a KeyFactory
      *         implementation for the specified algorithm.
+     * @see #releaseKeyFactory(String, KeyFactory)
      */
     public static KeyFactory getKeyFactory(final String algorithm) throws NoSuchAlgorithmException {
-        final Map<String,KeyFactory> factories = keyFactoryCache.get();
-        if (!factories.containsKey(algorithm)) {
-            final KeyFactory factory = KeyFactory.getInstance(algorithm);
-            factories.put(algorithm, factory);
-        }
-        return factories.get(algorithm);
+        return (KeyFactory)get(Primitive.KEY_FACTORY, algorithm);
+    }
+    
+    /**
+     * Releases a {@code KeyFactory} object returned by
+     * {@link #getKeyFactory(String)}.
+     * 
+     * @param algorithm the key factory algorithm.
+     * @param factory the key factory instance.
+     */
+    public static void releaseKeyFactory(final String algorithm, final KeyFactory factory) {
+        strategy.release(Primitive.KEY_FACTORY, algorithm, factory);
     }
     
     /**
@@ -205,14 +300,21 @@ public class CryptoCache {
      * @return the key agreement instance.
      * @throws NoSuchAlgorithmException if no Provider supports a KeyAgreement
      *         implementation for the specified algorithm.
+     * @see #releaseKeyAgreement(String, KeyAgreement)
      */
     public static KeyAgreement getKeyAgreement(final String algorithm) throws NoSuchAlgorithmException {
-        final Map<String,KeyAgreement> agreements = keyAgreementCache.get();
-        if (!agreements.containsKey(algorithm)) {
-            final KeyAgreement agreement = KeyAgreement.getInstance(algorithm);
-            agreements.put(algorithm, agreement);
-        }
-        return agreements.get(algorithm);
+        return (KeyAgreement)get(Primitive.KEY_AGREEMENT, algorithm);
+    }
+    
+    /**
+     * Releases a {@code KeyAgreement} object returned by
+     * {@link #getKeyAgreement(String)}.
+     * 
+     * @param algorithm the key agreement algorithm.
+     * @param agreement the key agreement instance.
+     */
+    public static void releaseKeyAgreement(final String algorithm, final KeyAgreement agreement) {
+        strategy.release(Primitive.KEY_AGREEMENT, algorithm, agreement);
     }
     
     /**
@@ -223,13 +325,20 @@ public class CryptoCache {
      * @return the key pair generator instance.
      * @throws NoSuchAlgorithmException if no Provider supports a
      *         KeyPairGenerator implementation for the specified algorithm.
+     * @see #releaseKeyPairGenerator(String, KeyPairGenerator)
      */
     public static KeyPairGenerator getKeyPairGenerator(final String algorithm) throws NoSuchAlgorithmException {
-        final Map<String,KeyPairGenerator> generators = keyPairGeneratorCache.get();
-        if (!generators.containsKey(algorithm)) {
-            final KeyPairGenerator generator = KeyPairGenerator.getInstance(algorithm);
-            generators.put(algorithm, generator);
-        }
-        return generators.get(algorithm);
+        return (KeyPairGenerator)get(Primitive.KEY_PAIR_GENERATOR, algorithm);
+    }
+    
+    /**
+     * Releases a {@code KeyPairGenerator} object returned by
+     * {@link #getKeyPairGenerator(String)}.
+     * 
+     * @param algorithm the key pair generator algorithm.
+     * @param generator the key pair generator instance.
+     */
+    public static void releaseKeyPairGenerator(final String algorithm, final KeyPairGenerator generator) {
+        strategy.release(Primitive.KEY_PAIR_GENERATOR, algorithm, generator);
     }
 }
@@ -0,0 +1,88 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.crypto;
+
+/**
+ * <p>A point-in-time snapshot of a {@link CryptoCacheStrategy}'s
+ * counters.</p>
+ * 
+ * <p>Every request is either a hit or a miss. Each miss normally results in
+ * a creation. A discard is a released instance that the strategy chose not
+ * to keep because it was already at capacity.</p>
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+public class CryptoCacheStatistics {
+    /**
+     * Create a new statistics snapshot.
+     * 
+     * @param hits requests satisfied by a cached instance.
+     * @param misses requests not satisfied by a cached instance.
+     * @param creations instances created.
+     * @param discards released instances dropped.
+     */
+    public CryptoCacheStatistics(final long hits, final long misses, final long creations, final long discards) {
+        this.hits = hits;
+        this.misses = misses;
+        this.creations = creations;
+        this.discards = discards;
+    }
+    
+    /**
+     * @return the number of requests satisfied by a cached instance.
+     */
+    public long getHits() {
+        return hits;
+    }
+    
+    /**
+     * @return the number of requests not satisfied by a cached instance.
+     */
+    public long getMisses() {
+        return misses;
+    }
+    
+    /**
+     * @return the number of instances created.
+     */
+    public long getCreations() {
+        return creations;
+    }
+    
+    /**
+     * @return the number of released instances dropped.
+     */
+    public long getDiscards() {
+        return discards;
+    }
+    
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "hits=" + hits + ", misses=" + misses + ", creations=" + creations + ", discards=" + discards;
+    }
+    
+    /** Cache hits. */
+    private final long hits;
+    /** Cache misses. */
+    private final long misses;
+    /** Instances created. */
+    private final long creations;
+    /** Instances discarded. */
+    private final long discards;
+}
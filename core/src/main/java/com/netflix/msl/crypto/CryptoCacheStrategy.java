@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.crypto;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.NoSuchPaddingException;
+
+import com.netflix.msl.crypto.CryptoCache.Primitive;
+
+/**
+ * <p>A crypto cache strategy decides how {@link CryptoCache} stores and
+ * hands out cryptographic primitive instances.</p>
+ * 
+ * <p>An instance returned by {@link #get(Primitive, String)} is owned by the
+ * caller until it is passed back to {@link #release(Primitive, String, Object)}.
+ * An instance that threw an exception must not be released; instead
+ * {@link #reset(Primitive, String)} is called.</p>
+ * 
+ * <p>Implementations must be thread-safe and must record their activity
+ * using the {@link #hit()}, {@link #miss()}, {@link #discard()} and
+ * {@link #create(Primitive, String)} methods so the statistics are
+ * comparable across strategies.</p>
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+public abstract class CryptoCacheStrategy {
+    /**
+     * Returns an instance of the primitive that implements the specified
+     * algorithm.
+     * 
+     * @param primitive the primitive type.
+     * @param algorithm the algorithm or transform.
+     * @return the primitive instance.
+     * @throws NoSuchAlgorithmException if no Provider supports the specified
+     *         algorithm.
+     * @throws NoSuchPaddingException if a cipher transform contains a padding
+     *         scheme that is not available.
+     */
+    public abstract Object get(final Primitive primitive, final String algorithm) throws NoSuchAlgorithmException, NoSuchPaddingException;
+    
+    /**
+     * Returns an instance previously returned by
+     * {@link #get(Primitive, String)} to the cache once the caller is done
+     * with it.
+     * 
+     * @param primitive the primitive type.
+     * @param algorithm the algorithm or transform.
+     * @param instance the primitive instance.
+     */
+    public abstract void release(final Primitive primitive, final String algorithm, final Object instance);
+    
+    /**
+     * Discards any cached instance of the primitive that implements the
+     * specified algorithm and that may be in an unclean state.
+     * 
+     * @param primitive the primitive type.
+     * @param algorithm the algorithm or transform.
+     */
+    public abstract void reset(final Primitive primitive, final String algorithm);
+    
+    /**
+     * @return a snapshot of this strategy's statistics.
+     */
+    public CryptoCacheStatistics getStatistics() {
+        return new CryptoCacheStatistics(hits.sum(), misses.sum(), creations.sum(), discards.sum());
+    }
+    
+    /**
+     * Creates a new instance of the primitive and records the creation.
+     * 
+     * @param primitive the primitive type.
+     * @param algorithm the algorithm or transform.
+     * @return the new primitive instance.
+     * @throws NoSuchAlgorithmException if no Provider supports the specified
+     *         algorithm.
+     * @throws NoSuchPaddingException if a cipher transform contains a padding
+     *         scheme that is not available.
+     */
+    protected Object create(final Primitive primitive, final String algorithm) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        final Object instance = primitive.getInstance(algorithm);
+        creations.increment();
+        return instance;
+    }
+    
+    /** Records a request satisfied by a cached instance. */
+    protected void hit() {
+        hits.increment();
+    }
+    
+    /** Records a request that could not be satisfied by a cached instance. */
+    protected void miss() {
+        misses.increment();
+    }
+    
+    /** Records a released instance that was dropped instead of cached. */
+    protected void discard() {
+        discards.increment();
+    }
+    
+    /** Cache hits. */
+    private final LongAdder hits = new LongAdder();
+    /** Cache misses. */
+    private final LongAdder misses = new LongAdder();
+    /** Instances created. */
+    private final LongAdder creations = new LongAdder();
+    /** Instances discarded. */
+    private final LongAdder discards = new LongAdder();
+}
@@ -15,11 +15,28 @@
  */
 package com.netflix.msl.crypto;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
 import com.netflix.msl.MslCryptoException;
+import com.netflix.msl.MslInternalException;
 
 /**
- * A generic cryptographic context suitable for encryption/decryption,
- * wrap/unwrap, and sign/verify operations.
+ * <p>A generic cryptographic context suitable for encryption/decryption,
+ * wrap/unwrap, and sign/verify operations.</p>
+ * 
+ * <p>Each operation is also available over {@link ByteBuffer}s. The input is
+ * read from the buffer's position up to its limit and the position is
+ * advanced to the limit. The output is written into the destination buffer
+ * at its position and the position is advanced past the output. If the
+ * destination buffer does not have enough space remaining a
+ * {@link BufferOverflowException} is thrown and neither buffer is modified.
+ * Direct buffers are supported.</p>
+ * 
+ * <p>The default {@code ByteBuffer} implementations copy the data into and
+ * out of arrays and delegate to the array methods. Implementations should
+ * override them where they can operate on the buffers directly.</p>
  * 
  * @author Wesley Miaw <wmiaw@netflix.com>
  */
@@ -80,4 +97,159 @@ public interface ICryptoContext {
      * @throws MslCryptoException if there is an error verifying the signature.
      */
     public boolean verify(final byte[] data, final byte[] signature) throws MslCryptoException;
+    
+    /**
+     * Encrypts some data.
+     * 
+     * @param data the plaintext.
+     * @param out the destination buffer for the ciphertext.
+     * @return the number of bytes written into the destination buffer.
+     * @throws MslCryptoException if there is an error encrypting the data.
+     * @throws BufferOverflowException if there is insufficient space in the
+     *         destination buffer.
+     * @see #encrypt(byte[])
+     */
+    public default int encrypt(final ByteBuffer data, final ByteBuffer out) throws MslCryptoException {
+        final byte[] plaintext = new byte[data.remaining()];
+        data.duplicate().get(plaintext);
+        final byte[] ciphertext = encrypt(plaintext);
+        if (out.remaining() < ciphertext.length)
+            throw new BufferOverflowException();
+        out.put(ciphertext);
+        data.position(data.limit());
+        return ciphertext.length;
+    }
+    
+    /**
+     * Decrypts some data.
+     * 
+     * @param data the ciphertext.
+     * @param out the destination buffer for the plaintext.
+     * @return the number of bytes written into the destination buffer.
+     * @throws MslCryptoException if there is an error decrypting the data.
+     * @throws BufferOverflowException if there is insufficient space in the
+     *         destination buffer.
+     * @see #decrypt(byte[])
+     */
+    public default int decrypt(final ByteBuffer data, final ByteBuffer out) throws MslCryptoException {
+        final byte[] ciphertext = new byte[data.remaining()];
+        data.duplicate().get(ciphertext);
+        final byte[] plaintext = decrypt(ciphertext);
+        if (out.remaining() < plaintext.length)
+            throw new BufferOverflowException();
+        out.put(plaintext);
+        data.position(data.limit());
+        return plaintext.length;
+    }
+    
+    /**
+     * Wraps some data.
+     * 
+     * @param data the plaintext.
+     * @param out the destination buffer for the wrapped data.
+     * @return the number of bytes written into the destination buffer.
+     * @throws MslCryptoException if there is an error wrapping the data.
+     * @throws BufferOverflowException if there is insufficient space in the
+     *         destination buffer.
+     * @see #wrap(byte[])
+     */
+    public default int wrap(final ByteBuffer data, final ByteBuffer out) throws MslCryptoException {
+        final byte[] plaintext = new byte[data.remaining()];
+        data.duplicate().get(plaintext);
+        final byte[] wrapped = wrap(plaintext);
+        if (out.remaining() < wrapped.length)
+            throw new BufferOverflowException();
+        out.put(wrapped);
+        data.position(data.limit());
+        return wrapped.length;
+    }
+    
+    /**
+     * Unwraps some data.
+     * 
+     * @param data the wrapped data.
+     * @param out the destination buffer for the plaintext.
+     * @return the number of bytes written into the destination buffer.
+     * @throws MslCryptoException if there is an error unwrapping the data.
+     * @throws BufferOverflowException if there is insufficient space in the
+     *         destination buffer.
+     * @see #unwrap(byte[])
+     */
+    public default int unwrap(final ByteBuffer data, final ByteBuffer out) throws MslCryptoException {
+        final byte[] wrapped = new byte[data.remaining()];
+        data.duplicate().get(wrapped);
+        final byte[] plaintext = unwrap(wrapped);
+        if (out.remaining() < plaintext.length)
+            throw new BufferOverflowException();
+        out.put(plaintext);
+        data.position(data.limit());
+        return plaintext.length;
+    }
+    
+    /**
+     * Computes the signature for some data.
+     * 
+     * @param data the data.
+     * @param out the destination buffer for the signature.
+     * @return the number of bytes written into the destination buffer.
+     * @throws MslCryptoException if there is an error computing the signature.
+     * @throws BufferOverflowException if there is insufficient space in the
+     *         destination buffer.
+     * @see #sign(byte[])
+     */
+    public default int sign(final ByteBuffer data, final ByteBuffer out) throws MslCryptoException {
+        final byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        final byte[] signature = sign(bytes);
+        if (out.remaining() < signature.length)
+            throw new BufferOverflowException();
+        out.put(signature);
+        data.position(data.limit());
+        return signature.length;
+    }
+    
+    /**
+     * Verifies the signature for some data. The remaining bytes of both
+     * buffers are consumed.
+     * 
+     * @param data the data.
+     * @param signature the signature.
+     * @return true if the data is verified, false if validation fails.
+     * @throws MslCryptoException if there is an error verifying the signature.
+     * @see #verify(byte[], byte[])
+     */
+    public default boolean verify(final ByteBuffer data, final ByteBuffer signature) throws MslCryptoException {
+        final byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        final byte[] signatureBytes = new byte[signature.remaining()];
+        signature.get(signatureBytes);
+        return verify(bytes, signatureBytes);
+    }
+    
+    /**
+     * <p>Verifies the signatures for a batch of data. The signature at each
+     * index is verified against the data at the same index.</p>
+     * 
+     * <p>The default implementation verifies each signature in turn.
+     * Implementations with expensive verification may verify the signatures
+     * in parallel.</p>
+     * 
+     * @param data the data.
+     * @param signatures the signatures.
+     * @return for each index, true if the data is verified, false if
+     *         validation fails.
+     * @throws MslCryptoException if there is an error verifying any of the
+     *         signatures.
+     * @throws MslInternalException if the number of data items and signatures
+     *         differ.
+     * @see #verify(byte[], byte[])
+     */
+    public default boolean[] verifyAll(final List<byte[]> data, final List<byte[]> signatures) throws MslCryptoException {
+        if (data.size() != signatures.size())
+            throw new MslInternalException("Batch verification of " + data.size() + " data items with " + signatures.size() + " signatures.");
+        final boolean[] verified = new boolean[data.size()];
+        for (int i = 0; i < verified.length; ++i)
+            verified[i] = verify(data.get(i), signatures.get(i));
+        return verified;
+    }
 }
@@ -227,7 +227,9 @@ public class JsonWebEncryptionCryptoContext implements ICryptoContext {
                 // Encrypt plaintext.
                 final Cipher cipher = CryptoCache.getCipher(RSA_OAEP_TRANSFORM);
                 cipher.init(Cipher.ENCRYPT_MODE, publicKey, OAEPParameterSpec.DEFAULT);
-                return cipher.doFinal(data);
+                final byte[] ciphertext = cipher.doFinal(data);
+                CryptoCache.releaseCipher(RSA_OAEP_TRANSFORM, cipher);
+                return ciphertext;
             } catch (final NoSuchPaddingException e) {
                 reset = e;
                 throw new MslInternalException("Unsupported padding exception.", e);
@@ -268,7 +270,9 @@ public class JsonWebEncryptionCryptoContext implements ICryptoContext {
                 // Decrypt ciphertext.
                 final Cipher cipher = CryptoCache.getCipher(RSA_OAEP_TRANSFORM);
                 cipher.init(Cipher.DECRYPT_MODE, privateKey, OAEPParameterSpec.DEFAULT);
-                return cipher.doFinal(data);
+                final byte[] plaintext = cipher.doFinal(data);
+                CryptoCache.releaseCipher(RSA_OAEP_TRANSFORM, cipher);
+                return plaintext;
             } catch (final NoSuchPaddingException e) {
                 reset = e;
                 throw new MslInternalException("Unsupported padding exception.", e);
@@ -350,7 +354,9 @@ public class JsonWebEncryptionCryptoContext implements ICryptoContext {
                     // TODO: The key spec algorithm should be based on the JWE
                     // encryption algorithm. Right now that is always AES-GCM.
                     final Key secretKey = new SecretKeySpec(data, "AES");
-                    return cipher.wrap(secretKey);
+                    final byte[] ciphertext = cipher.wrap(secretKey);
+                    CryptoCache.releaseCipher(A128_KW_TRANSFORM, cipher);
+                    return ciphertext;
                 } catch (final NoSuchPaddingException e) {
                     throw new MslInternalException("Unsupported padding exception.", e);
                 } catch (final NoSuchAlgorithmException e) {
@@ -379,7 +385,9 @@ public class JsonWebEncryptionCryptoContext implements ICryptoContext {
                     // Decrypt ciphertext.
                     final Cipher cipher = CryptoCache.getCipher(A128_KW_TRANSFORM);
                     cipher.init(Cipher.UNWRAP_MODE, key);
-                    return cipher.unwrap(data, "AES", Cipher.SECRET_KEY).getEncoded();
+                    final byte[] plaintext = cipher.unwrap(data, "AES", Cipher.SECRET_KEY).getEncoded();
+                    CryptoCache.releaseCipher(A128_KW_TRANSFORM, cipher);
+                    return plaintext;
                 } catch (final NoSuchPaddingException e) {
                     throw new MslInternalException("Unsupported padding exception.", e);
                 } catch (final NoSuchAlgorithmException e) {
@@ -436,6 +436,7 @@ public class JsonWebKey implements JSONString {
                 } else {
                     privateKey = null;
                 }
+                CryptoCache.releaseKeyFactory("RSA", factory);
                 
                 // Make sure there is at least one key.
                 if (publicKey == null && privateKey == null)
@@ -15,12 +15,17 @@
  */
 package com.netflix.msl.crypto;
 
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 import javax.xml.bind.DatatypeConverter;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONString;
 
+import com.netflix.msl.MslConstants;
 import com.netflix.msl.MslConstants.CipherSpec;
 import com.netflix.msl.MslCryptoException;
 import com.netflix.msl.MslEncodingException;
@@ -47,6 +52,20 @@ public class MslCiphertextEnvelope implements JSONString {
     /** JSON key SHA-256. */
     private final static String KEY_SHA256 = "sha256";
     
+    /** Version 1 JSON following the Base64-encoded ciphertext. */
+    private static final byte[] JSON_TRAILER = "\",\"sha256\":\"AA==\"}".getBytes(MslConstants.DEFAULT_CHARSET);
+    /** Base64 alphabet. */
+    private static final byte[] BASE64_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(MslConstants.DEFAULT_CHARSET);
+    /** Base64 pad character. */
+    private static final byte BASE64_PAD = '=';
+    /** Base64 character values indexed by character, or -1 if invalid. */
+    private static final byte[] BASE64_VALUES = new byte[128];
+    static {
+        Arrays.fill(BASE64_VALUES, (byte)-1);
+        for (int i = 0; i < BASE64_ALPHABET.length; ++i)
+            BASE64_VALUES[BASE64_ALPHABET[i]] = (byte)i;
+    }
+    
     /** Versions. */
     public static enum Version {
         /**
@@ -93,7 +112,26 @@ public class MslCiphertextEnvelope implements JSONString {
          * <tr><td>AES/CBC/PKCS5Padding</td><td>AES CBC w/PKCS#5 Padding</td></tr>
          * </table></p>
          */
-        V2;
+        V2,
+        /**
+         * <p>Version 3.</p>
+         * 
+         * {@code version || keyid length || keyid || iv length || iv || ciphertext length || ciphertext}
+         * where:
+         * <ul>
+         * <li>{@code version} is the unsigned byte value 3 (not the ASCII character '3')</li>
+         * <li>{@code keyid length} is the big-endian 16-bit length of the key ID</li>
+         * <li>{@code keyid} is the UTF-8 encoded encryption key ID</li>
+         * <li>{@code iv length} is the big-endian 16-bit length of the initialization vector, zero if there is none</li>
+         * <li>{@code iv} is the initialization vector</li>
+         * <li>{@code ciphertext length} is the big-endian 32-bit length of the ciphertext</li>
+         * <li>{@code ciphertext} is the ciphertext</li>
+         * </ul>
+         * 
+         * <p>This is a compact binary representation of the version 1
+         * envelope. It has no JSON representation.</p>
+         */
+        V3;
         
         /**
          * @param version the integer value of this version.
@@ -104,6 +142,7 @@ public class MslCiphertextEnvelope implements JSONString {
             switch (version) {
                 case 1: return V1;
                 case 2: return V2;
+                case 3: return V3;
                 default: throw new IllegalArgumentException("Unknown ciphertext envelope version " + version + ".");
             }
         }
@@ -115,6 +154,7 @@ public class MslCiphertextEnvelope implements JSONString {
             switch (this) {
                 case V1: return 1;
                 case V2: return 2;
+                case V3: return 3;
                 default: throw new MslInternalException("No integer value defined for version " + this + ".");
             }
         }
@@ -139,6 +179,17 @@ public class MslCiphertextEnvelope implements JSONString {
         }
     }
     
+    /**
+     * Returns true if the provided envelope bytes are a binary (version 3)
+     * envelope. JSON envelopes never begin with the version 3 byte.
+     * 
+     * @param envelope the raw envelope bytes.
+     * @return true if the envelope bytes are a binary envelope.
+     */
+    public static boolean isBinary(final byte[] envelope) {
+        return envelope.length > 0 && envelope[0] == Version.V3.intValue();
+    }
+    
     /**
      * Create a new version 1 ciphertext envelope with the provided data.
      * 
@@ -147,7 +198,24 @@ public class MslCiphertextEnvelope implements JSONString {
      * @param ciphertext the ciphertext.
      */
     public MslCiphertextEnvelope(final String keyId, final byte[] iv, final byte[] ciphertext) {
-        this.version = Version.V1;
+        this(keyId, iv, ciphertext, Version.V1);
+    }
+    
+    /**
+     * Create a new version 1 or version 3 ciphertext envelope with the
+     * provided data.
+     * 
+     * @param keyId the key identifier.
+     * @param iv the initialization vector. May be null.
+     * @param ciphertext the ciphertext.
+     * @param version the envelope version. Must be version 1 or version 3.
+     * @throws MslInternalException if the version is not version 1 or
+     *         version 3.
+     */
+    public MslCiphertextEnvelope(final String keyId, final byte[] iv, final byte[] ciphertext, final Version version) {
+        if (!Version.V1.equals(version) && !Version.V3.equals(version))
+            throw new MslInternalException("Ciphertext envelope version " + version + " does not carry a key ID.");
+        this.version = version;
         this.keyId = keyId;
         this.cipherSpec = null;
         this.iv = iv;
@@ -169,6 +237,337 @@ public class MslCiphertextEnvelope implements JSONString {
         this.ciphertext = ciphertext;
     }
     
+    /**
+     * Create a new version 3 encryption envelope from the provided binary
+     * representation.
+     * 
+     * @param envelope the raw envelope bytes.
+     * @return the envelope.
+     * @throws MslCryptoException if the envelope is not a version 3 envelope
+     *         or is malformed.
+     * @see #getBytes()
+     */
+    public static MslCiphertextEnvelope parse(final byte[] envelope) throws MslCryptoException {
+        if (!isBinary(envelope))
+            throw new MslCryptoException(MslError.UNIDENTIFIED_CIPHERTEXT_ENVELOPE, "ciphertext envelope " + DatatypeConverter.printBase64Binary(envelope));
+        final ByteBuffer buffer = ByteBuffer.wrap(envelope);
+        final MslCiphertextEnvelope header = parseHeader(buffer);
+        final byte[] ciphertext = new byte[buffer.remaining()];
+        buffer.get(ciphertext);
+        return new MslCiphertextEnvelope(header.keyId, header.iv, ciphertext, Version.V3);
+    }
+    
+    /**
+     * <p>Parse the header of a version 3 encryption envelope from the
+     * provided buffer. On return the buffer is positioned at the start of the
+     * ciphertext and the remaining bytes are exactly the ciphertext.</p>
+     * 
+     * <p>The returned envelope has empty ciphertext. This allows callers to
+     * decrypt the ciphertext in place.</p>
+     * 
+     * @param envelope the buffer containing the raw envelope bytes.
+     * @return the envelope header.
+     * @throws MslCryptoException if the envelope is not a version 3 envelope
+     *         or is malformed.
+     */
+    static MslCiphertextEnvelope parseHeader(final ByteBuffer envelope) throws MslCryptoException {
+        try {
+            final int v = envelope.get();
+            if (v != Version.V3.intValue())
+                throw new MslCryptoException(MslError.UNIDENTIFIED_CIPHERTEXT_ENVELOPE, "ciphertext envelope version " + v);
+            final byte[] keyIdBytes = new byte[envelope.getShort() & 0xFFFF];
+            envelope.get(keyIdBytes);
+            final int ivLength = envelope.getShort() & 0xFFFF;
+            final byte[] iv;
+            if (ivLength > 0) {
+                iv = new byte[ivLength];
+                envelope.get(iv);
+            } else {
+                iv = null;
+            }
+            final int ciphertextLength = envelope.getInt();
+            if (ciphertextLength < 0 || ciphertextLength != envelope.remaining())
+                throw new MslCryptoException(MslError.INVALID_CIPHERTEXT, "ciphertext envelope ciphertext length " + ciphertextLength + " remaining " + envelope.remaining());
+            final String keyId = new String(keyIdBytes, MslConstants.DEFAULT_CHARSET);
+            return new MslCiphertextEnvelope(keyId, iv, new byte[0], Version.V3);
+        } catch (final BufferUnderflowException e) {
+            throw new MslCryptoException(MslError.CIPHERTEXT_ENVELOPE_PARSE_ERROR, "ciphertext envelope header truncated", e);
+        }
+    }
+    
+    /**
+     * Returns the length of a version 3 encryption envelope header.
+     * 
+     * @param keyIdBytes the UTF-8 encoded key ID.
+     * @param iv the initialization vector. May be null.
+     * @return the header length in bytes.
+     * @throws MslInternalException if the key ID or initialization vector is
+     *         too large.
+     */
+    static int getHeaderLength(final byte[] keyIdBytes, final byte[] iv) {
+        final int ivLength = (iv != null) ? iv.length : 0;
+        if (keyIdBytes.length > 0xFFFF || ivLength > 0xFFFF)
+            throw new MslInternalException("Ciphertext envelope key ID or initialization vector is too large for version " + Version.V3 + ".");
+        return 1 + 2 + keyIdBytes.length + 2 + ivLength + 4;
+    }
+    
+    /**
+     * Writes a version 3 encryption envelope header into the provided buffer.
+     * The ciphertext must be written immediately after the header.
+     * 
+     * @param out the destination buffer.
+     * @param keyIdBytes the UTF-8 encoded key ID.
+     * @param iv the initialization vector. May be null.
+     * @param ciphertextLength the ciphertext length in bytes.
+     * @throws MslInternalException if the key ID or initialization vector is
+     *         too large.
+     * @see #getHeaderLength(byte[], byte[])
+     */
+    static void putHeader(final ByteBuffer out, final byte[] keyIdBytes, final byte[] iv, final int ciphertextLength) {
+        getHeaderLength(keyIdBytes, iv);
+        out.put((byte)Version.V3.intValue());
+        out.putShort((short)keyIdBytes.length);
+        out.put(keyIdBytes);
+        if (iv != null) {
+            out.putShort((short)iv.length);
+            out.put(iv);
+        } else {
+            out.putShort((short)0);
+        }
+        out.putInt(ciphertextLength);
+    }
+    
+    /**
+     * Returns the UTF-8 encoded version 1 encryption envelope JSON that
+     * precedes the Base64-encoded ciphertext. The Base64-encoded ciphertext
+     * must be written immediately after the header followed by the
+     * trailer.
+     * 
+     * @param keyId the key identifier.
+     * @param iv the initialization vector. May be null.
+     * @return the JSON header bytes.
+     * @see #putJsonTrailer(ByteBuffer)
+     */
+    static byte[] getJsonHeader(final String keyId, final byte[] iv) {
+        final StringBuilder header = new StringBuilder("{");
+        header.append(JSONObject.quote(KEY_KEY_ID)).append(':').append(JSONObject.quote(keyId)).append(',');
+        if (iv != null)
+            header.append(JSONObject.quote(KEY_IV)).append(":\"").append(DatatypeConverter.printBase64Binary(iv)).append("\",");
+        header.append(JSONObject.quote(KEY_CIPHERTEXT)).append(":\"");
+        return header.toString().getBytes(MslConstants.DEFAULT_CHARSET);
+    }
+    
+    /**
+     * Returns the length of a version 1 encryption envelope.
+     * 
+     * @param jsonHeader the JSON header bytes.
+     * @param ciphertextLength the ciphertext length in bytes.
+     * @return the envelope length in bytes.
+     * @see #getJsonHeader(String, byte[])
+     */
+    static int getJsonLength(final byte[] jsonHeader, final int ciphertextLength) {
+        return jsonHeader.length + (ciphertextLength + 2) / 3 * 4 + JSON_TRAILER.length;
+    }
+    
+    /**
+     * Writes the version 1 encryption envelope JSON that follows the
+     * Base64-encoded ciphertext into the provided buffer.
+     * 
+     * @param out the destination buffer.
+     * @see #getJsonHeader(String, byte[])
+     */
+    static void putJsonTrailer(final ByteBuffer out) {
+        out.put(JSON_TRAILER);
+    }
+    
+    /**
+     * Writes the Base64 encoding of the specified bytes into the provided
+     * buffer. The encoding is padded unless the number of bytes is a
+     * multiple of three, so only the final call for an encoded value may
+     * provide such a number of bytes.
+     * 
+     * @param out the destination buffer.
+     * @param b the bytes.
+     * @param off offset of the first byte.
+     * @param len number of bytes.
+     */
+    static void putBase64(final ByteBuffer out, final byte[] b, final int off, final int len) {
+        final int end = off + len;
+        int i = off;
+        for (; i + 3 <= end; i += 3) {
+            final int v = ((b[i] & 0xFF) << 16) | ((b[i + 1] & 0xFF) << 8) | (b[i + 2] & 0xFF);
+            out.put(BASE64_ALPHABET[v >>> 18]);
+            out.put(BASE64_ALPHABET[(v >>> 12) & 0x3F]);
+            out.put(BASE64_ALPHABET[(v >>> 6) & 0x3F]);
+            out.put(BASE64_ALPHABET[v & 0x3F]);
+        }
+        if (i == end)
+            return;
+        final int v = ((b[i] & 0xFF) << 16) | ((i + 1 < end) ? (b[i + 1] & 0xFF) << 8 : 0);
+        out.put(BASE64_ALPHABET[v >>> 18]);
+        out.put(BASE64_ALPHABET[(v >>> 12) & 0x3F]);
+        out.put((i + 1 < end) ? BASE64_ALPHABET[(v >>> 6) & 0x3F] : BASE64_PAD);
+        out.put(BASE64_PAD);
+    }
+    
+    /**
+     * Decodes as many complete Base64 groups from the provided buffer as fit
+     * into the provided byte array. The buffer must only contain valid
+     * padded Base64, as verified by {@link #parseJsonHeader(ByteBuffer)}.
+     * 
+     * @param in the Base64-encoded source buffer.
+     * @param b the destination byte array. Must be at least three bytes.
+     * @return the number of decoded bytes.
+     */
+    static int getBase64(final ByteBuffer in, final byte[] b) {
+        final int groups = Math.min(in.remaining() / 4, b.length / 3);
+        int n = 0;
+        for (int g = 0; g < groups; ++g) {
+            final int c0 = BASE64_VALUES[in.get()];
+            final int c1 = BASE64_VALUES[in.get()];
+            final byte x2 = in.get();
+            final byte x3 = in.get();
+            b[n++] = (byte)((c0 << 2) | (c1 >>> 4));
+            if (x2 == BASE64_PAD)
+                break;
+            final int c2 = BASE64_VALUES[x2];
+            b[n++] = (byte)((c1 << 4) | (c2 >>> 2));
+            if (x3 == BASE64_PAD)
+                break;
+            b[n++] = (byte)((c2 << 6) | BASE64_VALUES[x3]);
+        }
+        return n;
+    }
+    
+    /**
+     * <p>Parse the JSON surrounding the Base64-encoded ciphertext of a
+     * version 1 encryption envelope from the provided buffer. On success the
+     * buffer position and limit are set to the Base64-encoded ciphertext,
+     * which is verified to be valid padded Base64.</p>
+     * 
+     * <p>Only the compact form produced by {@link #toJSONString()} and
+     * {@link #getJsonHeader(String, byte[])} is recognized: string members
+     * in any order without insignificant whitespace or escape sequences. Null
+     * is returned for anything else, in which case the caller should parse
+     * the envelope with a JSON parser, which also reports any errors.</p>
+     * 
+     * <p>The returned envelope has empty ciphertext. This allows callers to
+     * decrypt the ciphertext in place.</p>
+     * 
+     * @param envelope the buffer containing the raw envelope bytes.
+     * @return the envelope header or null if the envelope is not in compact
+     *         form or is malformed.
+     */
+    static MslCiphertextEnvelope parseJsonHeader(final ByteBuffer envelope) {
+        final ByteBuffer json = envelope.duplicate();
+        String keyId = null;
+        byte[] iv = null;
+        int ciphertextStart = -1, ciphertextEnd = -1;
+        boolean sha256 = false;
+        try {
+            if (json.get() != '{')
+                return null;
+            while (true) {
+                // Read the member name and value range.
+                if (json.get() != '"')
+                    return null;
+                final int keyStart = json.position();
+                final int keyEnd = skipJsonString(json);
+                if (keyEnd < 0 || json.get() != ':' || json.get() != '"')
+                    return null;
+                final int valueStart = json.position();
+                final int valueEnd = skipJsonString(json);
+                if (valueEnd < 0)
+                    return null;
+                
+                // Duplicate or unknown members are left to the JSON parser.
+                final String key = getJsonString(json, keyStart, keyEnd);
+                if (KEY_KEY_ID.equals(key) && keyId == null) {
+                    keyId = getJsonString(json, valueStart, valueEnd);
+                } else if (KEY_IV.equals(key) && iv == null) {
+                    if (!isBase64(json, valueStart, valueEnd))
+                        return null;
+                    iv = DatatypeConverter.parseBase64Binary(getJsonString(json, valueStart, valueEnd));
+                } else if (KEY_CIPHERTEXT.equals(key) && ciphertextStart < 0) {
+                    if (!isBase64(json, valueStart, valueEnd))
+                        return null;
+                    ciphertextStart = valueStart;
+                    ciphertextEnd = valueEnd;
+                } else if (KEY_SHA256.equals(key) && !sha256) {
+                    sha256 = true;
+                } else {
+                    return null;
+                }
+                
+                final byte c = json.get();
+                if (c == '}')
+                    break;
+                if (c != ',')
+                    return null;
+            }
+        } catch (final BufferUnderflowException e) {
+            return null;
+        }
+        if (json.hasRemaining() || keyId == null || ciphertextStart < 0 || !sha256)
+            return null;
+        envelope.limit(ciphertextEnd);
+        envelope.position(ciphertextStart);
+        return new MslCiphertextEnvelope(keyId, iv, new byte[0], Version.V1);
+    }
+    
+    /**
+     * Advances the buffer past the closing quote of a JSON string.
+     * 
+     * @param json the buffer positioned after the opening quote.
+     * @return the position of the closing quote or -1 if the string contains
+     *         an escape sequence or control character.
+     * @throws BufferUnderflowException if the string is not terminated.
+     */
+    private static int skipJsonString(final ByteBuffer json) {
+        while (true) {
+            final byte c = json.get();
+            if (c == '"')
+                return json.position() - 1;
+            if (c == '\\' || (c >= 0 && c < 0x20))
+                return -1;
+        }
+    }
+    
+    /**
+     * @param json the buffer.
+     * @param start the first byte position, inclusive.
+     * @param end the last byte position, exclusive.
+     * @return the UTF-8 decoded string.
+     */
+    private static String getJsonString(final ByteBuffer json, final int start, final int end) {
+        final byte[] b = new byte[end - start];
+        for (int i = 0; i < b.length; ++i)
+            b[i] = json.get(start + i);
+        return new String(b, MslConstants.DEFAULT_CHARSET);
+    }
+    
+    /**
+     * @param json the buffer.
+     * @param start the first byte position, inclusive.
+     * @param end the last byte position, exclusive.
+     * @return true if the bytes are valid padded Base64.
+     */
+    private static boolean isBase64(final ByteBuffer json, final int start, final int end) {
+        if ((end - start) % 4 != 0)
+            return false;
+        for (int i = start; i < end; ++i) {
+            final byte c = json.get(i);
+            if (c == BASE64_PAD) {
+                // Padding may only appear in the last two positions.
+                if (i < end - 2 || (i == end - 2 && json.get(end - 1) != BASE64_PAD))
+                    return false;
+            } else if (c < 0 || BASE64_VALUES[c] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
     /**
      * Create a new encryption envelope from the provided JSON object.
      * 
@@ -238,6 +637,8 @@ public class MslCiphertextEnvelope implements JSONString {
                     throw new MslEncodingException(MslError.JSON_PARSE_ERROR, "ciphertext envelope " + jsonObj.toString(), e);
                 }
                 break;
+            case V3:
+                throw new MslCryptoException(MslError.UNSUPPORTED_CIPHERTEXT_ENVELOPE, "ciphertext envelope " + jsonObj.toString());
             default:
                 throw new MslCryptoException(MslError.UNSUPPORTED_CIPHERTEXT_ENVELOPE, "ciphertext envelope version " + version);
         }
@@ -282,6 +683,25 @@ public class MslCiphertextEnvelope implements JSONString {
     /** Ciphertext. */
     private final byte[] ciphertext;
 
+    /**
+     * Returns the ciphertext envelope in byte form. Version 1 and version 2
+     * envelopes are returned as UTF-8 encoded JSON. Version 3 envelopes are
+     * returned in their binary representation.
+     * 
+     * @return the byte representation of the ciphertext envelope.
+     * @see #parse(byte[])
+     */
+    public byte[] getBytes() {
+        if (!Version.V3.equals(version))
+            return toJSONString().getBytes(MslConstants.DEFAULT_CHARSET);
+        
+        final byte[] keyIdBytes = keyId.getBytes(MslConstants.DEFAULT_CHARSET);
+        final ByteBuffer buffer = ByteBuffer.allocate(getHeaderLength(keyIdBytes, iv) + ciphertext.length);
+        putHeader(buffer, keyIdBytes, iv, ciphertext.length);
+        buffer.put(ciphertext);
+        return buffer.array();
+    }
+
     /* (non-Javadoc)
      * @see org.json.JSONString#toJSONString()
      */
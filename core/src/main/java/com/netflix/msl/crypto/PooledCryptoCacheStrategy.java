@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.crypto;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.NoSuchPaddingException;
+
+import com.netflix.msl.crypto.CryptoCache.Primitive;
+
+/**
+ * <p>A crypto cache strategy that keeps a bounded, lock-free pool of
+ * instances for each primitive and algorithm, shared by all threads.</p>
+ * 
+ * <p>An instance is removed from the pool while it is in use, so concurrent
+ * callers never share an instance. If the pool is empty a new instance is
+ * created. If the pool is full when an instance is released, the instance
+ * is discarded. The number of idle instances is therefore bounded by the
+ * pool capacity regardless of the number of threads.</p>
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+public class PooledCryptoCacheStrategy extends CryptoCacheStrategy {
+    /**
+     * A bounded pool of instances.
+     */
+    private static class Pool {
+        /** Idle instances. */
+        public final Queue<Object> instances = new ConcurrentLinkedQueue<Object>();
+        /** Number of idle instances. */
+        public final AtomicInteger size = new AtomicInteger(0);
+    }
+    
+    /**
+     * Create a new pooled crypto cache strategy.
+     * 
+     * @param capacity the maximum number of idle instances kept for each
+     *        primitive and algorithm.
+     * @throws IllegalArgumentException if the capacity is less than one.
+     */
+    public PooledCryptoCacheStrategy(final int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Pool capacity " + capacity + " must be positive.");
+        this.capacity = capacity;
+        for (final Primitive primitive : Primitive.values())
+            pools.put(primitive, new ConcurrentHashMap<String,Pool>());
+    }
+    
+    /* (non-Javadoc)
+     * @see com.netflix.msl.crypto.CryptoCacheStrategy#get(com.netflix.msl.crypto.CryptoCache.Primitive, java.lang.String)
+     */
+    @Override
+    public Object get(final Primitive primitive, final String algorithm) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        final Pool pool = pools.get(primitive).get(algorithm);
+        if (pool != null) {
+            final Object instance = pool.instances.poll();
+            if (instance != null) {
+                pool.size.decrementAndGet();
+                hit();
+                return instance;
+            }
+        }
+        miss();
+        return create(primitive, algorithm);
+    }
+    
+    /* (non-Javadoc)
+     * @see com.netflix.msl.crypto.CryptoCacheStrategy#release(com.netflix.msl.crypto.CryptoCache.Primitive, java.lang.String, java.lang.Object)
+     */
+    @Override
+    public void release(final Primitive primitive, final String algorithm, final Object instance) {
+        final ConcurrentMap<String,Pool> algorithms = pools.get(primitive);
+        Pool pool = algorithms.get(algorithm);
+        if (pool == null) {
+            final Pool newPool = new Pool();
+            pool = algorithms.putIfAbsent(algorithm, newPool);
+            if (pool == null) pool = newPool;
+        }
+        
+        // Reserve a slot before adding the instance so the pool never grows
+        // past its capacity.
+        if (pool.size.incrementAndGet() > capacity) {
+            pool.size.decrementAndGet();
+            discard();
+            return;
+        }
+        pool.instances.offer(instance);
+    }
+    
+    /* (non-Javadoc)
+     * @see com.netflix.msl.crypto.CryptoCacheStrategy#reset(com.netflix.msl.crypto.CryptoCache.Primitive, java.lang.String)
+     */
+    @Override
+    public void reset(final Primitive primitive, final String algorithm) {
+        // Instances in use are not in the pool, so an instance that threw an
+        // exception is dropped simply by not releasing it.
+    }
+    
+    /** Maximum number of idle instances per primitive and algorithm. */
+    private final int capacity;
+    /** Pools by primitive type and algorithm. */
+    private final Map<Primitive,ConcurrentMap<String,Pool>> pools = new EnumMap<Primitive,ConcurrentMap<String,Pool>>(Primitive.class);
+}
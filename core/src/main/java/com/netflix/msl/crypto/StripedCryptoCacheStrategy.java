@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.crypto;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.crypto.NoSuchPaddingException;
+
+import com.netflix.msl.crypto.CryptoCache.Primitive;
+
+/**
+ * <p>A crypto cache strategy that keeps a striped pool with one slot per
+ * stripe for each primitive and algorithm. The number of stripes defaults
+ * to the number of available processors.</p>
+ * 
+ * <p>Each thread is mapped onto a stripe by its thread ID modulo the number
+ * of stripes. The mapping does not know which processor or carrier thread
+ * a thread runs on, so threads whose IDs share a stripe contend for the
+ * same slot. Acquiring an instance atomically empties the stripe's slot
+ * and releasing an instance atomically fills it, discarding the instance
+ * if the slot is already occupied. A thread that finds its slot empty
+ * creates a new instance. No locks are taken and the number of idle
+ * instances never exceeds the number of stripes, no matter how many
+ * threads are created.</p>
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+public class StripedCryptoCacheStrategy extends CryptoCacheStrategy {
+    /**
+     * Create a new striped crypto cache strategy with one stripe per
+     * available processor.
+     */
+    public StripedCryptoCacheStrategy() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Create a new striped crypto cache strategy.
+     * 
+     * @param stripes the number of stripes.
+     * @throws IllegalArgumentException if the number of stripes is less than
+     *         one.
+     */
+    public StripedCryptoCacheStrategy(final int stripes) {
+        if (stripes < 1)
+            throw new IllegalArgumentException("Stripe count " + stripes + " must be positive.");
+        this.stripes = stripes;
+        for (final Primitive primitive : Primitive.values())
+            slots.put(primitive, new ConcurrentHashMap<String,AtomicReferenceArray<Object>>());
+    }
+    
+    /* (non-Javadoc)
+     * @see com.netflix.msl.crypto.CryptoCacheStrategy#get(com.netflix.msl.crypto.CryptoCache.Primitive, java.lang.String)
+     */
+    @Override
+    public Object get(final Primitive primitive, final String algorithm) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        final AtomicReferenceArray<Object> instances = slots.get(primitive).get(algorithm);
+        if (instances != null) {
+            final Object instance = instances.getAndSet(stripe(), null);
+            if (instance != null) {
+                hit();
+                return instance;
+            }
+        }
+        miss();
+        return create(primitive, algorithm);
+    }
+    
+    /* (non-Javadoc)
+     * @see com.netflix.msl.crypto.CryptoCacheStrategy#release(com.netflix.msl.crypto.CryptoCache.Primitive, java.lang.String, java.lang.Object)
+     */
+    @Override
+    public void release(final Primitive primitive, final String algorithm, final Object instance) {
+        final ConcurrentMap<String,AtomicReferenceArray<Object>> algorithms = slots.get(primitive);
+        AtomicReferenceArray<Object> instances = algorithms.get(algorithm);
+        if (instances == null) {
+            final AtomicReferenceArray<Object> newInstances = new AtomicReferenceArray<Object>(stripes);
+            instances = algorithms.putIfAbsent(algorithm, newInstances);
+            if (instances == null) instances = newInstances;
+        }
+        if (!instances.compareAndSet(stripe(), null, instance))
+            discard();
+    }
+    
+    /* (non-Javadoc)
+     * @see com.netflix.msl.crypto.CryptoCacheStrategy#reset(com.netflix.msl.crypto.CryptoCache.Primitive, java.lang.String)
+     */
+    @Override
+    public void reset(final Primitive primitive, final String algorithm) {
+        // Instances in use are not in a slot, so an instance that threw an
+        // exception is dropped simply by not releasing it.
+    }
+    
+    /**
+     * @return the stripe index of the current thread.
+     */
+    private int stripe() {
+        return (int)(Thread.currentThread().getId() % stripes);
+    }
+    
+    /** Number of stripes. */
+    private final int stripes;
+    /** Slots by primitive type and algorithm. */
+    private final Map<Primitive,ConcurrentMap<String,AtomicReferenceArray<Object>>> slots = new EnumMap<Primitive,ConcurrentMap<String,AtomicReferenceArray<Object>>>(Primitive.class);
+}
@@ -15,12 +15,16 @@
  */
 package com.netflix.msl.crypto;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.AlgorithmParameterSpec;
 import java.util.Arrays;
+import java.util.Queue;
 import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -28,6 +32,7 @@ import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 
 import org.bouncycastle.crypto.BlockCipher;
@@ -47,8 +52,23 @@ import com.netflix.msl.util.MslContext;
 import com.netflix.msl.util.MslUtils;
 
 /**
- * A symmetric crypto context performs AES-128 encryption/decryption, AES-128
- * key wrap/unwrap, and HMAC-SHA256 or AES-CMAC sign/verify.
+ * <p>A symmetric crypto context performs AES-128 encryption/decryption, AES-128
+ * key wrap/unwrap, and HMAC-SHA256 or AES-CMAC sign/verify.</p>
+ * 
+ * <p>Cipher and MAC instances are pooled per crypto context and remain bound
+ * to the context's keys between operations. This avoids recomputing the AES
+ * key schedule, HMAC pads and CMAC subkeys on every call, which matters
+ * for session crypto contexts that are reused across many messages. The
+ * pools grow to the maximum number of threads concurrently using the crypto
+ * context.</p>
+ * 
+ * <p>The {@link ByteBuffer} operations encrypt, decrypt and compute
+ * signatures directly between the provided buffers. Version 1 ciphertext
+ * envelopes are streamed by Base64 encoding or decoding the ciphertext one
+ * chunk at a time; version 1 envelopes that are not in the compact form
+ * produced by MSL fall back to the byte array operations. The destination
+ * buffer for version 3 decryption must have room for the padded ciphertext
+ * length since the padding is not known until decryption completes.</p>
  * 
  * @author Wesley Miaw <wmiaw@netflix.com>
  */
@@ -72,6 +92,14 @@ public class SymmetricCryptoContext implements ICryptoContext {
     /** Key wrap initial value. */
     private static final byte[] AESKW_AIV = { (byte)0xA6, (byte)0xA6, (byte)0xA6, (byte)0xA6, (byte)0xA6, (byte)0xA6, (byte)0xA6, (byte)0xA6 };
     
+    /** AES-CMAC copy buffer size in bytes for direct buffers. */
+    private static final int CMAC_CHUNK_SIZE = 4096;
+    /**
+     * Version 1 ciphertext envelope chunk size in bytes. A multiple of three
+     * so chunks decode from whole Base64 groups.
+     */
+    private static final int CIPHER_CHUNK_SIZE = 3072;
+    
     /**
      * @param bytes number of bytes to return.
      * @param w the value.
@@ -133,6 +161,37 @@ public class SymmetricCryptoContext implements ICryptoContext {
      * @param signatureKey the key used for HMAC or CMAC computation.
      * @param wrappingKey the key used for wrap/unwrap.     */
     public SymmetricCryptoContext(final MslContext ctx, final String id, final SecretKey encryptionKey, final SecretKey signatureKey, final SecretKey wrappingKey) {
+        this(ctx, id, encryptionKey, signatureKey, wrappingKey, MslCiphertextEnvelope.Version.V1);
+    }
+    
+    /**
+     * <p>Create a new symmetric crypto context using the provided keys that
+     * produces ciphertext envelopes of the specified version.</p>
+     * 
+     * <p>Version 1 envelopes are JSON and understood by all MSL peers.
+     * Version 3 envelopes are a compact binary encoding and should only be
+     * used if the remote entity is known to support them. Decryption accepts
+     * either version regardless of this setting.</p>
+     * 
+     * <p>If there is no encryption key, encryption and decryption is
+     * unsupported.</p>
+     * 
+     * <p>If there is no signature key, signing and verification is
+     * unsupported.</p>
+     * 
+     * <p>If there is no wrapping key, wrap and unwrap is unsupported.</p>
+     * 
+     * @param ctx MSL context.
+     * @param id the key set identity.
+     * @param encryptionKey the key used for encryption/decryption.
+     * @param signatureKey the key used for HMAC or CMAC computation.
+     * @param wrappingKey the key used for wrap/unwrap.
+     * @param envelopeVersion the ciphertext envelope version to produce.
+     *        Must be version 1 or version 3.
+     */
+    public SymmetricCryptoContext(final MslContext ctx, final String id, final SecretKey encryptionKey, final SecretKey signatureKey, final SecretKey wrappingKey, final MslCiphertextEnvelope.Version envelopeVersion) {
+        if (!MslCiphertextEnvelope.Version.V1.equals(envelopeVersion) && !MslCiphertextEnvelope.Version.V3.equals(envelopeVersion))
+            throw new IllegalArgumentException("Ciphertext envelope version must be " + MslCiphertextEnvelope.Version.V1 + " or " + MslCiphertextEnvelope.Version.V3 + ".");
         if (encryptionKey != null && !encryptionKey.getAlgorithm().equals(JcaAlgorithm.AES))
             throw new IllegalArgumentException("Encryption key must be an " + JcaAlgorithm.AES + " key.");
         if (signatureKey != null &&
@@ -149,6 +208,7 @@ public class SymmetricCryptoContext implements ICryptoContext {
         this.encryptionKey = encryptionKey;
         this.signatureKey = signatureKey;
         this.wrappingKey = wrappingKey;
+        this.envelopeVersion = envelopeVersion;
     }
     
     /* (non-Javadoc)
@@ -167,16 +227,17 @@ public class SymmetricCryptoContext implements ICryptoContext {
             // Encrypt plaintext.
             final byte[] ciphertext;
             if (data.length != 0) {
-                final Cipher cipher = CryptoCache.getCipher(AES_TRANSFORM);
+                final Cipher cipher = getEncryptionCipher();
                 final AlgorithmParameterSpec params = new IvParameterSpec(iv);
                 cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, params);
                 ciphertext = cipher.doFinal(data);
+                encryptionCiphers.offer(cipher);
             } else {
                 ciphertext = new byte[0];
             }
             
             // Return encryption envelope byte representation.
-            return new MslCiphertextEnvelope(id, iv, ciphertext).toJSONString().getBytes(MslConstants.DEFAULT_CHARSET);
+            return new MslCiphertextEnvelope(id, iv, ciphertext, envelopeVersion).getBytes();
         } catch (final NoSuchPaddingException e) {
             throw new MslInternalException("Unsupported padding exception.", e);
         } catch (final NoSuchAlgorithmException e) {
@@ -201,8 +262,13 @@ public class SymmetricCryptoContext implements ICryptoContext {
             throw new MslCryptoException(MslError.DECRYPT_NOT_SUPPORTED, "no encryption/decryption key");
         try {
             // Reconstitute encryption envelope.
-            final JSONObject encryptionEnvelopeJsonObj = new JSONObject(new String(data, MslConstants.DEFAULT_CHARSET));
-            final MslCiphertextEnvelope encryptionEnvelope = new MslCiphertextEnvelope(encryptionEnvelopeJsonObj, MslCiphertextEnvelope.Version.V1);
+            final MslCiphertextEnvelope encryptionEnvelope;
+            if (MslCiphertextEnvelope.isBinary(data)) {
+                encryptionEnvelope = MslCiphertextEnvelope.parse(data);
+            } else {
+                final JSONObject encryptionEnvelopeJsonObj = new JSONObject(new String(data, MslConstants.DEFAULT_CHARSET));
+                encryptionEnvelope = new MslCiphertextEnvelope(encryptionEnvelopeJsonObj, MslCiphertextEnvelope.Version.V1);
+            }
             
             // Verify key ID.
             if (!encryptionEnvelope.getKeyId().equals(id))
@@ -213,10 +279,14 @@ public class SymmetricCryptoContext implements ICryptoContext {
             if (ciphertext.length == 0)
                 return new byte[0];
             final byte[] iv = encryptionEnvelope.getIv();
-            final Cipher cipher = CryptoCache.getCipher(AES_TRANSFORM);
+            if (iv == null)
+                throw new MslCryptoException(MslError.INVALID_IV, "missing initialization vector");
+            final Cipher cipher = getEncryptionCipher();
             final AlgorithmParameterSpec params = new IvParameterSpec(iv);
             cipher.init(Cipher.DECRYPT_MODE, encryptionKey, params);
-            return cipher.doFinal(ciphertext);
+            final byte[] plaintext = cipher.doFinal(ciphertext);
+            encryptionCiphers.offer(cipher);
+            return plaintext;
         } catch (final ArrayIndexOutOfBoundsException e) {
             throw new MslCryptoException(MslError.INSUFFICIENT_CIPHERTEXT, e);
         } catch (final JSONException e) {
@@ -252,8 +322,7 @@ public class SymmetricCryptoContext implements ICryptoContext {
         byte[] a = AESKW_AIV.clone();
         final byte[] r = data.clone();
         try {
-            final Cipher cipher = CryptoCache.getCipher(AESKW_TRANSFORM);
-            cipher.init(Cipher.ENCRYPT_MODE, wrappingKey);
+            final Cipher cipher = getWrapCipher(Cipher.ENCRYPT_MODE);
             
             // Initialize variables.
             final int n = r.length / AESKW_BLOCK_SIZE;
@@ -274,6 +343,7 @@ public class SymmetricCryptoContext implements ICryptoContext {
             }
             
             // Output results.
+            wrapCiphers.offer(cipher);
             final byte[] c = new byte[a.length + r.length];
             System.arraycopy(a, 0, c, 0, a.length);
             System.arraycopy(r, 0, c, a.length, r.length);
@@ -302,8 +372,7 @@ public class SymmetricCryptoContext implements ICryptoContext {
             throw new MslCryptoException(MslError.CIPHERTEXT_ILLEGAL_BLOCK_SIZE, "data.length " + data.length);
         
         try {
-            final Cipher cipher = CryptoCache.getCipher(AESKW_TRANSFORM);
-            cipher.init(Cipher.DECRYPT_MODE, wrappingKey);
+            final Cipher cipher = getWrapCipher(Cipher.DECRYPT_MODE);
             
             byte[] a = Arrays.copyOf(data, AESKW_BLOCK_SIZE);
             final byte[] r = Arrays.copyOfRange(data, a.length, data.length);
@@ -325,6 +394,7 @@ public class SymmetricCryptoContext implements ICryptoContext {
             }
             
             // Output results.
+            unwrapCiphers.offer(cipher);
             if (MslUtils.safeEquals(a, AESKW_AIV) && r.length % AESKW_BLOCK_SIZE == 0)
                 return r;
             throw new MslCryptoException(MslError.UNWRAP_ERROR, "initial value " + Arrays.toString(a));
@@ -350,22 +420,7 @@ public class SymmetricCryptoContext implements ICryptoContext {
             throw new MslCryptoException(MslError.SIGN_NOT_SUPPORTED, "No signature key.");
         try {
             // Compute the xMac.
-            final byte[] xmac;
-            if (signatureKey.getAlgorithm().equals(JcaAlgorithm.HMAC_SHA256)) {
-                final Mac mac = CryptoCache.getMac(HMAC_SHA256_ALGO);
-                mac.init(signatureKey);
-                xmac = mac.doFinal(data);
-            } else if (signatureKey.getAlgorithm().equals(JcaAlgorithm.AES_CMAC)) {
-                final CipherParameters params = new KeyParameter(signatureKey.getEncoded());
-                final BlockCipher aes = new AESEngine();
-                final CMac mac = new CMac(aes);
-                mac.init(params);
-                mac.update(data, 0, data.length);
-                xmac = new byte[mac.getMacSize()];
-                mac.doFinal(xmac, 0);
-            } else {
-                throw new MslCryptoException(MslError.SIGN_NOT_SUPPORTED, "Unsupported algorithm.");
-            }
+            final byte[] xmac = mac(ByteBuffer.wrap(data), MslError.SIGN_NOT_SUPPORTED);
             
             // Return the signature envelope byte representation.
             return new MslSignatureEnvelope(xmac).getBytes();
@@ -388,23 +443,341 @@ public class SymmetricCryptoContext implements ICryptoContext {
             final MslSignatureEnvelope envelope = MslSignatureEnvelope.parse(signature);
             
             // Compute the xMac.
-            final byte[] xmac;
-            if (signatureKey.getAlgorithm().equals(JcaAlgorithm.HMAC_SHA256)) {
-                final Mac mac = CryptoCache.getMac(HMAC_SHA256_ALGO);
-                mac.init(signatureKey);
-                xmac = mac.doFinal(data);
-            } else if (signatureKey.getAlgorithm().equals(JcaAlgorithm.AES_CMAC)) {
-                final CipherParameters params = new KeyParameter(signatureKey.getEncoded());
-                final BlockCipher aes = new AESEngine();
-                final CMac mac = new CMac(aes);
-                mac.init(params);
-                mac.update(data, 0, data.length);
-                xmac = new byte[mac.getMacSize()];
-                mac.doFinal(xmac, 0);
+            final byte[] xmac = mac(ByteBuffer.wrap(data), MslError.VERIFY_NOT_SUPPORTED);
+            
+            // Compare the computed hash to the provided signature.
+            return MslUtils.safeEquals(xmac, envelope.getSignature());
+        } catch (final MslEncodingException e) {
+            throw new MslCryptoException(MslError.SIGNATURE_ENVELOPE_PARSE_ERROR, e);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new MslInternalException("Invalid MAC algorithm specified.", e);
+        } catch (final InvalidKeyException e) {
+            throw new MslCryptoException(MslError.INVALID_HMAC_KEY, e);
+        }
+    }
+    
+    /* (non-Javadoc)
+     * @see com.netflix.msl.crypto.ICryptoContext#encrypt(java.nio.ByteBuffer, java.nio.ByteBuffer)
+     */
+    @Override
+    public int encrypt(final ByteBuffer data, final ByteBuffer out) throws MslCryptoException {
+        if (encryptionKey == null)
+            throw new MslCryptoException(MslError.ENCRYPT_NOT_SUPPORTED, "no encryption/decryption key");
+        if (MslCiphertextEnvelope.Version.V1.equals(envelopeVersion))
+            return encryptJson(data, out);
+        final int start = out.position();
+        boolean success = false;
+        try {
+            // Generate IV.
+            final Random random = ctx.getRandom();
+            final byte[] iv = new byte[AES_IV_SIZE];
+            random.nextBytes(iv);
+            final byte[] keyIdBytes = id.getBytes(MslConstants.DEFAULT_CHARSET);
+            final int headerLength = MslCiphertextEnvelope.getHeaderLength(keyIdBytes, iv);
+            
+            // Empty plaintext produces empty ciphertext.
+            if (!data.hasRemaining()) {
+                if (out.remaining() < headerLength)
+                    throw new BufferOverflowException();
+                MslCiphertextEnvelope.putHeader(out, keyIdBytes, iv, 0);
+                success = true;
+                return headerLength;
+            }
+            
+            // Write the envelope header followed by the ciphertext, then
+            // record the actual ciphertext length.
+            final Cipher cipher = getEncryptionCipher();
+            final AlgorithmParameterSpec params = new IvParameterSpec(iv);
+            cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, params);
+            final int ciphertextLength = cipher.getOutputSize(data.remaining());
+            if (out.remaining() < headerLength + ciphertextLength)
+                throw new BufferOverflowException();
+            MslCiphertextEnvelope.putHeader(out, keyIdBytes, iv, ciphertextLength);
+            final int written = cipher.doFinal(data, out);
+            out.putInt(start + headerLength - 4, written);
+            encryptionCiphers.offer(cipher);
+            success = true;
+            return headerLength + written;
+        } catch (final NoSuchPaddingException e) {
+            throw new MslInternalException("Unsupported padding exception.", e);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new MslInternalException("Invalid cipher algorithm specified.", e);
+        } catch (final InvalidKeyException e) {
+            throw new MslCryptoException(MslError.INVALID_ENCRYPTION_KEY, e);
+        } catch (final InvalidAlgorithmParameterException e) {
+            throw new MslCryptoException(MslError.INVALID_ALGORITHM_PARAMS, e);
+        } catch (final ShortBufferException e) {
+            throw new BufferOverflowException();
+        } catch (final IllegalBlockSizeException e) {
+            throw new MslCryptoException(MslError.PLAINTEXT_ILLEGAL_BLOCK_SIZE, "not expected when padding is specified", e);
+        } catch (final BadPaddingException e) {
+            throw new MslCryptoException(MslError.PLAINTEXT_BAD_PADDING, "not expected when encrypting", e);
+        } finally {
+            if (!success)
+                out.position(start);
+        }
+    }
+    
+    /* (non-Javadoc)
+     * @see com.netflix.msl.crypto.ICryptoContext#decrypt(java.nio.ByteBuffer, java.nio.ByteBuffer)
+     */
+    @Override
+    public int decrypt(final ByteBuffer data, final ByteBuffer out) throws MslCryptoException {
+        if (encryptionKey == null)
+            throw new MslCryptoException(MslError.DECRYPT_NOT_SUPPORTED, "no encryption/decryption key");
+        if (data.hasRemaining() && data.get(data.position()) == '{') {
+            final ByteBuffer envelope = data.duplicate();
+            final MslCiphertextEnvelope header = MslCiphertextEnvelope.parseJsonHeader(envelope);
+            if (header != null)
+                return decryptJson(data, envelope, header, out);
+        }
+        if (!data.hasRemaining() || data.get(data.position()) != MslCiphertextEnvelope.Version.V3.intValue())
+            return ICryptoContext.super.decrypt(data, out);
+        final int start = out.position();
+        boolean success = false;
+        try {
+            // Parse the envelope header, leaving the ciphertext in place.
+            final ByteBuffer envelope = data.duplicate();
+            final MslCiphertextEnvelope header = MslCiphertextEnvelope.parseHeader(envelope);
+            
+            // Verify key ID.
+            if (!header.getKeyId().equals(id))
+                throw new MslCryptoException(MslError.ENVELOPE_KEY_ID_MISMATCH);
+            
+            // Decrypt ciphertext.
+            final int written;
+            if (envelope.hasRemaining()) {
+                final byte[] iv = header.getIv();
+                if (iv == null)
+                    throw new MslCryptoException(MslError.INVALID_IV, "missing initialization vector");
+                final Cipher cipher = getEncryptionCipher();
+                final AlgorithmParameterSpec params = new IvParameterSpec(iv);
+                cipher.init(Cipher.DECRYPT_MODE, encryptionKey, params);
+                written = cipher.doFinal(envelope, out);
+                encryptionCiphers.offer(cipher);
             } else {
-                throw new MslCryptoException(MslError.VERIFY_NOT_SUPPORTED, "Unsupported algorithm.");
+                written = 0;
             }
-
+            data.position(data.limit());
+            success = true;
+            return written;
+        } catch (final NoSuchAlgorithmException e) {
+            throw new MslInternalException("Invalid cipher algorithm specified.", e);
+        } catch (NoSuchPaddingException e) {
+            throw new MslInternalException("Unsupported padding exception.", e);
+        } catch (final InvalidKeyException e) {
+            throw new MslCryptoException(MslError.INVALID_ENCRYPTION_KEY, e);
+        } catch (final InvalidAlgorithmParameterException e) {
+            throw new MslCryptoException(MslError.INVALID_ALGORITHM_PARAMS, e);
+        } catch (final ShortBufferException e) {
+            throw new BufferOverflowException();
+        } catch (final IllegalBlockSizeException e) {
+            throw new MslCryptoException(MslError.CIPHERTEXT_ILLEGAL_BLOCK_SIZE, e);
+        } catch (final BadPaddingException e) {
+            throw new MslCryptoException(MslError.CIPHERTEXT_BAD_PADDING, e);
+        } finally {
+            if (!success)
+                out.position(start);
+        }
+    }
+    
+    /**
+     * Encrypts the data into a version 1 ciphertext envelope written
+     * directly into the destination buffer. The ciphertext is Base64-encoded
+     * one chunk at a time as it is produced.
+     * 
+     * @param data the plaintext.
+     * @param out the destination buffer.
+     * @return the number of bytes written.
+     * @throws MslCryptoException if there is an error encrypting the data.
+     * @throws BufferOverflowException if the destination buffer does not
+     *         have enough room.
+     */
+    private int encryptJson(final ByteBuffer data, final ByteBuffer out) throws MslCryptoException {
+        final int dataStart = data.position();
+        final int start = out.position();
+        boolean success = false;
+        try {
+            // Generate IV.
+            final Random random = ctx.getRandom();
+            final byte[] iv = new byte[AES_IV_SIZE];
+            random.nextBytes(iv);
+            final byte[] header = MslCiphertextEnvelope.getJsonHeader(id, iv);
+            
+            // Empty plaintext produces empty ciphertext.
+            if (!data.hasRemaining()) {
+                final int length = MslCiphertextEnvelope.getJsonLength(header, 0);
+                if (out.remaining() < length)
+                    throw new BufferOverflowException();
+                out.put(header);
+                MslCiphertextEnvelope.putJsonTrailer(out);
+                success = true;
+                return length;
+            }
+            
+            final Cipher cipher = getEncryptionCipher();
+            final AlgorithmParameterSpec params = new IvParameterSpec(iv);
+            cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, params);
+            final int length = MslCiphertextEnvelope.getJsonLength(header, cipher.getOutputSize(data.remaining()));
+            if (out.remaining() < length)
+                throw new BufferOverflowException();
+            out.put(header);
+            
+            // Encrypt one chunk at a time, carrying over any ciphertext bytes
+            // that do not complete a Base64 group. The chunk buffer has room
+            // for a carry of up to two bytes plus the cipher's buffered block
+            // and padding.
+            final byte[] chunk = new byte[CIPHER_CHUNK_SIZE + 2 * AES_IV_SIZE + 2];
+            int carry = 0;
+            while (data.hasRemaining()) {
+                final ByteBuffer input = data.slice();
+                input.limit(Math.min(input.remaining(), CIPHER_CHUNK_SIZE));
+                final int total = carry + cipher.update(input, ByteBuffer.wrap(chunk, carry, chunk.length - carry));
+                data.position(data.position() + input.position());
+                final int encodable = total - total % 3;
+                MslCiphertextEnvelope.putBase64(out, chunk, 0, encodable);
+                carry = total - encodable;
+                System.arraycopy(chunk, encodable, chunk, 0, carry);
+            }
+            final int total = carry + cipher.doFinal(chunk, carry);
+            MslCiphertextEnvelope.putBase64(out, chunk, 0, total);
+            MslCiphertextEnvelope.putJsonTrailer(out);
+            encryptionCiphers.offer(cipher);
+            success = true;
+            return out.position() - start;
+        } catch (final NoSuchPaddingException e) {
+            throw new MslInternalException("Unsupported padding exception.", e);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new MslInternalException("Invalid cipher algorithm specified.", e);
+        } catch (final InvalidKeyException e) {
+            throw new MslCryptoException(MslError.INVALID_ENCRYPTION_KEY, e);
+        } catch (final InvalidAlgorithmParameterException e) {
+            throw new MslCryptoException(MslError.INVALID_ALGORITHM_PARAMS, e);
+        } catch (final ShortBufferException e) {
+            throw new BufferOverflowException();
+        } catch (final IllegalBlockSizeException e) {
+            throw new MslCryptoException(MslError.PLAINTEXT_ILLEGAL_BLOCK_SIZE, "not expected when padding is specified", e);
+        } catch (final BadPaddingException e) {
+            throw new MslCryptoException(MslError.PLAINTEXT_BAD_PADDING, "not expected when encrypting", e);
+        } finally {
+            if (!success) {
+                data.position(dataStart);
+                out.position(start);
+            }
+        }
+    }
+    
+    /**
+     * Decrypts the Base64-encoded ciphertext of a version 1 ciphertext
+     * envelope into the destination buffer, decoding one chunk at a time.
+     * 
+     * @param data the ciphertext envelope.
+     * @param ciphertext the Base64-encoded ciphertext of the envelope.
+     * @param header the parsed envelope header.
+     * @param out the destination buffer.
+     * @return the number of bytes written.
+     * @throws MslCryptoException if there is an error decrypting the data.
+     * @throws BufferOverflowException if the destination buffer does not
+     *         have enough room.
+     * @see MslCiphertextEnvelope#parseJsonHeader(ByteBuffer)
+     */
+    private int decryptJson(final ByteBuffer data, final ByteBuffer ciphertext, final MslCiphertextEnvelope header, final ByteBuffer out) throws MslCryptoException {
+        final int start = out.position();
+        boolean success = false;
+        try {
+            // Verify key ID.
+            if (!header.getKeyId().equals(id))
+                throw new MslCryptoException(MslError.ENVELOPE_KEY_ID_MISMATCH);
+            
+            // Decrypt ciphertext.
+            int written = 0;
+            if (ciphertext.hasRemaining()) {
+                final byte[] iv = header.getIv();
+                if (iv == null)
+                    throw new MslCryptoException(MslError.INVALID_IV, "missing initialization vector");
+                final Cipher cipher = getEncryptionCipher();
+                final AlgorithmParameterSpec params = new IvParameterSpec(iv);
+                cipher.init(Cipher.DECRYPT_MODE, encryptionKey, params);
+                // Decrypt through a plaintext chunk buffer, which has room
+                // for the cipher's buffered block and padding, so the
+                // destination buffer only needs room for the plaintext.
+                final byte[] chunk = new byte[CIPHER_CHUNK_SIZE];
+                final byte[] plaintext = new byte[CIPHER_CHUNK_SIZE + 2 * AES_IV_SIZE];
+                while (ciphertext.hasRemaining()) {
+                    final int decoded = MslCiphertextEnvelope.getBase64(ciphertext, chunk);
+                    final int n = cipher.update(chunk, 0, decoded, plaintext, 0);
+                    out.put(plaintext, 0, n);
+                    written += n;
+                }
+                final int n = cipher.doFinal(plaintext, 0);
+                out.put(plaintext, 0, n);
+                written += n;
+                encryptionCiphers.offer(cipher);
+            }
+            data.position(data.limit());
+            success = true;
+            return written;
+        } catch (final NoSuchAlgorithmException e) {
+            throw new MslInternalException("Invalid cipher algorithm specified.", e);
+        } catch (NoSuchPaddingException e) {
+            throw new MslInternalException("Unsupported padding exception.", e);
+        } catch (final InvalidKeyException e) {
+            throw new MslCryptoException(MslError.INVALID_ENCRYPTION_KEY, e);
+        } catch (final InvalidAlgorithmParameterException e) {
+            throw new MslCryptoException(MslError.INVALID_ALGORITHM_PARAMS, e);
+        } catch (final ShortBufferException e) {
+            throw new BufferOverflowException();
+        } catch (final IllegalBlockSizeException e) {
+            throw new MslCryptoException(MslError.CIPHERTEXT_ILLEGAL_BLOCK_SIZE, e);
+        } catch (final BadPaddingException e) {
+            throw new MslCryptoException(MslError.CIPHERTEXT_BAD_PADDING, e);
+        } finally {
+            if (!success)
+                out.position(start);
+        }
+    }
+    
+    /* (non-Javadoc)
+     * @see com.netflix.msl.crypto.ICryptoContext#sign(java.nio.ByteBuffer, java.nio.ByteBuffer)
+     */
+    @Override
+    public int sign(final ByteBuffer data, final ByteBuffer out) throws MslCryptoException {
+        if (signatureKey == null)
+            throw new MslCryptoException(MslError.SIGN_NOT_SUPPORTED, "No signature key.");
+        try {
+            // Compute the xMac.
+            final byte[] xmac = mac(data.duplicate(), MslError.SIGN_NOT_SUPPORTED);
+            
+            // Write the signature envelope byte representation.
+            final byte[] signature = new MslSignatureEnvelope(xmac).getBytes();
+            if (out.remaining() < signature.length)
+                throw new BufferOverflowException();
+            out.put(signature);
+            data.position(data.limit());
+            return signature.length;
+        } catch (final NoSuchAlgorithmException e) {
+            throw new MslInternalException("Invalid MAC algorithm specified.", e);
+        } catch (final InvalidKeyException e) {
+            throw new MslCryptoException(MslError.INVALID_HMAC_KEY, e);
+        }
+    }
+    
+    /* (non-Javadoc)
+     * @see com.netflix.msl.crypto.ICryptoContext#verify(java.nio.ByteBuffer, java.nio.ByteBuffer)
+     */
+    @Override
+    public boolean verify(final ByteBuffer data, final ByteBuffer signature) throws MslCryptoException {
+        if (signatureKey == null)
+            throw new MslCryptoException(MslError.VERIFY_NOT_SUPPORTED, "No signature key.");
+        try {
+            // Reconstitute the signature envelope.
+            final byte[] signatureBytes = new byte[signature.remaining()];
+            signature.get(signatureBytes);
+            final MslSignatureEnvelope envelope = MslSignatureEnvelope.parse(signatureBytes);
+            
+            // Compute the xMac.
+            final byte[] xmac = mac(data, MslError.VERIFY_NOT_SUPPORTED);
+            
             // Compare the computed hash to the provided signature.
             return MslUtils.safeEquals(xmac, envelope.getSignature());
         } catch (final MslEncodingException e) {
@@ -416,6 +789,130 @@ public class SymmetricCryptoContext implements ICryptoContext {
         }
     }
     
+    /**
+     * Computes the HMAC-SHA256 or AES-CMAC of the remaining bytes of the
+     * provided buffer, depending on the signature key algorithm. The buffer
+     * position is advanced to its limit.
+     * 
+     * @param data the data.
+     * @param unsupported the error to report if the signature key algorithm
+     *        is not supported.
+     * @return the xMac.
+     * @throws MslCryptoException if the signature key algorithm is not
+     *         supported.
+     * @throws NoSuchAlgorithmException if the MAC algorithm is not supported.
+     * @throws InvalidKeyException if the signature key is invalid.
+     */
+    private byte[] mac(final ByteBuffer data, final MslError unsupported) throws MslCryptoException, NoSuchAlgorithmException, InvalidKeyException {
+        if (signatureKey.getAlgorithm().equals(JcaAlgorithm.HMAC_SHA256)) {
+            final Mac mac = getHmac();
+            mac.update(data);
+            final byte[] xmac = mac.doFinal();
+            hmacs.offer(mac);
+            return xmac;
+        } else if (signatureKey.getAlgorithm().equals(JcaAlgorithm.AES_CMAC)) {
+            final CMac mac = getCmac();
+            if (data.hasArray()) {
+                mac.update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                data.position(data.limit());
+            } else {
+                final byte[] chunk = new byte[Math.min(data.remaining(), CMAC_CHUNK_SIZE)];
+                while (data.hasRemaining()) {
+                    final int length = Math.min(data.remaining(), chunk.length);
+                    data.get(chunk, 0, length);
+                    mac.update(chunk, 0, length);
+                }
+            }
+            final byte[] xmac = new byte[mac.getMacSize()];
+            mac.doFinal(xmac, 0);
+            cmacs.offer(mac);
+            return xmac;
+        } else {
+            throw new MslCryptoException(unsupported, "Unsupported algorithm.");
+        }
+    }
+    
+    /**
+     * Returns an AES/CBC cipher from the pool, or a new cipher if the pool is
+     * empty. The cipher must be initialized before use, but initializing it
+     * with the same encryption key as before does not recompute the AES key
+     * schedule. The cipher should be returned to the pool once the operation
+     * completes successfully.
+     * 
+     * @return the cipher.
+     * @throws NoSuchAlgorithmException if the cipher algorithm is not
+     *         supported.
+     * @throws NoSuchPaddingException if the cipher padding is not supported.
+     */
+    private Cipher getEncryptionCipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        final Cipher cipher = encryptionCiphers.poll();
+        if (cipher != null)
+            return cipher;
+        return Cipher.getInstance(AES_TRANSFORM);
+    }
+    
+    /**
+     * Returns an AES key wrap cipher from the pool, or a new cipher if the
+     * pool is empty. The cipher is already initialized with the wrapping key
+     * in the requested mode. The cipher should be returned to the pool once
+     * the operation completes successfully.
+     * 
+     * @param opmode {@link Cipher#ENCRYPT_MODE} to wrap or
+     *        {@link Cipher#DECRYPT_MODE} to unwrap.
+     * @return the initialized cipher.
+     * @throws NoSuchAlgorithmException if the cipher algorithm is not
+     *         supported.
+     * @throws NoSuchPaddingException if the cipher padding is not supported.
+     * @throws InvalidKeyException if the wrapping key is invalid.
+     */
+    private Cipher getWrapCipher(final int opmode) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException {
+        final Queue<Cipher> pool = (opmode == Cipher.ENCRYPT_MODE) ? wrapCiphers : unwrapCiphers;
+        final Cipher pooled = pool.poll();
+        if (pooled != null)
+            return pooled;
+        final Cipher cipher = Cipher.getInstance(AESKW_TRANSFORM);
+        cipher.init(opmode, wrappingKey);
+        return cipher;
+    }
+    
+    /**
+     * Returns an HMAC-SHA256 MAC from the pool, or a new MAC if the pool is
+     * empty. The MAC is already initialized with the signature key. The MAC
+     * should be returned to the pool once the operation completes
+     * successfully.
+     * 
+     * @return the initialized MAC.
+     * @throws NoSuchAlgorithmException if the MAC algorithm is not supported.
+     * @throws InvalidKeyException if the signature key is invalid.
+     */
+    private Mac getHmac() throws NoSuchAlgorithmException, InvalidKeyException {
+        final Mac pooled = hmacs.poll();
+        if (pooled != null)
+            return pooled;
+        final Mac mac = Mac.getInstance(HMAC_SHA256_ALGO);
+        mac.init(signatureKey);
+        return mac;
+    }
+    
+    /**
+     * Returns an AES-CMAC from the pool, or a new CMAC if the pool is empty.
+     * The CMAC is already initialized with the signature key and is reset
+     * after each computation. The CMAC should be returned to the pool once
+     * the operation completes successfully.
+     * 
+     * @return the initialized CMAC.
+     */
+    private CMac getCmac() {
+        final CMac pooled = cmacs.poll();
+        if (pooled != null)
+            return pooled;
+        final CipherParameters params = new KeyParameter(signatureKey.getEncoded());
+        final BlockCipher aes = new AESEngine();
+        final CMac mac = new CMac(aes);
+        mac.init(params);
+        return mac;
+    }
+    
     /** MSL context. */
     private final MslContext ctx;
     /** Key set identity. */
@@ -426,4 +923,17 @@ public class SymmetricCryptoContext implements ICryptoContext {
     private final SecretKey signatureKey;
     /** Wrapping key. */
     private final SecretKey wrappingKey;
+    /** Ciphertext envelope version. */
+    private final MslCiphertextEnvelope.Version envelopeVersion;
+    
+    /** Pool of AES/CBC ciphers used with the encryption key. */
+    private final Queue<Cipher> encryptionCiphers = new ConcurrentLinkedQueue<Cipher>();
+    /** Pool of AES key wrap ciphers initialized for wrapping. */
+    private final Queue<Cipher> wrapCiphers = new ConcurrentLinkedQueue<Cipher>();
+    /** Pool of AES key wrap ciphers initialized for unwrapping. */
+    private final Queue<Cipher> unwrapCiphers = new ConcurrentLinkedQueue<Cipher>();
+    /** Pool of HMAC-SHA256 MACs initialized with the signature key. */
+    private final Queue<Mac> hmacs = new ConcurrentLinkedQueue<Mac>();
+    /** Pool of AES-CMACs initialized with the signature key. */
+    private final Queue<CMac> cmacs = new ConcurrentLinkedQueue<CMac>();
 }
@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.crypto;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.NoSuchPaddingException;
+
+import com.netflix.msl.crypto.CryptoCache.Primitive;
+
+/**
+ * <p>A crypto cache strategy that keeps one instance of each primitive and
+ * algorithm per thread. Released instances stay with the thread.</p>
+ * 
+ * <p>This is the default strategy. It never contends but the number of
+ * instances grows with the number of threads, and new threads always start
+ * with an empty cache. It is not a good fit for thread-per-request servers
+ * or virtual threads.</p>
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+public class ThreadLocalCryptoCacheStrategy extends CryptoCacheStrategy {
+    /* (non-Javadoc)
+     * @see com.netflix.msl.crypto.CryptoCacheStrategy#get(com.netflix.msl.crypto.CryptoCache.Primitive, java.lang.String)
+     */
+    @Override
+    public Object get(final Primitive primitive, final String algorithm) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        final Map<String,Object> instances = cache.get().get(primitive);
+        final Object cached = instances.get(algorithm);
+        if (cached != null) {
+            hit();
+            return cached;
+        }
+        miss();
+        final Object instance = create(primitive, algorithm);
+        instances.put(algorithm, instance);
+        return instance;
+    }
+    
+    /* (non-Javadoc)
+     * @see com.netflix.msl.crypto.CryptoCacheStrategy#release(com.netflix.msl.crypto.CryptoCache.Primitive, java.lang.String, java.lang.Object)
+     */
+    @Override
+    public void release(final Primitive primitive, final String algorithm, final Object instance) {
+        // The instance is still held by this thread's cache.
+    }
+    
+    /* (non-Javadoc)
+     * @see com.netflix.msl.crypto.CryptoCacheStrategy#reset(com.netflix.msl.crypto.CryptoCache.Primitive, java.lang.String)
+     */
+    @Override
+    public void reset(final Primitive primitive, final String algorithm) {
+        cache.get().get(primitive).remove(algorithm);
+    }
+    
+    /** Per-thread cache of primitive types onto algorithms onto instances. */
+    private final ThreadLocal<Map<Primitive,Map<String,Object>>> cache = new ThreadLocal<Map<Primitive,Map<String,Object>>>() {
+        @Override
+        protected Map<Primitive,Map<String,Object>> initialValue() {
+            final Map<Primitive,Map<String,Object>> primitives = new EnumMap<Primitive,Map<String,Object>>(Primitive.class);
+            for (final Primitive primitive : Primitive.values())
+                primitives.put(primitive, new HashMap<String,Object>());
+            return primitives;
+        }
+    };
+}
@@ -0,0 +1,742 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * <p>A pull-based JSON reader that parses directly from the bytes of an
+ * input stream.</p>
+ * 
+ * <p>Unlike {@link org.json.JSONTokener} this reader does not decode the
+ * whole stream into characters and does not need to materialize every value
+ * as a {@link JSONObject}. Callers may walk an object member by member
+ * and decode Base64-encoded string values directly into byte arrays without
+ * building intermediate strings. Complete values can still be read as
+ * {@link JSONObject}s, {@link JSONArray}s, strings, numbers and
+ * booleans, using the same conversions as {@code JSONTokener}.</p>
+ * 
+ * <p>Bytes are only read from the source as they are needed, so a value is
+ * parsed as soon as its bytes arrive. The reader buffers internally and may
+ * read beyond the end of the current value.</p>
+ * 
+ * <p>Object member iteration using {@link #beginObject()},
+ * {@link #hasNextMember()} and {@link #nextName()} does not nest; nested
+ * values must be read or skipped as a whole. As with {@link JSONObject}, a
+ * member name that repeats within an object is rejected.</p>
+ * 
+ * <p>All parse and I/O errors are reported as {@link JSONException}s.</p>
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+public class JsonStreamReader {
+    /** Source read buffer size in bytes. */
+    private static final int BUFFER_SIZE = 8192;
+    /** Initial Base64 decode buffer size in bytes. */
+    private static final int DECODE_BUFFER_SIZE = 1024;
+    /** End of stream. */
+    private static final int EOF = -1;
+    
+    /** Base64 character to value map. Invalid characters map to -1. */
+    private static final byte[] BASE64_VALUES = new byte[128];
+    static {
+        Arrays.fill(BASE64_VALUES, (byte)-1);
+        final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); ++i)
+            BASE64_VALUES[alphabet.charAt(i)] = (byte)i;
+    }
+    
+    /**
+     * <p>An input stream that transcodes characters from a reader into
+     * UTF-8 bytes.</p>
+     * 
+     * <p>This is used when the source character set is not a superset of
+     * ASCII, so the reader can always operate on UTF-8.</p>
+     */
+    private static class TranscodingInputStream extends InputStream {
+        /**
+         * @param reader the character source.
+         */
+        public TranscodingInputStream(final Reader reader) {
+            this.reader = reader;
+            chars.flip();
+            bytes.flip();
+        }
+        
+        /* (non-Javadoc)
+         * @see java.io.InputStream#read()
+         */
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            final int count = read(b, 0, 1);
+            return (count == -1) ? -1 : (b[0] & 0xff);
+        }
+        
+        /* (non-Javadoc)
+         * @see java.io.InputStream#available()
+         */
+        @Override
+        public int available() {
+            return bytes.remaining();
+        }
+        
+        /* (non-Javadoc)
+         * @see java.io.InputStream#read(byte[], int, int)
+         */
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) return 0;
+            while (!bytes.hasRemaining()) {
+                if (eof) return -1;
+                chars.compact();
+                final int count = reader.read(chars);
+                chars.flip();
+                bytes.clear();
+                if (count == -1) {
+                    eof = true;
+                    encoder.encode(chars, bytes, true);
+                    encoder.flush(bytes);
+                } else {
+                    encoder.encode(chars, bytes, false);
+                }
+                bytes.flip();
+            }
+            final int count = Math.min(len, bytes.remaining());
+            bytes.get(b, off, count);
+            return count;
+        }
+        
+        /** Character source. */
+        private final Reader reader;
+        /** UTF-8 encoder. */
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        /** Characters waiting to be encoded. */
+        private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+        /** Encoded bytes waiting to be read. */
+        private final ByteBuffer bytes = ByteBuffer.allocate(4 * BUFFER_SIZE);
+        /** True if the reader has reached the end of its input. */
+        private boolean eof = false;
+    }
+    
+    /**
+     * Create a new JSON stream reader. If the character set is not UTF-8 or
+     * US-ASCII the source is transcoded before parsing.
+     * 
+     * @param source the JSON input stream.
+     * @param charset the input stream character set encoding.
+     */
+    public JsonStreamReader(final InputStream source, final Charset charset) {
+        if (StandardCharsets.UTF_8.equals(charset) || StandardCharsets.US_ASCII.equals(charset))
+            this.source = source;
+        else
+            this.source = new TranscodingInputStream(new InputStreamReader(source, charset));
+    }
+    
+    /**
+     * @return true if there is another value to read.
+     * @throws JSONException if there is an error reading from the source.
+     */
+    public boolean more() throws JSONException {
+        return skipWhitespace() != EOF;
+    }
+    
+    /**
+     * @return true if the next value is an object.
+     * @throws JSONException if there is an error reading from the source.
+     */
+    public boolean isObjectNext() throws JSONException {
+        return skipWhitespace() == '{';
+    }
+    
+    /**
+     * <p>Returns true if the next value is an object that has been completely
+     * received and can be read without blocking.</p>
+     * 
+     * <p>This method never blocks; it only reads bytes the source reports are
+     * available. The buffer grows to hold the object.</p>
+     * 
+     * @return true if the next value is a completely buffered object.
+     * @throws JSONException if there is an error reading from the source.
+     */
+    public boolean isObjectBuffered() throws JSONException {
+        while (true) {
+            if (isObjectComplete())
+                return true;
+            
+            // Buffer whatever has arrived without blocking.
+            try {
+                final int available = source.available();
+                if (available <= 0)
+                    return false;
+                if (buffer.length - limit < available) {
+                    final int size = limit - position;
+                    final byte[] b = (buffer.length < size + available) ? new byte[size + available] : buffer;
+                    System.arraycopy(buffer, position, b, 0, size);
+                    buffer = b;
+                    position = 0;
+                    limit = size;
+                }
+                final int count = source.read(buffer, limit, available);
+                if (count == -1)
+                    return false;
+                limit += count;
+            } catch (final IOException e) {
+                throw new JSONException(e);
+            }
+        }
+    }
+    
+    /**
+     * @return true if the buffer starts with a complete object, ignoring
+     *         leading whitespace.
+     */
+    private boolean isObjectComplete() {
+        int i = position;
+        while (i < limit && (buffer[i] & 0xff) <= ' ')
+            ++i;
+        if (i == limit || buffer[i] != '{')
+            return false;
+        int depth = 0;
+        int quote = 0;
+        boolean escape = false;
+        for (; i < limit; ++i) {
+            final int c = buffer[i] & 0xff;
+            if (quote != 0) {
+                if (escape)
+                    escape = false;
+                else if (c == '\\')
+                    escape = true;
+                else if (c == quote)
+                    quote = 0;
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '{' || c == '[') {
+                ++depth;
+            } else if (c == '}' || c == ']') {
+                if (--depth == 0)
+                    return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Read the next value. Objects and arrays are returned as
+     * {@link JSONObject} and {@link JSONArray}; other values are converted
+     * the same way as {@link org.json.JSONTokener#nextValue()}.
+     * 
+     * @return the next value.
+     * @throws JSONException if there is a syntax error or error reading
+     *         from the source.
+     */
+    public Object nextValue() throws JSONException {
+        final int c = skipWhitespace();
+        switch (c) {
+            case '{':
+                read();
+                return readObject();
+            case '[':
+                read();
+                return readArray();
+            case '"':
+            case '\'':
+                read();
+                return readString(c);
+            case EOF:
+                throw new JSONException("Unexpected end of stream.");
+            default:
+                return readLiteral();
+        }
+    }
+    
+    /**
+     * Skip the next value.
+     * 
+     * @throws JSONException if there is a syntax error or error reading
+     *         from the source.
+     */
+    public void skipValue() throws JSONException {
+        nextValue();
+    }
+    
+    /**
+     * Begin iterating over the members of the next value, which must be an
+     * object.
+     * 
+     * @throws JSONException if the next value is not an object or there is
+     *         an error reading from the source.
+     */
+    public void beginObject() throws JSONException {
+        if (skipWhitespace() != '{')
+            throw new JSONException("A JSONObject text must begin with '{'.");
+        read();
+        memberRead = false;
+        memberNames.clear();
+    }
+    
+    /**
+     * Returns true if the current object has another member, in which case
+     * the caller must read the member name and value. Returns false and
+     * consumes the end of the object otherwise.
+     * 
+     * @return true if there is another member.
+     * @throws JSONException if there is a syntax error or error reading
+     *         from the source.
+     */
+    public boolean hasNextMember() throws JSONException {
+        int c = skipWhitespace();
+        if (c == '}') {
+            read();
+            return false;
+        }
+        if (memberRead) {
+            if (c != ',' && c != ';')
+                throw new JSONException("Expected a ',' or '}'.");
+            read();
+            c = skipWhitespace();
+            if (c == '}') {
+                read();
+                return false;
+            }
+        }
+        if (c == EOF)
+            throw new JSONException("A JSONObject text must end with '}'.");
+        return true;
+    }
+    
+    /**
+     * Read the name of the next object member and the following separator.
+     * 
+     * @return the member name.
+     * @throws JSONException if there is a syntax error, the name duplicates
+     *         that of a previous member, or there is an error reading from
+     *         the source.
+     */
+    public String nextName() throws JSONException {
+        final String name = nextValue().toString();
+        if (!memberNames.add(name))
+            throw new JSONException("Duplicate key \"" + name + "\".");
+        if (skipWhitespace() != ':')
+            throw new JSONException("Expected a ':' after a key.");
+        read();
+        memberRead = true;
+        return name;
+    }
+    
+    /**
+     * Read the next value, which must be a string.
+     * 
+     * @return the string.
+     * @throws JSONException if the next value is not a string or there is a
+     *         syntax error or error reading from the source.
+     */
+    public String nextString() throws JSONException {
+        final int c = skipWhitespace();
+        if (c != '"' && c != '\'')
+            throw new JSONException("Expected a string.");
+        read();
+        return readString(c);
+    }
+    
+    /**
+     * Read the next value, which must be a number or a string containing a
+     * number. The conversion matches {@link JSONObject#getLong(String)}.
+     * 
+     * @return the number.
+     * @throws JSONException if the next value is not a number or there is a
+     *         syntax error or error reading from the source.
+     */
+    public long nextLong() throws JSONException {
+        final Object o = nextValue();
+        try {
+            return (o instanceof Number) ? ((Number)o).longValue() : Long.parseLong((String)o);
+        } catch (final Exception e) {
+            throw new JSONException("Value " + o + " is not a long.");
+        }
+    }
+    
+    /**
+     * Read the next value, which must be a boolean or the string "true" or
+     * "false". The conversion matches {@link JSONObject#getBoolean(String)}.
+     * 
+     * @return the boolean.
+     * @throws JSONException if the next value is not a boolean or there is
+     *         a syntax error or error reading from the source.
+     */
+    public boolean nextBoolean() throws JSONException {
+        final Object o = nextValue();
+        if (o.equals(Boolean.FALSE) || (o instanceof String && ((String)o).equalsIgnoreCase("false")))
+            return false;
+        if (o.equals(Boolean.TRUE) || (o instanceof String && ((String)o).equalsIgnoreCase("true")))
+            return true;
+        throw new JSONException("Value " + o + " is not a boolean.");
+    }
+    
+    /**
+     * <p>Read the next value, which must be a Base64-encoded string, and
+     * decode it directly into bytes.</p>
+     * 
+     * <p>Like {@code DatatypeConverter#parseBase64Binary(String)}, characters
+     * outside the Base64 alphabet are ignored and decoding stops at the
+     * first padding character.</p>
+     * 
+     * @return the decoded bytes, or {@code null} if the string is not empty
+     *         but does not contain any complete Base64-encoded data.
+     * @throws JSONException if the next value is not a string or there is a
+     *         syntax error or error reading from the source.
+     */
+    public byte[] nextBase64() throws JSONException {
+        final int quote = skipWhitespace();
+        if (quote != '"' && quote != '\'')
+            throw new JSONException("Expected a string.");
+        read();
+        
+        byte[] decoded = new byte[DECODE_BUFFER_SIZE];
+        int length = 0;
+        int bits = 0;
+        int count = 0;
+        boolean padded = false;
+        boolean empty = true;
+        while (true) {
+            int c = read();
+            if (c == quote) break;
+            if (c == EOF || c == '\n' || c == '\r')
+                throw new JSONException("Unterminated string.");
+            empty = false;
+            if (c == '\\')
+                c = readEscape();
+            if (padded) continue;
+            if (c == '=') {
+                padded = true;
+                continue;
+            }
+            if (c >= BASE64_VALUES.length) continue;
+            final int value = BASE64_VALUES[c];
+            if (value == -1) continue;
+            
+            // Emit three bytes for every four characters.
+            bits = (bits << 6) | value;
+            if (++count == 4) {
+                if (length + 3 > decoded.length)
+                    decoded = Arrays.copyOf(decoded, 2 * decoded.length);
+                decoded[length++] = (byte)(bits >> 16);
+                decoded[length++] = (byte)(bits >> 8);
+                decoded[length++] = (byte)bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+        
+        // Emit any trailing bytes from an incomplete final group.
+        if (count == 2 || count == 3) {
+            if (length + 2 > decoded.length)
+                decoded = Arrays.copyOf(decoded, decoded.length + 2);
+            bits <<= 6 * (4 - count);
+            decoded[length++] = (byte)(bits >> 16);
+            if (count == 3)
+                decoded[length++] = (byte)(bits >> 8);
+        }
+        
+        if (length == 0 && !empty)
+            return null;
+        return (length == decoded.length) ? decoded : Arrays.copyOf(decoded, length);
+    }
+    
+    /**
+     * Read an object. The opening brace has already been consumed.
+     * 
+     * @return the object.
+     * @throws JSONException if there is a syntax error or error reading
+     *         from the source.
+     */
+    private JSONObject readObject() throws JSONException {
+        final JSONObject jo = new JSONObject();
+        if (skipWhitespace() == '}') {
+            read();
+            return jo;
+        }
+        while (true) {
+            if (skipWhitespace() == EOF)
+                throw new JSONException("A JSONObject text must end with '}'.");
+            final String key = nextValue().toString();
+            if (skipWhitespace() != ':')
+                throw new JSONException("Expected a ':' after a key.");
+            read();
+            final Object value = nextValue();
+            if (jo.opt(key) != null)
+                throw new JSONException("Duplicate key \"" + key + "\".");
+            jo.put(key, value);
+            
+            final int c = skipWhitespace();
+            read();
+            if (c == '}')
+                return jo;
+            if (c != ',' && c != ';')
+                throw new JSONException("Expected a ',' or '}'.");
+            if (skipWhitespace() == '}') {
+                read();
+                return jo;
+            }
+        }
+    }
+    
+    /**
+     * Read an array. The opening bracket has already been consumed.
+     * 
+     * @return the array.
+     * @throws JSONException if there is a syntax error or error reading
+     *         from the source.
+     */
+    private JSONArray readArray() throws JSONException {
+        final JSONArray ja = new JSONArray();
+        if (skipWhitespace() == ']') {
+            read();
+            return ja;
+        }
+        while (true) {
+            ja.put(nextValue());
+            final int c = skipWhitespace();
+            read();
+            if (c == ']')
+                return ja;
+            if (c != ',' && c != ';')
+                throw new JSONException("Expected a ',' or ']'.");
+            if (skipWhitespace() == ']') {
+                read();
+                return ja;
+            }
+        }
+    }
+    
+    /**
+     * Read a string. The opening quote has already been consumed.
+     * 
+     * @param quote the quote character.
+     * @return the string.
+     * @throws JSONException if the string is unterminated or there is an
+     *         error reading from the source.
+     */
+    private String readString(final int quote) throws JSONException {
+        final StringBuilder sb = new StringBuilder();
+        int length = 0;
+        while (true) {
+            final int c = read();
+            if (c == quote) break;
+            if (c == EOF || c == '\n' || c == '\r')
+                throw new JSONException("Unterminated string.");
+            
+            // Decode raw bytes in runs so multi-byte UTF-8 sequences are
+            // decoded together.
+            if (c == '\\') {
+                sb.append(new String(scratch, 0, length, StandardCharsets.UTF_8));
+                length = 0;
+                sb.append((char)readEscape());
+            } else {
+                if (length == scratch.length)
+                    scratch = Arrays.copyOf(scratch, 2 * scratch.length);
+                scratch[length++] = (byte)c;
+            }
+        }
+        sb.append(new String(scratch, 0, length, StandardCharsets.UTF_8));
+        return sb.toString();
+    }
+    
+    /**
+     * Read an escape sequence. The backslash has already been consumed.
+     * 
+     * @return the escaped character.
+     * @throws JSONException if the escape sequence is invalid or there is an
+     *         error reading from the source.
+     */
+    private int readEscape() throws JSONException {
+        final int c = read();
+        switch (c) {
+            case 'b': return '\b';
+            case 't': return '\t';
+            case 'n': return '\n';
+            case 'f': return '\f';
+            case 'r': return '\r';
+            case 'u':
+            {
+                int value = 0;
+                for (int i = 0; i < 4; ++i) {
+                    final int digit = Character.digit(read(), 16);
+                    if (digit == -1)
+                        throw new JSONException("Illegal escape.");
+                    value = (value << 4) | digit;
+                }
+                return value;
+            }
+            case '"':
+            case '\'':
+            case '\\':
+            case '/':
+                return c;
+            default:
+                throw new JSONException("Illegal escape.");
+        }
+    }
+    
+    /**
+     * Read an unquoted literal value and convert it the same way as
+     * {@link org.json.JSONTokener#nextValue()}.
+     * 
+     * @return the value.
+     * @throws JSONException if the literal is empty or there is an error
+     *         reading from the source.
+     */
+    private Object readLiteral() throws JSONException {
+        final StringBuilder sb = new StringBuilder();
+        while (true) {
+            final int c = peek();
+            if (c == EOF || c < ' ' || ",:]}/\\\"[{;=#".indexOf(c) >= 0)
+                break;
+            sb.append((char)read());
+        }
+        final String s = sb.toString().trim();
+        if (s.isEmpty())
+            throw new JSONException("Missing value.");
+        return toValue(s);
+    }
+    
+    /**
+     * Convert an unquoted literal into a boolean, null, number, or string,
+     * the same way as {@code JSONObject#stringToValue(String)}.
+     * 
+     * @param s the literal.
+     * @return the value.
+     */
+    private static Object toValue(final String s) {
+        if (s.equalsIgnoreCase("true"))
+            return Boolean.TRUE;
+        if (s.equalsIgnoreCase("false"))
+            return Boolean.FALSE;
+        if (s.equalsIgnoreCase("null"))
+            return JSONObject.NULL;
+        
+        final char b = s.charAt(0);
+        if ((b >= '0' && b <= '9') || b == '-') {
+            try {
+                if (s.indexOf('.') > -1 || s.indexOf('e') > -1 || s.indexOf('E') > -1) {
+                    final Double d = Double.valueOf(s);
+                    if (!d.isInfinite() && !d.isNaN())
+                        return d;
+                } else {
+                    final Long l = Long.valueOf(s);
+                    if (l.longValue() == l.intValue())
+                        return Integer.valueOf(l.intValue());
+                    return l;
+                }
+            } catch (final NumberFormatException e) {
+                // Fall through and return the literal as a string.
+            }
+        }
+        return s;
+    }
+    
+    /**
+     * Skip whitespace.
+     * 
+     * @return the next non-whitespace byte, which is not consumed, or
+     *         {@link #EOF}.
+     * @throws JSONException if there is an error reading from the source.
+     */
+    private int skipWhitespace() throws JSONException {
+        while (true) {
+            final int c = peek();
+            if (c == EOF || c > ' ')
+                return c;
+            ++position;
+        }
+    }
+    
+    /**
+     * @return the next byte, which is not consumed, or {@link #EOF}.
+     * @throws JSONException if there is an error reading from the source.
+     */
+    private int peek() throws JSONException {
+        if (position == limit && !fill())
+            return EOF;
+        return buffer[position] & 0xff;
+    }
+    
+    /**
+     * @return the next byte or {@link #EOF}.
+     * @throws JSONException if there is an error reading from the source.
+     */
+    private int read() throws JSONException {
+        if (position == limit && !fill())
+            return EOF;
+        return buffer[position++] & 0xff;
+    }
+    
+    /**
+     * Read more bytes from the source into the buffer. Blocks until at
+     * least one byte is available or the end of the stream is reached.
+     * 
+     * @return false if the end of the stream has been reached.
+     * @throws JSONException if there is an error reading from the source.
+     */
+    private boolean fill() throws JSONException {
+        try {
+            int count;
+            do {
+                count = source.read(buffer, 0, buffer.length);
+            } while (count == 0);
+            if (count == -1)
+                return false;
+            position = 0;
+            limit = count;
+            return true;
+        } catch (final IOException e) {
+            throw new JSONException(e);
+        }
+    }
+    
+    /** JSON source. */
+    private final InputStream source;
+    /** Read buffer. */
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    /** Read buffer position. */
+    private int position = 0;
+    /** Read buffer limit. */
+    private int limit = 0;
+    /** String decode scratch buffer. */
+    private byte[] scratch = new byte[256];
+    /** True if a member of the current object has been read. */
+    private boolean memberRead = false;
+    /** Names of the members of the current object read so far. */
+    private final Set<String> memberNames = new HashSet<String>();
+}
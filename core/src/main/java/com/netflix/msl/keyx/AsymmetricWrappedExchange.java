@@ -132,7 +132,9 @@ public class AsymmetricWrappedExchange extends KeyExchangeFactory {
                 // Encrypt plaintext.
                 final Cipher cipher = CryptoCache.getCipher(wrapTransform);
                 cipher.init(Cipher.ENCRYPT_MODE, publicKey, wrapParams);
-                return cipher.doFinal(data);
+                final byte[] ciphertext = cipher.doFinal(data);
+                CryptoCache.releaseCipher(wrapTransform, cipher);
+                return ciphertext;
             } catch (final NoSuchPaddingException e) {
                 reset = e;
                 throw new MslInternalException("Unsupported padding exception.", e);
@@ -175,7 +177,9 @@ public class AsymmetricWrappedExchange extends KeyExchangeFactory {
                 // Decrypt ciphertext.
                 final Cipher cipher = CryptoCache.getCipher(wrapTransform);
                 cipher.init(Cipher.DECRYPT_MODE, privateKey, wrapParams);
-                return cipher.doFinal(data);
+                final byte[] plaintext = cipher.doFinal(data);
+                CryptoCache.releaseCipher(wrapTransform, cipher);
+                return plaintext;
             } catch (final NoSuchPaddingException e) {
                 reset = e;
                 throw new MslInternalException("Unsupported padding exception.", e);
@@ -302,6 +306,7 @@ public class AsymmetricWrappedExchange extends KeyExchangeFactory {
                         final KeyFactory factory = CryptoCache.getKeyFactory("RSA");
                         final X509EncodedKeySpec keySpec = new X509EncodedKeySpec(encodedKey);
                         publicKey = factory.generatePublic(keySpec);
+                        CryptoCache.releaseKeyFactory("RSA", factory);
                         break;
                     }
                     /* Unsupported
@@ -313,6 +318,7 @@ public class AsymmetricWrappedExchange extends KeyExchangeFactory {
                         final KeyFactory factory = CryptoCache.getKeyFactory("ECDSA");
                         final X509EncodedKeySpec keySpec = new X509EncodedKeySpec(encodedKey);
                         publicKey = factory.generatePublic(keySpec);
+                        CryptoCache.releaseKeyFactory("ECDSA", factory);
                         break;
                     }
                     */
@@ -377,6 +377,7 @@ public class DiffieHellmanExchange extends KeyExchangeFactory {
             agreement.init(privateKey, params);
             agreement.doPhase(publicKey, true);
             sharedSecret = correctNullBytes(agreement.generateSecret());
+            CryptoCache.releaseKeyAgreement("DiffieHellman", agreement);
         } catch (final NoSuchAlgorithmException e) {
             throw new MslInternalException("DiffieHellman algorithm not found.", e);
         } catch (final InvalidKeyException e) {
@@ -393,6 +394,7 @@ public class DiffieHellmanExchange extends KeyExchangeFactory {
             throw new MslInternalException("SHA-384 algorithm not found.", e);
         }
         final byte[] hash = sha384.digest(sharedSecret);
+        CryptoCache.releaseMessageDigest("SHA-384", sha384);
         final byte[] kcedata = new byte[128 / Byte.SIZE];
         System.arraycopy(hash, 0, kcedata, 0, kcedata.length);
         final byte[] kchdata = new byte[256 / Byte.SIZE];
@@ -411,9 +413,59 @@ public class DiffieHellmanExchange extends KeyExchangeFactory {
      * @param authutils authentication utilities.
      */
     public DiffieHellmanExchange(final DiffieHellmanParameters params, final AuthenticationUtils authutils) {
+        this(params, authutils, null);
+    }
+    
+    /**
+     * Create a new Diffie-Hellman key exchange factory that takes response
+     * key pairs from a pool of pre-generated key pairs.
+     * 
+     * @param params Diffie-Hellman parameters.
+     * @param authutils authentication utilities.
+     * @param keyPairPool Diffie-Hellman key pair pool. May be null in which
+     *        case key pairs are generated for each response.
+     */
+    public DiffieHellmanExchange(final DiffieHellmanParameters params, final AuthenticationUtils authutils, final DiffieHellmanKeyPairPool keyPairPool) {
         super(KeyExchangeScheme.DIFFIE_HELLMAN);
         this.params = params;
         this.authutils = authutils;
+        this.keyPairPool = keyPairPool;
+    }
+    
+    /**
+     * Return a response key pair for the Diffie-Hellman parameters. If a
+     * key pair pool is configured the key pair is taken from the pool,
+     * otherwise it is generated.
+     * 
+     * @param parametersId Diffie-Hellman parameters ID.
+     * @param paramSpec Diffie-Hellman parameter specification.
+     * @return the key pair.
+     * @throws MslKeyExchangeException if there is an error generating the
+     *         key pair.
+     */
+    private KeyPair generateKeyPair(final String parametersId, final DHParameterSpec paramSpec) throws MslKeyExchangeException {
+        // Use a pooled key pair if it was generated with the same
+        // parameters. If the parameters have changed since it was generated
+        // discard the pooled key pairs.
+        if (keyPairPool != null) {
+            final KeyPair keyPair = keyPairPool.take(parametersId);
+            final DHParameterSpec keyParams = ((DHPrivateKey)keyPair.getPrivate()).getParams();
+            if (keyParams.getP().equals(paramSpec.getP()) && keyParams.getG().equals(paramSpec.getG()))
+                return keyPair;
+            keyPairPool.clear(parametersId);
+        }
+        
+        try {
+            final KeyPairGenerator generator = CryptoCache.getKeyPairGenerator("DH");
+            generator.initialize(paramSpec);
+            final KeyPair keyPair = generator.generateKeyPair();
+            CryptoCache.releaseKeyPairGenerator("DH", generator);
+            return keyPair;
+        } catch (final NoSuchAlgorithmException e) {
+            throw new MslInternalException("DiffieHellman algorithm not found.", e);
+        } catch (final InvalidAlgorithmParameterException e) {
+            throw new MslInternalException("Diffie-Hellman algorithm parameters rejected by Diffie-Hellman key agreement.", e);
+        }
     }
 
     /* (non-Javadoc)
@@ -464,6 +516,7 @@ public class DiffieHellmanExchange extends KeyExchangeFactory {
             final BigInteger y = request.getPublicKey();
             final DHPublicKeySpec publicKeySpec = new DHPublicKeySpec(y, paramSpec.getP(), paramSpec.getG());
             requestPublicKey = factory.generatePublic(publicKeySpec);
+            CryptoCache.releaseKeyFactory("DiffieHellman", factory);
         } catch (final NoSuchAlgorithmException e) {
             throw new MslInternalException("DiffieHellman algorithm not found.", e);
         } catch (final InvalidKeySpecException e) {
@@ -471,19 +524,9 @@ public class DiffieHellmanExchange extends KeyExchangeFactory {
         }
 
         // Generate public/private key pair.
-        final DHPublicKey responsePublicKey;
-        final DHPrivateKey responsePrivateKey;
-        try {
-            final KeyPairGenerator generator = CryptoCache.getKeyPairGenerator("DH");
-            generator.initialize(paramSpec);
-            final KeyPair keyPair = generator.generateKeyPair();
-            responsePublicKey = (DHPublicKey)keyPair.getPublic();
-            responsePrivateKey = (DHPrivateKey)keyPair.getPrivate();
-        } catch (final NoSuchAlgorithmException e) {
-            throw new MslInternalException("DiffieHellman algorithm not found.", e);
-        } catch (final InvalidAlgorithmParameterException e) {
-            throw new MslInternalException("Diffie-Hellman algorithm parameters rejected by Diffie-Hellman key agreement.", e);
-        }
+        final KeyPair keyPair = generateKeyPair(parametersId, paramSpec);
+        final DHPublicKey responsePublicKey = (DHPublicKey)keyPair.getPublic();
+        final DHPrivateKey responsePrivateKey = (DHPrivateKey)keyPair.getPrivate();
 
         // Construct encryption and HMAC keys.
         final SessionKeys sessionKeys = deriveSessionKeys(requestPublicKey, responsePrivateKey, paramSpec);
@@ -527,6 +570,7 @@ public class DiffieHellmanExchange extends KeyExchangeFactory {
             final BigInteger y = request.getPublicKey();
             final DHPublicKeySpec publicKeySpec = new DHPublicKeySpec(y, paramSpec.getP(), paramSpec.getG());
             requestPublicKey = factory.generatePublic(publicKeySpec);
+            CryptoCache.releaseKeyFactory("DiffieHellman", factory);
         } catch (final NoSuchAlgorithmException e) {
             throw new MslInternalException("DiffieHellman algorithm not found.", e);
         } catch (final InvalidKeySpecException e) {
@@ -534,19 +578,9 @@ public class DiffieHellmanExchange extends KeyExchangeFactory {
         }
 
         // Generate public/private key pair.
-        final DHPublicKey responsePublicKey;
-        final DHPrivateKey responsePrivateKey;
-        try {
-            final KeyPairGenerator generator = KeyPairGenerator.getInstance("DH");
-            generator.initialize(paramSpec);
-            final KeyPair keyPair = generator.generateKeyPair();
-            responsePublicKey = (DHPublicKey)keyPair.getPublic();
-            responsePrivateKey = (DHPrivateKey)keyPair.getPrivate();
-        } catch (final NoSuchAlgorithmException e) {
-            throw new MslInternalException("DiffieHellman algorithm not found.", e);
-        } catch (final InvalidAlgorithmParameterException e) {
-            throw new MslInternalException("Diffie-Hellman algorithm parameters rejected by Diffie-Hellman key agreement.", e);
-        }
+        final KeyPair keyPair = generateKeyPair(parametersId, paramSpec);
+        final DHPublicKey responsePublicKey = (DHPublicKey)keyPair.getPublic();
+        final DHPrivateKey responsePrivateKey = (DHPrivateKey)keyPair.getPrivate();
 
         // Construct encryption and HMAC keys.
         final SessionKeys sessionKeys = deriveSessionKeys(requestPublicKey, responsePrivateKey, paramSpec);
@@ -597,6 +631,7 @@ public class DiffieHellmanExchange extends KeyExchangeFactory {
             final BigInteger y = response.getPublicKey();
             final DHPublicKeySpec publicKeySpec = new DHPublicKeySpec(y, params.getP(), params.getG());
             publicKey = factory.generatePublic(publicKeySpec);
+            CryptoCache.releaseKeyFactory("DiffieHellman", factory);
         } catch (final NoSuchAlgorithmException e) {
             throw new MslInternalException("DiffieHellman algorithm not found.", e);
         } catch (final InvalidKeySpecException e) {
@@ -614,4 +649,6 @@ public class DiffieHellmanExchange extends KeyExchangeFactory {
     private final DiffieHellmanParameters params;
     /** Authentication utilities. */
     private final AuthenticationUtils authutils;
+    /** Diffie-Hellman key pair pool. May be null. */
+    private final DiffieHellmanKeyPairPool keyPairPool;
 }
@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.keyx;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+
+import javax.crypto.spec.DHParameterSpec;
+
+import com.netflix.msl.MslError;
+import com.netflix.msl.MslInternalException;
+import com.netflix.msl.MslKeyExchangeException;
+import com.netflix.msl.crypto.CryptoCache;
+
+/**
+ * <p>A pool of pre-generated Diffie-Hellman key pairs by parameters ID.</p>
+ * 
+ * <p>Key pairs are generated using the parameter specification returned by
+ * the Diffie-Hellman parameters at the time of generation. If the
+ * parameters for an ID may change, call {@link #clear(String)} after the
+ * change; {@link DiffieHellmanExchange} will also discard any pooled key
+ * pair that does not match the current parameters.</p>
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+public class DiffieHellmanKeyPairPool extends KeyPairPool {
+    /**
+     * Create a new Diffie-Hellman key pair pool that generates key pairs on
+     * its own background daemon thread.
+     * 
+     * @param params Diffie-Hellman parameters.
+     * @param lowWaterMark the number of pooled key pairs at or below which
+     *        a refill is scheduled.
+     * @param capacity the number of key pairs a refill generates up to.
+     * @throws IllegalArgumentException if the low-water mark is negative or
+     *         the capacity is not greater than the low-water mark.
+     */
+    public DiffieHellmanKeyPairPool(final DiffieHellmanParameters params, final int lowWaterMark, final int capacity) {
+        super(lowWaterMark, capacity);
+        this.params = params;
+    }
+    
+    /**
+     * <p>Create a new Diffie-Hellman key pair pool that generates key pairs
+     * using the provided executor service.</p>
+     * 
+     * <p>The executor service remains owned by the caller and is not shut
+     * down when the pool is shut down.</p>
+     * 
+     * @param params Diffie-Hellman parameters.
+     * @param lowWaterMark the number of pooled key pairs at or below which
+     *        a refill is scheduled.
+     * @param capacity the number of key pairs a refill generates up to.
+     * @param executor the executor service used to generate key pairs.
+     * @throws IllegalArgumentException if the low-water mark is negative or
+     *         the capacity is not greater than the low-water mark.
+     */
+    public DiffieHellmanKeyPairPool(final DiffieHellmanParameters params, final int lowWaterMark, final int capacity, final ExecutorService executor) {
+        super(lowWaterMark, capacity, executor);
+        this.params = params;
+    }
+    
+    /* (non-Javadoc)
+     * @see com.netflix.msl.keyx.KeyPairPool#generate(java.lang.String)
+     */
+    @Override
+    protected KeyPair generate(final String id) throws MslKeyExchangeException {
+        final DHParameterSpec paramSpec = params.getParameterSpec(id);
+        if (paramSpec == null)
+            throw new MslKeyExchangeException(MslError.UNKNOWN_KEYX_PARAMETERS_ID, id);
+        try {
+            final KeyPairGenerator generator = CryptoCache.getKeyPairGenerator("DH");
+            generator.initialize(paramSpec);
+            final KeyPair keyPair = generator.generateKeyPair();
+            CryptoCache.releaseKeyPairGenerator("DH", generator);
+            return keyPair;
+        } catch (final NoSuchAlgorithmException e) {
+            throw new MslInternalException("DiffieHellman algorithm not found.", e);
+        } catch (final InvalidAlgorithmParameterException e) {
+            throw new MslInternalException("Diffie-Hellman algorithm parameters rejected by Diffie-Hellman key agreement.", e);
+        }
+    }
+    
+    /** Diffie-Hellman parameters. */
+    private final DiffieHellmanParameters params;
+}
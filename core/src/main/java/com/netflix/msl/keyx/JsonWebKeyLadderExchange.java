@@ -530,7 +530,9 @@ public class JsonWebKeyLadderExchange extends KeyExchangeFactory {
                     // it should be aligned to the AES key wrap block size so
                     // we can use the AES key wrap algorithm.
                     final Key secretKey = new SecretKeySpec(alignedJwk, JcaAlgorithm.AESKW);
-                    return cipher.wrap(secretKey);
+                    final byte[] ciphertext = cipher.wrap(secretKey);
+                    CryptoCache.releaseCipher(A128_KW_TRANSFORM, cipher);
+                    return ciphertext;
                 } catch (final NoSuchPaddingException e) {
                     throw new MslInternalException("Unsupported padding exception.", e);
                 } catch (final NoSuchAlgorithmException e) {
@@ -559,7 +561,9 @@ public class JsonWebKeyLadderExchange extends KeyExchangeFactory {
                     // Decrypt ciphertext.
                     final Cipher cipher = CryptoCache.getCipher(A128_KW_TRANSFORM);
                     cipher.init(Cipher.UNWRAP_MODE, key);
-                    return cipher.unwrap(data, "AES", Cipher.SECRET_KEY).getEncoded();
+                    final byte[] plaintext = cipher.unwrap(data, "AES", Cipher.SECRET_KEY).getEncoded();
+                    CryptoCache.releaseCipher(A128_KW_TRANSFORM, cipher);
+                    return plaintext;
                 } catch (final NoSuchPaddingException e) {
                     throw new MslInternalException("Unsupported padding exception.", e);
                 } catch (final NoSuchAlgorithmException e) {
@@ -0,0 +1,307 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.keyx;
+
+import java.security.KeyPair;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.netflix.msl.MslKeyExchangeException;
+
+/**
+ * <p>A pool of pre-generated key pairs, grouped by an identifier such as a
+ * parameters ID or key size.</p>
+ * 
+ * <p>Key pairs are generated in the background so key generation is moved
+ * off the request path. When the number of pooled key pairs for an
+ * identifier falls to or below the low-water mark a background task is
+ * scheduled to fill it back up to capacity. If the pool is empty a key pair
+ * is generated on the calling thread, so a caller never waits for the
+ * background task.</p>
+ * 
+ * <p>Each key pair is handed out exactly once. A request satisfied by a
+ * pooled key pair is counted as a hit and a request that had to generate a
+ * key pair is counted as a miss.</p>
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+public abstract class KeyPairPool {
+    /**
+     * Key pairs for a single identifier.
+     */
+    private static class Entry {
+        /** Pooled key pairs. */
+        public final Queue<KeyPair> keyPairs = new ConcurrentLinkedQueue<KeyPair>();
+        /** Number of pooled key pairs. */
+        public final AtomicInteger size = new AtomicInteger(0);
+        /** True if a refill task is scheduled or running. */
+        public final AtomicBoolean refilling = new AtomicBoolean(false);
+    }
+    
+    /**
+     * Thread factory that creates low-priority daemon threads so the pool
+     * never prevents shutdown or competes with request threads.
+     */
+    private static class DaemonThreadFactory implements ThreadFactory {
+        /* (non-Javadoc)
+         * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+         */
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, "msl-keypairpool");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    }
+    
+    /**
+     * Create a new key pair pool that generates key pairs on its own
+     * background daemon thread.
+     * 
+     * @param lowWaterMark the number of pooled key pairs at or below which
+     *        a refill is scheduled.
+     * @param capacity the number of key pairs a refill generates up to.
+     * @throws IllegalArgumentException if the low-water mark is negative or
+     *         the capacity is not greater than the low-water mark.
+     */
+    protected KeyPairPool(final int lowWaterMark, final int capacity) {
+        this(lowWaterMark, capacity, Executors.newSingleThreadExecutor(new DaemonThreadFactory()), true);
+    }
+    
+    /**
+     * <p>Create a new key pair pool that generates key pairs using the
+     * provided executor service.</p>
+     * 
+     * <p>The executor service remains owned by the caller and is not shut
+     * down when the pool is shut down.</p>
+     * 
+     * @param lowWaterMark the number of pooled key pairs at or below which
+     *        a refill is scheduled.
+     * @param capacity the number of key pairs a refill generates up to.
+     * @param executor the executor service used to generate key pairs.
+     * @throws IllegalArgumentException if the low-water mark is negative or
+     *         the capacity is not greater than the low-water mark.
+     */
+    protected KeyPairPool(final int lowWaterMark, final int capacity, final ExecutorService executor) {
+        this(lowWaterMark, capacity, executor, false);
+    }
+    
+    /**
+     * Create a new key pair pool that generates key pairs using the
+     * provided executor service.
+     * 
+     * @param lowWaterMark the number of pooled key pairs at or below which
+     *        a refill is scheduled.
+     * @param capacity the number of key pairs a refill generates up to.
+     * @param executor the executor service used to generate key pairs.
+     * @param ownsExecutor true if the pool shuts down the executor service
+     *        when it is shut down.
+     * @throws IllegalArgumentException if the low-water mark is negative or
+     *         the capacity is not greater than the low-water mark.
+     */
+    private KeyPairPool(final int lowWaterMark, final int capacity, final ExecutorService executor, final boolean ownsExecutor) {
+        if (lowWaterMark < 0)
+            throw new IllegalArgumentException("Low-water mark " + lowWaterMark + " must not be negative.");
+        if (capacity <= lowWaterMark)
+            throw new IllegalArgumentException("Capacity " + capacity + " must be greater than the low-water mark " + lowWaterMark + ".");
+        this.lowWaterMark = lowWaterMark;
+        this.capacity = capacity;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+    }
+    
+    /**
+     * Generate a new key pair for the identified group.
+     * 
+     * @param id the key pair group identifier.
+     * @return the new key pair.
+     * @throws MslKeyExchangeException if the identifier is not recognized or
+     *         there is an error generating the key pair.
+     */
+    protected abstract KeyPair generate(final String id) throws MslKeyExchangeException;
+    
+    /**
+     * <p>Return a key pair for the identified group, removing it from the
+     * pool. If the pool is empty a new key pair is generated on the calling
+     * thread.</p>
+     * 
+     * <p>A background refill is scheduled if this leaves the pool at or
+     * below the low-water mark.</p>
+     * 
+     * @param id the key pair group identifier.
+     * @return a key pair that has not been returned before.
+     * @throws MslKeyExchangeException if the pool is empty and there is an
+     *         error generating a key pair.
+     */
+    public KeyPair take(final String id) throws MslKeyExchangeException {
+        final Entry entry = getEntry(id);
+        final KeyPair keyPair = entry.keyPairs.poll();
+        if (keyPair != null) {
+            hits.increment();
+            final int size = entry.size.decrementAndGet();
+            if (size <= lowWaterMark)
+                refill(id, entry);
+            return keyPair;
+        }
+        
+        misses.increment();
+        refill(id, entry);
+        return generate(id);
+    }
+    
+    /**
+     * Schedule a background fill of the identified group up to capacity.
+     * This may be used to warm up the pool at startup.
+     * 
+     * @param id the key pair group identifier.
+     */
+    public void prefill(final String id) {
+        refill(id, getEntry(id));
+    }
+    
+    /**
+     * @param id the key pair group identifier.
+     * @return the number of pooled key pairs for the identified group.
+     */
+    public int getSize(final String id) {
+        final Entry entry = entries.get(id);
+        return (entry != null) ? entry.size.get() : 0;
+    }
+    
+    /**
+     * @return the number of requests satisfied by a pooled key pair.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+    
+    /**
+     * @return the number of requests that generated a key pair on the
+     *         calling thread because the pool was empty.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+    
+    /**
+     * Discard all pooled key pairs for the identified group. This should be
+     * called if the key generation parameters for the identifier change.
+     * 
+     * @param id the key pair group identifier.
+     */
+    public void clear(final String id) {
+        final Entry entry = entries.get(id);
+        if (entry == null) return;
+        while (entry.keyPairs.poll() != null)
+            entry.size.decrementAndGet();
+    }
+    
+    /**
+     * Stop generating key pairs in the background. Pooled key pairs remain
+     * available and an empty pool continues to generate key pairs on the
+     * calling thread. An executor service provided by the caller is not shut
+     * down, but no further key pairs are generated on it.
+     */
+    public void shutdown() {
+        shutdown = true;
+        if (ownsExecutor)
+            executor.shutdownNow();
+    }
+    
+    /**
+     * @param id the key pair group identifier.
+     * @return the pool entry for the identified group.
+     */
+    private Entry getEntry(final String id) {
+        final Entry entry = entries.get(id);
+        if (entry != null) return entry;
+        final Entry newEntry = new Entry();
+        final Entry existing = entries.putIfAbsent(id, newEntry);
+        return (existing != null) ? existing : newEntry;
+    }
+    
+    /**
+     * Schedule a background fill of the pool entry up to capacity unless
+     * one is already scheduled or running.
+     * 
+     * @param id the key pair group identifier.
+     * @param entry the pool entry.
+     */
+    private void refill(final String id, final Entry entry) {
+        if (shutdown || !entry.refilling.compareAndSet(false, true))
+            return;
+        
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean filled = false;
+                    try {
+                        while (entry.size.get() < capacity && !shutdown && !Thread.currentThread().isInterrupted()) {
+                            final KeyPair keyPair = generate(id);
+                            entry.keyPairs.offer(keyPair);
+                            entry.size.incrementAndGet();
+                        }
+                        filled = !shutdown && !Thread.currentThread().isInterrupted();
+                    } catch (final MslKeyExchangeException e) {
+                        // Stop refilling. Callers will generate key pairs
+                        // themselves and see the error.
+                    } catch (final RuntimeException e) {
+                        // Same as above.
+                    } finally {
+                        entry.refilling.set(false);
+                    }
+                    
+                    // A take that dropped the pool to the low-water mark
+                    // after the last size check and before the flag was
+                    // cleared could not schedule a refill, so check again.
+                    if (filled && entry.size.get() <= lowWaterMark)
+                        refill(id, entry);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            // The pool has been shut down.
+            entry.refilling.set(false);
+        }
+    }
+    
+    /** Low-water mark. */
+    private final int lowWaterMark;
+    /** Refill capacity. */
+    private final int capacity;
+    /** Background key generation executor. */
+    private final ExecutorService executor;
+    /** True if the executor is shut down when the pool is shut down. */
+    private final boolean ownsExecutor;
+    /** True once the pool is shut down. */
+    private volatile boolean shutdown = false;
+    /** Pool entries by identifier. */
+    private final ConcurrentMap<String,Entry> entries = new ConcurrentHashMap<String,Entry>();
+    /** Pool hits. */
+    private final LongAdder hits = new LongAdder();
+    /** Pool misses. */
+    private final LongAdder misses = new LongAdder();
+}
@@ -92,21 +92,43 @@ public abstract class KeyResponseData implements JSONString {
             // Pull the key data.
             final MasterToken masterToken = new MasterToken(ctx, keyResponseDataJO.getJSONObject(KEY_MASTER_TOKEN));
             final String schemeName = keyResponseDataJO.getString(KEY_SCHEME);
-            final KeyExchangeScheme scheme = ctx.getKeyExchangeScheme(schemeName);
-            if (scheme == null)
-                throw new MslKeyExchangeException(MslError.UNIDENTIFIED_KEYX_SCHEME, schemeName);
             final JSONObject keyData = keyResponseDataJO.getJSONObject(KEY_KEYDATA);
-            
-            // Construct an instance of the concrete subclass.
-            final KeyExchangeFactory factory = ctx.getKeyExchangeFactory(scheme);
-            if (factory == null)
-                throw new MslKeyExchangeException(MslError.KEYX_FACTORY_NOT_FOUND, scheme.name());
-            return factory.createResponseData(ctx, masterToken, keyData);
+            return create(ctx, masterToken, schemeName, keyData);
         } catch (final JSONException e) {
             throw new MslEncodingException(MslError.JSON_PARSE_ERROR, "keyresponsedata " + keyResponseDataJO.toString(), e);
         }
     }
     
+    /**
+     * Construct a new key response data instance of the correct type from the
+     * provided master token, key exchange scheme name, and key data. This is
+     * used when the master token is not carried in JSON form.
+     * 
+     * @param ctx MSL context.
+     * @param masterToken the master token.
+     * @param schemeName the key exchange scheme name.
+     * @param keyData the key data JSON object.
+     * @return the key response data concrete instance.
+     * @throws MslEncodingException if there is an error parsing the JSON.
+     * @throws MslKeyExchangeException if unable to create the key response
+     *         data.
+     * @throws MslCryptoException if there is an error verifying the they key
+     *         response data.
+     * @throws MslException if there is an error creating the key response
+     *         data.
+     */
+    public static KeyResponseData create(final MslContext ctx, final MasterToken masterToken, final String schemeName, final JSONObject keyData) throws MslEncodingException, MslCryptoException, MslKeyExchangeException, MslException {
+        final KeyExchangeScheme scheme = ctx.getKeyExchangeScheme(schemeName);
+        if (scheme == null)
+            throw new MslKeyExchangeException(MslError.UNIDENTIFIED_KEYX_SCHEME, schemeName);
+        
+        // Construct an instance of the concrete subclass.
+        final KeyExchangeFactory factory = ctx.getKeyExchangeFactory(scheme);
+        if (factory == null)
+            throw new MslKeyExchangeException(MslError.KEYX_FACTORY_NOT_FOUND, scheme.name());
+        return factory.createResponseData(ctx, masterToken, keyData);
+    }
+    
     /**
      * @return the master token.
      */
@@ -128,6 +150,17 @@ public abstract class KeyResponseData implements JSONString {
      */
     protected abstract JSONObject getKeydata() throws JSONException;
     
+    /**
+     * @return the key data JSON string.
+     */
+    public final String getKeydataJSONString() {
+        try {
+            return getKeydata().toString();
+        } catch (final JSONException e) {
+            throw new MslInternalException("Error encoding " + this.getClass().getName() + " key data JSON.", e);
+        }
+    }
+    
     /** Master token. */
     private final MasterToken masterToken;
     /** Key exchange scheme. */
@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.keyx;
+
+import java.security.InvalidParameterException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+
+import com.netflix.msl.MslError;
+import com.netflix.msl.MslInternalException;
+import com.netflix.msl.MslKeyExchangeException;
+import com.netflix.msl.crypto.CryptoCache;
+import com.netflix.msl.keyx.AsymmetricWrappedExchange.RequestData;
+import com.netflix.msl.keyx.AsymmetricWrappedExchange.RequestData.Mechanism;
+
+/**
+ * <p>A pool of pre-generated ephemeral RSA key pairs for requesters using
+ * {@link AsymmetricWrappedExchange}.</p>
+ * 
+ * <p>The asymmetric wrapped key exchange requires a new wrapping key pair
+ * for each key request. A message context can build its key request data
+ * from this pool in {@code MessageContext#getKeyRequestData()} so
+ * {@code MslControl} does not wait on RSA key generation before sending the
+ * request. Key pairs are pooled by key pair ID and all have the same
+ * modulus size.</p>
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+public class RsaKeyPairPool extends KeyPairPool {
+    /** RSA algorithm. */
+    private static final String RSA = "RSA";
+    
+    /**
+     * Create a new RSA key pair pool that generates key pairs on its own
+     * background daemon thread.
+     * 
+     * @param keySize RSA modulus size in bits.
+     * @param lowWaterMark the number of pooled key pairs at or below which
+     *        a refill is scheduled.
+     * @param capacity the number of key pairs a refill generates up to.
+     * @throws IllegalArgumentException if the low-water mark is negative or
+     *         the capacity is not greater than the low-water mark.
+     */
+    public RsaKeyPairPool(final int keySize, final int lowWaterMark, final int capacity) {
+        super(lowWaterMark, capacity);
+        this.keySize = keySize;
+    }
+    
+    /**
+     * <p>Create a new RSA key pair pool that generates key pairs using the
+     * provided executor service.</p>
+     * 
+     * <p>The executor service remains owned by the caller and is not shut
+     * down when the pool is shut down.</p>
+     * 
+     * @param keySize RSA modulus size in bits.
+     * @param lowWaterMark the number of pooled key pairs at or below which
+     *        a refill is scheduled.
+     * @param capacity the number of key pairs a refill generates up to.
+     * @param executor the executor service used to generate key pairs.
+     * @throws IllegalArgumentException if the low-water mark is negative or
+     *         the capacity is not greater than the low-water mark.
+     */
+    public RsaKeyPairPool(final int keySize, final int lowWaterMark, final int capacity, final ExecutorService executor) {
+        super(lowWaterMark, capacity, executor);
+        this.keySize = keySize;
+    }
+    
+    /* (non-Javadoc)
+     * @see com.netflix.msl.keyx.KeyPairPool#generate(java.lang.String)
+     */
+    @Override
+    protected KeyPair generate(final String id) {
+        try {
+            final KeyPairGenerator generator = CryptoCache.getKeyPairGenerator(RSA);
+            generator.initialize(keySize);
+            final KeyPair keyPair = generator.generateKeyPair();
+            CryptoCache.releaseKeyPairGenerator(RSA, generator);
+            return keyPair;
+        } catch (final NoSuchAlgorithmException e) {
+            throw new MslInternalException("RSA algorithm not found.", e);
+        } catch (final InvalidParameterException e) {
+            throw new MslInternalException("RSA key size " + keySize + " rejected by RSA key pair generator.", e);
+        }
+    }
+    
+    /**
+     * Create asymmetric wrapped key request data using a pooled key pair.
+     * 
+     * @param keyPairId the public/private key pair ID.
+     * @param mechanism the key exchange mechanism.
+     * @return the key request data.
+     * @throws MslKeyExchangeException if the mechanism does not use an RSA
+     *         key pair.
+     */
+    public RequestData createRequestData(final String keyPairId, final Mechanism mechanism) throws MslKeyExchangeException {
+        if (Mechanism.ECC.equals(mechanism))
+            throw new MslKeyExchangeException(MslError.UNSUPPORTED_KEYX_MECHANISM, mechanism.name());
+        final KeyPair keyPair = take(keyPairId);
+        return new RequestData(keyPairId, mechanism, keyPair.getPublic(), keyPair.getPrivate());
+    }
+    
+    /** RSA modulus size in bits. */
+    private final int keySize;
+}
@@ -0,0 +1,1011 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.msg;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.netflix.msl.MslConstants;
+import com.netflix.msl.MslConstants.CompressionAlgorithm;
+import com.netflix.msl.MslCryptoException;
+import com.netflix.msl.MslEncodingException;
+import com.netflix.msl.MslEntityAuthException;
+import com.netflix.msl.MslError;
+import com.netflix.msl.MslException;
+import com.netflix.msl.MslInternalException;
+import com.netflix.msl.MslKeyExchangeException;
+import com.netflix.msl.MslMessageException;
+import com.netflix.msl.MslUserAuthException;
+import com.netflix.msl.crypto.ICryptoContext;
+import com.netflix.msl.entityauth.EntityAuthenticationData;
+import com.netflix.msl.keyx.KeyRequestData;
+import com.netflix.msl.keyx.KeyResponseData;
+import com.netflix.msl.tokens.MasterToken;
+import com.netflix.msl.tokens.ServiceToken;
+import com.netflix.msl.tokens.UserIdToken;
+import com.netflix.msl.userauth.UserAuthenticationData;
+import com.netflix.msl.util.MslContext;
+
+/**
+ * <p>The binary message encoder format.</p>
+ * 
+ * <p>A binary encoded message begins with a magic byte and a version byte
+ * followed by a sequence of frames. Each frame consists of a one-byte frame
+ * type, the four-byte big-endian frame body length, and the frame body. The
+ * first frame is the message header and the remaining frames are payload
+ * chunks. Each field of a frame body is prefixed by its four-byte big-endian
+ * length. Binary fields are carried as raw bytes instead of Base64.</p>
+ * 
+ * <p>The header frame body is
+ * {@code
+ * header = {
+ *   authtype : uint8(1 = entityauthdata|2 = mastertoken)
+ *   auth : bytes
+ *   headerdata : bytes
+ *   signature : bytes
+ * }} where:
+ * <ul>
+ * <li>{@code authtype} identifies the contents of {@code auth}</li>
+ * <li>{@code auth} is the UTF-8 JSON encoding of the entity authentication data or the master token {@code token}</li>
+ * <li>{@code headerdata} is the encrypted header data</li>
+ * <li>{@code signature} is the verification data of the header data</li>
+ * </ul></p>
+ * 
+ * <p>Master tokens, user ID tokens, and service tokens are carried as
+ * {@code
+ * token = {
+ *   tokendata : bytes
+ *   signature : bytes
+ * }} where {@code tokendata} is the raw token data and {@code signature} is
+ * its verification data.</p>
+ * 
+ * <p>If the sender's encoder format is binary the decrypted header data is
+ * itself binary encoded as
+ * {@code
+ * headerdata = {
+ *   magic : uint8
+ *   version : uint8
+ *   flags : uint8(bit 0 = renewable|bit 1 = handshake)
+ *   messageid : int64
+ *   fields : { tag : uint8, value : bytes }*
+ * }} where each field is one of:
+ * <ul>
+ * <li>1 {@code sender}: UTF-8 string</li>
+ * <li>2 {@code recipient}: UTF-8 string</li>
+ * <li>3 {@code timestamp}: int64 seconds since the epoch</li>
+ * <li>4 {@code nonreplayableid}: int64</li>
+ * <li>5 {@code capabilities}: UTF-8 JSON</li>
+ * <li>6 {@code keyrequestdata}: UTF-8 JSON, repeated</li>
+ * <li>7 {@code keyresponsedata}: master token {@code token}, scheme UTF-8
+ *     string and UTF-8 JSON key data</li>
+ * <li>8 {@code userauthdata}: UTF-8 JSON</li>
+ * <li>9 {@code useridtoken}: {@code token}</li>
+ * <li>10 {@code servicetoken}: {@code token}, repeated</li>
+ * <li>11 {@code peermastertoken}: {@code token}</li>
+ * <li>12 {@code peeruseridtoken}: {@code token}</li>
+ * <li>13 {@code peerservicetoken}: {@code token}, repeated</li>
+ * </ul>
+ * Unknown fields are ignored. Scheme-specific data remains JSON.</p>
+ * 
+ * <p>The payload chunk frame body is
+ * {@code
+ * payloadchunk = {
+ *   payload : bytes
+ *   signature : bytes
+ * }} where:
+ * <ul>
+ * <li>{@code payload} is the encrypted payload</li>
+ * <li>{@code signature} is the verification data of the payload</li>
+ * </ul></p>
+ * 
+ * <p>The encrypted payload of a payload chunk in a binary encoded message is
+ * itself binary encoded as
+ * {@code
+ * payload = {
+ *   magic : uint8
+ *   version : uint8
+ *   flags : uint8(bit 0 = endofmsg)
+ *   compressionalgo : uint8(0 = none|1 = GZIP|2 = LZW)
+ *   sequencenumber : int64
+ *   messageid : int64
+ *   data : bytes
+ * }} where {@code data} is the optionally compressed application data and
+ * extends to the end of the payload.</p>
+ * 
+ * <p>The magic byte cannot start a JSON encoded message, header data, or
+ * payload so the encoder format of a received message, header data, or
+ * payload is identified by its first byte.</p>
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+final class BinaryEncoding {
+    /** Magic byte identifying a binary encoded message. */
+    public static final int MAGIC = 0xB5;
+    /** Binary encoding version. */
+    public static final int VERSION = 1;
+    
+    /** Header frame type. */
+    private static final int FRAME_HEADER = 1;
+    /** Payload chunk frame type. */
+    private static final int FRAME_PAYLOAD_CHUNK = 2;
+    
+    /** Entity authentication data authentication type. */
+    private static final int AUTH_ENTITY_AUTHENTICATION_DATA = 1;
+    /** Master token authentication type. */
+    private static final int AUTH_MASTER_TOKEN = 2;
+    
+    /** Payload end of message flag. */
+    private static final int FLAG_END_OF_MESSAGE = 0x01;
+    /** No compression payload code. */
+    private static final int COMPRESSION_NONE = 0;
+    /** GZIP compression payload code. */
+    private static final int COMPRESSION_GZIP = 1;
+    /** LZW compression payload code. */
+    private static final int COMPRESSION_LZW = 2;
+    /** Payload size in bytes, excluding the data. */
+    public static final int PAYLOAD_HEADER_SIZE = 20;
+    
+    /** Header data renewable flag. */
+    private static final int FLAG_RENEWABLE = 0x01;
+    /** Header data handshake flag. */
+    private static final int FLAG_HANDSHAKE = 0x02;
+    /** Header data size in bytes, excluding the fields. */
+    private static final int HEADERDATA_HEADER_SIZE = 11;
+    
+    /** Sender header data field tag. */
+    private static final int TAG_SENDER = 1;
+    /** Recipient header data field tag. */
+    private static final int TAG_RECIPIENT = 2;
+    /** Timestamp header data field tag. */
+    private static final int TAG_TIMESTAMP = 3;
+    /** Non-replayable ID header data field tag. */
+    private static final int TAG_NON_REPLAYABLE_ID = 4;
+    /** Message capabilities header data field tag. */
+    private static final int TAG_CAPABILITIES = 5;
+    /** Key request data header data field tag. */
+    private static final int TAG_KEY_REQUEST_DATA = 6;
+    /** Key response data header data field tag. */
+    private static final int TAG_KEY_RESPONSE_DATA = 7;
+    /** User authentication data header data field tag. */
+    private static final int TAG_USER_AUTHENTICATION_DATA = 8;
+    /** User ID token header data field tag. */
+    private static final int TAG_USER_ID_TOKEN = 9;
+    /** Service token header data field tag. */
+    private static final int TAG_SERVICE_TOKEN = 10;
+    /** Peer master token header data field tag. */
+    private static final int TAG_PEER_MASTER_TOKEN = 11;
+    /** Peer user ID token header data field tag. */
+    private static final int TAG_PEER_USER_ID_TOKEN = 12;
+    /** Peer service token header data field tag. */
+    private static final int TAG_PEER_SERVICE_TOKEN = 13;
+    
+    /** Milliseconds per second. */
+    private static final long MILLISECONDS_PER_SECOND = 1000;
+    
+    /** Frame type and length prefix size in bytes. */
+    private static final int FRAME_PREFIX_SIZE = 5;
+    /** Field length prefix size in bytes. */
+    private static final int FIELD_PREFIX_SIZE = 4;
+    
+    /**
+     * <p>An input stream that can tell if the next frame has been completely
+     * received without blocking.</p>
+     * 
+     * <p>Frame bytes that have already arrived are buffered as they are
+     * checked, but no more than the bytes of the next frame are ever read
+     * from the source.</p>
+     */
+    static class FrameInputStream extends FilterInputStream {
+        /**
+         * @param in the source input stream.
+         */
+        public FrameInputStream(final InputStream in) {
+            super(in);
+        }
+        
+        /**
+         * <p>Returns true if the next frame can be read without blocking.
+         * This is the case if the whole frame has arrived or the frame is
+         * known to be malformed or truncated.</p>
+         * 
+         * <p>This method never blocks; it only reads bytes the source
+         * reports are available.</p>
+         * 
+         * @param maxFrameSize the maximum frame body size in bytes.
+         * @return true if the next frame can be read without blocking.
+         * @throws IOException if there is an error reading from the source.
+         */
+        public boolean isFrameBuffered(final int maxFrameSize) throws IOException {
+            if (!buffer(FRAME_PREFIX_SIZE))
+                return false;
+            if (limit - position < FRAME_PREFIX_SIZE)
+                return true;
+            final int length = ByteBuffer.wrap(pending, position + 1, FIELD_PREFIX_SIZE).getInt();
+            if (length < 0 || length > maxFrameSize)
+                return true;
+            return buffer(FRAME_PREFIX_SIZE + length);
+        }
+        
+        /**
+         * Buffer bytes from the source without blocking until the requested
+         * number of bytes is buffered or the end of the stream is reached.
+         * 
+         * @param size the requested number of buffered bytes.
+         * @return true if the requested number of bytes is buffered or the
+         *         end of the stream was reached.
+         * @throws IOException if there is an error reading from the source.
+         */
+        private boolean buffer(final int size) throws IOException {
+            if (pending.length - position < size) {
+                final byte[] b = new byte[size];
+                System.arraycopy(pending, position, b, 0, limit - position);
+                pending = b;
+                limit -= position;
+                position = 0;
+            }
+            while (limit - position < size) {
+                if (eof)
+                    return true;
+                final int available = in.available();
+                if (available <= 0)
+                    return false;
+                final int count = in.read(pending, limit, Math.min(available, position + size - limit));
+                if (count == -1)
+                    eof = true;
+                else
+                    limit += count;
+            }
+            return true;
+        }
+        
+        /* (non-Javadoc)
+         * @see java.io.FilterInputStream#read()
+         */
+        @Override
+        public int read() throws IOException {
+            if (position < limit)
+                return pending[position++] & 0xff;
+            if (eof)
+                return -1;
+            return in.read();
+        }
+        
+        /* (non-Javadoc)
+         * @see java.io.FilterInputStream#read(byte[], int, int)
+         */
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (position < limit) {
+                final int count = Math.min(len, limit - position);
+                System.arraycopy(pending, position, b, off, count);
+                position += count;
+                return count;
+            }
+            if (eof)
+                return -1;
+            return in.read(b, off, len);
+        }
+        
+        /* (non-Javadoc)
+         * @see java.io.FilterInputStream#skip(long)
+         */
+        @Override
+        public long skip(final long n) throws IOException {
+            if (position < limit) {
+                final int count = (int)Math.min(n, limit - position);
+                position += count;
+                return count;
+            }
+            if (eof)
+                return 0;
+            return in.skip(n);
+        }
+        
+        /* (non-Javadoc)
+         * @see java.io.FilterInputStream#available()
+         */
+        @Override
+        public int available() throws IOException {
+            if (eof)
+                return limit - position;
+            return (limit - position) + in.available();
+        }
+        
+        /* (non-Javadoc)
+         * @see java.io.FilterInputStream#markSupported()
+         */
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+        
+        /** Bytes of the next frame read from the source. */
+        private byte[] pending = new byte[FRAME_PREFIX_SIZE];
+        /** Position of the next buffered byte. */
+        private int position = 0;
+        /** Buffered bytes limit. */
+        private int limit = 0;
+        /** True if the end of the source has been reached. */
+        private boolean eof = false;
+    }
+    
+    /**
+     * Raw token data and signature.
+     */
+    static class Token {
+        /**
+         * @param tokendata raw token data.
+         * @param signature raw token signature.
+         */
+        public Token(final byte[] tokendata, final byte[] signature) {
+            this.tokendata = tokendata;
+            this.signature = signature;
+        }
+        
+        /** Raw token data. */
+        public final byte[] tokendata;
+        /** Raw token signature. */
+        public final byte[] signature;
+    }
+    
+    /**
+     * <p>Decoded binary header data.</p>
+     * 
+     * <p>Tokens are left as raw token data and signatures and scheme-specific
+     * data is left as JSON so the message header can parse them in the same
+     * order and with the same verification master tokens as JSON header
+     * data.</p>
+     */
+    static class Headerdata {
+        /** Message ID. */
+        public long messageId;
+        /** Renewable. */
+        public boolean renewable;
+        /** Handshake message. */
+        public boolean handshake;
+        /** Sender. May be null. */
+        public String sender = null;
+        /** Recipient. May be null. */
+        public String recipient = null;
+        /** Timestamp in seconds since the epoch. May be null. */
+        public Long timestamp = null;
+        /** Non-replayable ID. May be null. */
+        public Long nonReplayableId = null;
+        /** Message capabilities. May be null. */
+        public JSONObject capabilities = null;
+        /** Key request data. */
+        public final List<JSONObject> keyRequestData = new ArrayList<JSONObject>();
+        /** Key response data master token. May be null. */
+        public Token keyResponseMasterToken = null;
+        /** Key response data key exchange scheme name. May be null. */
+        public String keyResponseScheme = null;
+        /** Key response data key data. May be null. */
+        public JSONObject keyResponseKeydata = null;
+        /** User authentication data. May be null. */
+        public JSONObject userAuthData = null;
+        /** User ID token. May be null. */
+        public Token userIdToken = null;
+        /** Service tokens. */
+        public final List<Token> serviceTokens = new ArrayList<Token>();
+        /** Peer master token. May be null. */
+        public Token peerMasterToken = null;
+        /** Peer user ID token. May be null. */
+        public Token peerUserIdToken = null;
+        /** Peer service tokens. */
+        public final List<Token> peerServiceTokens = new ArrayList<Token>();
+    }
+    
+    /**
+     * Static methods only.
+     */
+    private BinaryEncoding() {}
+    
+    /**
+     * Write the message preamble and header frame.
+     * 
+     * @param out the destination output stream.
+     * @param header the message header.
+     * @throws IOException if there is an error writing the header.
+     */
+    public static void writeHeader(final OutputStream out, final MessageHeader header) throws IOException {
+        final MasterToken masterToken = header.getMasterToken();
+        final int authType;
+        final byte[] auth;
+        if (masterToken != null) {
+            authType = AUTH_MASTER_TOKEN;
+            auth = encodeToken(masterToken.getTokendata(), masterToken.getSignature());
+        } else {
+            final EntityAuthenticationData entityAuthData = header.getEntityAuthenticationData();
+            if (entityAuthData == null)
+                throw new MslInternalException("Message header has no master token or entity authentication data.");
+            authType = AUTH_ENTITY_AUTHENTICATION_DATA;
+            auth = entityAuthData.toJSONString().getBytes(MslConstants.DEFAULT_CHARSET);
+        }
+        final byte[] headerdata = header.getHeaderdata();
+        final byte[] signature = header.getSignature();
+        
+        final int length = 1 + 3 * FIELD_PREFIX_SIZE + auth.length + headerdata.length + signature.length;
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(2 + FRAME_PREFIX_SIZE + length);
+        final DataOutputStream dos = new DataOutputStream(buffer);
+        dos.writeByte(MAGIC);
+        dos.writeByte(VERSION);
+        dos.writeByte(FRAME_HEADER);
+        dos.writeInt(length);
+        dos.writeByte(authType);
+        writeField(dos, auth);
+        writeField(dos, headerdata);
+        writeField(dos, signature);
+        out.write(buffer.toByteArray());
+    }
+    
+    /**
+     * Write a payload chunk frame.
+     * 
+     * @param out the destination output stream.
+     * @param chunk the payload chunk.
+     * @throws IOException if there is an error writing the payload chunk.
+     */
+    public static void writePayloadChunk(final OutputStream out, final PayloadChunk chunk) throws IOException {
+        final byte[] payload = chunk.getPayload();
+        final byte[] signature = chunk.getSignature();
+        
+        final int length = 2 * FIELD_PREFIX_SIZE + payload.length + signature.length;
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(FRAME_PREFIX_SIZE + length);
+        final DataOutputStream dos = new DataOutputStream(buffer);
+        dos.writeByte(FRAME_PAYLOAD_CHUNK);
+        dos.writeInt(length);
+        writeField(dos, payload);
+        writeField(dos, signature);
+        out.write(buffer.toByteArray());
+    }
+    
+    /**
+     * Write a length-prefixed field.
+     * 
+     * @param dos the data output stream.
+     * @param field the field value.
+     * @throws IOException if there is an error writing the field.
+     */
+    private static void writeField(final DataOutputStream dos, final byte[] field) throws IOException {
+        dos.writeInt(field.length);
+        dos.write(field);
+    }
+    
+    /**
+     * Write a tagged header data field.
+     * 
+     * @param dos the data output stream.
+     * @param tag the field tag.
+     * @param field the field value.
+     * @throws IOException if there is an error writing the field.
+     */
+    private static void writeTaggedField(final DataOutputStream dos, final int tag, final byte[] field) throws IOException {
+        dos.writeByte(tag);
+        writeField(dos, field);
+    }
+    
+    /**
+     * @param tokendata raw token data.
+     * @param signature raw token signature.
+     * @return the encoded token.
+     */
+    private static byte[] encodeToken(final byte[] tokendata, final byte[] signature) {
+        final ByteBuffer token = ByteBuffer.allocate(2 * FIELD_PREFIX_SIZE + tokendata.length + signature.length);
+        token.putInt(tokendata.length);
+        token.put(tokendata);
+        token.putInt(signature.length);
+        token.put(signature);
+        return token.array();
+    }
+    
+    /**
+     * @param value the value.
+     * @return the encoded int64 value.
+     */
+    private static byte[] encodeLong(final long value) {
+        return ByteBuffer.allocate(8).putLong(value).array();
+    }
+    
+    /**
+     * @param value the value.
+     * @return the UTF-8 encoded value.
+     */
+    private static byte[] encodeString(final String value) {
+        return value.getBytes(MslConstants.DEFAULT_CHARSET);
+    }
+    
+    /**
+     * Encode the header data of a message header. Tokens are carried as raw
+     * token data and signatures.
+     * 
+     * @param header the message header. The header data values must already
+     *        be set.
+     * @return the encoded header data.
+     */
+    public static byte[] encodeHeaderdata(final MessageHeader header) {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final DataOutputStream dos = new DataOutputStream(buffer);
+        try {
+            dos.writeByte(MAGIC);
+            dos.writeByte(VERSION);
+            dos.writeByte(((header.isRenewable()) ? FLAG_RENEWABLE : 0) | ((header.isHandshake()) ? FLAG_HANDSHAKE : 0));
+            dos.writeLong(header.getMessageId());
+            
+            final String sender = header.getSender();
+            if (sender != null) writeTaggedField(dos, TAG_SENDER, encodeString(sender));
+            final String recipient = header.getRecipient();
+            if (recipient != null) writeTaggedField(dos, TAG_RECIPIENT, encodeString(recipient));
+            final Date timestamp = header.getTimestamp();
+            if (timestamp != null) writeTaggedField(dos, TAG_TIMESTAMP, encodeLong(timestamp.getTime() / MILLISECONDS_PER_SECOND));
+            final Long nonReplayableId = header.getNonReplayableId();
+            if (nonReplayableId != null) writeTaggedField(dos, TAG_NON_REPLAYABLE_ID, encodeLong(nonReplayableId));
+            final MessageCapabilities capabilities = header.getMessageCapabilities();
+            if (capabilities != null) writeTaggedField(dos, TAG_CAPABILITIES, encodeString(capabilities.toJSONString()));
+            for (final KeyRequestData keyRequestData : header.getKeyRequestData())
+                writeTaggedField(dos, TAG_KEY_REQUEST_DATA, encodeString(keyRequestData.toJSONString()));
+            final KeyResponseData keyResponseData = header.getKeyResponseData();
+            if (keyResponseData != null) {
+                final MasterToken masterToken = keyResponseData.getMasterToken();
+                final ByteArrayOutputStream keyResponse = new ByteArrayOutputStream();
+                final DataOutputStream keyResponseDos = new DataOutputStream(keyResponse);
+                writeField(keyResponseDos, encodeToken(masterToken.getTokendata(), masterToken.getSignature()));
+                writeField(keyResponseDos, encodeString(keyResponseData.getKeyExchangeScheme().name()));
+                writeField(keyResponseDos, encodeString(keyResponseData.getKeydataJSONString()));
+                writeTaggedField(dos, TAG_KEY_RESPONSE_DATA, keyResponse.toByteArray());
+            }
+            final UserAuthenticationData userAuthData = header.getUserAuthenticationData();
+            if (userAuthData != null) writeTaggedField(dos, TAG_USER_AUTHENTICATION_DATA, encodeString(userAuthData.toJSONString()));
+            final UserIdToken userIdToken = header.getUserIdToken();
+            if (userIdToken != null) writeTaggedField(dos, TAG_USER_ID_TOKEN, encodeToken(userIdToken.getTokendata(), userIdToken.getSignature()));
+            for (final ServiceToken serviceToken : header.getServiceTokens())
+                writeTaggedField(dos, TAG_SERVICE_TOKEN, encodeToken(serviceToken.getTokendata(), serviceToken.getSignature()));
+            final MasterToken peerMasterToken = header.getPeerMasterToken();
+            if (peerMasterToken != null) writeTaggedField(dos, TAG_PEER_MASTER_TOKEN, encodeToken(peerMasterToken.getTokendata(), peerMasterToken.getSignature()));
+            final UserIdToken peerUserIdToken = header.getPeerUserIdToken();
+            if (peerUserIdToken != null) writeTaggedField(dos, TAG_PEER_USER_ID_TOKEN, encodeToken(peerUserIdToken.getTokendata(), peerUserIdToken.getSignature()));
+            for (final ServiceToken peerServiceToken : header.getPeerServiceTokens())
+                writeTaggedField(dos, TAG_PEER_SERVICE_TOKEN, encodeToken(peerServiceToken.getTokendata(), peerServiceToken.getSignature()));
+        } catch (final IOException e) {
+            throw new MslInternalException("Error encoding binary header data.", e);
+        }
+        return buffer.toByteArray();
+    }
+    
+    /**
+     * <p>Read the message header. The magic byte must already have been read
+     * from the input stream.</p>
+     * 
+     * <p>Service tokens will be decrypted and verified with the provided
+     * crypto contexts identified by token name. A default crypto context may
+     * be provided by using the empty string as the token name; if a token
+     * name is not explcitly mapped onto a crypto context, the default crypto
+     * context will be used.</p>
+     * 
+     * @param ctx MSL context.
+     * @param in the source input stream.
+     * @param cryptoContexts the map of service token names onto crypto
+     *        contexts used to decrypt and verify service tokens.
+     * @param maxFrameSize the maximum frame body size in bytes.
+     * @return the message header.
+     * @throws MslEncodingException if the version is not supported, the
+     *         header frame is missing, malformed, or too large, or there is
+     *         an error parsing the JSON.
+     * @throws MslCryptoException if there is an error decrypting or verifying
+     *         the message.
+     * @throws MslEntityAuthException if unable to create the entity
+     *         authentication data.
+     * @throws MslKeyExchangeException if unable to create the key request data
+     *         or key response data.
+     * @throws MslUserAuthException if unable to create the user authentication
+     *         data.
+     * @throws MslMessageException if the header data is missing.
+     * @throws MslException if the message does not contain an entity
+     *         authentication data or a master token or a token is improperly
+     *         bound to another token.
+     */
+    public static MessageHeader readHeader(final MslContext ctx, final DataInputStream in, final Map<String,ICryptoContext> cryptoContexts, final int maxFrameSize) throws MslEncodingException, MslCryptoException, MslEntityAuthException, MslKeyExchangeException, MslUserAuthException, MslMessageException, MslException {
+        // Check the version.
+        final int version;
+        try {
+            version = in.read();
+        } catch (final IOException e) {
+            throw new MslEncodingException(MslError.MESSAGE_FORMAT_ERROR, "header", e);
+        }
+        if (version != VERSION)
+            throw new MslEncodingException(MslError.MESSAGE_FORMAT_ERROR, "binary encoding version " + version);
+        
+        // Read the header frame.
+        final byte[] body = readFrame(in, FRAME_HEADER, maxFrameSize);
+        if (body == null)
+            throw new MslEncodingException(MslError.MESSAGE_DATA_MISSING);
+        final ByteBuffer frame = ByteBuffer.wrap(body);
+        if (!frame.hasRemaining())
+            throw new MslEncodingException(MslError.MESSAGE_FORMAT_ERROR, "header");
+        final int authType = frame.get() & 0xFF;
+        final byte[] auth = readField(frame);
+        final byte[] headerdata = readField(frame);
+        final byte[] signature = readField(frame);
+        if (frame.hasRemaining())
+            throw new MslEncodingException(MslError.MESSAGE_FORMAT_ERROR, "header");
+        
+        // Parse the entity authentication data or master token.
+        final EntityAuthenticationData entityAuthData;
+        final MasterToken masterToken;
+        switch (authType) {
+            case AUTH_ENTITY_AUTHENTICATION_DATA:
+            {
+                entityAuthData = EntityAuthenticationData.create(ctx, readJson(auth));
+                masterToken = null;
+                break;
+            }
+            case AUTH_MASTER_TOKEN:
+            {
+                final Token token = readToken(auth);
+                entityAuthData = null;
+                masterToken = MasterToken.parseMasterToken(ctx, token.tokendata, token.signature);
+                break;
+            }
+            default:
+                throw new MslEncodingException(MslError.MESSAGE_FORMAT_ERROR, "header authentication type " + authType);
+        }
+        
+        // Make sure the header was verified and decrypted.
+        //
+        // Throw different errors depending on whether or not a master token
+        // was used.
+        final MessageHeader messageHeader = new MessageHeader(ctx, headerdata, entityAuthData, masterToken, signature, cryptoContexts);
+        if (!messageHeader.isDecrypted()) {
+            if (masterToken != null)
+                throw new MslCryptoException(MslError.MESSAGE_MASTERTOKENBASED_VERIFICATION_FAILED).setEntity(masterToken);
+            else
+                throw new MslCryptoException(MslError.MESSAGE_ENTITYDATABASED_VERIFICATION_FAILED).setEntity(entityAuthData);
+        }
+        return messageHeader;
+    }
+    
+    /**
+     * Read the next payload chunk.
+     * 
+     * @param in the source input stream.
+     * @param cryptoContext the payload crypto context.
+     * @param maxFrameSize the maximum frame body size in bytes.
+     * @return the next payload chunk or {@code null} if there are no more
+     *         frames.
+     * @throws MslEncodingException if the payload chunk frame is malformed or
+     *         too large, or there is an error parsing the payload.
+     * @throws MslCryptoException if there is a problem decrypting or verifying
+     *         the payload chunk.
+     * @throws MslMessageException if the compression algorithm is not known,
+     *         or the payload data is corrupt or missing.
+     * @throws MslException if there is an error uncompressing the data.
+     */
+    public static PayloadChunk readPayloadChunk(final DataInputStream in, final ICryptoContext cryptoContext, final int maxFrameSize) throws MslEncodingException, MslCryptoException, MslMessageException, MslException {
+        final byte[][] encoded = readEncodedPayloadChunk(in, maxFrameSize);
+        if (encoded == null)
+            return null;
+        return new PayloadChunk(encoded[0], encoded[1], cryptoContext);
+    }
+    
+    /**
+     * Read the encrypted payload and signature of the next payload chunk.
+     * Nothing is decrypted or verified.
+     * 
+     * @param in the source input stream.
+     * @param maxFrameSize the maximum frame body size in bytes.
+     * @return the encrypted payload and the signature, in that order, or
+     *         {@code null} if there are no more frames.
+     * @throws MslEncodingException if the payload chunk frame is malformed or
+     *         too large.
+     */
+    public static byte[][] readEncodedPayloadChunk(final DataInputStream in, final int maxFrameSize) throws MslEncodingException {
+        final byte[] body = readFrame(in, FRAME_PAYLOAD_CHUNK, maxFrameSize);
+        if (body == null)
+            return null;
+        final ByteBuffer frame = ByteBuffer.wrap(body);
+        final byte[] payload = readField(frame);
+        final byte[] signature = readField(frame);
+        if (frame.hasRemaining())
+            throw new MslEncodingException(MslError.MESSAGE_FORMAT_ERROR, "payloadchunk");
+        return new byte[][] { payload, signature };
+    }
+    
+    /**
+     * Encode a payload chunk payload.
+     * 
+     * @param sequenceNumber sequence number.
+     * @param messageId the message ID.
+     * @param endofmsg true if this is the last payload chunk of the message.
+     * @param compressionAlgo the compression algorithm. May be {@code null}
+     *        for no compression.
+     * @param data the optionally compressed application data.
+     * @return the encoded payload.
+     */
+    public static byte[] encodePayload(final long sequenceNumber, final long messageId, final boolean endofmsg, final CompressionAlgorithm compressionAlgo, final byte[] data) {
+        final ByteBuffer payload = ByteBuffer.allocate(PAYLOAD_HEADER_SIZE + data.length);
+        payload.put((byte)MAGIC);
+        payload.put((byte)VERSION);
+        payload.put((byte)((endofmsg) ? FLAG_END_OF_MESSAGE : 0));
+        payload.put((byte)getCompressionCode(compressionAlgo));
+        payload.putLong(sequenceNumber);
+        payload.putLong(messageId);
+        payload.put(data);
+        return payload.array();
+    }
+    
+    /**
+     * @param plaintext decrypted payload chunk payload.
+     * @return true if the payload is binary encoded.
+     */
+    public static boolean isBinaryPayload(final byte[] plaintext) {
+        return plaintext.length > 0 && (plaintext[0] & 0xff) == MAGIC;
+    }
+    
+    /**
+     * @param plaintext decrypted header data.
+     * @return true if the header data is binary encoded.
+     */
+    public static boolean isBinaryHeaderdata(final byte[] plaintext) {
+        return plaintext.length > 0 && (plaintext[0] & 0xff) == MAGIC;
+    }
+    
+    /**
+     * Decode binary header data. Tokens are not parsed and scheme-specific
+     * data is only parsed as JSON.
+     * 
+     * @param plaintext the decrypted binary header data.
+     * @return the decoded header data.
+     * @throws MslEncodingException if the header data is truncated or
+     *         malformed, the version is not supported, a field that may only
+     *         appear once is repeated, or there is an error parsing the JSON.
+     */
+    public static Headerdata readHeaderdata(final byte[] plaintext) throws MslEncodingException {
+        final ByteBuffer buffer = ByteBuffer.wrap(plaintext);
+        if (buffer.remaining() < HEADERDATA_HEADER_SIZE)
+            throw new MslEncodingException(MslError.MESSAGE_FORMAT_ERROR, "truncated headerdata");
+        buffer.get();
+        final int version = buffer.get() & 0xff;
+        if (version != VERSION)
+            throw new MslEncodingException(MslError.MESSAGE_FORMAT_ERROR, "headerdata version " + version);
+        final int flags = buffer.get() & 0xff;
+        final Headerdata headerdata = new Headerdata();
+        headerdata.renewable = (flags & FLAG_RENEWABLE) != 0;
+        headerdata.handshake = (flags & FLAG_HANDSHAKE) != 0;
+        headerdata.messageId = buffer.getLong();
+        
+        final Set<Integer> tags = new HashSet<Integer>();
+        while (buffer.hasRemaining()) {
+            final int tag = buffer.get() & 0xff;
+            final byte[] field = readField(buffer);
+            final boolean repeatable = (tag == TAG_KEY_REQUEST_DATA || tag == TAG_SERVICE_TOKEN || tag == TAG_PEER_SERVICE_TOKEN);
+            if (!tags.add(tag) && !repeatable)
+                throw new MslEncodingException(MslError.MESSAGE_FORMAT_ERROR, "headerdata field " + tag + " repeated");
+            switch (tag) {
+                case TAG_SENDER:
+                    headerdata.sender = new String(field, MslConstants.DEFAULT_CHARSET);
+                    break;
+                case TAG_RECIPIENT:
+                    headerdata.recipient = new String(field, MslConstants.DEFAULT_CHARSET);
+                    break;
+                case TAG_TIMESTAMP:
+                    headerdata.timestamp = readLong(field);
+                    break;
+                case TAG_NON_REPLAYABLE_ID:
+                    headerdata.nonReplayableId = readLong(field);
+                    break;
+                case TAG_CAPABILITIES:
+                    headerdata.capabilities = readJson(field);
+                    break;
+                case TAG_KEY_REQUEST_DATA:
+                    headerdata.keyRequestData.add(readJson(field));
+                    break;
+                case TAG_KEY_RESPONSE_DATA:
+                {
+                    final ByteBuffer keyResponse = ByteBuffer.wrap(field);
+                    headerdata.keyResponseMasterToken = readToken(readField(keyResponse));
+                    headerdata.keyResponseScheme = new String(readField(keyResponse), MslConstants.DEFAULT_CHARSET);
+                    headerdata.keyResponseKeydata = readJson(readField(keyResponse));
+                    if (keyResponse.hasRemaining())
+                        throw new MslEncodingException(MslError.MESSAGE_FORMAT_ERROR, "keyresponsedata");
+                    break;
+                }
+                case TAG_USER_AUTHENTICATION_DATA:
+                    headerdata.userAuthData = readJson(field);
+                    break;
+                case TAG_USER_ID_TOKEN:
+                    headerdata.userIdToken = readToken(field);
+                    break;
+                case TAG_SERVICE_TOKEN:
+                    headerdata.serviceTokens.add(readToken(field));
+                    break;
+                case TAG_PEER_MASTER_TOKEN:
+                    headerdata.peerMasterToken = readToken(field);
+                    break;
+                case TAG_PEER_USER_ID_TOKEN:
+                    headerdata.peerUserIdToken = readToken(field);
+                    break;
+                case TAG_PEER_SERVICE_TOKEN:
+                    headerdata.peerServiceTokens.add(readToken(field));
+                    break;
+                default:
+                    break;
+            }
+        }
+        return headerdata;
+    }
+    
+    /**
+     * Verify the binary payload preamble and return the payload end of
+     * message flag.
+     * 
+     * @param payload the binary payload, positioned at the start.
+     * @return true if the end of message flag is set.
+     * @throws MslEncodingException if the payload is truncated or the version
+     *         is not supported.
+     */
+    public static boolean readPayloadFlags(final ByteBuffer payload) throws MslEncodingException {
+        if (payload.remaining() < PAYLOAD_HEADER_SIZE)
+            throw new MslEncodingException(MslError.MESSAGE_FORMAT_ERROR, "truncated payload");
+        payload.get();
+        final int version = payload.get() & 0xff;
+        if (version != VERSION)
+            throw new MslEncodingException(MslError.MESSAGE_FORMAT_ERROR, "payload version " + version);
+        final int flags = payload.get() & 0xff;
+        return (flags & FLAG_END_OF_MESSAGE) != 0;
+    }
+    
+    /**
+     * @param compressionAlgo the compression algorithm. May be {@code null}.
+     * @return the payload compression algorithm code.
+     */
+    private static int getCompressionCode(final CompressionAlgorithm compressionAlgo) {
+        if (compressionAlgo == null)
+            return COMPRESSION_NONE;
+        switch (compressionAlgo) {
+            case GZIP: return COMPRESSION_GZIP;
+            case LZW: return COMPRESSION_LZW;
+            default:
+                throw new MslInternalException("No binary payload code for compression algorithm " + compressionAlgo + ".");
+        }
+    }
+    
+    /**
+     * @param code the payload compression algorithm code.
+     * @return the compression algorithm or {@code null} for no compression.
+     * @throws MslMessageException if the code is not recognized.
+     */
+    public static CompressionAlgorithm getCompressionAlgorithm(final int code) throws MslMessageException {
+        switch (code) {
+            case COMPRESSION_NONE: return null;
+            case COMPRESSION_GZIP: return CompressionAlgorithm.GZIP;
+            case COMPRESSION_LZW: return CompressionAlgorithm.LZW;
+            default:
+                throw new MslMessageException(MslError.UNIDENTIFIED_COMPRESSION, "compression code " + code);
+        }
+    }
+    
+    /**
+     * <p>Read the next frame body.</p>
+     * 
+     * <p>The frame length is checked against the maximum frame size before
+     * any memory is allocated for the body, since the length is provided by
+     * the remote entity.</p>
+     * 
+     * @param in the source input stream.
+     * @param type the expected frame type.
+     * @param maxFrameSize the maximum frame body size in bytes.
+     * @return the frame body or {@code null} if the end of the stream was
+     *         reached.
+     * @throws MslEncodingException if the frame type is not the expected
+     *         type, the frame is larger than the maximum frame size, the
+     *         frame is truncated, or there is an error reading the frame.
+     */
+    private static byte[] readFrame(final DataInputStream in, final int type, final int maxFrameSize) throws MslEncodingException {
+        try {
+            final int t = in.read();
+            if (t == -1)
+                return null;
+            if (t != type)
+                throw new MslEncodingException(MslError.MESSAGE_FORMAT_ERROR, "frame type " + t);
+            final int length = in.readInt();
+            if (length < 0)
+                throw new MslEncodingException(MslError.MESSAGE_FORMAT_ERROR, "frame length " + length);
+            if (length > maxFrameSize)
+                throw new MslEncodingException(MslError.MESSAGE_FORMAT_ERROR, "frame length " + length + " exceeds maximum " + maxFrameSize);
+            final byte[] body = new byte[length];
+            in.readFully(body);
+            return body;
+        } catch (final EOFException e) {
+            throw new MslEncodingException(MslError.MESSAGE_FORMAT_ERROR, "truncated frame", e);
+        } catch (final IOException e) {
+            throw new MslEncodingException(MslError.MESSAGE_FORMAT_ERROR, "frame", e);
+        }
+    }
+    
+    /**
+     * Read a length-prefixed field from a frame body.
+     * 
+     * @param frame the frame body.
+     * @return the field value.
+     * @throws MslEncodingException if the field is truncated.
+     */
+    private static byte[] readField(final ByteBuffer frame) throws MslEncodingException {
+        if (frame.remaining() < FIELD_PREFIX_SIZE)
+            throw new MslEncodingException(MslError.MESSAGE_FORMAT_ERROR, "truncated field");
+        final int length = frame.getInt();
+        if (length < 0 || length > frame.remaining())
+            throw new MslEncodingException(MslError.MESSAGE_FORMAT_ERROR, "field length " + length);
+        final byte[] field = new byte[length];
+        frame.get(field);
+        return field;
+    }
+    
+    /**
+     * @param field the encoded token.
+     * @return the raw token data and signature.
+     * @throws MslEncodingException if the token is truncated or malformed.
+     */
+    private static Token readToken(final byte[] field) throws MslEncodingException {
+        final ByteBuffer token = ByteBuffer.wrap(field);
+        final byte[] tokendata = readField(token);
+        final byte[] signature = readField(token);
+        if (token.hasRemaining())
+            throw new MslEncodingException(MslError.MESSAGE_FORMAT_ERROR, "token");
+        return new Token(tokendata, signature);
+    }
+    
+    /**
+     * @param field the encoded int64 value.
+     * @return the value.
+     * @throws MslEncodingException if the field is not eight bytes.
+     */
+    private static long readLong(final byte[] field) throws MslEncodingException {
+        if (field.length != 8)
+            throw new MslEncodingException(MslError.MESSAGE_FORMAT_ERROR, "int64 field length " + field.length);
+        return ByteBuffer.wrap(field).getLong();
+    }
+    
+    /**
+     * @param field the UTF-8 JSON field.
+     * @return the JSON object.
+     * @throws MslEncodingException if there is an error parsing the JSON.
+     */
+    private static JSONObject readJson(final byte[] field) throws MslEncodingException {
+        final String json = new String(field, MslConstants.DEFAULT_CHARSET);
+        try {
+            return new JSONObject(json);
+        } catch (final JSONException e) {
+            throw new MslEncodingException(MslError.JSON_PARSE_ERROR, json, e);
+        }
+    }
+}
@@ -133,7 +133,7 @@ public abstract class Header implements JSONString {
                 ? EntityAuthenticationData.create(ctx, headerJO.getJSONObject(KEY_ENTITY_AUTHENTICATION_DATA))
                 : null;
             masterToken = (headerJO.has(KEY_MASTER_TOKEN))
-                ? new MasterToken(ctx, headerJO.getJSONObject(KEY_MASTER_TOKEN))
+                ? MasterToken.parseMasterToken(ctx, headerJO.getJSONObject(KEY_MASTER_TOKEN))
                 : null;
             try {
                 signature = DatatypeConverter.parseBase64Binary(headerJO.getString(KEY_SIGNATURE));
@@ -0,0 +1,237 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.msg;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * <p>A bounded buffer of the data read since the last mark, used to provide
+ * {@link java.io.InputStream#mark(int)} and
+ * {@link java.io.InputStream#reset()} without retaining all data read.</p>
+ * 
+ * <p>Data is only recorded while a mark is valid. The mark is invalidated
+ * once more data has been read than the read limit allows. Recorded data is
+ * held in memory up to the byte budget. If a spill directory is provided,
+ * data beyond the budget is moved to a temporary file instead; otherwise the
+ * read limit is capped at the budget.</p>
+ * 
+ * <p>After a reset the recorded data is replayed before any new data is
+ * read.</p>
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+final class MarkBuffer {
+    /**
+     * Create a new mark buffer.
+     * 
+     * @param budget the maximum number of bytes held in memory.
+     * @param spillDirectory directory in which to create the temporary spill
+     *        file. May be {@code null} to disable spilling.
+     */
+    public MarkBuffer(final int budget, final File spillDirectory) {
+        this.budget = budget;
+        this.spillDirectory = spillDirectory;
+    }
+    
+    /**
+     * Set the mark at the current position. Any recorded data that has not
+     * yet been replayed is kept.
+     * 
+     * @param readlimit the maximum number of bytes that can be read before
+     *        the mark position becomes invalid.
+     */
+    public void mark(final int readlimit) {
+        discardReplayed();
+        limit = (spillDirectory != null) ? readlimit : Math.min(readlimit, budget);
+        marked = (end - start <= limit);
+    }
+    
+    /**
+     * Reset the position to the mark so the recorded data is replayed.
+     * 
+     * @throws IOException if there is no valid mark.
+     */
+    public void reset() throws IOException {
+        if (!marked)
+            throw new IOException("Resetting to invalid mark.");
+        position = start;
+    }
+    
+    /**
+     * @return the number of recorded bytes remaining to be replayed.
+     */
+    public long available() {
+        return end - position;
+    }
+    
+    /**
+     * Replay recorded data.
+     * 
+     * @param b destination buffer.
+     * @param off destination offset.
+     * @param len maximum number of bytes to replay.
+     * @return the number of bytes replayed, zero if there is no data to
+     *         replay.
+     * @throws IOException if there is an error reading the spill file.
+     */
+    public int replay(final byte[] b, final int off, final int len) throws IOException {
+        final int count = (int)Math.min(len, end - position);
+        if (count <= 0)
+            return 0;
+        if (file != null) {
+            file.seek(position);
+            file.readFully(b, off, count);
+        } else {
+            System.arraycopy(memory, (int)position, b, off, count);
+        }
+        position += count;
+        
+        // Recorded data is no longer needed once replayed if the mark is
+        // invalid.
+        if (!marked && position == end)
+            clear();
+        return count;
+    }
+    
+    /**
+     * Record newly read data. All recorded data must have been replayed.
+     * 
+     * @param b source buffer.
+     * @param off source offset.
+     * @param len number of bytes read.
+     * @throws IOException if there is an error writing the spill file.
+     */
+    public void record(final byte[] b, final int off, final int len) throws IOException {
+        if (!marked || len == 0)
+            return;
+        
+        // Invalidate the mark if the read limit is exceeded.
+        final long size = end - start + len;
+        if (size > limit) {
+            marked = false;
+            clear();
+            return;
+        }
+        
+        // Spill to a file if the budget is exceeded.
+        if (file == null && size > budget)
+            spill();
+        
+        if (file != null) {
+            file.seek(end);
+            file.write(b, off, len);
+        } else {
+            if (memory.length < size)
+                memory = Arrays.copyOf(memory, (int)Math.min(budget, Math.max(size, 2L * memory.length)));
+            System.arraycopy(b, off, memory, (int)end, len);
+        }
+        end += len;
+        position = end;
+    }
+    
+    /**
+     * Discard all recorded data and delete the spill file, if any.
+     */
+    public void close() {
+        marked = false;
+        clear();
+    }
+    
+    /**
+     * Discard recorded data that has already been replayed.
+     */
+    private void discardReplayed() {
+        if (position == end) {
+            clear();
+        } else if (file != null) {
+            start = position;
+        } else {
+            final int remaining = (int)(end - position);
+            System.arraycopy(memory, (int)position, memory, 0, remaining);
+            start = 0;
+            position = 0;
+            end = remaining;
+        }
+    }
+    
+    /**
+     * Move recorded data from memory into a new spill file.
+     * 
+     * @throws IOException if the spill file cannot be created or written.
+     */
+    private void spill() throws IOException {
+        spillFile = File.createTempFile("msl", ".mark", spillDirectory);
+        try {
+            file = new RandomAccessFile(spillFile, "rw");
+            file.write(memory, 0, (int)end);
+        } catch (final IOException e) {
+            clear();
+            throw e;
+        }
+        memory = EMPTY;
+    }
+    
+    /**
+     * Discard all recorded data and delete the spill file, if any.
+     */
+    private void clear() {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (final IOException e) {
+                // Ignore exceptions.
+            }
+            file = null;
+        }
+        if (spillFile != null) {
+            spillFile.delete();
+            spillFile = null;
+        }
+        memory = EMPTY;
+        start = 0;
+        position = 0;
+        end = 0;
+    }
+    
+    /** Empty memory buffer. */
+    private static final byte[] EMPTY = new byte[0];
+    
+    /** Maximum number of bytes held in memory. */
+    private final int budget;
+    /** Spill directory. Null if spilling is disabled. */
+    private final File spillDirectory;
+    
+    /** True if the mark is valid. */
+    private boolean marked = false;
+    /** Maximum number of bytes recorded since the mark. */
+    private int limit = 0;
+    
+    /** In-memory recorded data. */
+    private byte[] memory = EMPTY;
+    /** Spill file. Null if not spilled. */
+    private File spillFile = null;
+    /** Spill file contents. Null if not spilled. */
+    private RandomAccessFile file = null;
+    /** Offset of the mark in the recorded data. */
+    private long start = 0;
+    /** Offset of the replay position in the recorded data. */
+    private long position = 0;
+    /** Length of the recorded data. */
+    private long end = 0;
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.msg;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import com.netflix.msl.tokens.MasterToken;
+import com.netflix.msl.util.MslContext;
+
+/**
+ * <p>Deletes master tokens from the MSL store off the request path.</p>
+ * 
+ * <p>A deleted master token is retired immediately, so no new message will
+ * use it. If no in-flight message holds the master token read lock it is
+ * removed from the MSL store right away. Otherwise the deletion is left
+ * pending and is completed by whichever message releases the last read
+ * lock.</p>
+ * 
+ * <p>No thread ever waits for a master token write lock; it is only ever
+ * acquired with {@link Lock#tryLock()}. A message that holds on to a master
+ * token therefore only delays the deletion of that master token, and a
+ * master token is only pending for as long as a message is using it.</p>
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+class MasterTokenDeletionQueue {
+    /**
+     * Create a new master token deletion queue.
+     * 
+     * @param locks the master token lock registry.
+     */
+    public MasterTokenDeletionQueue(final MasterTokenLockRegistry locks) {
+        this.locks = locks;
+    }
+    
+    /**
+     * Returns true if the master token has been retired and is waiting to be
+     * removed from the MSL store.
+     * 
+     * @param ctx MSL context.
+     * @param masterToken master token.
+     * @return true if the master token is retired.
+     */
+    public boolean isRetired(final MslContext ctx, final MasterToken masterToken) {
+        final Set<MasterToken> contextRetired = retired.get(ctx);
+        return contextRetired != null && contextRetired.contains(masterToken);
+    }
+    
+    /**
+     * <p>Retire the master token and remove it from the MSL store once no
+     * in-flight message is using it. The caller must not hold the master
+     * token read lock. If the master token is already retired this method
+     * does nothing.</p>
+     * 
+     * @param ctx MSL context.
+     * @param masterToken master token to delete.
+     * @param lock the master token lock.
+     */
+    public void delete(final MslContext ctx, final MasterToken masterToken, final ReadWriteLock lock) {
+        if (!getContextRetired(ctx).add(masterToken))
+            return;
+        
+        queued.incrementAndGet();
+        final int depth = pending.incrementAndGet();
+        int peak;
+        while (depth > (peak = peakPending.get())) {
+            if (peakPending.compareAndSet(peak, depth))
+                break;
+        }
+        
+        // The master token is retired before we try to complete the deletion,
+        // so if a message is still using it, its release will complete it.
+        complete(ctx, masterToken, lock);
+    }
+    
+    /**
+     * Release a master token read lock held by the calling thread. If the
+     * master token is retired and this was the last read lock, the master
+     * token is removed from the MSL store.
+     * 
+     * @param ctx MSL context.
+     * @param masterToken master token.
+     * @param lock the master token lock.
+     */
+    public void release(final MslContext ctx, final MasterToken masterToken, final ReadWriteLock lock) {
+        lock.readLock().unlock();
+        if (isRetired(ctx, masterToken))
+            complete(ctx, masterToken, lock);
+    }
+    
+    /**
+     * @return a snapshot of the deletion queue statistics.
+     */
+    public MasterTokenDeletionStatistics getStatistics() {
+        return new MasterTokenDeletionStatistics(queued.get(), completed.get(), pending.get(), peakPending.get());
+    }
+    
+    /**
+     * Remove a retired master token from the MSL store if no in-flight
+     * message is using it. Does nothing if the write lock cannot be acquired
+     * immediately or the deletion has already been completed.
+     * 
+     * @param ctx MSL context.
+     * @param masterToken the retired master token.
+     * @param lock the master token lock.
+     */
+    private void complete(final MslContext ctx, final MasterToken masterToken, final ReadWriteLock lock) {
+        final Lock writeLock = lock.writeLock();
+        if (!writeLock.tryLock())
+            return;
+        try {
+            final Set<MasterToken> contextRetired = retired.get(ctx);
+            if (contextRetired == null || !contextRetired.contains(masterToken))
+                return;
+            try {
+                ctx.getMslStore().removeCryptoContext(masterToken);
+            } finally {
+                // It should be okay to delete this read/write lock because no
+                // one should be using the deleted master token anymore; it is
+                // retired so no new messages will acquire it.
+                locks.remove(ctx, masterToken, lock);
+                contextRetired.remove(masterToken);
+                pending.decrementAndGet();
+                completed.incrementAndGet();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the retired master tokens of the MSL context, creating the set
+     * if necessary.
+     * 
+     * @param ctx MSL context.
+     * @return the MSL context retired master tokens.
+     */
+    private Set<MasterToken> getContextRetired(final MslContext ctx) {
+        final Set<MasterToken> contextRetired = retired.get(ctx);
+        if (contextRetired != null)
+            return contextRetired;
+        final Set<MasterToken> newRetired = ConcurrentHashMap.newKeySet();
+        final Set<MasterToken> oldRetired = retired.putIfAbsent(ctx, newRetired);
+        return (oldRetired != null) ? oldRetired : newRetired;
+    }
+    
+    /** Master token lock registry. */
+    private final MasterTokenLockRegistry locks;
+    
+    /** Retired master tokens by MSL context. */
+    private final ConcurrentMap<MslContext,Set<MasterToken>> retired = new ConcurrentHashMap<MslContext,Set<MasterToken>>();
+    /** Master tokens queued. */
+    private final AtomicLong queued = new AtomicLong(0);
+    /** Master tokens removed. */
+    private final AtomicLong completed = new AtomicLong(0);
+    /** Master tokens waiting. */
+    private final AtomicInteger pending = new AtomicInteger(0);
+    /** Peak master tokens waiting. */
+    private final AtomicInteger peakPending = new AtomicInteger(0);
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.msg;
+
+/**
+ * <p>A point-in-time snapshot of the master token deletion queue of a
+ * {@link MslControl}.</p>
+ * 
+ * <p>A deleted master token is retired immediately and queued. It is
+ * removed from the MSL store once every in-flight message using it has
+ * released it. The pending count is the current queue depth.</p>
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+public class MasterTokenDeletionStatistics {
+    /**
+     * Create a new statistics snapshot.
+     * 
+     * @param queued master tokens queued for deletion.
+     * @param completed master tokens removed from the MSL store.
+     * @param pending master tokens waiting to be removed.
+     * @param peakPending largest number of master tokens waiting to be
+     *        removed at once.
+     */
+    public MasterTokenDeletionStatistics(final long queued, final long completed, final int pending, final int peakPending) {
+        this.queued = queued;
+        this.completed = completed;
+        this.pending = pending;
+        this.peakPending = peakPending;
+    }
+    
+    /**
+     * @return the number of master tokens queued for deletion.
+     */
+    public long getQueued() {
+        return queued;
+    }
+    
+    /**
+     * @return the number of master tokens removed from the MSL store.
+     */
+    public long getCompleted() {
+        return completed;
+    }
+    
+    /**
+     * @return the number of master tokens waiting to be removed.
+     */
+    public int getPending() {
+        return pending;
+    }
+    
+    /**
+     * @return the largest number of master tokens waiting to be removed at
+     *         once.
+     */
+    public int getPeakPending() {
+        return peakPending;
+    }
+    
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "queued=" + queued + ", completed=" + completed + ", pending=" + pending + ", peakPending=" + peakPending;
+    }
+    
+    /** Master tokens queued. */
+    private final long queued;
+    /** Master tokens removed. */
+    private final long completed;
+    /** Master tokens waiting. */
+    private final int pending;
+    /** Peak master tokens waiting. */
+    private final int peakPending;
+}
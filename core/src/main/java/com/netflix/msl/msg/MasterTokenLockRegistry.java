@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.msg;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.netflix.msl.tokens.MasterToken;
+import com.netflix.msl.util.MslContext;
+
+/**
+ * <p>Registry of the in-flight master token read/write locks, keyed by MSL
+ * context and master token.</p>
+ * 
+ * <p>Every request acquires and releases a master token read lock, so
+ * looking up an existing lock creates no objects. Locks are nested by MSL
+ * context and then master token, so no composite key is needed. A lock is
+ * created only the first time a master token is used and is reused until
+ * the master token is deleted.</p>
+ * 
+ * <p>Locks are {@link ReentrantReadWriteLock}s, so a read lock must be
+ * released by the thread that acquired it and an unbalanced release fails
+ * with an {@link IllegalMonitorStateException} instead of corrupting the
+ * lock state. A thread must release its read lock before acquiring the
+ * write lock.</p>
+ * 
+ * <p>MSL contexts are expected to be long-lived. An empty entry remains for
+ * each MSL context that has been used.</p>
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+class MasterTokenLockRegistry {
+    /**
+     * Returns the lock of the master token, if one exists.
+     * 
+     * @param ctx MSL context.
+     * @param masterToken master token.
+     * @return the master token lock or {@code null} if there is none.
+     */
+    public ReentrantReadWriteLock get(final MslContext ctx, final MasterToken masterToken) {
+        final ConcurrentMap<MasterToken,ReentrantReadWriteLock> contextLocks = locks.get(ctx);
+        if (contextLocks == null)
+            return null;
+        return contextLocks.get(masterToken);
+    }
+    
+    /**
+     * Returns the lock of the master token, creating it if necessary.
+     * 
+     * @param ctx MSL context.
+     * @param masterToken master token.
+     * @return the master token lock.
+     */
+    public ReentrantReadWriteLock getOrCreate(final MslContext ctx, final MasterToken masterToken) {
+        final ConcurrentMap<MasterToken,ReentrantReadWriteLock> contextLocks = getContextLocks(ctx);
+        final ReentrantReadWriteLock lock = contextLocks.get(masterToken);
+        if (lock != null)
+            return lock;
+        final ReentrantReadWriteLock newLock = new ReentrantReadWriteLock();
+        final ReentrantReadWriteLock oldLock = contextLocks.putIfAbsent(masterToken, newLock);
+        return (oldLock != null) ? oldLock : newLock;
+    }
+    
+    /**
+     * Remove the lock of the master token if it is the provided lock.
+     * 
+     * @param ctx MSL context.
+     * @param masterToken master token.
+     * @param lock the master token lock.
+     */
+    public void remove(final MslContext ctx, final MasterToken masterToken, final ReadWriteLock lock) {
+        final ConcurrentMap<MasterToken,ReentrantReadWriteLock> contextLocks = locks.get(ctx);
+        if (contextLocks != null)
+            contextLocks.remove(masterToken, lock);
+    }
+    
+    /**
+     * @return the number of master token locks.
+     */
+    public int size() {
+        int size = 0;
+        for (final ConcurrentMap<MasterToken,ReentrantReadWriteLock> contextLocks : locks.values())
+            size += contextLocks.size();
+        return size;
+    }
+    
+    /**
+     * Returns the master token locks of the MSL context, creating the map if
+     * necessary.
+     * 
+     * @param ctx MSL context.
+     * @return the MSL context master token locks.
+     */
+    private ConcurrentMap<MasterToken,ReentrantReadWriteLock> getContextLocks(final MslContext ctx) {
+        final ConcurrentMap<MasterToken,ReentrantReadWriteLock> contextLocks = locks.get(ctx);
+        if (contextLocks != null)
+            return contextLocks;
+        final ConcurrentMap<MasterToken,ReentrantReadWriteLock> newLocks = new ConcurrentHashMap<MasterToken,ReentrantReadWriteLock>();
+        final ConcurrentMap<MasterToken,ReentrantReadWriteLock> oldLocks = locks.putIfAbsent(ctx, newLocks);
+        return (oldLocks != null) ? oldLocks : newLocks;
+    }
+    
+    /** Master token locks by MSL context and master token. */
+    private final ConcurrentMap<MslContext,ConcurrentMap<MasterToken,ReentrantReadWriteLock>> locks = new ConcurrentHashMap<MslContext,ConcurrentMap<MasterToken,ReentrantReadWriteLock>>();
+}
@@ -26,6 +26,7 @@ import java.util.Random;
 import java.util.Set;
 
 import com.netflix.msl.MslConstants;
+import com.netflix.msl.MslConstants.EncoderFormat;
 import com.netflix.msl.MslConstants.ResponseCode;
 import com.netflix.msl.MslCryptoException;
 import com.netflix.msl.MslEncodingException;
@@ -188,10 +189,33 @@ public class MessageBuilder {
      *         corresponding master token.
      */
     public static MessageBuilder createRequest(final MslContext ctx, final MasterToken masterToken, final UserIdToken userIdToken, final String recipient, final long messageId) throws MslException {
+        return createRequest(ctx, masterToken, userIdToken, recipient, messageId, EncoderFormat.JSON);
+    }
+    
+    /**
+     * <p>Create a new message builder that will craft a new message with the
+     * specified message ID and encoder format.</p>
+     * 
+     * <p>The encoder format should be the format previously negotiated with
+     * the recipient. JSON will be used if the format is not supported by the
+     * local entity.</p>
+     * 
+     * @param ctx MSL context.
+     * @param masterToken master token. May be null unless a user ID token is
+     *        provided.
+     * @param userIdToken user ID token. May be null.
+     * @param recipient message recipient. May be null.
+     * @param messageId the message ID to use. Must be within range.
+     * @param encoderFormat the message encoder format.
+     * @return the message builder.
+     * @throws MslException if a user ID token is not bound to its
+     *         corresponding master token.
+     */
+    public static MessageBuilder createRequest(final MslContext ctx, final MasterToken masterToken, final UserIdToken userIdToken, final String recipient, final long messageId, final EncoderFormat encoderFormat) throws MslException {
         if (messageId < 0 || messageId > MslConstants.MAX_LONG_VALUE)
             throw new MslInternalException("Message ID " + messageId + " is outside the valid range.");
         final MessageCapabilities capabilities = ctx.getMessageCapabilities();
-        return new MessageBuilder(ctx, recipient, messageId, capabilities, masterToken, userIdToken, null, null, null, null, null);
+        return new MessageBuilder(ctx, recipient, messageId, capabilities, getRequestFormat(capabilities, encoderFormat), masterToken, userIdToken, null, null, null, null, null);
     }
     
     /**
@@ -207,13 +231,47 @@ public class MessageBuilder {
      *         corresponding master token.
      */
     public static MessageBuilder createRequest(final MslContext ctx, final MasterToken masterToken, final UserIdToken userIdToken, final String recipient) throws MslException {
+        return createRequest(ctx, masterToken, userIdToken, recipient, EncoderFormat.JSON);
+    }
+    
+    /**
+     * <p>Create a new message builder that will craft a new message with the
+     * specified encoder format.</p>
+     * 
+     * <p>The encoder format should be the format previously negotiated with
+     * the recipient. JSON will be used if the format is not supported by the
+     * local entity.</p>
+     * 
+     * @param ctx MSL context.
+     * @param masterToken master token. May be null unless a user ID token is
+     *        provided.
+     * @param userIdToken user ID token. May be null.
+     * @param recipient message recipient. May be null.
+     * @param encoderFormat the message encoder format.
+     * @return the message builder.
+     * @throws MslException if a user ID token is not bound to its
+     *         corresponding master token.
+     */
+    public static MessageBuilder createRequest(final MslContext ctx, final MasterToken masterToken, final UserIdToken userIdToken, final String recipient, final EncoderFormat encoderFormat) throws MslException {
         long messageId = -1;
         final Random random = ctx.getRandom();
         do {
             messageId = random.nextLong();
         } while (messageId < 0 || messageId > MslConstants.MAX_LONG_VALUE);
         final MessageCapabilities capabilities = ctx.getMessageCapabilities();
-        return new MessageBuilder(ctx, recipient, messageId, capabilities, masterToken, userIdToken, null, null, null, null, null);
+        return new MessageBuilder(ctx, recipient, messageId, capabilities, getRequestFormat(capabilities, encoderFormat), masterToken, userIdToken, null, null, null, null, null);
+    }
+    
+    /**
+     * @param capabilities the local message capabilities. May be null.
+     * @param encoderFormat the requested encoder format.
+     * @return the requested encoder format if it is supported by the local
+     *         entity, otherwise JSON.
+     */
+    private static EncoderFormat getRequestFormat(final MessageCapabilities capabilities, final EncoderFormat encoderFormat) {
+        if (encoderFormat == null || capabilities == null || !capabilities.getEncoderFormats().contains(encoderFormat))
+            return EncoderFormat.JSON;
+        return encoderFormat;
     }
     
     /**
@@ -333,6 +391,12 @@ public class MessageBuilder {
             // capabilities.
             final MessageCapabilities capabilities = MessageCapabilities.intersection(requestHeader.getMessageCapabilities(), ctx.getMessageCapabilities());
             
+            // The requesting entity has told us which encoder formats it
+            // supports so use the most preferred format we both support.
+            final EncoderFormat encoderFormat = (capabilities != null)
+                ? EncoderFormat.getPreferredFormat(capabilities.getEncoderFormats())
+                : EncoderFormat.JSON;
+            
             // Create the message builder.
             //
             // Peer-to-peer responses swap the tokens.
@@ -342,10 +406,10 @@ public class MessageBuilder {
                 final MasterToken peerMasterToken = (keyResponseData != null) ? keyResponseData.getMasterToken() : requestHeader.getPeerMasterToken();
                 final UserIdToken peerUserIdToken = requestHeader.getPeerUserIdToken();
                 final Set<ServiceToken> peerServiceTokens = requestHeader.getPeerServiceTokens();
-                return new MessageBuilder(ctx, recipient, messageId, capabilities, peerMasterToken, peerUserIdToken, peerServiceTokens, masterToken, userIdToken, serviceTokens, keyExchangeData);
+                return new MessageBuilder(ctx, recipient, messageId, capabilities, encoderFormat, peerMasterToken, peerUserIdToken, peerServiceTokens, masterToken, userIdToken, serviceTokens, keyExchangeData);
             } else {
                 final MasterToken localMasterToken = (keyResponseData != null) ? keyResponseData.getMasterToken() : masterToken;
-                return new MessageBuilder(ctx, recipient, messageId, capabilities, localMasterToken, userIdToken, serviceTokens, null, null, null, keyExchangeData);
+                return new MessageBuilder(ctx, recipient, messageId, capabilities, encoderFormat, localMasterToken, userIdToken, serviceTokens, null, null, null, keyExchangeData);
             }
         } catch (final MslException e) {
             e.setEntity(masterToken);
@@ -406,6 +470,7 @@ public class MessageBuilder {
      * @param recipient message recipient. May be null.
      * @param messageId message ID.
      * @param capabilities message capabilities.
+     * @param encoderFormat message encoder format.
      * @param masterToken master token. May be null unless a user ID token is
      *        provided.
      * @param userIdToken user ID token. May be null.
@@ -419,7 +484,7 @@ public class MessageBuilder {
      * @throws MslException if a user ID token is not bound to its master
      *         token.
      */
-    private MessageBuilder(final MslContext ctx, final String recipient, final long messageId, final MessageCapabilities capabilities, final MasterToken masterToken, final UserIdToken userIdToken, final Set<ServiceToken> serviceTokens, final MasterToken peerMasterToken, final UserIdToken peerUserIdToken, final Set<ServiceToken> peerServiceTokens, final KeyExchangeData keyExchangeData) throws MslException {
+    private MessageBuilder(final MslContext ctx, final String recipient, final long messageId, final MessageCapabilities capabilities, final EncoderFormat encoderFormat, final MasterToken masterToken, final UserIdToken userIdToken, final Set<ServiceToken> serviceTokens, final MasterToken peerMasterToken, final UserIdToken peerUserIdToken, final Set<ServiceToken> peerServiceTokens, final KeyExchangeData keyExchangeData) throws MslException {
         // Primary and peer token combinations will be verified when the
         // message header is constructed. So delay those checks in favor of
         // avoiding duplicate code.
@@ -431,6 +496,7 @@ public class MessageBuilder {
         this.recipient = recipient;
         this.messageId = messageId;
         this.capabilities = capabilities;
+        this.encoderFormat = encoderFormat;
         this.masterToken = masterToken;
         this.userIdToken = userIdToken;
         this.keyExchangeData = keyExchangeData;
@@ -509,6 +575,18 @@ public class MessageBuilder {
         return keyExchangeData;
     }
     
+    /**
+     * <p>Returns the encoder format that should be used to send the message.
+     * Requests use the encoder format previously negotiated with the remote
+     * entity, or JSON if none is known. Responses use the most preferred
+     * encoder format supported by both entities.</p>
+     * 
+     * @return the message encoder format.
+     */
+    public EncoderFormat getEncoderFormat() {
+        return encoderFormat;
+    }
+    
     /**
      * @return true if the message builder will create a message capable of
      *         encrypting the header data.
@@ -551,6 +629,7 @@ public class MessageBuilder {
     
     /**
      * Construct the message header from the current message builder state.
+     * The header data is encoded in the message encoder format.
      * 
      * @return the message header.
      * @throws MslEncodingException if there is an error encoding the JSON
@@ -580,7 +659,7 @@ public class MessageBuilder {
         final Set<ServiceToken> peerTokens = new HashSet<ServiceToken>(peerServiceTokens.values());
         final HeaderPeerData peerData = new HeaderPeerData(peerMasterToken, peerUserIdToken, peerTokens);
         
-        return new MessageHeader(ctx, ctx.getEntityAuthenticationData(null), masterToken, headerData, peerData);
+        return new MessageHeader(ctx, ctx.getEntityAuthenticationData(null), masterToken, headerData, peerData, encoderFormat);
     }
     
     /**
@@ -1089,6 +1168,8 @@ public class MessageBuilder {
     private boolean handshake = false;
     /** Message capabilities. */
     private final MessageCapabilities capabilities;
+    /** Message encoder format. */
+    private final EncoderFormat encoderFormat;
     /** Header data key request data. */
     private final Set<KeyRequestData> keyRequestData = new HashSet<KeyRequestData>();
     /** Header data user authentication data. */
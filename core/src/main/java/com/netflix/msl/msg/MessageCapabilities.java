@@ -27,6 +27,7 @@ import org.json.JSONObject;
 import org.json.JSONString;
 
 import com.netflix.msl.MslConstants.CompressionAlgorithm;
+import com.netflix.msl.MslConstants.EncoderFormat;
 import com.netflix.msl.MslEncodingException;
 import com.netflix.msl.MslError;
 import com.netflix.msl.MslInternalException;
@@ -41,12 +42,16 @@ import com.netflix.msl.util.JsonUtils;
  * capabilities = {
  *   "compressionalgos" : [ enum(GZIP|LZW) ],
  *   "languages" : [ "string" ],
+ *   "encoderformats" : [ enum(BINARY|JSON) ],
  * }} where:
  * <ul>
  * <li>{@code compressionalgos} is the set of supported compression algorithms</li>
  * <li>{@code languages} is the preferred list of BCP-47 languages in descending order</li>
+ * <li>{@code encoderformats} is the set of supported message encoder formats</li>
  * </ul></p>
  * 
+ * <p>JSON is always supported and need not be listed.</p>
+ * 
  * @author Wesley Miaw <wmiaw@netflix.com>
  */
 public class MessageCapabilities implements JSONString {
@@ -54,6 +59,8 @@ public class MessageCapabilities implements JSONString {
     private static final String KEY_COMPRESSION_ALGOS = "compressionalgos";
     /** JSON key languages. */
     private static final String KEY_LANGUAGES = "languages";
+    /** JSON key encoder formats. */
+    private static final String KEY_ENCODER_FORMATS = "encoderformats";
     
     /**
      * Computes and returns the intersection of two message capabilities.
@@ -76,7 +83,12 @@ public class MessageCapabilities implements JSONString {
         final List<String> languages = new ArrayList<String>(mc1.languages);
         languages.retainAll(mc2.languages);
         
-        return new MessageCapabilities(compressionAlgos, languages);
+        // Compute the intersection of encoder formats.
+        final Set<EncoderFormat> encoderFormats = EnumSet.noneOf(EncoderFormat.class);
+        encoderFormats.addAll(mc1.encoderFormats);
+        encoderFormats.retainAll(mc2.encoderFormats);
+        
+        return new MessageCapabilities(compressionAlgos, languages, encoderFormats);
     }
     
     /**
@@ -89,8 +101,24 @@ public class MessageCapabilities implements JSONString {
      *        order. May be {@code null}.
      */
     public MessageCapabilities(final Set<CompressionAlgorithm> compressionAlgos, final List<String> languages) {
+        this(compressionAlgos, languages, null);
+    }
+    
+    /**
+     * Create a new message capabilities object with the specified supported
+     * features.
+     * 
+     * @param compressionAlgos supported payload compression algorithms. May be
+     *        {@code null}.
+     * @param languages preferred languages as BCP-47 codes in descending
+     *        order. May be {@code null}.
+     * @param encoderFormats supported message encoder formats. May be
+     *        {@code null}.
+     */
+    public MessageCapabilities(final Set<CompressionAlgorithm> compressionAlgos, final List<String> languages, final Set<EncoderFormat> encoderFormats) {
         this.compressionAlgos = Collections.unmodifiableSet(compressionAlgos != null ? compressionAlgos : EnumSet.noneOf(CompressionAlgorithm.class));
         this.languages = Collections.unmodifiableList(languages != null ? languages : new ArrayList<String>());
+        this.encoderFormats = Collections.unmodifiableSet(encoderFormats != null ? encoderFormats : EnumSet.noneOf(EncoderFormat.class));
     }
     
     /**
@@ -120,6 +148,18 @@ public class MessageCapabilities implements JSONString {
             for (int i = 0; langs != null && i < langs.length(); ++i)
                 languages.add(langs.getString(i));
             this.languages = Collections.unmodifiableList(languages);
+            
+            // Extract encoder formats.
+            final Set<EncoderFormat> encoderFormats = EnumSet.noneOf(EncoderFormat.class);
+            final JSONArray formats = capabilitiesJO.optJSONArray(KEY_ENCODER_FORMATS);
+            for (int i = 0; formats != null && i < formats.length(); ++i) {
+                final String format = formats.getString(i);
+                // Ignore unsupported formats.
+                try {
+                    encoderFormats.add(EncoderFormat.valueOf(format));
+                } catch (final IllegalArgumentException e) {}
+            }
+            this.encoderFormats = Collections.unmodifiableSet(encoderFormats);
         } catch (final JSONException e) {
             throw new MslEncodingException(MslError.JSON_PARSE_ERROR, "capabilities " + capabilitiesJO.toString(), e);
         }
@@ -138,6 +178,13 @@ public class MessageCapabilities implements JSONString {
     public List<String> getLanguages() {
         return this.languages;
     }
+    
+    /**
+     * @return the supported message encoder formats.
+     */
+    public Set<EncoderFormat> getEncoderFormats() {
+        return this.encoderFormats;
+    }
 
     /* (non-Javadoc)
      * @see org.json.JSONString#toJSONString()
@@ -148,6 +195,8 @@ public class MessageCapabilities implements JSONString {
             final JSONObject jo = new JSONObject();
             jo.put(KEY_COMPRESSION_ALGOS, JsonUtils.createArray(compressionAlgos));
             jo.put(KEY_LANGUAGES, languages);
+            if (!encoderFormats.isEmpty())
+                jo.put(KEY_ENCODER_FORMATS, JsonUtils.createArray(encoderFormats));
             return jo.toString();
         } catch (final JSONException e) {
             throw new MslInternalException("Error encoding " + this.getClass().getName() + " JSON.", e);
@@ -171,7 +220,8 @@ public class MessageCapabilities implements JSONString {
         if (!(obj instanceof MessageCapabilities)) return false;
         final MessageCapabilities that = (MessageCapabilities)obj;
         return this.compressionAlgos.equals(that.compressionAlgos) &&
-            this.languages.equals(that.languages);
+            this.languages.equals(that.languages) &&
+            this.encoderFormats.equals(that.encoderFormats);
     }
 
     /* (non-Javadoc)
@@ -179,11 +229,13 @@ public class MessageCapabilities implements JSONString {
      */
     @Override
     public int hashCode() {
-        return this.compressionAlgos.hashCode() ^ this.languages.hashCode();
+        return this.compressionAlgos.hashCode() ^ this.languages.hashCode() ^ this.encoderFormats.hashCode();
     }
 
     /** Supported payload compression algorithms. */
     private final Set<CompressionAlgorithm> compressionAlgos;
     /** Preferred languages as BCP-47 codes in descending order. */
     private final List<String> languages;
+    /** Supported message encoder formats. */
+    private final Set<EncoderFormat> encoderFormats;
 }
@@ -28,6 +28,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.netflix.msl.MslConstants;
+import com.netflix.msl.MslConstants.EncoderFormat;
 import com.netflix.msl.MslCryptoException;
 import com.netflix.msl.MslEncodingException;
 import com.netflix.msl.MslEntityAuthException;
@@ -111,6 +112,10 @@ import com.netflix.msl.util.MslContext;
  * <li>{@code peerservicetokens} are the peer service tokens</li>
  * </ul></p>
  * 
+ * <p>The header data of a message header created for the binary encoder
+ * format is instead binary encoded with the same values and raw tokens, as
+ * described by {@link BinaryEncoding}.</p>
+ * 
  * @author Wesley Miaw <wmiaw@netflix.com>
  */
 public class MessageHeader extends Header {
@@ -263,6 +268,41 @@ public class MessageHeader extends Header {
      *         token is provided.
      */
     public MessageHeader(final MslContext ctx, final EntityAuthenticationData entityAuthData, final MasterToken masterToken, final HeaderData headerData, final HeaderPeerData peerData) throws MslEncodingException, MslCryptoException, MslMasterTokenException, MslEntityAuthException, MslMessageException {
+        this(ctx, entityAuthData, masterToken, headerData, peerData, EncoderFormat.JSON);
+    }
+    
+    /**
+     * <p>Construct a new message header with the provided message data and
+     * header data encoded in the specified encoder format.</p>
+     * 
+     * <p>Headers are encrypted and signed. If a master token is provided, it
+     * will be used for this purpose. Otherwise the crypto context appropriate
+     * for the entity authentication scheme will be used. N.B. Either the
+     * entity authentication data or the master token must be provided.</p>
+     * 
+     * <p>Peer tokens are only processed if operating in peer-to-peer mode.</p>
+     * 
+     * @param ctx MSL context.
+     * @param entityAuthData the entity authentication data. May be null if a
+     *        master token is provided.
+     * @param masterToken the master token. May be null if entity
+     *        authentication data is provided.
+     * @param headerData message header data container.
+     * @param peerData message header peer data container.
+     * @param encoderFormat the header data encoder format. Binary header data
+     *        must only be sent to entities that support it.
+     * @throws MslEncodingException if there is an error encoding the JSON
+     *         data.
+     * @throws MslCryptoException if there is an error encrypting or signing
+     *         the message.
+     * @throws MslMasterTokenException if the header master token is not
+     *         trusted and needs to be to accept this message header.
+     * @throws MslEntityAuthException if there is an error with the entity
+     *         authentication data.
+     * @throws MslMessageException if no entity authentication data or master
+     *         token is provided.
+     */
+    public MessageHeader(final MslContext ctx, final EntityAuthenticationData entityAuthData, final MasterToken masterToken, final HeaderData headerData, final HeaderPeerData peerData, final EncoderFormat encoderFormat) throws MslEncodingException, MslCryptoException, MslMasterTokenException, MslEntityAuthException, MslMessageException {
         this.entityAuthData = (masterToken == null) ? entityAuthData : null;
         this.masterToken = masterToken;
         this.nonReplayableId = headerData.nonReplayableId;
@@ -341,33 +381,40 @@ public class MessageHeader extends Header {
                 throw new MslInternalException("User ID token bound peer service tokens must be bound to the provided peer user ID token.");
         }
         
-        // Construct the JSON.
-        final JSONObject headerJO = new JSONObject();
-        try {
-            if (this.sender != null) headerJO.put(KEY_SENDER, this.sender);
-            if (this.recipient != null) headerJO.put(KEY_RECIPIENT, this.recipient);
-            headerJO.put(KEY_TIMESTAMP, this.timestamp);
-            headerJO.put(KEY_MESSAGE_ID, this.messageId);
-            headerJO.put(KEY_NON_REPLAYABLE, this.nonReplayableId != null);
-            if (this.nonReplayableId != null) headerJO.put(KEY_NON_REPLAYABLE_ID, this.nonReplayableId);
-            headerJO.put(KEY_RENEWABLE, this.renewable);
-            headerJO.put(KEY_HANDSHAKE, this.handshake);
-            headerJO.put(KEY_CAPABILITIES, this.capabilities);
-            if (this.keyRequestData.size() > 0) headerJO.put(KEY_KEY_REQUEST_DATA, JsonUtils.createArray(this.keyRequestData));
-            if (this.keyResponseData != null) headerJO.put(KEY_KEY_RESPONSE_DATA, this.keyResponseData);
-            if (this.userAuthData != null) headerJO.put(KEY_USER_AUTHENTICATION_DATA, this.userAuthData);
-            if (this.userIdToken != null) headerJO.put(KEY_USER_ID_TOKEN, this.userIdToken);
-            if (this.serviceTokens.size() > 0) headerJO.put(KEY_SERVICE_TOKENS, JsonUtils.createArray(this.serviceTokens));
-            if (this.peerMasterToken != null) headerJO.put(KEY_PEER_MASTER_TOKEN, this.peerMasterToken);
-            if (this.peerUserIdToken != null) headerJO.put(KEY_PEER_USER_ID_TOKEN, this.peerUserIdToken);
-            if (this.peerServiceTokens.size() > 0) headerJO.put(KEY_PEER_SERVICE_TOKENS, JsonUtils.createArray(this.peerServiceTokens));
-        } catch (final JSONException e) {
-            throw new MslEncodingException(MslError.JSON_ENCODE_ERROR, "headerdata", e)
-                .setEntity(this.masterToken)
-                .setEntity(this.entityAuthData)
-                .setUser(this.peerUserIdToken)
-                .setUser(this.userAuthData)
-                .setMessageId(this.messageId);
+        // Encode the header data.
+        final byte[] plaintext;
+        if (encoderFormat == EncoderFormat.BINARY) {
+            plaintext = BinaryEncoding.encodeHeaderdata(this);
+        } else {
+            // Construct the JSON.
+            final JSONObject headerJO = new JSONObject();
+            try {
+                if (this.sender != null) headerJO.put(KEY_SENDER, this.sender);
+                if (this.recipient != null) headerJO.put(KEY_RECIPIENT, this.recipient);
+                headerJO.put(KEY_TIMESTAMP, this.timestamp);
+                headerJO.put(KEY_MESSAGE_ID, this.messageId);
+                headerJO.put(KEY_NON_REPLAYABLE, this.nonReplayableId != null);
+                if (this.nonReplayableId != null) headerJO.put(KEY_NON_REPLAYABLE_ID, this.nonReplayableId);
+                headerJO.put(KEY_RENEWABLE, this.renewable);
+                headerJO.put(KEY_HANDSHAKE, this.handshake);
+                headerJO.put(KEY_CAPABILITIES, this.capabilities);
+                if (this.keyRequestData.size() > 0) headerJO.put(KEY_KEY_REQUEST_DATA, JsonUtils.createArray(this.keyRequestData));
+                if (this.keyResponseData != null) headerJO.put(KEY_KEY_RESPONSE_DATA, this.keyResponseData);
+                if (this.userAuthData != null) headerJO.put(KEY_USER_AUTHENTICATION_DATA, this.userAuthData);
+                if (this.userIdToken != null) headerJO.put(KEY_USER_ID_TOKEN, this.userIdToken);
+                if (this.serviceTokens.size() > 0) headerJO.put(KEY_SERVICE_TOKENS, JsonUtils.createArray(this.serviceTokens));
+                if (this.peerMasterToken != null) headerJO.put(KEY_PEER_MASTER_TOKEN, this.peerMasterToken);
+                if (this.peerUserIdToken != null) headerJO.put(KEY_PEER_USER_ID_TOKEN, this.peerUserIdToken);
+                if (this.peerServiceTokens.size() > 0) headerJO.put(KEY_PEER_SERVICE_TOKENS, JsonUtils.createArray(this.peerServiceTokens));
+            } catch (final JSONException e) {
+                throw new MslEncodingException(MslError.JSON_ENCODE_ERROR, "headerdata", e)
+                    .setEntity(this.masterToken)
+                    .setEntity(this.entityAuthData)
+                    .setUser(this.peerUserIdToken)
+                    .setUser(this.userAuthData)
+                    .setMessageId(this.messageId);
+            }
+            plaintext = headerJO.toString().getBytes(MslConstants.DEFAULT_CHARSET);
         }
 
         // Create the correct crypto context.
@@ -409,7 +456,7 @@ public class MessageHeader extends Header {
         
         // Encrypt and sign the header data.
         try {
-            this.plaintext = headerJO.toString().getBytes(MslConstants.DEFAULT_CHARSET);
+            this.plaintext = plaintext;
             this.headerdata = this.messageCryptoContext.encrypt(plaintext);
             this.signature = this.messageCryptoContext.sign(this.headerdata);
             this.verified = true;
@@ -468,6 +515,76 @@ public class MessageHeader extends Header {
      * @throws MslException if a token is improperly bound to another token.
      */
     protected MessageHeader(final MslContext ctx, final String headerdata, final EntityAuthenticationData entityAuthData, final MasterToken masterToken, final byte[] signature, final Map<String,ICryptoContext> cryptoContexts) throws MslEncodingException, MslCryptoException, MslKeyExchangeException, MslUserAuthException, MslMasterTokenException, MslMessageException, MslEntityAuthException, MslException {
+        this(ctx, parseHeaderdata(headerdata, entityAuthData, masterToken), entityAuthData, masterToken, signature, cryptoContexts);
+    }
+    
+    /**
+     * Return the Base64-decoded header data.
+     * 
+     * @param headerdata Base64-encoded header data.
+     * @param entityAuthData the entity authentication data. May be null.
+     * @param masterToken the master token. May be null.
+     * @return the decoded header data.
+     * @throws MslMessageException if the header data is not valid Base64 or
+     *         is empty.
+     */
+    private static byte[] parseHeaderdata(final String headerdata, final EntityAuthenticationData entityAuthData, final MasterToken masterToken) throws MslMessageException {
+        final byte[] decoded;
+        try {
+            decoded = DatatypeConverter.parseBase64Binary(headerdata);
+        } catch (final IllegalArgumentException e) {
+            throw new MslMessageException(MslError.HEADER_DATA_INVALID, headerdata, e).setEntity(masterToken).setEntity(entityAuthData);
+        }
+        if (decoded == null || decoded.length == 0)
+            throw new MslMessageException(MslError.HEADER_DATA_MISSING, headerdata).setEntity(masterToken).setEntity(entityAuthData);
+        return decoded;
+    }
+    
+    /**
+     * <p>Construct a new message from the provided JSON object.</p>
+     * 
+     * <p>Headers are encrypted and signed. If a master token is found, it will
+     * be used for this purpose. Otherwise the crypto context appropriate for
+     * the entity authentication scheme will be used. Either the master token
+     * or entity authentication data must be found.</p>
+     * 
+     * <p>If user authentication data is included user authentication will be
+     * performed. If a user ID token is included then its user information is
+     * considered to be trusted.</p>
+     * 
+     * <p>Service tokens will be decrypted and verified with the provided crypto
+     * contexts identified by token name. A default crypto context may be
+     * provided by using the empty string as the token name; if a token name is
+     * not explicitly mapped onto a crypto context, the default crypto context
+     * will be used.</p>
+     * 
+     * @param ctx MSL context.
+     * @param headerdata encrypted header data.
+     * @param entityAuthData the entity authentication data. May be null if a
+     *        master token is provided.
+     * @param masterToken the master token. May be null if entity
+     *        authentication data is provided.
+     * @param signature the header signature.
+     * @param cryptoContexts the map of service token names onto crypto
+     *        contexts used to decrypt and verify service tokens.
+     * @throws MslEncodingException if there is an error parsing the JSON.
+     * @throws MslCryptoException if there is an error decrypting or verifying
+     *         the header or creating the key exchange crypto context.
+     * @throws MslEntityAuthException if unable to create the entity
+     *         authentication data or there is an error with the entity
+     *         authentication data.
+     * @throws MslKeyExchangeException if unable to create the key request data
+     *         or key response data.
+     * @throws MslUserAuthException if unable to create the user authentication
+     *         data or authenticate the user.
+     * @throws MslMasterTokenException if the header master token is not
+     *         trusted and needs to be to accept this message header.
+     * @throws MslMessageException if the message does not contain an entity
+     *         authentication data or a master token, the header data is
+     *         missing or invalid, or the message ID is negative.
+     * @throws MslException if a token is improperly bound to another token.
+     */
+    protected MessageHeader(final MslContext ctx, final byte[] headerdata, final EntityAuthenticationData entityAuthData, final MasterToken masterToken, final byte[] signature, final Map<String,ICryptoContext> cryptoContexts) throws MslEncodingException, MslCryptoException, MslKeyExchangeException, MslUserAuthException, MslMasterTokenException, MslMessageException, MslEntityAuthException, MslException {
         try {
             this.entityAuthData = (masterToken == null) ? entityAuthData : null;
             this.masterToken = masterToken;
@@ -507,13 +624,9 @@ public class MessageHeader extends Header {
             }
             
             // Verify and decrypt the header data.
-            try {
-                this.headerdata = DatatypeConverter.parseBase64Binary(headerdata);
-            } catch (final IllegalArgumentException e) {
-                throw new MslMessageException(MslError.HEADER_DATA_INVALID, headerdata, e).setEntity(masterToken).setEntity(entityAuthData);
-            }
-            if (this.headerdata == null || this.headerdata.length == 0)
-                throw new MslMessageException(MslError.HEADER_DATA_MISSING, headerdata).setEntity(masterToken).setEntity(entityAuthData);
+            if (headerdata == null || headerdata.length == 0)
+                throw new MslMessageException(MslError.HEADER_DATA_MISSING).setEntity(masterToken).setEntity(entityAuthData);
+            this.headerdata = headerdata;
             this.verified = this.messageCryptoContext.verify(this.headerdata, this.signature);
             this.plaintext = (this.verified) ? this.messageCryptoContext.decrypt(this.headerdata) : null;
         } catch (final MslCryptoException e) {
@@ -548,6 +661,158 @@ public class MessageHeader extends Header {
             return;
         }
         
+        // Binary encoded header data carries the same values as JSON header
+        // data but with raw tokens.
+        if (BinaryEncoding.isBinaryHeaderdata(this.plaintext)) {
+            final BinaryEncoding.Headerdata binaryHeaderdata;
+            try {
+                binaryHeaderdata = BinaryEncoding.readHeaderdata(this.plaintext);
+            } catch (final MslEncodingException e) {
+                e.setEntity(masterToken);
+                e.setEntity(entityAuthData);
+                throw e;
+            }
+            
+            // Pull the message ID first because any error responses need to
+            // use it.
+            this.messageId = binaryHeaderdata.messageId;
+            if (this.messageId < 0 || this.messageId > MslConstants.MAX_LONG_VALUE)
+                throw new MslMessageException(MslError.MESSAGE_ID_OUT_OF_RANGE, "headerdata messageid " + this.messageId).setEntity(masterToken).setEntity(entityAuthData);
+            
+            try {
+                // If the message was sent with a master token pull the sender.
+                if (this.masterToken != null && binaryHeaderdata.sender == null)
+                    throw new MslEncodingException(MslError.MESSAGE_FORMAT_ERROR, "headerdata sender missing");
+                this.sender = (this.masterToken != null) ? binaryHeaderdata.sender : null;
+                this.recipient = binaryHeaderdata.recipient;
+                this.timestamp = binaryHeaderdata.timestamp;
+                
+                // Pull key response data.
+                final MasterToken tokenVerificationMasterToken;
+                if (binaryHeaderdata.keyResponseMasterToken != null) {
+                    final BinaryEncoding.Token token = binaryHeaderdata.keyResponseMasterToken;
+                    final MasterToken keyResponseMasterToken = MasterToken.parseMasterToken(ctx, token.tokendata, token.signature);
+                    this.keyResponseData = KeyResponseData.create(ctx, keyResponseMasterToken, binaryHeaderdata.keyResponseScheme, binaryHeaderdata.keyResponseKeydata);
+                    
+                    // The key response data master token is used for token
+                    // verification in a trusted services network. Otherwise
+                    // it will be used for peer token verification, which is
+                    // handled below.
+                    tokenVerificationMasterToken = (!ctx.isPeerToPeer())
+                        ? this.keyResponseData.getMasterToken()
+                        : masterToken;
+                } else {
+                    this.keyResponseData = null;
+                    tokenVerificationMasterToken = masterToken;
+                }
+                
+                // User ID tokens are always authenticated by a master token.
+                final BinaryEncoding.Token userIdToken = binaryHeaderdata.userIdToken;
+                this.userIdToken = (userIdToken != null)
+                    ? UserIdToken.parseUserIdToken(ctx, userIdToken.tokendata, userIdToken.signature, tokenVerificationMasterToken)
+                    : null;
+                // Pull user authentication data.
+                this.userAuthData = (binaryHeaderdata.userAuthData != null)
+                    ? UserAuthenticationData.create(ctx, tokenVerificationMasterToken, binaryHeaderdata.userAuthData)
+                    : null;
+                
+                // Verify the user authentication data.
+                this.user = authenticateUser(ctx);
+                
+                // Service tokens are authenticated by the master token if it
+                // exists or by the application crypto context.
+                final Set<ServiceToken> serviceTokens = new HashSet<ServiceToken>();
+                for (final BinaryEncoding.Token token : binaryHeaderdata.serviceTokens) {
+                    try {
+                        serviceTokens.add(ServiceToken.parseServiceToken(ctx, token.tokendata, token.signature, tokenVerificationMasterToken, this.userIdToken, cryptoContexts));
+                    } catch (final MslException e) {
+                        e.setEntity(tokenVerificationMasterToken).setUser(this.userIdToken).setUser(userAuthData);
+                        throw e;
+                    }
+                }
+                this.serviceTokens = Collections.unmodifiableSet(serviceTokens);
+            } catch (final MslException e) {
+                e.setEntity(masterToken);
+                e.setEntity(entityAuthData);
+                e.setMessageId(this.messageId);
+                throw e;
+            }
+            
+            try {
+                this.nonReplayableId = binaryHeaderdata.nonReplayableId;
+                this.renewable = binaryHeaderdata.renewable;
+                this.handshake = binaryHeaderdata.handshake;
+                
+                // Verify values.
+                if (nonReplayableId != null && (nonReplayableId < 0 || nonReplayableId > MslConstants.MAX_LONG_VALUE))
+                    throw new MslMessageException(MslError.NONREPLAYABLE_ID_OUT_OF_RANGE, "headerdata nonreplayableid " + nonReplayableId);
+                
+                // Pull message capabilities.
+                this.capabilities = (binaryHeaderdata.capabilities != null)
+                    ? new MessageCapabilities(binaryHeaderdata.capabilities)
+                    : null;
+                
+                // Pull key request data containers.
+                final Set<KeyRequestData> keyRequestData = new HashSet<KeyRequestData>();
+                for (final JSONObject keyRequestDataJO : binaryHeaderdata.keyRequestData)
+                    keyRequestData.add(KeyRequestData.create(ctx, keyRequestDataJO));
+                this.keyRequestData = Collections.unmodifiableSet(keyRequestData);
+                
+                // Only process peer-to-peer tokens if in peer-to-peer mode.
+                if (ctx.isPeerToPeer()) {
+                    // Pull peer master token.
+                    final BinaryEncoding.Token peerMasterToken = binaryHeaderdata.peerMasterToken;
+                    this.peerMasterToken = (peerMasterToken != null)
+                        ? MasterToken.parseMasterToken(ctx, peerMasterToken.tokendata, peerMasterToken.signature)
+                        : null;
+                    // The key response data master token is used for peer
+                    // token verification if in peer-to-peer mode.
+                    final MasterToken peerVerificationMasterToken;
+                    if (this.keyResponseData != null)
+                        peerVerificationMasterToken = this.keyResponseData.getMasterToken();
+                    else
+                        peerVerificationMasterToken = this.peerMasterToken;
+                    
+                    // Pull peer user ID token. User ID tokens are always
+                    // authenticated by a master token.
+                    final BinaryEncoding.Token peerUserIdToken = binaryHeaderdata.peerUserIdToken;
+                    try {
+                        this.peerUserIdToken = (peerUserIdToken != null)
+                            ? UserIdToken.parseUserIdToken(ctx, peerUserIdToken.tokendata, peerUserIdToken.signature, peerVerificationMasterToken)
+                            : null;
+                    } catch (final MslException e) {
+                        e.setEntity(peerVerificationMasterToken);
+                        throw e;
+                    }
+                    
+                    // Peer service tokens are authenticated by the peer master
+                    // token if it exists or by the application crypto context.
+                    final Set<ServiceToken> peerServiceTokens = new HashSet<ServiceToken>();
+                    for (final BinaryEncoding.Token token : binaryHeaderdata.peerServiceTokens) {
+                        try {
+                            peerServiceTokens.add(ServiceToken.parseServiceToken(ctx, token.tokendata, token.signature, peerVerificationMasterToken, this.peerUserIdToken, cryptoContexts));
+                        } catch (final MslException e) {
+                            e.setEntity(peerVerificationMasterToken).setUser(this.peerUserIdToken);
+                            throw e;
+                        }
+                    }
+                    this.peerServiceTokens = Collections.unmodifiableSet(peerServiceTokens);
+                } else {
+                    this.peerMasterToken = null;
+                    this.peerUserIdToken = null;
+                    this.peerServiceTokens = Collections.emptySet();
+                }
+            } catch (final MslException e) {
+                e.setEntity(masterToken);
+                e.setEntity(entityAuthData);
+                e.setUser(this.userIdToken);
+                e.setUser(this.userAuthData);
+                e.setMessageId(this.messageId);
+                throw e;
+            }
+            return;
+        }
+        
         final String headerdataJson = new String(plaintext, MslConstants.DEFAULT_CHARSET);
         final JSONObject headerdataJO;
         try {
@@ -587,7 +852,7 @@ public class MessageHeader extends Header {
 
             // User ID tokens are always authenticated by a master token.
             this.userIdToken = (headerdataJO.has(KEY_USER_ID_TOKEN))
-                ? new UserIdToken(ctx, headerdataJO.getJSONObject(KEY_USER_ID_TOKEN), tokenVerificationMasterToken)
+                ? UserIdToken.parseUserIdToken(ctx, headerdataJO.getJSONObject(KEY_USER_ID_TOKEN), tokenVerificationMasterToken)
                 : null;
             // Pull user authentication data.
             this.userAuthData = (headerdataJO.has(KEY_USER_AUTHENTICATION_DATA))
@@ -595,18 +860,7 @@ public class MessageHeader extends Header {
                 : null;
 
             // Verify the user authentication data.
-            if (this.userAuthData != null) {
-                final UserAuthenticationScheme scheme = this.userAuthData.getScheme();
-                final UserAuthenticationFactory factory = ctx.getUserAuthenticationFactory(scheme);
-                if (factory == null)
-                    throw new MslUserAuthException(MslError.USERAUTH_FACTORY_NOT_FOUND, scheme.name()).setUser(userIdToken).setUser(userAuthData);
-                final String identity = (this.masterToken != null) ? this.masterToken.getIdentity() : this.entityAuthData.getIdentity();
-                this.user = factory.authenticate(ctx, identity, this.userAuthData, this.userIdToken);
-            } else if (this.userIdToken != null) {
-                this.user = this.userIdToken.getUser();
-            } else {
-                this.user = null;
-            }
+            this.user = authenticateUser(ctx);
             
             // Service tokens are authenticated by the master token if it
             // exists or by the application crypto context.
@@ -615,7 +869,7 @@ public class MessageHeader extends Header {
                 final JSONArray tokens = headerdataJO.getJSONArray(KEY_SERVICE_TOKENS);
                 for (int i = 0; i < tokens.length(); ++i) {
                     try {
-                        serviceTokens.add(new ServiceToken(ctx, tokens.getJSONObject(i), tokenVerificationMasterToken, this.userIdToken, cryptoContexts));
+                        serviceTokens.add(ServiceToken.parseServiceToken(ctx, tokens.getJSONObject(i), tokenVerificationMasterToken, this.userIdToken, cryptoContexts));
                     } catch (final MslException e) {
                         e.setEntity(tokenVerificationMasterToken).setUser(this.userIdToken).setUser(userAuthData);
                         throw e;
@@ -664,7 +918,7 @@ public class MessageHeader extends Header {
             if (ctx.isPeerToPeer()) {
                 // Pull peer master token.
                 this.peerMasterToken = (headerdataJO.has(KEY_PEER_MASTER_TOKEN))
-                    ? new MasterToken(ctx, headerdataJO.getJSONObject(KEY_PEER_MASTER_TOKEN))
+                    ? MasterToken.parseMasterToken(ctx, headerdataJO.getJSONObject(KEY_PEER_MASTER_TOKEN))
                     : null;
                 // The key response data master token is used for peer token
                 // verification if in peer-to-peer mode.
@@ -678,7 +932,7 @@ public class MessageHeader extends Header {
                 // authenticated by a master token.
                 try {
                     this.peerUserIdToken = (headerdataJO.has(KEY_PEER_USER_ID_TOKEN))
-                        ? new UserIdToken(ctx, headerdataJO.getJSONObject(KEY_PEER_USER_ID_TOKEN), peerVerificationMasterToken)
+                        ? UserIdToken.parseUserIdToken(ctx, headerdataJO.getJSONObject(KEY_PEER_USER_ID_TOKEN), peerVerificationMasterToken)
                         : null;
                 } catch (final MslException e) {
                     e.setEntity(peerVerificationMasterToken);
@@ -692,7 +946,7 @@ public class MessageHeader extends Header {
                     final JSONArray tokens = headerdataJO.getJSONArray(KEY_PEER_SERVICE_TOKENS);
                     for (int i = 0; i < tokens.length(); ++i) {
                         try {
-                            peerServiceTokens.add(new ServiceToken(ctx, tokens.getJSONObject(i), peerVerificationMasterToken, this.peerUserIdToken, cryptoContexts));
+                            peerServiceTokens.add(ServiceToken.parseServiceToken(ctx, tokens.getJSONObject(i), peerVerificationMasterToken, this.peerUserIdToken, cryptoContexts));
                         } catch (final MslException e) {
                             e.setEntity(peerVerificationMasterToken).setUser(this.peerUserIdToken);
                             throw e;
@@ -722,6 +976,31 @@ public class MessageHeader extends Header {
         }
     }
 
+    /**
+     * Authenticate the user identified by the user authentication data or
+     * user ID token. The user authentication data, user ID token, and
+     * entity authentication data or master token must already be set.
+     * 
+     * @param ctx MSL context.
+     * @return the authenticated user or {@code null} if there is no user.
+     * @throws MslUserAuthException if the user authentication factory cannot
+     *         be found or the user cannot be authenticated.
+     * @throws MslException if there is an error authenticating the user.
+     */
+    private MslUser authenticateUser(final MslContext ctx) throws MslUserAuthException, MslException {
+        if (this.userAuthData != null) {
+            final UserAuthenticationScheme scheme = this.userAuthData.getScheme();
+            final UserAuthenticationFactory factory = ctx.getUserAuthenticationFactory(scheme);
+            if (factory == null)
+                throw new MslUserAuthException(MslError.USERAUTH_FACTORY_NOT_FOUND, scheme.name()).setUser(userIdToken).setUser(userAuthData);
+            final String identity = (this.masterToken != null) ? this.masterToken.getIdentity() : this.entityAuthData.getIdentity();
+            return factory.authenticate(ctx, identity, this.userAuthData, this.userIdToken);
+        } else if (this.userIdToken != null) {
+            return this.userIdToken.getUser();
+        }
+        return null;
+    }
+    
     /**
      * <p>Returns true if the header data has been decrypted and parsed. If
      * this method returns false then the other methods that return the header
@@ -933,6 +1212,20 @@ public class MessageHeader extends Header {
         return peerServiceTokens;
     }
     
+    /**
+     * @return the encrypted header data.
+     */
+    byte[] getHeaderdata() {
+        return headerdata;
+    }
+    
+    /**
+     * @return the header signature.
+     */
+    byte[] getSignature() {
+        return signature;
+    }
+    
     /* (non-Javadoc)
      * @see org.json.JSONString#toJSONString()
      */
@@ -16,22 +16,29 @@
 package com.netflix.msl.msg;
 
 import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
 import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.json.JSONTokener;
 
+import com.netflix.msl.MslConstants.EncoderFormat;
 import com.netflix.msl.MslCryptoException;
 import com.netflix.msl.MslEncodingException;
 import com.netflix.msl.MslEntityAuthException;
@@ -46,6 +53,7 @@ import com.netflix.msl.MslUserIdTokenException;
 import com.netflix.msl.crypto.ICryptoContext;
 import com.netflix.msl.crypto.SessionCryptoContext;
 import com.netflix.msl.entityauth.EntityAuthenticationData;
+import com.netflix.msl.io.JsonStreamReader;
 import com.netflix.msl.keyx.KeyExchangeFactory;
 import com.netflix.msl.keyx.KeyExchangeScheme;
 import com.netflix.msl.keyx.KeyRequestData;
@@ -70,6 +78,23 @@ import com.netflix.msl.util.MslContext;
  * @author Wesley Miaw <wmiaw@netflix.com>
  */
 public class MessageInputStream extends InputStream {
+    /** Default maximum binary encoded frame body size in bytes. */
+    public static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    
+    /**
+     * A payload chunk being decrypted and verified ahead of the application.
+     */
+    private static class PendingChunk {
+        /** The payload chunk. Null until done or if an exception occurred. */
+        public PayloadChunk chunk = null;
+        /** The MSL exception thrown creating the payload chunk, if any. */
+        public MslException exception = null;
+        /** The runtime exception thrown creating the payload chunk, if any. */
+        public RuntimeException runtimeException = null;
+        /** Released once the payload chunk is created or has failed. */
+        public final CountDownLatch done = new CountDownLatch(1);
+    }
+    
     /**
      * <p>Return the crypto context resulting from key response data contained
      * in the provided header.</p>
@@ -175,6 +200,11 @@ public class MessageInputStream extends InputStream {
      * not explcitly mapped onto a crypto context, the default crypto context
      * will be used.</p>
      * 
+     * <p>Binary encoded frames are limited to
+     * {@link #DEFAULT_MAX_FRAME_SIZE} bytes. A different limit can be used
+     * by a {@link MessageStreamFactory} that calls
+     * {@link #MessageInputStream(MslContext, InputStream, Charset, Set, Map, int)}.</p>
+     * 
      * @param ctx MSL context.
      * @param source MSL input stream.
      * @param charset input stream character set encoding.
@@ -204,21 +234,100 @@ public class MessageInputStream extends InputStream {
      *         bound to another token.
      */
     public MessageInputStream(final MslContext ctx, final InputStream source, final Charset charset, final Set<KeyRequestData> keyRequestData, final Map<String,ICryptoContext> cryptoContexts) throws MslEncodingException, MslEntityAuthException, MslCryptoException, MslUserAuthException, MslMessageException, MslKeyExchangeException, MslMasterTokenException, MslUserIdTokenException, MslMessageException, MslException {
-        // Parse the header.
+        this(ctx, source, charset, keyRequestData, cryptoContexts, DEFAULT_MAX_FRAME_SIZE);
+    }
+    
+    /**
+     * <p>Construct a new message input stream. The header is parsed.</p>
+     * 
+     * <p>If key request data is provided and a matching key response data is
+     * found in the message header the key exchange will be performed to
+     * process the message payloads.</p>
+     * 
+     * <p>Service tokens will be decrypted and verified with the provided crypto
+     * contexts identified by token name. A default crypto context may be
+     * provided by using the empty string as the token name; if a token name is
+     * not explcitly mapped onto a crypto context, the default crypto context
+     * will be used.</p>
+     * 
+     * <p>Binary encoded frames larger than the maximum frame size are
+     * rejected before their body is read.</p>
+     * 
+     * @param ctx MSL context.
+     * @param source MSL input stream.
+     * @param charset input stream character set encoding.
+     * @param keyRequestData key request data to use when processing key
+     *        response data.
+     * @param cryptoContexts the map of service token names onto crypto
+     *        contexts used to decrypt and verify service tokens.
+     * @param maxFrameSize the maximum binary encoded frame body size in
+     *        bytes.
+     * @throws MslEncodingException if there is an error parsing the message
+     *         or a binary encoded frame is too large.
+     * @throws MslCryptoException if there is an error decrypting or verifying
+     *         the header or creating the message payload crypto context.
+     * @throws MslEntityAuthException if unable to create the entity
+     *         authentication data.
+     * @throws MslUserAuthException if unable to create the user authentication
+     *         data.
+     * @throws MslMessageException if the message master token is expired and
+     *         the message is not renewable.
+     * @throws MslMasterTokenException if the master token is not trusted and
+     *         needs to be or if it has been revoked.
+     * @throws MslUserIdTokenException if the user ID token has been revoked.
+     * @throws MslKeyExchangeException if there is an error with the key
+     *         request data or key response data or the key exchange scheme is
+     *         not supported.
+     * @throws MslMessageException if the message master token is expired and
+     *         the message is not renewable.
+     * @throws MslException if the message does not contain an entity
+     *         authentication data or a master token, or a token is improperly
+     *         bound to another token.
+     */
+    public MessageInputStream(final MslContext ctx, final InputStream source, final Charset charset, final Set<KeyRequestData> keyRequestData, final Map<String,ICryptoContext> cryptoContexts, final int maxFrameSize) throws MslEncodingException, MslEntityAuthException, MslCryptoException, MslUserAuthException, MslMessageException, MslKeyExchangeException, MslMasterTokenException, MslUserIdTokenException, MslMessageException, MslException {
+        // Identify the encoder format from the first byte.
         this.source = source;
-        this.tokener = new JSONTokener(new InputStreamReader(source, charset));
-        final JSONObject jo;
+        this.maxFrameSize = maxFrameSize;
+        final PushbackInputStream in = new PushbackInputStream(source);
+        final int first;
         try {
-            if (!this.tokener.more())
-                throw new MslEncodingException(MslError.MESSAGE_DATA_MISSING);
-            final Object o = this.tokener.nextValue();
-            if (!(o instanceof JSONObject))
-                throw new MslEncodingException(MslError.MESSAGE_FORMAT_ERROR);
-            jo = (JSONObject)o;
-        } catch (final JSONException e) {
+            first = in.read();
+        } catch (final IOException e) {
             throw new MslEncodingException(MslError.JSON_PARSE_ERROR, "header", e);
         }
-        this.header = Header.parseHeader(ctx, jo, cryptoContexts);
+        if (first == -1)
+            throw new MslEncodingException(MslError.MESSAGE_DATA_MISSING);
+        
+        // Parse the header.
+        if (first == BinaryEncoding.MAGIC) {
+            this.encoderFormat = EncoderFormat.BINARY;
+            this.reader = null;
+            this.frameInput = new BinaryEncoding.FrameInputStream(in);
+            this.binaryInput = new DataInputStream(this.frameInput);
+            this.header = BinaryEncoding.readHeader(ctx, this.binaryInput, cryptoContexts, maxFrameSize);
+        } else {
+            try {
+                in.unread(first);
+            } catch (final IOException e) {
+                throw new MslInternalException("Unable to unread the first byte of the message.", e);
+            }
+            this.encoderFormat = EncoderFormat.JSON;
+            this.reader = new JsonStreamReader(in, charset);
+            this.frameInput = null;
+            this.binaryInput = null;
+            final JSONObject jo;
+            try {
+                if (!this.reader.more())
+                    throw new MslEncodingException(MslError.MESSAGE_DATA_MISSING);
+                final Object o = this.reader.nextValue();
+                if (!(o instanceof JSONObject))
+                    throw new MslEncodingException(MslError.MESSAGE_FORMAT_ERROR);
+                jo = (JSONObject)o;
+            } catch (final JSONException e) {
+                throw new MslEncodingException(MslError.JSON_PARSE_ERROR, "header", e);
+            }
+            this.header = Header.parseHeader(ctx, jo, cryptoContexts);
+        }
         
         try {
             // For error messages there are no key exchange or payload crypto
@@ -335,16 +444,20 @@ public class MessageInputStream extends InputStream {
     }
 
     /**
-     * Retrieve the next JSON object.
+     * Retrieve the next JSON object. Only JSON encoded messages can be read
+     * this way.
      * 
      * @return the next JSON object or null if none remaining.
      * @throws MslEncodingException if there is a problem parsing the JSON.
+     * @throws MslInternalException if the message is not JSON encoded.
      */
     protected JSONObject nextJsonObject() throws MslEncodingException {
         // Make sure this message is allowed to have payload chunks.
         final MessageHeader messageHeader = getMessageHeader();
         if (messageHeader == null)
             throw new MslInternalException("Read attempted with error message.");
+        if (reader == null)
+            throw new MslInternalException("JSON read attempted with " + encoderFormat + " encoded message.");
         
         // If we previously reached the end of the message, don't try to read
         // more.
@@ -353,11 +466,11 @@ public class MessageInputStream extends InputStream {
         
         // Otherwise read the next JSON object.
         try {
-            if (!tokener.more()) {
+            if (!reader.more()) {
                 eom = true;
                 return null;
             }
-            final Object o = tokener.nextValue();
+            final Object o = reader.nextValue();
             if (!(o instanceof JSONObject))
                 throw new MslEncodingException(MslError.MESSAGE_FORMAT_ERROR);
             return (JSONObject)o;
@@ -366,6 +479,183 @@ public class MessageInputStream extends InputStream {
         }
     }
 
+    /**
+     * Retrieve the next payload chunk, parsing it directly from the stream
+     * without building an intermediate JSON object.
+     * 
+     * @return the next payload chunk or null if none remaining.
+     * @throws MslCryptoException if there is a problem decrypting or verifying
+     *         the payload chunk.
+     * @throws MslEncodingException if there is a problem parsing the JSON.
+     * @throws MslMessageException if the payload data is corrupt or missing.
+     * @throws MslException if there is an error uncompressing the data.
+     */
+    protected PayloadChunk nextPayloadChunk() throws MslCryptoException, MslEncodingException, MslMessageException, MslException {
+        // If we previously reached the end of the message, don't try to read
+        // more.
+        if (eom) {
+            readAhead.clear();
+            return null;
+        }
+        
+        // Return payload chunks decrypted ahead of time if enabled.
+        if (readAheadExecutor != null)
+            return nextReadAheadPayloadChunk();
+        
+        // Otherwise read the next payload chunk.
+        final byte[][] encoded = nextEncodedPayloadChunk();
+        if (encoded == null) {
+            eom = true;
+            return null;
+        }
+        return new PayloadChunk(encoded[0], encoded[1], cryptoContext);
+    }
+    
+    /**
+     * Read the encrypted payload and signature of the next payload chunk
+     * from the stream without decrypting or verifying it.
+     * 
+     * @return the encrypted payload and the signature, in that order, or
+     *         null if none remaining.
+     * @throws MslEncodingException if there is a problem parsing the JSON or
+     *         the binary frame.
+     * @throws MslMessageException if the payload data is missing.
+     */
+    private byte[][] nextEncodedPayloadChunk() throws MslEncodingException, MslMessageException {
+        // Binary encoded messages end when there are no more frames.
+        if (binaryInput != null)
+            return BinaryEncoding.readEncodedPayloadChunk(binaryInput, maxFrameSize);
+        
+        // JSON encoded messages end at the end of the stream.
+        try {
+            if (!reader.more())
+                return null;
+            if (!reader.isObjectNext())
+                throw new MslEncodingException(MslError.MESSAGE_FORMAT_ERROR);
+        } catch (final JSONException e) {
+            throw new MslEncodingException(MslError.JSON_PARSE_ERROR, "payloadchunk", e);
+        }
+        return PayloadChunk.readEncodedPayloadChunk(reader);
+    }
+    
+    /**
+     * @return true if the next encoded payload chunk has completely arrived
+     *         and can be read without waiting on the sender.
+     */
+    private boolean isEncodedPayloadChunkBuffered() {
+        try {
+            if (frameInput != null)
+                return frameInput.isFrameBuffered(maxFrameSize);
+            return reader.isObjectBuffered();
+        } catch (final IOException e) {
+            return false;
+        } catch (final JSONException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * <p>Retrieve the next payload chunk in read-ahead mode.</p>
+     * 
+     * <p>Encoded payload chunks are read from the stream on the calling
+     * thread and handed off to the read-ahead executor to be decrypted and
+     * verified. Only the first payload chunk is waited for; additional
+     * payload chunks are only read once all of their data has arrived, so
+     * returning a payload chunk never waits on the payload chunks that
+     * follow it.</p>
+     * 
+     * @return the next payload chunk or null if none remaining.
+     * @throws MslCryptoException if there is a problem decrypting or verifying
+     *         the payload chunk.
+     * @throws MslEncodingException if there is a problem parsing the JSON.
+     * @throws MslMessageException if the payload data is corrupt or missing.
+     * @throws MslException if there is an error uncompressing the data.
+     */
+    private PayloadChunk nextReadAheadPayloadChunk() throws MslCryptoException, MslEncodingException, MslMessageException, MslException {
+        // Queue payload chunks up to the read-ahead window.
+        while (!readAheadEnd && readAhead.size() < readAheadWindow) {
+            if (!readAhead.isEmpty() && !isEncodedPayloadChunkBuffered())
+                break;
+            final byte[][] encoded = nextEncodedPayloadChunk();
+            if (encoded == null) {
+                readAheadEnd = true;
+                break;
+            }
+            enqueuePayloadChunk(encoded[0], encoded[1]);
+        }
+        
+        // Return the next payload chunk in order.
+        final PendingChunk pending = readAhead.poll();
+        if (pending == null) {
+            eom = true;
+            return null;
+        }
+        awaitPayloadChunk(pending);
+        if (pending.exception != null)
+            throw pending.exception;
+        if (pending.runtimeException != null)
+            throw pending.runtimeException;
+        return pending.chunk;
+    }
+    
+    /**
+     * Decrypt and verify a payload chunk using the read-ahead executor. The
+     * payload chunk is created on the calling thread if the executor will not
+     * accept the task.
+     * 
+     * @param payload the encrypted payload.
+     * @param signature the payload signature.
+     */
+    private void enqueuePayloadChunk(final byte[] payload, final byte[] signature) {
+        final PendingChunk pending = new PendingChunk();
+        readAhead.add(pending);
+        
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                PayloadChunk chunk = null;
+                MslException exception = null;
+                RuntimeException runtimeException = null;
+                try {
+                    chunk = new PayloadChunk(payload, signature, cryptoContext);
+                } catch (final MslException e) {
+                    exception = e;
+                } catch (final RuntimeException e) {
+                    runtimeException = e;
+                }
+                pending.chunk = chunk;
+                pending.exception = exception;
+                pending.runtimeException = runtimeException;
+                pending.done.countDown();
+            }
+        };
+        try {
+            readAheadExecutor.execute(task);
+        } catch (final RejectedExecutionException e) {
+            task.run();
+        }
+    }
+    
+    /**
+     * Wait for a payload chunk to be decrypted and verified. Payload chunk
+     * creation always completes, so an interrupt does not abandon the wait;
+     * the interrupt status is restored once the payload chunk is done.
+     * 
+     * @param pending the pending payload chunk.
+     */
+    private static void awaitPayloadChunk(final PendingChunk pending) {
+        boolean interrupted = false;
+        while (pending.done.getCount() > 0) {
+            try {
+                pending.done.await();
+            } catch (final InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
     /**
      * Retrieve the next payload chunk data.
      * 
@@ -388,10 +678,10 @@ public class MessageInputStream extends InputStream {
         if (payloadIterator != null && payloadIterator.hasNext())
             return payloadIterator.next();
         
-        // Otherwise read the next payload.
-        final JSONObject jo = nextJsonObject();
-        if (jo == null) return null;
-        final PayloadChunk payload = new PayloadChunk(jo, cryptoContext);
+        // Otherwise read the next payload. The payload chunk is parsed
+        // directly from the stream.
+        final PayloadChunk payload = nextPayloadChunk();
+        if (payload == null) return null;
         
         // Make sure the payload belongs to this message and is the one we are
         // expecting.
@@ -428,10 +718,13 @@ public class MessageInputStream extends InputStream {
             eom = true;
         
         // Save the payload in the buffer and return it. We have to unset the
-        // payload iterator since we're adding to the payloads list.
+        // payload iterator since we're adding to the payloads list. Bounded
+        // mark retention records read data itself.
         final ByteArrayInputStream data = new ByteArrayInputStream(payload.getData());
-        payloads.add(data);
-        payloadIterator = null;
+        if (markBuffer == null) {
+            payloads.add(data);
+            payloadIterator = null;
+        }
         return data;
     }
     
@@ -549,11 +842,27 @@ public class MessageInputStream extends InputStream {
         return keyxCryptoContext;
     }
     
+    /**
+     * @return the encoder format of the received message.
+     */
+    public EncoderFormat getEncoderFormat() {
+        return encoderFormat;
+    }
+    
     /* (non-Javadoc)
      * @see java.io.InputStream#available()
      */
     @Override
     public int available() throws IOException {
+        // With bounded mark retention, recorded data waiting to be replayed
+        // comes before the current payload.
+        if (markBuffer != null) {
+            long available = markBuffer.available();
+            if (currentPayload != null)
+                available += currentPayload.available();
+            return (int)Math.min(available, Integer.MAX_VALUE);
+        }
+        
         // Start with the amount available in the current payload.
         if (currentPayload == null) return 0;
         int available = currentPayload.available();
@@ -584,6 +893,71 @@ public class MessageInputStream extends InputStream {
     public void closeSource(final boolean close) {
         this.closeSource = close;
     }
+    
+    /**
+     * <p>Bound the data retained to support {@link #mark(int)} and
+     * {@link #reset()}.</p>
+     * 
+     * <p>By default every payload read since the last mark is retained,
+     * regardless of the mark read limit, and {@link #reset()} is always
+     * possible. Once bounded, only data read after a mark is retained and
+     * only up to the mark read limit. If no spill directory is provided the
+     * read limit is further capped at the byte budget. If a spill directory
+     * is provided, retained data beyond the byte budget is moved to a
+     * temporary file in that directory, which is deleted when the data is
+     * no longer needed or this stream is closed.</p>
+     * 
+     * <p>Calling {@link #reset()} after more data has been read than allowed
+     * throws an {@link IOException}.</p>
+     * 
+     * <p>Any existing mark is discarded.</p>
+     * 
+     * @param budget the maximum number of marked bytes held in memory.
+     * @param spillDirectory directory for temporary spill files. May be
+     *        {@code null} to disable spilling.
+     * @throws IllegalArgumentException if the budget is negative.
+     * @throws IllegalStateException if the stream has been reset and
+     *         buffered payloads remain to be read.
+     */
+    public void enableBoundedMark(final int budget, final File spillDirectory) {
+        if (budget < 0)
+            throw new IllegalArgumentException("Mark budget " + budget + " must not be negative.");
+        if (payloadIterator != null && payloadIterator.hasNext())
+            throw new IllegalStateException("Cannot bound mark retention while buffered payloads remain to be read.");
+        
+        // Discard the existing mark and buffered data. The current payload
+        // is kept so no unread data is lost.
+        if (markBuffer != null)
+            markBuffer.close();
+        payloadIterator = null;
+        payloads.clear();
+        markBuffer = new MarkBuffer(budget, spillDirectory);
+    }
+    
+    /**
+     * <p>Enable read-ahead of payload chunks. While the application consumes
+     * the current payload chunk, up to the specified number of following
+     * payload chunks will be decrypted and verified by the provided executor.
+     * Payload chunks are still returned in order and the message ID and
+     * sequence number checks are unchanged.</p>
+     * 
+     * <p>Read-ahead only consumes payload chunk data that has already arrived
+     * from the source input stream. Payload chunks read ahead of an
+     * end-of-message payload chunk are discarded.</p>
+     * 
+     * <p>The payload crypto context must be safe for concurrent use.</p>
+     * 
+     * @param executor the executor used to decrypt and verify payload chunks.
+     * @param window the maximum number of payload chunks that may be read
+     *        ahead at once.
+     * @throws IllegalArgumentException if the window is less than one.
+     */
+    public void enableReadAhead(final Executor executor, final int window) {
+        if (window < 1)
+            throw new IllegalArgumentException("Read-ahead window " + window + " must be positive.");
+        this.readAheadExecutor = executor;
+        this.readAheadWindow = window;
+    }
 
     /* (non-Javadoc)
      * @see java.io.InputStream#close()
@@ -609,6 +983,10 @@ public class MessageInputStream extends InputStream {
                 // Ignore exceptions.
             } 
         }
+        
+        // Release any retained mark data.
+        if (markBuffer != null)
+            markBuffer.close();
     }
 
     /* (non-Javadoc)
@@ -616,6 +994,12 @@ public class MessageInputStream extends InputStream {
      */
     @Override
     public void mark(final int readlimit) {
+        // Bounded mark retention records data from this point on.
+        if (markBuffer != null) {
+            markBuffer.mark(readlimit);
+            return;
+        }
+        
         // If there is a current payload...
         if (currentPayload != null) {
             // Remove all buffered data earlier than the current payload.
@@ -682,13 +1066,17 @@ public class MessageInputStream extends InputStream {
             throw new IOException("Error reading the payload chunk.", e);
         }
         
+        // Replay any recorded data first when using bounded mark retention.
+        int bytesRead = (markBuffer != null) ? markBuffer.replay(cbuf, off, len) : 0;
+        
         // Read from payloads until we are done or cannot read anymore.
-        int bytesRead = 0;
         while (bytesRead < len) {
             int read = (currentPayload != null) ? currentPayload.read(cbuf, off + bytesRead, len - bytesRead) : -1;
             
             // If we read some data continue.
             if (read != -1) {
+                if (markBuffer != null)
+                    markBuffer.record(cbuf, off + bytesRead, read);
                 bytesRead += read;
                 continue;
             }
@@ -732,6 +1120,12 @@ public class MessageInputStream extends InputStream {
      */
     @Override
     public void reset() throws IOException {
+        // Replay recorded data when using bounded mark retention.
+        if (markBuffer != null) {
+            markBuffer.reset();
+            return;
+        }
+        
         // Reset all payloads and initialize the payload iterator.
         //
         // We need to reset the payloads since we are going to re-read them and
@@ -751,6 +1145,19 @@ public class MessageInputStream extends InputStream {
      */
     @Override
     public long skip(final long n) throws IOException {
+        // With bounded mark retention skipped data must be replayed or
+        // recorded like any other data, so read it instead.
+        if (markBuffer != null) {
+            final byte[] scratch = new byte[(int)Math.min(Math.max(n, 0), SKIP_BUFFER_SIZE)];
+            long bytesSkipped = 0;
+            while (bytesSkipped < n) {
+                final int read = read(scratch, 0, (int)Math.min(n - bytesSkipped, scratch.length));
+                if (read == -1) break;
+                bytesSkipped += read;
+            }
+            return bytesSkipped;
+        }
+        
         // Skip from payloads until we are done or cannot skip anymore.
         int bytesSkipped = 0;
         while (bytesSkipped < n) {
@@ -776,10 +1183,21 @@ public class MessageInputStream extends InputStream {
         return bytesSkipped;
     }
 
+    /** Skip buffer size in bytes when using bounded mark retention. */
+    private static final int SKIP_BUFFER_SIZE = 8192;
+    
     /** MSL input stream. */
     private final InputStream source;
-    /** JSON tokener. */
-    private final JSONTokener tokener;
+    /** Message encoder format. */
+    private final EncoderFormat encoderFormat;
+    /** JSON stream reader. Null if the message is binary encoded. */
+    private final JsonStreamReader reader;
+    /** Binary frame input stream. Null if the message is JSON encoded. */
+    private final BinaryEncoding.FrameInputStream frameInput;
+    /** Binary input stream. Null if the message is JSON encoded. */
+    private final DataInputStream binaryInput;
+    /** Maximum binary encoded frame body size in bytes. */
+    private final int maxFrameSize;
     
     /** Header. */
     private final Header header;
@@ -809,7 +1227,18 @@ public class MessageInputStream extends InputStream {
     private ListIterator<ByteArrayInputStream> payloadIterator = null;
     /** Current payload chunk data. */
     private ByteArrayInputStream currentPayload = null;
+    /** Bounded mark retention buffer. Null if mark retention is unbounded. */
+    private MarkBuffer markBuffer = null;
     
     /** Cached read exception. */
     private IOException readException = null;
+    
+    /** Read-ahead executor. Null if read-ahead is disabled. */
+    private Executor readAheadExecutor = null;
+    /** Maximum number of payload chunks read ahead at once. */
+    private int readAheadWindow = 1;
+    /** Payload chunks read ahead, in order. */
+    private final Deque<PendingChunk> readAhead = new ArrayDeque<PendingChunk>();
+    /** True once the end of the encoded payload chunks has been reached. */
+    private boolean readAheadEnd = false;
 }
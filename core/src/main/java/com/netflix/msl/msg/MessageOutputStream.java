@@ -17,14 +17,23 @@ package com.netflix.msl.msg;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.netflix.msl.MslConstants.CompressionAlgorithm;
+import com.netflix.msl.MslConstants.EncoderFormat;
 import com.netflix.msl.MslCryptoException;
 import com.netflix.msl.MslEncodingException;
 import com.netflix.msl.MslException;
@@ -40,10 +49,11 @@ import com.netflix.msl.util.MslContext;
  * 
  * <p>No payload chunks may be included in an error message.</p>
  * 
- * <p>Data is buffered until {@link #flush()} or {@link #close()} is called.
- * At that point a new payload chunk is created and written out. Closing a
- * {@code MessageOutputStream} does not close the destination output stream in
- * case additional MSL messages will be written.</p>
+ * <p>Data is buffered until {@link #flush()} or {@link #close()} is called,
+ * or until the target chunk size set by {@link #setChunkSize(int)} is
+ * reached. At that point a new payload chunk is created and written out.
+ * Closing a {@code MessageOutputStream} does not close the destination output
+ * stream in case additional MSL messages will be written.</p>
  * 
  * <p>A copy of the payload chunks is kept in-memory and can be retrieved by a
  * a call to {@code getPayloads()} until {@code stopCaching()} is called. This
@@ -52,6 +62,18 @@ import com.netflix.msl.util.MslContext;
  * @author Wesley Miaw <wmiaw@netflix.com>
  */
 public class MessageOutputStream extends OutputStream {
+    /**
+     * A payload chunk being created by the pipeline executor.
+     */
+    private static class PendingChunk {
+        /** The payload chunk. Null until done or if an exception occurred. */
+        public PayloadChunk chunk = null;
+        /** The exception thrown creating the payload chunk, if any. */
+        public IOException exception = null;
+        /** True once the payload chunk is created or has failed. */
+        public boolean done = false;
+    }
+    
     /**
      * Construct a new error message output stream. The header is output
      * immediately by calling {@code #flush()} on the destination output
@@ -67,6 +89,7 @@ public class MessageOutputStream extends OutputStream {
         this.destination = destination;
         this.charset = charset;
         this.capabilities = ctx.getMessageCapabilities();
+        this.encoderFormat = EncoderFormat.JSON;
         this.header = header;
         this.compressionAlgo = null;
         this.cryptoContext = null;
@@ -88,6 +111,30 @@ public class MessageOutputStream extends OutputStream {
      * @throws IOException if there is an error writing the header.
      */
     public MessageOutputStream(final MslContext ctx, final OutputStream destination, final Charset charset, final MessageHeader header, final ICryptoContext cryptoContext) throws IOException {
+        this(ctx, destination, charset, header, cryptoContext, EncoderFormat.JSON);
+    }
+    
+    /**
+     * <p>Construct a new message output stream using the specified encoder
+     * format. The header is output immediately by calling {@code #flush()}
+     * on the destination output stream. The most preferred compression
+     * algorithm supported by the local entity and message header will be
+     * used.</p>
+     * 
+     * <p>The encoder format must only be something other than JSON if the
+     * remote entity is known to support it.</p>
+     * 
+     * @param ctx the MSL context.
+     * @param destination MSL output stream.
+     * @param charset output stream character set encoding.
+     * @param header message header.
+     * @param cryptoContext payload data crypto context.
+     * @param encoderFormat message encoder format.
+     * @throws IOException if there is an error writing the header.
+     * @throws MslInternalException if the encoder format is not supported by
+     *         the local entity and message header.
+     */
+    public MessageOutputStream(final MslContext ctx, final OutputStream destination, final Charset charset, final MessageHeader header, final ICryptoContext cryptoContext, final EncoderFormat encoderFormat) throws IOException {
         // The supported compression algorithms is the intersection of what the
         // local entity supports and what the remote entity supports.
         final MessageCapabilities capabilities = MessageCapabilities.intersection(ctx.getMessageCapabilities(), header.getMessageCapabilities());
@@ -99,13 +146,25 @@ public class MessageOutputStream extends OutputStream {
             compressionAlgo = null;
         }
         
+        // JSON is always supported. Other encoder formats must be supported
+        // by both the local entity and the message header.
+        if (encoderFormat != EncoderFormat.JSON &&
+            (capabilities == null || !capabilities.getEncoderFormats().contains(encoderFormat)))
+        {
+            throw new MslInternalException("Encoder format " + encoderFormat + " is not supported.");
+        }
+        
         this.destination = destination;
         this.charset = charset;
         this.capabilities = capabilities;
+        this.encoderFormat = encoderFormat;
         this.header = header;
         this.compressionAlgo = compressionAlgo;
         this.cryptoContext = cryptoContext;
-        this.destination.write(this.header.toJSONString().getBytes(charset));
+        if (this.encoderFormat == EncoderFormat.BINARY)
+            BinaryEncoding.writeHeader(this.destination, header);
+        else
+            this.destination.write(this.header.toJSONString().getBytes(charset));
         this.destination.flush();
     }
     
@@ -153,6 +212,13 @@ public class MessageOutputStream extends OutputStream {
         return true;
     }
     
+    /**
+     * @return the message encoder format.
+     */
+    public EncoderFormat getEncoderFormat() {
+        return encoderFormat;
+    }
+    
     /**
      * @return the message header. Will be null for error messages.
      */
@@ -185,8 +251,77 @@ public class MessageOutputStream extends OutputStream {
      * Turns off caching of any message data (e.g. payloads).
      */
     void stopCaching() {
-        caching = false;
-        payloads.clear();
+        pipelineLock.lock();
+        try {
+            caching = false;
+            payloads.clear();
+        } finally {
+            pipelineLock.unlock();
+        }
+    }
+    
+    /**
+     * <p>Set the target payload chunk size. Once this many bytes of
+     * application data have been written a payload chunk is created
+     * automatically, as if {@link #flush()} had been called. This bounds the
+     * amount of application data buffered in memory and lets the remote
+     * entity start processing the message before it is complete.</p>
+     * 
+     * <p>A size of zero disables automatic chunking, which is the default.
+     * Payload chunks are then only created when {@code flush()} or
+     * {@link #close()} is called.</p>
+     * 
+     * @param size the target payload chunk size in bytes. Zero to disable.
+     * @throws IllegalArgumentException if the size is negative.
+     */
+    public void setChunkSize(final int size) {
+        if (size < 0)
+            throw new IllegalArgumentException("Chunk size " + size + " cannot be negative.");
+        this.chunkSize = size;
+        
+        // Avoid growing the buffer if nothing has been written yet.
+        if (size > 0 && currentPayload != null && currentPayload.size() == 0)
+            currentPayload = new ByteArrayOutputStream(size);
+    }
+    
+    /**
+     * @return the target payload chunk size in bytes. Zero if automatic
+     *         chunking is disabled.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+    
+    /**
+     * <p>Enable pipelined creation of payload chunks. Each payload chunk will
+     * be compressed, encrypted, and signed by the provided executor while the
+     * application continues writing data. Payload chunks are written to the
+     * destination in order as soon as they and all earlier payload chunks are
+     * ready.</p>
+     * 
+     * <p>When pipelining is enabled {@link #flush()} returns once the payload
+     * chunk has been queued, blocking only while the maximum number of
+     * payload chunks are in flight. {@link #close()} waits for all payload
+     * chunks to be written. An error creating or writing a payload chunk is
+     * thrown by the next call to {@code flush()} or {@code close()}.</p>
+     * 
+     * <p>The payload crypto context must be safe for concurrent use.</p>
+     * 
+     * @param executor the executor used to create payload chunks.
+     * @param window the maximum number of payload chunks that may be in
+     *        flight at once.
+     * @throws IllegalArgumentException if the window is less than one.
+     */
+    public void enablePipelining(final Executor executor, final int window) {
+        if (window < 1)
+            throw new IllegalArgumentException("Pipeline window " + window + " must be positive.");
+        pipelineLock.lock();
+        try {
+            this.pipelineExecutor = executor;
+            this.pipelineWindow = window;
+        } finally {
+            pipelineLock.unlock();
+        }
     }
     
     /**
@@ -214,6 +349,9 @@ public class MessageOutputStream extends OutputStream {
         closed = true;
         flush();
         currentPayload = null;
+        
+        // Wait for any pipelined payload chunks to be written.
+        drainPipeline();
 
         // Only close the destination if instructed to do so because we might
         // want to reuse the connection.
@@ -246,26 +384,217 @@ public class MessageOutputStream extends OutputStream {
         // Otherwise we are closed and need to send any buffered data as the
         // last payload. If there is no buffered data, we still need to send a
         // payload with the end of message flag set.
+        final byte[] data = (currentPayload != null) ? currentPayload.toByteArray() : new byte[0];
+        if (pipelineExecutor != null) {
+            enqueuePayloadChunk(payloadSequenceNumber, messageHeader.getMessageId(), closed, compressionAlgo, data);
+        } else {
+            final PayloadChunk chunk = createPayloadChunk(payloadSequenceNumber, messageHeader.getMessageId(), closed, compressionAlgo, data);
+            writePayloadChunk(chunk);
+        }
+        ++payloadSequenceNumber;
+        
+        // If we are closed, get rid of the current payload. This prevents
+        // us from sending any more payloads. Otherwise reset it for reuse.
+        if (closed)
+            currentPayload = null;
+        else
+            currentPayload.reset();
+    }
+    
+    /**
+     * Create a new payload chunk. This compresses, encrypts, and signs the
+     * data.
+     * 
+     * @param sequenceNumber sequence number.
+     * @param messageId the message ID.
+     * @param endofmsg true if this is the last payload chunk of the message.
+     * @param compressionAlgo the compression algorithm. May be {@code null}
+     *        for no compression.
+     * @param data the payload chunk application data.
+     * @return the payload chunk.
+     * @throws IOException if the payload chunk could not be created.
+     */
+    private PayloadChunk createPayloadChunk(final long sequenceNumber, final long messageId, final boolean endofmsg, final CompressionAlgorithm compressionAlgo, final byte[] data) throws IOException {
         try {
-            final byte[] data = (currentPayload != null) ? currentPayload.toByteArray() : new byte[0];
-            final PayloadChunk chunk = new PayloadChunk(payloadSequenceNumber, messageHeader.getMessageId(), closed, compressionAlgo, data, this.cryptoContext);
-            if (caching) payloads.add(chunk);
-            destination.write(chunk.toJSONString().getBytes(charset));
-            destination.flush();
-            ++payloadSequenceNumber;
-            
-            // If we are closed, get rid of the current payload. This prevents
-            // us from sending any more payloads. Otherwise reset it for reuse.
-            if (closed)
-                currentPayload = null;
-            else
-                currentPayload.reset();
+            return new PayloadChunk(sequenceNumber, messageId, endofmsg, compressionAlgo, data, this.cryptoContext, this.encoderFormat);
         } catch (final MslEncodingException e) {
-            throw new IOException("Error encoding payload chunk [sequence number " + payloadSequenceNumber + "].", e);
+            throw new IOException("Error encoding payload chunk [sequence number " + sequenceNumber + "].", e);
         } catch (final MslCryptoException e) {
-            throw new IOException("Error encrypting payload chunk [sequence number " + payloadSequenceNumber + "].", e);
+            throw new IOException("Error encrypting payload chunk [sequence number " + sequenceNumber + "].", e);
         } catch (final MslException e) {
-            throw new IOException("Error compressing payload chunk [sequence number " + payloadSequenceNumber + "].", e);
+            throw new IOException("Error compressing payload chunk [sequence number " + sequenceNumber + "].", e);
+        }
+    }
+    
+    /**
+     * Cache the payload chunk if caching and write it to the destination.
+     * 
+     * @param chunk the payload chunk.
+     * @throws IOException if the payload chunk could not be written.
+     */
+    private void writePayloadChunk(final PayloadChunk chunk) throws IOException {
+        pipelineLock.lock();
+        try {
+            if (caching) payloads.add(chunk);
+        } finally {
+            pipelineLock.unlock();
+        }
+        if (encoderFormat == EncoderFormat.BINARY)
+            BinaryEncoding.writePayloadChunk(destination, chunk);
+        else
+            destination.write(chunk.toJSONString().getBytes(charset));
+        destination.flush();
+    }
+    
+    /**
+     * <p>Queue a payload chunk to be created by the pipeline executor. This
+     * blocks while the maximum number of payload chunks are in flight.</p>
+     * 
+     * @param sequenceNumber sequence number.
+     * @param messageId the message ID.
+     * @param endofmsg true if this is the last payload chunk of the message.
+     * @param compressionAlgo the compression algorithm. May be {@code null}
+     *        for no compression.
+     * @param data the payload chunk application data.
+     * @throws IOException if an earlier payload chunk could not be created or
+     *         written, or if interrupted while waiting.
+     */
+    private void enqueuePayloadChunk(final long sequenceNumber, final long messageId, final boolean endofmsg, final CompressionAlgorithm compressionAlgo, final byte[] data) throws IOException {
+        final PendingChunk pending = new PendingChunk();
+        pipelineLock.lock();
+        try {
+            while (pipelineException == null && pipeline.size() >= pipelineWindow)
+                awaitPipeline();
+            if (pipelineException != null)
+                throw pipelineException;
+            pipeline.add(pending);
+        } finally {
+            pipelineLock.unlock();
+        }
+        
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                PayloadChunk chunk = null;
+                IOException exception = null;
+                try {
+                    chunk = createPayloadChunk(sequenceNumber, messageId, endofmsg, compressionAlgo, data);
+                } catch (final IOException e) {
+                    exception = e;
+                } catch (final RuntimeException e) {
+                    exception = new IOException("Error creating payload chunk [sequence number " + sequenceNumber + "].", e);
+                }
+                pipelineLock.lock();
+                try {
+                    pending.chunk = chunk;
+                    pending.exception = exception;
+                    pending.done = true;
+                } finally {
+                    pipelineLock.unlock();
+                }
+                writeCompletedPayloadChunks();
+            }
+        };
+        
+        // Create the payload chunk on this thread if the executor will not
+        // accept the task.
+        try {
+            pipelineExecutor.execute(task);
+        } catch (final RejectedExecutionException e) {
+            task.run();
+        }
+    }
+    
+    /**
+     * <p>Write every completed payload chunk at the head of the pipeline to
+     * the destination, in order. The first exception is remembered and any
+     * payload chunks after it are discarded.</p>
+     * 
+     * <p>Only one thread writes at a time. If another thread is already
+     * writing this returns immediately, and that thread writes any payload
+     * chunks completed in the meantime. Payload chunks are written without
+     * holding the pipeline lock, so a slow destination does not block
+     * queueing or completing other payload chunks. A payload chunk stays at
+     * the head of the pipeline until it has been written.</p>
+     */
+    private void writeCompletedPayloadChunks() {
+        pipelineLock.lock();
+        try {
+            if (pipelineWriting)
+                return;
+            pipelineWriting = true;
+        } finally {
+            pipelineLock.unlock();
+        }
+        
+        while (true) {
+            final PendingChunk pending;
+            final boolean failed;
+            pipelineLock.lock();
+            try {
+                if (pipeline.isEmpty() || !pipeline.peek().done) {
+                    pipelineWriting = false;
+                    return;
+                }
+                pending = pipeline.peek();
+                failed = (pipelineException != null);
+            } finally {
+                pipelineLock.unlock();
+            }
+            
+            IOException exception = pending.exception;
+            if (!failed && exception == null) {
+                try {
+                    writePayloadChunk(pending.chunk);
+                } catch (final IOException e) {
+                    exception = e;
+                } catch (final RuntimeException e) {
+                    exception = new IOException("Error writing payload chunk [sequence number " + pending.chunk.getSequenceNumber() + "].", e);
+                }
+            }
+            
+            pipelineLock.lock();
+            try {
+                pipeline.poll();
+                if (pipelineException == null)
+                    pipelineException = exception;
+                pipelineChanged.signalAll();
+            } finally {
+                pipelineLock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * Wait for all queued payload chunks to be written.
+     * 
+     * @throws IOException if a payload chunk could not be created or written,
+     *         or if interrupted while waiting.
+     */
+    private void drainPipeline() throws IOException {
+        pipelineLock.lock();
+        try {
+            while (pipelineException == null && !pipeline.isEmpty())
+                awaitPipeline();
+            if (pipelineException != null)
+                throw pipelineException;
+        } finally {
+            pipelineLock.unlock();
+        }
+    }
+    
+    /**
+     * Wait for a change in the pipeline. The caller must hold the pipeline
+     * lock, which is released while waiting.
+     * 
+     * @throws InterruptedIOException if interrupted while waiting.
+     */
+    private void awaitPipeline() throws InterruptedIOException {
+        try {
+            pipelineChanged.await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for payload chunks to be written.");
         }
     }
 
@@ -285,8 +614,20 @@ public class MessageOutputStream extends OutputStream {
         if (messageHeader.isHandshake())
             throw new MslInternalException("Cannot write payload data for a handshake message.");
         
-        // Append data.
-        currentPayload.write(b, off, len);
+        // Append data. If there is a target chunk size then emit a payload
+        // chunk each time it is reached.
+        if (chunkSize == 0) {
+            currentPayload.write(b, off, len);
+            return;
+        }
+        int written = 0;
+        while (written < len) {
+            final int count = Math.max(0, Math.min(len - written, chunkSize - currentPayload.size()));
+            currentPayload.write(b, off + written, count);
+            written += count;
+            if (currentPayload.size() >= chunkSize)
+                flush();
+        }
     }
 
     /* (non-Javadoc)
@@ -313,6 +654,8 @@ public class MessageOutputStream extends OutputStream {
     private final Charset charset;
     /** Message output stream capabilities. */
     private final MessageCapabilities capabilities;
+    /** Message encoder format. */
+    private final EncoderFormat encoderFormat;
     
     /** Header. */
     private final Header header;
@@ -325,6 +668,8 @@ public class MessageOutputStream extends OutputStream {
     private long payloadSequenceNumber = 1;
     /** Current payload chunk data. */
     private ByteArrayOutputStream currentPayload = new ByteArrayOutputStream();
+    /** Target payload chunk size in bytes. Zero if disabled. */
+    private int chunkSize = 0;
     
     /** Stream is closed. */
     private boolean closed = false;
@@ -335,4 +680,22 @@ public class MessageOutputStream extends OutputStream {
     private boolean caching = true;
     /** Ordered list of sent payloads. */
     private final List<PayloadChunk> payloads = new ArrayList<PayloadChunk>();
+    
+    /** Pipeline executor. Null if pipelining is not enabled. */
+    private Executor pipelineExecutor = null;
+    /** Maximum number of payload chunks in flight. */
+    private int pipelineWindow = 0;
+    /** Payload chunks in flight in sequence number order. */
+    private final Deque<PendingChunk> pipeline = new ArrayDeque<PendingChunk>();
+    /** First pipeline exception. */
+    private IOException pipelineException = null;
+    /** True while a thread is writing completed payload chunks. */
+    private boolean pipelineWriting = false;
+    /**
+     * Pipeline lock. Guards the pipeline state and the payload cache.
+     * Payload chunks are written to the destination without holding it.
+     */
+    private final Lock pipelineLock = new ReentrantLock();
+    /** Signalled whenever a payload chunk leaves the pipeline. */
+    private final Condition pipelineChanged = pipelineLock.newCondition();
 }
@@ -21,7 +21,6 @@ import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.URL;
-import java.net.URLConnection;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.FileLockInterruptionException;
 import java.util.Collections;
@@ -37,15 +36,15 @@ import java.util.concurrent.AbstractExecutorService;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
 
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
@@ -53,6 +52,7 @@ import javax.crypto.spec.SecretKeySpec;
 import org.json.JSONObject;
 
 import com.netflix.msl.MslConstants;
+import com.netflix.msl.MslConstants.EncoderFormat;
 import com.netflix.msl.MslConstants.ResponseCode;
 import com.netflix.msl.MslCryptoException;
 import com.netflix.msl.MslEncodingException;
@@ -216,46 +216,6 @@ public class MslControl {
         public final MessageOutputStream output;
     }
     
-    /**
-     * A map key based off a MSL context and master token pair.
-     */
-    private static class MslContextMasterTokenKey {
-        /**
-         * Create a new MSL context and master token map key.
-         * 
-         * @param ctx MSL context.
-         * @param masterToken master token.
-         */
-        public MslContextMasterTokenKey(final MslContext ctx, final MasterToken masterToken) {
-            this.ctx = ctx;
-            this.masterToken = masterToken;
-        }
-
-        /* (non-Javadoc)
-         * @see java.lang.Object#hashCode()
-         */
-        @Override
-        public int hashCode() {
-            return this.ctx.hashCode() ^ this.masterToken.hashCode();
-        }
-
-        /* (non-Javadoc)
-         * @see java.lang.Object#equals(java.lang.Object)
-         */
-        @Override
-        public boolean equals(final Object obj) {
-            if (obj == this) return true;
-            if (!(obj instanceof MslContextMasterTokenKey)) return false;
-            final MslContextMasterTokenKey that = (MslContextMasterTokenKey)obj;
-            return this.ctx.equals(that.ctx) && this.masterToken.equals(that.masterToken);
-        }
-        
-        /** MSL context. */
-        private final MslContext ctx;
-        /** Master token. */
-        private final MasterToken masterToken;
-    }
-    
     /**
      * This class executes all tasks synchronously on the calling thread.
      */
@@ -318,6 +278,43 @@ public class MslControl {
         private boolean shutdown = false;
     }
     
+    /**
+     * This class runs a service and completes a completable future with the
+     * service result or the exception thrown by the service.
+     */
+    private static class CompletableTask<T> implements Runnable {
+        /**
+         * Create a new completable task.
+         * 
+         * @param service the service to run.
+         * @param future the future to complete.
+         */
+        public CompletableTask(final Callable<T> service, final CompletableFuture<T> future) {
+            this.service = service;
+            this.future = future;
+        }
+        
+        /* (non-Javadoc)
+         * @see java.lang.Runnable#run()
+         */
+        @Override
+        public void run() {
+            // Do nothing if the future was cancelled before we started.
+            if (future.isDone())
+                return;
+            try {
+                future.complete(service.call());
+            } catch (final Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }
+        
+        /** Service. */
+        private final Callable<T> service;
+        /** Future. */
+        private final CompletableFuture<T> future;
+    }
+    
     /**
      * A dummy MSL context only used for our dummy
      * {@link MslControl#NULL_MASTER_TOKEN}.
@@ -754,8 +751,54 @@ public class MslControl {
      * @param messageRegistry error message registry. May be {@code null}.
      */
     public MslControl(final int numThreads, final MessageStreamFactory streamFactory, final ErrorMessageRegistry messageRegistry) {
-        if (numThreads < 0)
-            throw new IllegalArgumentException("Number of threads must be non-negative.");
+        this(createExecutor(numThreads), true, streamFactory, messageRegistry);
+    }
+    
+    /**
+     * <p>Create a new instance of MSL control that runs all operations on the
+     * provided executor service, with the specified user error message
+     * registry.</p>
+     * 
+     * <p>Each operation runs as a single task on the executor and blocks that
+     * task's thread while waiting on the network or on other operations. On
+     * Java 21 or later
+     * {@code Executors.newVirtualThreadPerTaskExecutor()} may be provided to
+     * run each operation on its own virtual thread, so the number of
+     * concurrent operations is not limited by a thread pool. MSL control's
+     * own coordination between operations uses {@code java.util.concurrent}
+     * locks and queues. A virtual thread may still be pinned to its carrier
+     * thread while blocked inside a {@code synchronized} method, such as
+     * those of {@link com.netflix.msl.util.SimpleMslStore}, or inside the
+     * MSL store, crypto contexts, transport, and other application-provided
+     * components.</p>
+     * 
+     * <p>The executor service remains owned by the caller. MSL control does
+     * not shut it down when MSL control is shut down, so the executor
+     * service may be shared and must be shut down by the caller.</p>
+     * 
+     * @param executor executor service used to run all operations.
+     * @param streamFactory message stream factory. May be {@code null}.
+     * @param messageRegistry error message registry. May be {@code null}.
+     * @see #shutdown()
+     */
+    public MslControl(final ExecutorService executor, final MessageStreamFactory streamFactory, final ErrorMessageRegistry messageRegistry) {
+        this(executor, false, streamFactory, messageRegistry);
+    }
+    
+    /**
+     * Create a new instance of MSL control that runs all operations on the
+     * provided executor service, with the specified user error message
+     * registry.
+     * 
+     * @param executor executor service used to run all operations.
+     * @param ownsExecutor true if MSL control shuts down the executor
+     *        service when it is shut down.
+     * @param streamFactory message stream factory. May be {@code null}.
+     * @param messageRegistry error message registry. May be {@code null}.
+     */
+    private MslControl(final ExecutorService executor, final boolean ownsExecutor, final MessageStreamFactory streamFactory, final ErrorMessageRegistry messageRegistry) {
+        if (executor == null)
+            throw new NullPointerException("Executor service cannot be null.");
         
         // Set the stream factory.
         this.streamFactory = (streamFactory != null) ? streamFactory : new MessageStreamFactory();
@@ -763,11 +806,9 @@ public class MslControl {
         // Set the message registry.
         this.messageRegistry = (messageRegistry != null) ? messageRegistry : new DummyMessageRegistry();
         
-        // Create the thread pool if requested.
-        if (numThreads > 0)
-            executor = Executors.newFixedThreadPool(numThreads);
-        else
-            executor = new SynchronousExecutor();
+        // Set the executor.
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
         
         // Create the dummy master token used as a special value when releasing
         // the renewal lock without a new master token.
@@ -784,6 +825,25 @@ public class MslControl {
         }
     }
     
+    /**
+     * Create the executor service for the specified number of threads. A
+     * thread count of zero returns an executor service that runs all
+     * operations on the calling thread.
+     * 
+     * @param numThreads number of worker threads to create.
+     * @return the executor service.
+     * @throws IllegalArgumentException if the number of threads is negative.
+     */
+    private static ExecutorService createExecutor(final int numThreads) {
+        if (numThreads < 0)
+            throw new IllegalArgumentException("Number of threads must be non-negative.");
+        
+        // Create the thread pool if requested.
+        if (numThreads > 0)
+            return Executors.newFixedThreadPool(numThreads);
+        return new SynchronousExecutor();
+    }
+    
     /**
      * Assigns a filter stream factory that will be used to filter any incoming
      * or outgoing messages. The filters will be placed between the MSL message
@@ -796,12 +856,39 @@ public class MslControl {
         filterFactory = factory;
     }
     
+    /**
+     * Assigns the transport used to open connections to remote entities
+     * identified by URL. By default requests are made over persistent
+     * connections by a {@link PooledHttpTransport} owned by this MSL control
+     * instance.
+     * 
+     * @param transport the transport. May be null to restore the default.
+     * @see URLConnectionTransport
+     */
+    public void setTransport(final Transport transport) {
+        this.transport = (transport != null) ? transport : defaultTransport;
+    }
+    
     /**
      * Gracefully shutdown the MSL control instance. No additional messages may
      * be processed. Any messages pending or in process will be completed.
+     * An executor service provided by the caller is not shut down.
      */
     public void shutdown() {
-        executor.shutdown();
+        shutdown = true;
+        if (ownsExecutor)
+            executor.shutdown();
+    }
+    
+    /**
+     * Returns a snapshot of the master token deletion queue statistics.
+     * Deleted master tokens are removed from the MSL store once no in-flight
+     * message is using them.
+     * 
+     * @return the master token deletion statistics.
+     */
+    public MasterTokenDeletionStatistics getMasterTokenDeletionStatistics() {
+        return masterTokenDeletions.getStatistics();
     }
     
     /* (non-Javadoc)
@@ -809,7 +896,9 @@ public class MslControl {
      */
     @Override
     protected void finalize() throws Throwable {
-        executor.shutdownNow();
+        if (ownsExecutor)
+            executor.shutdownNow();
+        defaultTransport.close();
         super.finalize();
     }
     
@@ -821,6 +910,9 @@ public class MslControl {
      * context to exist (i.e. it does not expect to receive a response that
      * uses the same master token) then it must release the lock.</p>
      * 
+     * <p>A retired master token waiting to be deleted is treated as if it
+     * has already been deleted.</p>
+     * 
      * @param ctx MSL context.
      * @return the newest master token or null if there is none.
      * @throws InterruptedException if the thread is interrupted while trying
@@ -834,76 +926,64 @@ public class MslControl {
             final MslStore store = ctx.getMslStore();
             final MasterToken masterToken = store.getMasterToken();
             if (masterToken == null) return null;
+            if (masterTokenDeletions.isRetired(ctx, masterToken)) return null;
 
             // Acquire the master token read lock, creating it if necessary.
-            final MslContextMasterTokenKey key = new MslContextMasterTokenKey(ctx, masterToken);
-            final ReadWriteLock newLock = new ReentrantReadWriteLock();
-            final ReadWriteLock oldLock = masterTokenLocks.putIfAbsent(key, newLock);
-            final ReadWriteLock finalLock = (oldLock != null) ? oldLock : newLock;
-            finalLock.readLock().lockInterruptibly();
+            final ReentrantReadWriteLock lock = masterTokenLocks.getOrCreate(ctx, masterToken);
+            lock.readLock().lockInterruptibly();
 
             // Now we have to be tricky and make sure the master token we just
             // acquired is still the newest master token. This is necessary
             // just in case the master token was deleted between grabbing it
             // from the MSL store and acquiring the read lock.
             final MasterToken newestMasterToken = store.getMasterToken();
-            if (masterToken.equals(newestMasterToken))
-                return masterToken;
+            if (masterToken.equals(newestMasterToken)) {
+                if (!masterTokenDeletions.isRetired(ctx, masterToken))
+                    return masterToken;
+                
+                // The master token was retired after we acquired the read
+                // lock. Release it so the deletion can complete.
+                masterTokenDeletions.release(ctx, masterToken, lock);
+                return null;
+            }
 
             // If the master tokens are not the same then release the read
             // lock, acquire the write lock, and then delete the master token
-            // lock (it may already be deleted). Then try again.
-            finalLock.readLock().unlock();
-            finalLock.writeLock().lockInterruptibly();
-            masterTokenLocks.remove(key);
-            finalLock.writeLock().unlock();
+            // lock (it may already be deleted). Then try again. A retired
+            // master token lock will be deleted by the deletion queue, so
+            // there is no need to wait for it.
+            masterTokenDeletions.release(ctx, masterToken, lock);
+            if (!masterTokenDeletions.isRetired(ctx, masterToken)) {
+                lock.writeLock().lockInterruptibly();
+                masterTokenLocks.remove(ctx, masterToken, lock);
+                lock.writeLock().unlock();
+            }
         } while (true);
     }
     
     /**
-     * Deletes the provided master token from the MSL store. Doing so requires
-     * acquiring the master token's write lock.
+     * <p>Deletes the provided master token from the MSL store.</p>
+     * 
+     * <p>The master token is retired immediately so no new message will use
+     * it. It is removed from the MSL store when the last in-flight message
+     * using it releases it, so the caller does not wait for other in-flight
+     * messages using the same master token.</p>
      * 
      * @param ctx MSL context.
      * @param masterToken master token to delete. May be null.
-     * @throws InterruptedException if the thread is interrupted while trying
-     *         to acquire the master token's write lock.
      */
-    private void deleteMasterToken(final MslContext ctx, final MasterToken masterToken) throws InterruptedException {
+    private void deleteMasterToken(final MslContext ctx, final MasterToken masterToken) {
         // Do nothing if the master token is null.
         if (masterToken == null)
             return;
 
-        // Acquire the write lock and delete the master token from the store.
-        //
-        // TODO it would be nice to do this on another thread to avoid delaying
-        // the application.
-        final MslContextMasterTokenKey key = new MslContextMasterTokenKey(ctx, masterToken);
-        final ReadWriteLock newLock = new ReentrantReadWriteLock();
-        final ReadWriteLock oldLock = masterTokenLocks.putIfAbsent(key, newLock);
-
-        // ReentrantReadWriteLock requires us to release the read lock if
-        // we are holding it before acquiring the write lock. If there is
-        // an old lock then we are already holding the read lock. Otherwise
-        // no one is holding any locks.
-        final Lock writeLock;
-        if (oldLock != null) {
-            oldLock.readLock().unlock();
-            writeLock = oldLock.writeLock();
-        } else {
-            writeLock = newLock.writeLock();
-        }
-        writeLock.lockInterruptibly();
-        try {
-            ctx.getMslStore().removeCryptoContext(masterToken);
-        } finally {
-            // It should be okay to delete this read/write lock because no
-            // one should be using the deleted master token anymore; a new
-            // master token would have been received before deleting the
-            // old one.
-            masterTokenLocks.remove(key);
-            writeLock.unlock();
-        }
+        // We must release the read lock if we are holding it before the
+        // write lock can be acquired. The master token is retired, so the
+        // caller's later release of this master token will be skipped.
+        final ReentrantReadWriteLock lock = masterTokenLocks.getOrCreate(ctx, masterToken);
+        if (lock.getReadHoldCount() > 0)
+            lock.readLock().unlock();
+        masterTokenDeletions.delete(ctx, masterToken, lock);
     }
     
     /**
@@ -916,12 +996,17 @@ public class MslControl {
      */
     private void releaseMasterToken(final MslContext ctx, final MasterToken masterToken) {
         if (masterToken != null) {
-            final MslContextMasterTokenKey key = new MslContextMasterTokenKey(ctx, masterToken);
-            final ReadWriteLock lock = masterTokenLocks.get(key);
+            final ReentrantReadWriteLock lock = masterTokenLocks.get(ctx, masterToken);
             
             // The lock may be null if the master token was deleted.
-            if (lock != null)
-                lock.readLock().unlock();
+            if (lock == null)
+                return;
+            
+            // The read lock was already released if the master token was
+            // retired by deleteMasterToken().
+            if (lock.getReadHoldCount() == 0 && masterTokenDeletions.isRetired(ctx, masterToken))
+                return;
+            masterTokenDeletions.release(ctx, masterToken, lock);
         }
     }
     
@@ -933,10 +1018,8 @@ public class MslControl {
      * @param ctx MSL context.
      * @param messageHeader outgoing message header.
      * @param keyExchangeData outgoing message key exchange data.
-     * @throws InterruptedException if the thread is interrupted while trying
-     *         to delete an old master token.
      */
-    private void updateCryptoContexts(final MslContext ctx, final MessageHeader messageHeader, final KeyExchangeData keyExchangeData) throws InterruptedException {
+    private void updateCryptoContexts(final MslContext ctx, final MessageHeader messageHeader, final KeyExchangeData keyExchangeData) {
         // In trusted network mode save the crypto context of the message's key
         // response data as an optimization.
         final MslStore store = ctx.getMslStore();
@@ -959,10 +1042,8 @@ public class MslControl {
      * @param ctx MSL context.
      * @param request previous message the response was received for.
      * @param response received message input stream.
-     * @throws InterruptedException if the thread is interrupted while trying
-     *         to delete an old master token.
      */
-    private void updateCryptoContexts(final MslContext ctx, final MessageHeader request, final MessageInputStream response) throws InterruptedException {
+    private void updateCryptoContexts(final MslContext ctx, final MessageHeader request, final MessageInputStream response) {
         // Do nothing for error messages.
         final MessageHeader messageHeader = response.getMessageHeader();
         if (messageHeader == null)
@@ -1003,8 +1084,7 @@ public class MslControl {
             // local entity issued the master token.
             if (token.isBoundTo(masterToken) && masterToken.isVerified())
                 continue;
-            final byte[] data = token.getData();
-            if (data != null && data.length == 0)
+            if (token.isDeleted())
                 store.removeServiceTokens(token.getName(), token.isMasterTokenBound() ? masterToken : null, token.isUserIdTokenBound() ? userIdToken : null);
             else
                 storeTokens.add(token);
@@ -1049,7 +1129,7 @@ public class MslControl {
         
         try {
             final String recipient = msgCtx.getRecipient();
-            final MessageBuilder builder = MessageBuilder.createRequest(ctx, masterToken, userIdToken, recipient);
+            final MessageBuilder builder = MessageBuilder.createRequest(ctx, masterToken, userIdToken, recipient, getPeerEncoderFormat(ctx));
             builder.setNonReplayable(msgCtx.isNonReplayable());
             return builder;
         } catch (final MslException e) {
@@ -1204,7 +1284,7 @@ public class MslControl {
                 final long messageId = MessageBuilder.incrementMessageId(errorHeader.getMessageId());
                 final MessageContext resendMsgCtx = new ResendMessageContext(payloads, msgCtx);
                 final String recipient = resendMsgCtx.getRecipient();
-                final MessageBuilder requestBuilder = MessageBuilder.createRequest(ctx, null, null, recipient, messageId);
+                final MessageBuilder requestBuilder = MessageBuilder.createRequest(ctx, null, null, recipient, messageId, getPeerEncoderFormat(ctx));
                 if (ctx.isPeerToPeer()) {
                     final MasterToken peerMasterToken = requestHeader.getPeerMasterToken();
                     final UserIdToken peerUserIdToken = requestHeader.getPeerUserIdToken();
@@ -1239,7 +1319,7 @@ public class MslControl {
                 final long messageId = MessageBuilder.incrementMessageId(errorHeader.getMessageId());
                 final MessageContext resendMsgCtx = new ResendMessageContext(payloads, msgCtx);
                 final String recipient = resendMsgCtx.getRecipient();
-                final MessageBuilder requestBuilder = MessageBuilder.createRequest(ctx, masterToken, null, recipient, messageId);
+                final MessageBuilder requestBuilder = MessageBuilder.createRequest(ctx, masterToken, null, recipient, messageId, getPeerEncoderFormat(ctx));
                 if (ctx.isPeerToPeer()) {
                     final MasterToken peerMasterToken = requestHeader.getPeerMasterToken();
                     final UserIdToken peerUserIdToken = requestHeader.getPeerUserIdToken();
@@ -1256,7 +1336,7 @@ public class MslControl {
                 final long messageId = MessageBuilder.incrementMessageId(errorHeader.getMessageId());
                 final MessageContext resendMsgCtx = new ResendMessageContext(payloads, msgCtx);
                 final String recipient = resendMsgCtx.getRecipient();
-                final MessageBuilder requestBuilder = MessageBuilder.createRequest(ctx, null, null, recipient, messageId);
+                final MessageBuilder requestBuilder = MessageBuilder.createRequest(ctx, null, null, recipient, messageId, getPeerEncoderFormat(ctx));
                 if (ctx.isPeerToPeer()) {
                     final MasterToken peerMasterToken = requestHeader.getPeerMasterToken();
                     final UserIdToken peerUserIdToken = requestHeader.getPeerUserIdToken();
@@ -1291,7 +1371,7 @@ public class MslControl {
                 final long messageId = MessageBuilder.incrementMessageId(errorHeader.getMessageId());
                 final MessageContext resendMsgCtx = new ResendMessageContext(payloads, msgCtx);
                 final String recipient = resendMsgCtx.getRecipient();
-                final MessageBuilder requestBuilder = MessageBuilder.createRequest(ctx, masterToken, userIdToken, recipient, messageId);
+                final MessageBuilder requestBuilder = MessageBuilder.createRequest(ctx, masterToken, userIdToken, recipient, messageId, getPeerEncoderFormat(ctx));
                 if (ctx.isPeerToPeer()) {
                     final MasterToken peerMasterToken = requestHeader.getPeerMasterToken();
                     final UserIdToken peerUserIdToken = requestHeader.getPeerUserIdToken();
@@ -1335,7 +1415,7 @@ public class MslControl {
                 final long messageId = MessageBuilder.incrementMessageId(errorHeader.getMessageId());
                 final MessageContext resendMsgCtx = new ResendMessageContext(payloads, msgCtx);
                 final String recipient = resendMsgCtx.getRecipient();
-                final MessageBuilder requestBuilder = MessageBuilder.createRequest(ctx, masterToken, userIdToken, recipient, messageId);
+                final MessageBuilder requestBuilder = MessageBuilder.createRequest(ctx, masterToken, userIdToken, recipient, messageId, getPeerEncoderFormat(ctx));
                 if (ctx.isPeerToPeer()) {
                     final MasterToken peerMasterToken = requestHeader.getPeerMasterToken();
                     final UserIdToken peerUserIdToken = requestHeader.getPeerUserIdToken();
@@ -1363,10 +1443,8 @@ public class MslControl {
      * @param errorHeader error response received and successfully handled.
      * @throws MslException if the user ID token is not bound to the master
      *         token. (This should not happen.)
-     * @throws InterruptedException if the thread is interrupted while trying
-     *         to delete the old master token.
      */
-    private void cleanupContext(final MslContext ctx, final MessageHeader requestHeader, final ErrorHeader errorHeader) throws MslException, InterruptedException {
+    private void cleanupContext(final MslContext ctx, final MessageHeader requestHeader, final ErrorHeader errorHeader) throws MslException {
     	// The data-reauth error codes also delete tokens in case those errors
     	// are returned when a token does exist.
         switch (errorHeader.getErrorCode()) {
@@ -1463,8 +1541,7 @@ public class MslControl {
      *         request data.
      * @throws MslException if there was an error updating the service tokens
      *         or building the message header.
-     * @throws InterruptedException if the thread is interrupted while trying
-     *         to delete an old master token the sent message is replacing.
+     * @throws InterruptedException if the thread is interrupted.
      */
     private SendResult send(final MslContext ctx, final MessageContext msgCtx, final OutputStream out, final MessageBuilder builder, final boolean closeDestination) throws IOException, MslMessageException, MslEncodingException, MslCryptoException, MslMasterTokenException, MslEntityAuthException, MslKeyExchangeException, MslException, InterruptedException {
         final MasterToken masterToken = builder.getMasterToken();
@@ -1575,7 +1652,7 @@ public class MslControl {
         
         // Send the request.
         final OutputStream os = (filterFactory != null) ? filterFactory.getOutputStream(out) : out;
-        final MessageOutputStream request = new MessageOutputStream(ctx, os, MslConstants.DEFAULT_CHARSET, requestHeader, payloadCryptoContext);
+        final MessageOutputStream request = new MessageOutputStream(ctx, os, MslConstants.DEFAULT_CHARSET, requestHeader, payloadCryptoContext, builder.getEncoderFormat());
         request.closeDestination(closeDestination);
         
         // If it is okay to write the data then ask the application to write it
@@ -1588,6 +1665,19 @@ public class MslControl {
         return new SendResult(request, handshake);
     }
     
+    /**
+     * Returns the encoder format to use for requests. This is the format most
+     * recently negotiated with the remote entity, or JSON if no message has
+     * been received yet.
+     * 
+     * @param ctx MSL context.
+     * @return the request encoder format.
+     */
+    private EncoderFormat getPeerEncoderFormat(final MslContext ctx) {
+        final EncoderFormat encoderFormat = peerEncoderFormats.get(ctx);
+        return (encoderFormat != null) ? encoderFormat : EncoderFormat.JSON;
+    }
+    
     /**
      * <p>Receive a message.</p>
      * 
@@ -1620,8 +1710,7 @@ public class MslControl {
      *         authentication data or a master token, or a token is improperly
      *         bound to another token, or there is an error updating the
      *         service tokens.
-     * @throws InterruptedException if the thread is interrupted while trying
-     *         to delete an old master token the received message is replacing.
+     * @throws InterruptedException if the thread is interrupted.
      */
     private MessageInputStream receive(final MslContext ctx, final MessageContext msgCtx, final InputStream in, final MessageHeader request) throws MslEncodingException, MslEntityAuthException, MslCryptoException, MslUserAuthException, MslMessageException, MslKeyExchangeException, MslMasterTokenException, MslException, InterruptedException {
         // Grab the response.
@@ -1695,6 +1784,14 @@ public class MslControl {
                 final String recipient = responseHeader.getRecipient();
                 if (recipient != null && !recipient.equals(localIdentity))
                     throw new MslMessageException(MslError.MESSAGE_RECIPIENT_MISMATCH, recipient + " != " + localIdentity);
+                
+                // Remember the encoder format negotiated with the remote
+                // entity so future requests can use it.
+                final MessageCapabilities capabilities = MessageCapabilities.intersection(responseHeader.getMessageCapabilities(), ctx.getMessageCapabilities());
+                final EncoderFormat encoderFormat = (capabilities != null)
+                    ? EncoderFormat.getPreferredFormat(capabilities.getEncoderFormats())
+                    : EncoderFormat.JSON;
+                peerEncoderFormats.put(ctx, encoderFormat);
 
                 // If there is a request update the stored crypto contexts.
                 if (request != null)
@@ -1818,8 +1915,7 @@ public class MslControl {
      *         bound to another token, or there is an error updating the
      *         service tokens, or there was an error building the message
      *         header.
-     * @throws InterruptedException if the thread is interrupted while trying
-     *         to delete an old master token the received message is replacing.
+     * @throws InterruptedException if the thread is interrupted.
      */
     private SendReceiveResult sendReceive(final MslContext ctx, final MessageContext msgCtx, final InputStream in, final OutputStream out, final MessageBuilder builder, final boolean receive, final boolean closeStreams, final int timeout) throws IOException, MslEncodingException, MslCryptoException, MslEntityAuthException, MslUserAuthException, MslMessageException, MslMasterTokenException, MslKeyExchangeException, MslException, InterruptedException {
         // Attempt to acquire the renewal lock.
@@ -2476,9 +2572,7 @@ public class MslControl {
          * @throws MslErrorResponseException if there was an error sending an
          *         automatically generated error response.
          * @throws IOException if there was an error writing the message.
-         * @throws InterruptedException if the thread is interrupted while
-         *         trying to delete an old master token the sent message is
-         *         replacing.
+         * @throws InterruptedException if the thread is interrupted.
          */
         private MslChannel trustedNetworkExecute(final MessageBuilder builder, final int msgCount) throws MslException, MslErrorResponseException, IOException, InterruptedException {
             try {
@@ -2925,12 +3019,12 @@ public class MslControl {
         private class DelayedInputStream extends FilterInputStream {
             /**
              * Create a new delayed input stream that will not attempt to
-             * construct the input stream from the URL connection until it is
-             * actually needed (i.e. read from).
+             * construct the input stream from the transport connection until
+             * it is actually needed (i.e. read from).
              * 
-             * @param conn backing URL connection.
+             * @param conn backing transport connection.
              */
-            public DelayedInputStream(final URLConnection conn) {
+            public DelayedInputStream(final Transport.Connection conn) {
                 super(null);
                 this.conn = conn;
             }
@@ -2950,7 +3044,7 @@ public class MslControl {
             }
 
             @Override
-            public synchronized void mark(final int readlimit) {
+            public void mark(final int readlimit) {
             }
 
             @Override
@@ -2980,7 +3074,7 @@ public class MslControl {
             }
 
             @Override
-            public synchronized void reset() throws IOException {
+            public void reset() throws IOException {
                 if (in == null)
                     in = conn.getInputStream();
                 super.reset();
@@ -2993,8 +3087,8 @@ public class MslControl {
                 return super.skip(n);
             }
             
-            /** URL connection providing the input stream. */
-            private final URLConnection conn;
+            /** Transport connection providing the input stream. */
+            private final Transport.Connection conn;
         }
         
         /** MSL context. */
@@ -3363,17 +3457,10 @@ public class MslControl {
             final int lockTimeout;
             if (in == null || out == null) {
                 try {
-                    // Set up the connection.
-                    final URLConnection connection = remoteEntity.openConnection();
-                    connection.setConnectTimeout(timeout);
-                    connection.setReadTimeout(timeout);
-                    connection.setDoOutput(true);
-                    connection.setDoInput(true);
-                    
                     // Connect. Keep track of how much time this takes to subtract
                     // that from the lock timeout timeout.
                     final long start = System.currentTimeMillis();
-                    connection.connect();
+                    final Transport.Connection connection = transport.openConnection(remoteEntity, timeout);
                     out = connection.getOutputStream();
                     in = new DelayedInputStream(connection);
                     lockTimeout = timeout - (int)(System.currentTimeMillis() - start);
@@ -3509,7 +3596,7 @@ public class MslControl {
      */
     public Future<MessageInputStream> receive(final MslContext ctx, final MessageContext msgCtx, final InputStream in, final OutputStream out, final int timeout) {
         final ReceiveService service = new ReceiveService(ctx, msgCtx, in, out, timeout);
-        return executor.submit(service);
+        return submit(service);
     }
     
     /**
@@ -3567,7 +3654,7 @@ public class MslControl {
         if (request.getErrorHeader() != null)
             throw new IllegalArgumentException("Request message input stream cannot be for an error message.");
         final RespondService service = new RespondService(ctx, msgCtx, in, out, request, timeout);
-        return executor.submit(service);
+        return submit(service);
     }
     
     /**
@@ -3601,7 +3688,7 @@ public class MslControl {
         if (request.getErrorHeader() != null)
             throw new IllegalArgumentException("Request message input stream cannot be for an error message.");
         final ErrorService service = new ErrorService(ctx, msgCtx, err, out, request);
-        return executor.submit(service);
+        return submit(service);
     }
 
     /**
@@ -3642,7 +3729,7 @@ public class MslControl {
         if (ctx.isPeerToPeer())
             throw new IllegalStateException("This method cannot be used in peer-to-peer mode.");
         final RequestService service = new RequestService(ctx, msgCtx, remoteEntity, timeout);
-        return executor.submit(service);
+        return submit(service);
     }
     
     /**
@@ -3690,11 +3777,208 @@ public class MslControl {
         if (!ctx.isPeerToPeer())
             throw new IllegalStateException("This method cannot be used in trusted network mode.");
         final RequestService service = new RequestService(ctx, msgCtx, in, out, timeout);
+        return submit(service);
+    }
+    
+    /**
+     * <p>Asynchronous variant of
+     * {@link #receive(MslContext, MessageContext, InputStream, OutputStream, int)}.</p>
+     * 
+     * <p>The returned {@code CompletableFuture} completes with the same
+     * result, or exceptionally with the same exception, as the {@code Future}
+     * returned by that method. Cancelling the returned future interrupts the
+     * operation.</p>
+     * 
+     * <p>This method is only asynchronous if the executor runs the operation
+     * on another thread. If MSL control was created with zero threads, or
+     * its executor runs tasks on the calling thread (e.g. a caller-runs
+     * rejection policy), the calling thread is blocked until the operation
+     * completes and the returned future is already done.</p>
+     * 
+     * @param ctx MSL context.
+     * @param msgCtx message context.
+     * @param in remote entity input stream.
+     * @param out remote entity output stream.
+     * @param timeout renewal acquisition lock timeout in milliseconds.
+     * @return a completable future for the message.
+     */
+    public CompletableFuture<MessageInputStream> receiveAsync(final MslContext ctx, final MessageContext msgCtx, final InputStream in, final OutputStream out, final int timeout) {
+        final ReceiveService service = new ReceiveService(ctx, msgCtx, in, out, timeout);
+        return submitAsync(service);
+    }
+    
+    /**
+     * <p>Asynchronous variant of
+     * {@link #respond(MslContext, MessageContext, InputStream, OutputStream, MessageInputStream, int)}.</p>
+     * 
+     * <p>The returned {@code CompletableFuture} completes with the same
+     * result, or exceptionally with the same exception, as the {@code Future}
+     * returned by that method. Cancelling the returned future interrupts the
+     * operation.</p>
+     * 
+     * <p>This method is only asynchronous if the executor runs the operation
+     * on another thread. If MSL control was created with zero threads, or
+     * its executor runs tasks on the calling thread (e.g. a caller-runs
+     * rejection policy), the calling thread is blocked until the operation
+     * completes and the returned future is already done.</p>
+     * 
+     * @param ctx MSL context.
+     * @param msgCtx message context.
+     * @param in remote entity input stream.
+     * @param out remote entity output stream.
+     * @param request message input stream to create the response for.
+     * @param timeout renewal lock acquisition timeout in milliseconds.
+     * @return a completable future for the communication channel.
+     * @throws IllegalArgumentException if the request message input stream is
+     *         an error message.
+     */
+    public CompletableFuture<MslChannel> respondAsync(final MslContext ctx, final MessageContext msgCtx, final InputStream in, final OutputStream out, final MessageInputStream request, final int timeout) {
+        if (request.getErrorHeader() != null)
+            throw new IllegalArgumentException("Request message input stream cannot be for an error message.");
+        final RespondService service = new RespondService(ctx, msgCtx, in, out, request, timeout);
+        return submitAsync(service);
+    }
+    
+    /**
+     * <p>Asynchronous variant of
+     * {@link #error(MslContext, MessageContext, ApplicationError, OutputStream, MessageInputStream)}.</p>
+     * 
+     * <p>The returned {@code CompletableFuture} completes with the same
+     * result, or exceptionally with the same exception, as the {@code Future}
+     * returned by that method. Cancelling the returned future interrupts the
+     * operation.</p>
+     * 
+     * <p>This method is only asynchronous if the executor runs the operation
+     * on another thread. If MSL control was created with zero threads, or
+     * its executor runs tasks on the calling thread (e.g. a caller-runs
+     * rejection policy), the calling thread is blocked until the operation
+     * completes and the returned future is already done.</p>
+     * 
+     * @param ctx MSL context.
+     * @param msgCtx message context.
+     * @param err error type.
+     * @param out remote entity output stream.
+     * @param request request input srtream to create the response for.
+     * @return a completable future for the operation.
+     * @throws IllegalArgumentException if the request message input stream is
+     *         an error message.
+     */
+    public CompletableFuture<Boolean> errorAsync(final MslContext ctx, final MessageContext msgCtx, final ApplicationError err, final OutputStream out, final MessageInputStream request) {
+        if (request.getErrorHeader() != null)
+            throw new IllegalArgumentException("Request message input stream cannot be for an error message.");
+        final ErrorService service = new ErrorService(ctx, msgCtx, err, out, request);
+        return submitAsync(service);
+    }
+    
+    /**
+     * <p>Asynchronous variant of
+     * {@link #request(MslContext, MessageContext, URL, int)}.</p>
+     * 
+     * <p>The returned {@code CompletableFuture} completes with the same
+     * result, or exceptionally with the same exception, as the {@code Future}
+     * returned by that method. Cancelling the returned future interrupts the
+     * operation.</p>
+     * 
+     * <p>This method is only asynchronous if the executor runs the operation
+     * on another thread. If MSL control was created with zero threads, or
+     * its executor runs tasks on the calling thread (e.g. a caller-runs
+     * rejection policy), the calling thread is blocked until the operation
+     * completes and the returned future is already done.</p>
+     * 
+     * @param ctx MSL context.
+     * @param msgCtx message context.
+     * @param remoteEntity remote entity URL.
+     * @param timeout connect, read, and renewal lock acquisition timeout in
+     *        milliseconds.
+     * @return a completable future for the communication channel.
+     * @throws IllegalStateException if used in peer-to-peer mode.
+     */
+    public CompletableFuture<MslChannel> requestAsync(final MslContext ctx, final MessageContext msgCtx, final URL remoteEntity, final int timeout) {
+        if (ctx.isPeerToPeer())
+            throw new IllegalStateException("This method cannot be used in peer-to-peer mode.");
+        final RequestService service = new RequestService(ctx, msgCtx, remoteEntity, timeout);
+        return submitAsync(service);
+    }
+    
+    /**
+     * <p>Asynchronous variant of
+     * {@link #request(MslContext, MessageContext, InputStream, OutputStream, int)}.</p>
+     * 
+     * <p>The returned {@code CompletableFuture} completes with the same
+     * result, or exceptionally with the same exception, as the {@code Future}
+     * returned by that method. Cancelling the returned future interrupts the
+     * operation.</p>
+     * 
+     * <p>This method is only asynchronous if the executor runs the operation
+     * on another thread. If MSL control was created with zero threads, or
+     * its executor runs tasks on the calling thread (e.g. a caller-runs
+     * rejection policy), the calling thread is blocked until the operation
+     * completes and the returned future is already done.</p>
+     * 
+     * @param ctx MSL context.
+     * @param msgCtx message context.
+     * @param in remote entity input stream.
+     * @param out remote entity output stream.
+     * @param timeout renewal lock acquisition timeout in milliseconds.
+     * @return a completable future for the communication channel.
+     * @throws IllegalStateException if used in trusted network mode.
+     */
+    public CompletableFuture<MslChannel> requestAsync(final MslContext ctx, final MessageContext msgCtx, final InputStream in, final OutputStream out, final int timeout) {
+        if (!ctx.isPeerToPeer())
+            throw new IllegalStateException("This method cannot be used in trusted network mode.");
+        final RequestService service = new RequestService(ctx, msgCtx, in, out, timeout);
+        return submitAsync(service);
+    }
+    
+    /**
+     * Submit a service to the executor.
+     * 
+     * @param service the service.
+     * @return a future for the service result.
+     * @throws RejectedExecutionException if MSL control has been shut down
+     *         or the service cannot be scheduled for execution.
+     */
+    private <T> Future<T> submit(final Callable<T> service) {
+        if (shutdown)
+            throw new RejectedExecutionException("MSL control already shut down.");
         return executor.submit(service);
     }
     
+    /**
+     * <p>Submit a service to the executor and return a completable future
+     * that is completed when the service finishes.</p>
+     * 
+     * <p>No thread waits on the returned future; it is completed by the
+     * thread running the service, which is the calling thread if the
+     * executor runs tasks on the caller. Cancelling the returned future
+     * cancels and interrupts the service.</p>
+     * 
+     * @param service the service.
+     * @return a completable future for the service result.
+     * @throws RejectedExecutionException if the service cannot be scheduled
+     *         for execution.
+     */
+    private <T> CompletableFuture<T> submitAsync(final Callable<T> service) {
+        if (shutdown)
+            throw new RejectedExecutionException("MSL control already shut down.");
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        final Future<?> task = executor.submit(new CompletableTask<T>(service, future));
+        future.whenComplete(new BiConsumer<T,Throwable>() {
+            @Override
+            public void accept(final T result, final Throwable t) {
+                if (future.isCancelled())
+                    task.cancel(true);
+            }
+        });
+        return future;
+    }
+    
     /** MSL executor. */
     private final ExecutorService executor;
+    /** True if the MSL executor is shut down with MSL control. */
+    private final boolean ownsExecutor;
+    /** True once MSL control has been shut down. */
+    private volatile boolean shutdown = false;
     
     /** Message stream factory. */
     private final MessageStreamFactory streamFactory;
@@ -3702,6 +3986,10 @@ public class MslControl {
     private final ErrorMessageRegistry messageRegistry;
     /** Filter stream factory. May be null. */
     private FilterStreamFactory filterFactory = null;
+    /** Default transport. */
+    private final PooledHttpTransport defaultTransport = new PooledHttpTransport();
+    /** Transport used to connect to remote entities identified by URL. */
+    private volatile Transport transport = defaultTransport;
     
     /**
      * Map tracking outstanding renewable messages by MSL context. The blocking
@@ -3709,12 +3997,16 @@ public class MslControl {
      * message requires one.
      */
     private final ConcurrentHashMap<MslContext,BlockingQueue<MasterToken>> renewingContexts = new ConcurrentHashMap<MslContext,BlockingQueue<MasterToken>>();
+    /**
+     * Map of the encoder format most recently negotiated with the remote
+     * entity by MSL context. Requests are sent using this format.
+     */
+    private final ConcurrentHashMap<MslContext,EncoderFormat> peerEncoderFormats = new ConcurrentHashMap<MslContext,EncoderFormat>();
     /** Dummy master token used to release the renewal lock. */
     private final MasterToken NULL_MASTER_TOKEN;
 
-    /**
-     * Map of in-flight master token read-write locks by MSL context and master
-     * token.
-     */
-    private final ConcurrentHashMap<MslContextMasterTokenKey,ReadWriteLock> masterTokenLocks = new ConcurrentHashMap<MslContextMasterTokenKey,ReadWriteLock>();
+    /** In-flight master token read-write locks by MSL context and master token. */
+    private final MasterTokenLockRegistry masterTokenLocks = new MasterTokenLockRegistry();
+    /** Master tokens waiting to be deleted from the MSL store. */
+    private final MasterTokenDeletionQueue masterTokenDeletions = new MasterTokenDeletionQueue(masterTokenLocks);
 }
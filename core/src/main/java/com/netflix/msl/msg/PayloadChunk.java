@@ -15,6 +15,8 @@
  */
 package com.netflix.msl.msg;
 
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import javax.xml.bind.DatatypeConverter;
@@ -25,6 +27,7 @@ import org.json.JSONString;
 
 import com.netflix.msl.MslConstants;
 import com.netflix.msl.MslConstants.CompressionAlgorithm;
+import com.netflix.msl.MslConstants.EncoderFormat;
 import com.netflix.msl.MslCryptoException;
 import com.netflix.msl.MslEncodingException;
 import com.netflix.msl.MslError;
@@ -32,6 +35,7 @@ import com.netflix.msl.MslException;
 import com.netflix.msl.MslInternalException;
 import com.netflix.msl.MslMessageException;
 import com.netflix.msl.crypto.ICryptoContext;
+import com.netflix.msl.io.JsonStreamReader;
 import com.netflix.msl.util.MslUtils;
 
 /**
@@ -75,6 +79,11 @@ import com.netflix.msl.util.MslUtils;
  * <li>{@code data} is the Base64-encoded optionally compressed application data</li>
  * </ul></p>
  * 
+ * <p>When the binary encoder format is used the payload is instead encoded as
+ * described by {@link BinaryEncoding}, carrying the application data as raw
+ * bytes behind a small fixed header. Either payload encoding is accepted when
+ * parsing.</p>
+ * 
  * @author Wesley Miaw <wmiaw@netflix.com>
  */
 public class PayloadChunk implements JSONString {
@@ -114,6 +123,29 @@ public class PayloadChunk implements JSONString {
      * @throws MslException if there is an error compressing the data.
      */
     public PayloadChunk(final long sequenceNumber, final long messageId, final boolean endofmsg, final CompressionAlgorithm compressionAlgo, final byte[] data, final ICryptoContext cryptoContext) throws MslEncodingException, MslCryptoException, MslException {
+        this(sequenceNumber, messageId, endofmsg, compressionAlgo, data, cryptoContext, EncoderFormat.JSON);
+    }
+    
+    /**
+     * Construct a new payload chunk with the given message ID, data and
+     * provided crypto context, encoding the payload in the specified encoder
+     * format. If requested, the data will be compressed before encrypting.
+     * 
+     * @param sequenceNumber sequence number.
+     * @param messageId the message ID.
+     * @param endofmsg true if this is the last payload chunk of the message.
+     * @param compressionAlgo the compression algorithm. May be {@code null}
+     *        for no compression.
+     * @param data the payload chunk application data.
+     * @param cryptoContext the crypto context.
+     * @param encoderFormat the payload encoder format.
+     * @throws MslEncodingException if there is an error encoding the JSON
+     *         data.
+     * @throws MslCryptoException if there is an error encrypting or signing
+     *         the payload chunk.
+     * @throws MslException if there is an error compressing the data.
+     */
+    public PayloadChunk(final long sequenceNumber, final long messageId, final boolean endofmsg, final CompressionAlgorithm compressionAlgo, final byte[] data, final ICryptoContext cryptoContext, final EncoderFormat encoderFormat) throws MslEncodingException, MslCryptoException, MslException {
         // Verify sequence number and message ID.
         if (sequenceNumber < 0 || sequenceNumber > MslConstants.MAX_LONG_VALUE)
             throw new MslInternalException("Sequence number " + sequenceNumber + " is outside the valid range.");
@@ -145,6 +177,28 @@ public class PayloadChunk implements JSONString {
         this.data = data;
         
         // Construct the payload.
+        if (encoderFormat == EncoderFormat.BINARY) {
+            final byte[] plaintext = BinaryEncoding.encodePayload(this.sequenceNumber, this.messageId, this.endofmsg, this.compressionAlgo, payloadData);
+            this.payload = cryptoContext.encrypt(plaintext);
+        } else {
+            this.payload = encryptJsonPayload(payloadData, cryptoContext);
+        }
+
+        // Sign the payload chunk.
+        this.signature = cryptoContext.sign(this.payload);
+    }
+    
+    /**
+     * Encode and encrypt the JSON payload.
+     * 
+     * @param payloadData the optionally compressed application data.
+     * @param cryptoContext the crypto context.
+     * @return the encrypted payload.
+     * @throws MslEncodingException if there is an error encoding the JSON
+     *         data.
+     * @throws MslCryptoException if there is an error encrypting the payload.
+     */
+    private byte[] encryptJsonPayload(final byte[] payloadData, final ICryptoContext cryptoContext) throws MslEncodingException, MslCryptoException {
         try {
             final JSONObject payloadJO = new JSONObject();
             payloadJO.put(KEY_SEQUENCE_NUMBER, this.sequenceNumber);
@@ -153,23 +207,43 @@ public class PayloadChunk implements JSONString {
             if (this.compressionAlgo != null) payloadJO.put(KEY_COMPRESSION_ALGORITHM, this.compressionAlgo.name());
             payloadJO.put(KEY_DATA, DatatypeConverter.printBase64Binary(payloadData));
             final byte[] plaintext = payloadJO.toString().getBytes(MslConstants.DEFAULT_CHARSET);
-            this.payload = cryptoContext.encrypt(plaintext);
+            return cryptoContext.encrypt(plaintext);
         } catch (final JSONException e) {
             throw new MslEncodingException(MslError.JSON_ENCODE_ERROR, "payloadchunk payload", e);
         }
-
-        // Sign the payload chunk.
-        this.signature = cryptoContext.sign(this.payload);
     }
     
     /**
-     * <p>Construct a new payload chunk from the provided JSON object.</p>
+     * Return the Base64-decoded value of a payload chunk JSON object field.
+     * 
+     * @param payloadChunkJO the payload chunk JSON object.
+     * @param key the field key.
+     * @param error the error to report if the value is not valid Base64.
+     * @return the decoded value.
+     * @throws MslEncodingException if the field is missing.
+     * @throws MslMessageException if the value is not valid Base64.
+     */
+    private static byte[] getBase64(final JSONObject payloadChunkJO, final String key, final MslError error) throws MslEncodingException, MslMessageException {
+        try {
+            return DatatypeConverter.parseBase64Binary(payloadChunkJO.getString(key));
+        } catch (final IllegalArgumentException e) {
+            throw new MslMessageException(error, "payload chunk " + payloadChunkJO.toString(), e);
+        } catch (final JSONException e) {
+            throw new MslEncodingException(MslError.JSON_PARSE_ERROR, "payload chunk " + payloadChunkJO.toString(), e);
+        }
+    }
+    
+    /**
+     * <p>Read the next payload chunk from the provided JSON stream reader
+     * without building an intermediate JSON object. The payload and
+     * signature are decoded directly into bytes.</p>
      * 
      * <p>The provided crypto context will be used to decrypt and verify the
      * data signature.</p>
      * 
-     * @param payloadChunkJO the JSON object.
+     * @param reader the JSON stream reader.
      * @param cryptoContext the crypto context.
+     * @return the payload chunk.
      * @throws MslCryptoException if there is a problem decrypting or verifying
      *         the payload chunk.
      * @throws MslEncodingException if there is a problem parsing the JSON.
@@ -177,71 +251,175 @@ public class PayloadChunk implements JSONString {
      *         or the payload data is corrupt or missing.
      * @throws MslException if there is an error uncompressing the data.
      */
-    public PayloadChunk(final JSONObject payloadChunkJO, final ICryptoContext cryptoContext) throws MslEncodingException, MslCryptoException, MslMessageException, MslException {
-        // Verify the JSON representation.
+    public static PayloadChunk parsePayloadChunk(final JsonStreamReader reader, final ICryptoContext cryptoContext) throws MslEncodingException, MslCryptoException, MslMessageException, MslException {
+        final byte[][] encoded = readEncodedPayloadChunk(reader);
+        return new PayloadChunk(encoded[0], encoded[1], cryptoContext);
+    }
+    
+    /**
+     * Read the encrypted payload and signature of the next payload chunk
+     * from the provided JSON stream reader. Nothing is decrypted or
+     * verified.
+     * 
+     * @param reader the JSON stream reader.
+     * @return the encrypted payload and the signature, in that order.
+     * @throws MslEncodingException if there is a problem parsing the JSON.
+     * @throws MslMessageException if the payload or signature is invalid.
+     */
+    static byte[][] readEncodedPayloadChunk(final JsonStreamReader reader) throws MslEncodingException, MslMessageException {
+        byte[] payload = null;
+        byte[] signature = null;
         try {
-            try {
-                payload = DatatypeConverter.parseBase64Binary(payloadChunkJO.getString(KEY_PAYLOAD));
-            } catch (final IllegalArgumentException e) {
-                throw new MslMessageException(MslError.PAYLOAD_INVALID, "payload chunk " + payloadChunkJO.toString(), e);
-            }
-            try {
-                signature = DatatypeConverter.parseBase64Binary(payloadChunkJO.getString(KEY_SIGNATURE));
-            } catch (final IllegalArgumentException e) {
-                throw new MslMessageException(MslError.PAYLOAD_SIGNATURE_INVALID, "payload chunk " + payloadChunkJO.toString(), e);
+            reader.beginObject();
+            while (reader.hasNextMember()) {
+                final String key = reader.nextName();
+                if (KEY_PAYLOAD.equals(key)) {
+                    payload = reader.nextBase64();
+                    if (payload == null)
+                        throw new MslMessageException(MslError.PAYLOAD_INVALID, "payload chunk");
+                } else if (KEY_SIGNATURE.equals(key)) {
+                    signature = reader.nextBase64();
+                    if (signature == null)
+                        throw new MslMessageException(MslError.PAYLOAD_SIGNATURE_INVALID, "payload chunk");
+                } else {
+                    reader.skipValue();
+                }
             }
-            if (!cryptoContext.verify(payload, signature))
-                throw new MslCryptoException(MslError.PAYLOAD_VERIFICATION_FAILED);
         } catch (final JSONException e) {
-            throw new MslEncodingException(MslError.JSON_PARSE_ERROR, "payload chunk " + payloadChunkJO.toString(), e);
+            throw new MslEncodingException(MslError.JSON_PARSE_ERROR, "payload chunk", e);
         }
+        if (payload == null)
+            throw new MslEncodingException(MslError.JSON_PARSE_ERROR, "payload chunk missing " + KEY_PAYLOAD);
+        if (signature == null)
+            throw new MslEncodingException(MslError.JSON_PARSE_ERROR, "payload chunk missing " + KEY_SIGNATURE);
+        return new byte[][] { payload, signature };
+    }
+    
+    /**
+     * <p>Construct a new payload chunk from the provided JSON object.</p>
+     * 
+     * <p>The provided crypto context will be used to decrypt and verify the
+     * data signature.</p>
+     * 
+     * @param payloadChunkJO the JSON object.
+     * @param cryptoContext the crypto context.
+     * @throws MslCryptoException if there is a problem decrypting or verifying
+     *         the payload chunk.
+     * @throws MslEncodingException if there is a problem parsing the JSON.
+     * @throws MslMessageException if the compression algorithm is not known,
+     *         or the payload data is corrupt or missing.
+     * @throws MslException if there is an error uncompressing the data.
+     */
+    public PayloadChunk(final JSONObject payloadChunkJO, final ICryptoContext cryptoContext) throws MslEncodingException, MslCryptoException, MslMessageException, MslException {
+        this(getBase64(payloadChunkJO, KEY_PAYLOAD, MslError.PAYLOAD_INVALID),
+             getBase64(payloadChunkJO, KEY_SIGNATURE, MslError.PAYLOAD_SIGNATURE_INVALID),
+             cryptoContext);
+    }
+    
+    /**
+     * <p>Construct a new payload chunk from the encrypted payload and its
+     * signature.</p>
+     * 
+     * <p>A decrypted JSON payload is parsed using a {@link JsonStreamReader}
+     * so the application data is decoded directly into bytes. A decrypted
+     * binary payload carries the application data as raw bytes.</p>
+     * 
+     * @param payload the encrypted payload.
+     * @param signature the payload signature.
+     * @param cryptoContext the crypto context.
+     * @throws MslCryptoException if there is a problem decrypting or verifying
+     *         the payload chunk.
+     * @throws MslEncodingException if there is a problem parsing the JSON.
+     * @throws MslMessageException if the compression algorithm is not known,
+     *         or the payload data is corrupt or missing.
+     * @throws MslException if there is an error uncompressing the data.
+     */
+    PayloadChunk(final byte[] payload, final byte[] signature, final ICryptoContext cryptoContext) throws MslEncodingException, MslCryptoException, MslMessageException, MslException {
+        this.payload = payload;
+        this.signature = signature;
+        if (!cryptoContext.verify(payload, signature))
+            throw new MslCryptoException(MslError.PAYLOAD_VERIFICATION_FAILED);
         
         // Pull the payload data.
         final byte[] plaintext = cryptoContext.decrypt(payload);
-        final String payloadJson = new String(plaintext, MslConstants.DEFAULT_CHARSET);
-        try {
-            final JSONObject payloadJO = new JSONObject(payloadJson);
-            sequenceNumber = payloadJO.getLong(KEY_SEQUENCE_NUMBER);
-            if (sequenceNumber < 0 || sequenceNumber > MslConstants.MAX_LONG_VALUE)
-                throw new MslException(MslError.PAYLOAD_SEQUENCE_NUMBER_OUT_OF_RANGE, "payload chunk payload " + payloadJson);
-            messageId = payloadJO.getLong(KEY_MESSAGE_ID);
-            if (messageId < 0 || messageId > MslConstants.MAX_LONG_VALUE)
-                throw new MslException(MslError.PAYLOAD_MESSAGE_ID_OUT_OF_RANGE, "payload chunk payload " + payloadJson);
-            endofmsg = (payloadJO.has(KEY_END_OF_MESSAGE)) ? payloadJO.getBoolean(KEY_END_OF_MESSAGE) : false;
-            if (payloadJO.has(KEY_COMPRESSION_ALGORITHM)) {
-                final String algoName = payloadJO.getString(KEY_COMPRESSION_ALGORITHM);
-                try {
-                    compressionAlgo = CompressionAlgorithm.valueOf(algoName);
-                } catch (final IllegalArgumentException e) {
-                    throw new MslMessageException(MslError.UNIDENTIFIED_COMPRESSION, algoName, e);
+        Long sequenceNumber = null;
+        Long messageId = null;
+        boolean endofmsg = false;
+        String algoName = null;
+        boolean hasData = false;
+        byte[] compressedData = null;
+        if (BinaryEncoding.isBinaryPayload(plaintext)) {
+            final ByteBuffer buffer = ByteBuffer.wrap(plaintext);
+            endofmsg = BinaryEncoding.readPayloadFlags(buffer);
+            final CompressionAlgorithm algo = BinaryEncoding.getCompressionAlgorithm(buffer.get() & 0xff);
+            if (algo != null) algoName = algo.name();
+            sequenceNumber = buffer.getLong();
+            messageId = buffer.getLong();
+            hasData = true;
+            compressedData = Arrays.copyOfRange(plaintext, buffer.position(), plaintext.length);
+        } else {
+            try {
+                final JsonStreamReader reader = new JsonStreamReader(new ByteArrayInputStream(plaintext), MslConstants.DEFAULT_CHARSET);
+                reader.beginObject();
+                while (reader.hasNextMember()) {
+                    final String key = reader.nextName();
+                    if (KEY_SEQUENCE_NUMBER.equals(key)) {
+                        sequenceNumber = reader.nextLong();
+                    } else if (KEY_MESSAGE_ID.equals(key)) {
+                        messageId = reader.nextLong();
+                    } else if (KEY_END_OF_MESSAGE.equals(key)) {
+                        endofmsg = reader.nextBoolean();
+                    } else if (KEY_COMPRESSION_ALGORITHM.equals(key)) {
+                        algoName = reader.nextString();
+                    } else if (KEY_DATA.equals(key)) {
+                        hasData = true;
+                        compressedData = reader.nextBase64();
+                    } else {
+                        reader.skipValue();
+                    }
                 }
-            } else {
-                compressionAlgo = null;
+            } catch (final JSONException e) {
+                throw new MslEncodingException(MslError.JSON_PARSE_ERROR, "payload chunk payload " + new String(plaintext, MslConstants.DEFAULT_CHARSET), e);
             }
-            final String payloadData = payloadJO.getString(KEY_DATA);
-            byte[] compressedData;
+        }
+        
+        if (sequenceNumber == null)
+            throw new MslEncodingException(MslError.JSON_PARSE_ERROR, "payload chunk payload missing " + KEY_SEQUENCE_NUMBER);
+        this.sequenceNumber = sequenceNumber;
+        if (this.sequenceNumber < 0 || this.sequenceNumber > MslConstants.MAX_LONG_VALUE)
+            throw new MslException(MslError.PAYLOAD_SEQUENCE_NUMBER_OUT_OF_RANGE, "payload chunk payload " + new String(plaintext, MslConstants.DEFAULT_CHARSET));
+        if (messageId == null)
+            throw new MslEncodingException(MslError.JSON_PARSE_ERROR, "payload chunk payload missing " + KEY_MESSAGE_ID);
+        this.messageId = messageId;
+        if (this.messageId < 0 || this.messageId > MslConstants.MAX_LONG_VALUE)
+            throw new MslException(MslError.PAYLOAD_MESSAGE_ID_OUT_OF_RANGE, "payload chunk payload " + new String(plaintext, MslConstants.DEFAULT_CHARSET));
+        this.endofmsg = endofmsg;
+        if (algoName != null) {
             try {
-                compressedData = DatatypeConverter.parseBase64Binary(payloadData);
+                this.compressionAlgo = CompressionAlgorithm.valueOf(algoName);
             } catch (final IllegalArgumentException e) {
-                // Fall through to the error handling below.
-                compressedData = null;
+                throw new MslMessageException(MslError.UNIDENTIFIED_COMPRESSION, algoName, e);
             }
-            if (compressedData == null || compressedData.length == 0) {
-                if (payloadData.length() > 0)
-                    throw new MslMessageException(MslError.PAYLOAD_DATA_CORRUPT, payloadData);
-                else if (!endofmsg)
-                    throw new MslMessageException(MslError.PAYLOAD_DATA_MISSING, payloadData);
-                else
-                    data = new byte[0];
+        } else {
+            this.compressionAlgo = null;
+        }
+        if (!hasData)
+            throw new MslEncodingException(MslError.JSON_PARSE_ERROR, "payload chunk payload missing " + KEY_DATA);
+        
+        // A null value means the data was not empty but could not be
+        // decoded.
+        if (compressedData == null)
+            throw new MslMessageException(MslError.PAYLOAD_DATA_CORRUPT, "payload chunk payload " + new String(plaintext, MslConstants.DEFAULT_CHARSET));
+        if (compressedData.length == 0) {
+            if (!this.endofmsg)
+                throw new MslMessageException(MslError.PAYLOAD_DATA_MISSING, "payload chunk payload " + new String(plaintext, MslConstants.DEFAULT_CHARSET));
+            this.data = new byte[0];
+        } else {
+            if (this.compressionAlgo == null) {
+                this.data = compressedData;
             } else {
-                if (compressionAlgo == null) {
-                    data = compressedData;
-                } else {
-                    data = MslUtils.uncompress(compressionAlgo, compressedData);
-                }
+                this.data = MslUtils.uncompress(this.compressionAlgo, compressedData);
             }
-        } catch (final JSONException e) {
-            throw new MslEncodingException(MslError.JSON_PARSE_ERROR, "payload chunk payload " + payloadJson, e);
         }
     }
     
@@ -282,6 +460,20 @@ public class PayloadChunk implements JSONString {
     public byte[] getData() {
         return data;
     }
+    
+    /**
+     * @return the encrypted payload.
+     */
+    byte[] getPayload() {
+        return payload;
+    }
+    
+    /**
+     * @return the payload signature.
+     */
+    byte[] getSignature() {
+        return signature;
+    }
 
     /* (non-Javadoc)
      * @see org.json.JSONString#toJSONString()
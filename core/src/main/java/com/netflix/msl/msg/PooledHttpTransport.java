@@ -0,0 +1,932 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.msg;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * <p>An HTTP/1.1 transport that keeps a pool of persistent (keep-alive)
+ * connections for each remote host, so consecutive requests to the same
+ * host, such as the messages of a handshake or renewal, do not each pay for
+ * TCP and TLS connection setup.</p>
+ * 
+ * <p>Requests are sent as {@code POST} requests with a chunked request body,
+ * so the request is streamed as it is written. A connection is returned to
+ * the pool once its response has been read to the end and the response
+ * input stream is closed. A connection whose response is abandoned before
+ * the end, or that the remote entity asks to close, is closed instead. Idle
+ * connections are closed once they have been idle longer than the keep-alive
+ * timeout. Every idle connection is checked with a non-blocking read before
+ * it is reused, in case the remote entity closed it.</p>
+ * 
+ * <p>The number of connections in use for each host is limited. A request
+ * waits up to the connect timeout for a connection to become available.</p>
+ * 
+ * <p>Only direct {@code http} and {@code https} connections are pooled.
+ * Requests for other protocols, or for which the default proxy selector
+ * selects a proxy, are made with a {@link URLConnectionTransport}. Redirects
+ * are not supported. A response status outside the 2xx range is reported as
+ * an {@code IOException}.</p>
+ * 
+ * <p>This is the default transport used by {@link MslControl}.</p>
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+public class PooledHttpTransport implements Transport, Closeable {
+    /** HTTP protocol. */
+    private static final String HTTP = "http";
+    /** HTTPS protocol. */
+    private static final String HTTPS = "https";
+    /** HTTP header character set. */
+    private static final Charset HEADER_CHARSET = Charset.forName("ISO-8859-1");
+    /** HTTP line terminator. */
+    private static final byte[] CRLF = { '\r', '\n' };
+    /** Socket buffer size. */
+    private static final int BUFFER_SIZE = 8192;
+    /** Maximum length of a response status or header line. */
+    private static final int MAX_LINE_LENGTH = 8192;
+    /** Default maximum number of connections in use per host. */
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 16;
+    /** Default maximum idle time in milliseconds. */
+    public static final long DEFAULT_KEEP_ALIVE_TIMEOUT = 30000;
+    
+    /**
+     * A connected socket and its buffered streams.
+     */
+    private static class PooledSocket {
+        /**
+         * Create a new pooled socket.
+         * 
+         * @param socket the connected socket.
+         * @param channel the underlying socket channel.
+         * @throws IOException if the socket streams cannot be opened.
+         */
+        public PooledSocket(final Socket socket, final SocketChannel channel) throws IOException {
+            this.socket = socket;
+            this.channel = channel;
+            this.in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        }
+        
+        /**
+         * Close the socket, ignoring any errors.
+         */
+        public void closeQuietly() {
+            try {
+                socket.close();
+            } catch (final IOException e) {
+                // Nothing to do.
+            }
+        }
+        
+        /** Socket. */
+        public final Socket socket;
+        /** Underlying socket channel, below any TLS layer. */
+        public final SocketChannel channel;
+        /** Buffered socket input stream. */
+        public final BufferedInputStream in;
+        /** Buffered socket output stream. */
+        public final BufferedOutputStream out;
+        /** Time the socket was returned to the pool in milliseconds. */
+        public long idleSince = 0;
+    }
+    
+    /**
+     * The connections of a single host.
+     */
+    private static class HostPool {
+        /**
+         * Create a new host pool.
+         * 
+         * @param maxConnections maximum number of connections in use.
+         */
+        public HostPool(final int maxConnections) {
+            this.permits = new Semaphore(maxConnections, true);
+        }
+        
+        /** One permit for each connection that may be in use. */
+        public final Semaphore permits;
+        /** Idle connections, most recently used last. */
+        public final Deque<PooledSocket> idle = new ArrayDeque<PooledSocket>();
+    }
+    
+    /**
+     * <p>A chunked request body output stream. Data is buffered and written
+     * as one chunk when the buffer fills or the stream is flushed. Closing
+     * the stream ends the request body but does not close the socket.</p>
+     */
+    private static class ChunkedOutputStream extends OutputStream {
+        /**
+         * Create a new chunked output stream.
+         * 
+         * @param out socket output stream.
+         */
+        public ChunkedOutputStream(final OutputStream out) {
+            this.out = out;
+        }
+        
+        /* (non-Javadoc)
+         * @see java.io.OutputStream#write(int)
+         */
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+        
+        /* (non-Javadoc)
+         * @see java.io.OutputStream#write(byte[], int, int)
+         */
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            if (closed)
+                throw new IOException("Request body already closed.");
+            if (off < 0 || len < 0 || off + len > b.length)
+                throw new IndexOutOfBoundsException();
+            int written = 0;
+            while (written < len) {
+                final int n = Math.min(buffer.length - count, len - written);
+                System.arraycopy(b, off + written, buffer, count, n);
+                count += n;
+                written += n;
+                if (count == buffer.length)
+                    writeChunk();
+            }
+        }
+        
+        /* (non-Javadoc)
+         * @see java.io.OutputStream#flush()
+         */
+        @Override
+        public void flush() throws IOException {
+            if (closed) return;
+            writeChunk();
+            out.flush();
+        }
+        
+        /* (non-Javadoc)
+         * @see java.io.OutputStream#close()
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            writeChunk();
+            out.write('0');
+            out.write(CRLF);
+            out.write(CRLF);
+            out.flush();
+            closed = true;
+        }
+        
+        /**
+         * @return true if the request body is complete.
+         */
+        public boolean isClosed() {
+            return closed;
+        }
+        
+        /**
+         * Write any buffered data as a single chunk.
+         * 
+         * @throws IOException if there is an error writing the chunk.
+         */
+        private void writeChunk() throws IOException {
+            if (count == 0) return;
+            out.write(Integer.toHexString(count).getBytes(HEADER_CHARSET));
+            out.write(CRLF);
+            out.write(buffer, 0, count);
+            out.write(CRLF);
+            count = 0;
+        }
+        
+        /** Socket output stream. */
+        private final OutputStream out;
+        /** Chunk buffer. */
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        /** Number of buffered bytes. */
+        private int count = 0;
+        /** True once the request body has been ended. */
+        private boolean closed = false;
+    }
+    
+    /**
+     * <p>A response body input stream. The socket is returned to the pool
+     * when the end of a reusable response body is reached, and closed if the
+     * stream is closed before then.</p>
+     */
+    private class ResponseInputStream extends InputStream {
+        /**
+         * Create a new response body input stream.
+         * 
+         * @param pool the host pool.
+         * @param socket the pooled socket.
+         * @param contentLength the content length or -1 if the body is
+         *        chunked or delimited by the end of the connection.
+         * @param chunked true if the body uses chunked transfer encoding.
+         * @param reusable true if the connection may be reused after the
+         *        body is read.
+         */
+        public ResponseInputStream(final HostPool pool, final PooledSocket socket, final long contentLength, final boolean chunked, final boolean reusable) {
+            this.pool = pool;
+            this.socket = socket;
+            this.chunked = chunked;
+            this.reusable = reusable && (chunked || contentLength >= 0);
+            this.remaining = (chunked) ? 0 : contentLength;
+            if (contentLength == 0) finish();
+        }
+        
+        /* (non-Javadoc)
+         * @see java.io.InputStream#read()
+         */
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            final int n = read(b, 0, 1);
+            return (n == -1) ? -1 : (b[0] & 0xff);
+        }
+        
+        /* (non-Javadoc)
+         * @see java.io.InputStream#read(byte[], int, int)
+         */
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (closed)
+                throw new IOException("Response body already closed.");
+            if (off < 0 || len < 0 || off + len > b.length)
+                throw new IndexOutOfBoundsException();
+            if (len == 0) return 0;
+            if (eof) return -1;
+            
+            try {
+                // Start the next chunk if necessary.
+                if (chunked && remaining == 0) {
+                    remaining = readChunkSize(socket.in);
+                    if (remaining == 0) {
+                        readTrailers(socket.in);
+                        finish();
+                        return -1;
+                    }
+                }
+                
+                // Read until the connection is closed if there is no length.
+                final int max = (remaining < 0) ? len : (int)Math.min(len, remaining);
+                final int n = socket.in.read(b, off, max);
+                if (n == -1) {
+                    if (remaining < 0) {
+                        finish();
+                        return -1;
+                    }
+                    throw new IOException("Unexpected end of response body.");
+                }
+                if (remaining > 0) {
+                    remaining -= n;
+                    if (remaining == 0) {
+                        if (chunked)
+                            readCrlf(socket.in);
+                        else
+                            finish();
+                    }
+                }
+                return n;
+            } catch (final IOException e) {
+                abandon();
+                throw e;
+            }
+        }
+        
+        /* (non-Javadoc)
+         * @see java.io.InputStream#available()
+         */
+        @Override
+        public int available() throws IOException {
+            if (closed || eof) return 0;
+            final int available = socket.in.available();
+            return (remaining < 0) ? available : (int)Math.min(available, remaining);
+        }
+        
+        /* (non-Javadoc)
+         * @see java.io.InputStream#close()
+         */
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            if (!eof) abandon();
+        }
+        
+        /**
+         * Mark the end of the response body and release the connection.
+         */
+        private void finish() {
+            eof = true;
+            if (reusable)
+                release(pool, socket);
+            else
+                discard(pool, socket);
+        }
+        
+        /**
+         * Close the connection because the response body will not be read to
+         * the end.
+         */
+        private void abandon() {
+            if (eof) return;
+            eof = true;
+            discard(pool, socket);
+        }
+        
+        /** Host pool. */
+        private final HostPool pool;
+        /** Pooled socket. */
+        private final PooledSocket socket;
+        /** True if the body uses chunked transfer encoding. */
+        private final boolean chunked;
+        /** True if the connection may be reused. */
+        private final boolean reusable;
+        /**
+         * Bytes remaining in the body or current chunk, or -1 if the body is
+         * delimited by the end of the connection.
+         */
+        private long remaining;
+        /** True once the end of the body is reached or the body is abandoned. */
+        private boolean eof = false;
+        /** True once closed. */
+        private boolean closed = false;
+    }
+    
+    /**
+     * A connection carrying a single HTTP request and response.
+     */
+    private class HttpConnection implements Connection {
+        /**
+         * Create a new HTTP connection. The request headers are written
+         * immediately.
+         * 
+         * @param remoteEntity remote entity URL.
+         * @param pool the host pool.
+         * @param socket the leased socket.
+         * @throws IOException if the request headers cannot be written.
+         */
+        public HttpConnection(final URL remoteEntity, final HostPool pool, final PooledSocket socket) throws IOException {
+            this.remoteEntity = remoteEntity;
+            this.pool = pool;
+            this.socket = socket;
+            this.requestBody = new ChunkedOutputStream(socket.out);
+            
+            final String file = remoteEntity.getFile();
+            final String host = (remoteEntity.getPort() == -1 || remoteEntity.getPort() == remoteEntity.getDefaultPort())
+                ? remoteEntity.getHost()
+                : remoteEntity.getHost() + ":" + remoteEntity.getPort();
+            final StringBuilder headers = new StringBuilder();
+            headers.append("POST ").append((file.length() > 0) ? file : "/").append(" HTTP/1.1\r\n");
+            headers.append("Host: ").append(host).append("\r\n");
+            headers.append("Transfer-Encoding: chunked\r\n");
+            headers.append("Connection: keep-alive\r\n");
+            headers.append("\r\n");
+            socket.out.write(headers.toString().getBytes(HEADER_CHARSET));
+        }
+        
+        /* (non-Javadoc)
+         * @see com.netflix.msl.msg.Transport.Connection#getOutputStream()
+         */
+        @Override
+        public OutputStream getOutputStream() {
+            return requestBody;
+        }
+        
+        /* (non-Javadoc)
+         * @see com.netflix.msl.msg.Transport.Connection#getInputStream()
+         */
+        @Override
+        public InputStream getInputStream() throws IOException {
+            responseLock.lock();
+            try {
+                return readResponse();
+            } finally {
+                responseLock.unlock();
+            }
+        }
+        
+        /**
+         * Complete the request and read the response status and headers.
+         * The caller must hold the response lock.
+         * 
+         * @return the response body input stream.
+         * @throws IOException if the response cannot be read or has an error
+         *         status.
+         */
+        private InputStream readResponse() throws IOException {
+            if (response != null)
+                return response;
+            
+            try {
+                // Complete the request.
+                requestBody.close();
+                
+                // Skip any informational responses.
+                int status;
+                List<String> headers;
+                do {
+                    status = readStatus(socket.in);
+                    headers = readHeaders(socket.in);
+                } while (status >= 100 && status < 200);
+                
+                // Determine the body length and whether the connection may
+                // be reused.
+                long contentLength = -1;
+                boolean chunked = false;
+                boolean reusable = true;
+                for (final String header : headers) {
+                    final int colon = header.indexOf(':');
+                    if (colon == -1) continue;
+                    final String name = header.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+                    final String value = header.substring(colon + 1).trim();
+                    if (name.equals("content-length")) {
+                        try {
+                            contentLength = Long.parseLong(value);
+                        } catch (final NumberFormatException e) {
+                            throw new IOException("Invalid content length " + value + ".", e);
+                        }
+                    } else if (name.equals("transfer-encoding")) {
+                        chunked = value.toLowerCase(Locale.ENGLISH).endsWith("chunked");
+                    } else if (name.equals("connection")) {
+                        if (value.toLowerCase(Locale.ENGLISH).contains("close"))
+                            reusable = false;
+                    }
+                }
+                if (chunked) contentLength = -1;
+                
+                // The connection is closed with the error response unread.
+                if (status < 200 || status >= 300)
+                    throw new IOException("Server returned HTTP response code: " + status + " for URL: " + remoteEntity);
+                response = new ResponseInputStream(pool, socket, contentLength, chunked, reusable);
+                return response;
+            } catch (final IOException e) {
+                discard(pool, socket);
+                throw e;
+            } catch (final RuntimeException e) {
+                discard(pool, socket);
+                throw e;
+            }
+        }
+        
+        /** Remote entity URL. */
+        private final URL remoteEntity;
+        /** Host pool. */
+        private final HostPool pool;
+        /** Leased socket. */
+        private final PooledSocket socket;
+        /** Request body. */
+        private final ChunkedOutputStream requestBody;
+        /**
+         * Guards reading the response. A lock is used instead of a monitor
+         * because the response is read with blocking socket I/O.
+         */
+        private final Lock responseLock = new ReentrantLock();
+        /** Response body. Null until requested. */
+        private InputStream response = null;
+    }
+    
+    /**
+     * Create a new pooled HTTP transport with the default maximum number of
+     * connections per host and keep-alive timeout, using the timeout
+     * provided by {@link MslControl} for each request.
+     * 
+     * @see #DEFAULT_MAX_CONNECTIONS_PER_HOST
+     * @see #DEFAULT_KEEP_ALIVE_TIMEOUT
+     */
+    public PooledHttpTransport() {
+        this(DEFAULT_MAX_CONNECTIONS_PER_HOST, 0, 0, DEFAULT_KEEP_ALIVE_TIMEOUT);
+    }
+    
+    /**
+     * <p>Create a new pooled HTTP transport.</p>
+     * 
+     * <p>A connect or read timeout of zero uses the timeout provided by
+     * {@link MslControl} for each request.</p>
+     * 
+     * @param maxConnectionsPerHost maximum number of connections in use to a
+     *        single host.
+     * @param connectTimeout connect timeout in milliseconds, also used when
+     *        waiting for a connection to become available. May be zero.
+     * @param readTimeout read timeout in milliseconds. May be zero.
+     * @param keepAliveTimeout maximum time in milliseconds an idle connection
+     *        is kept open.
+     * @throws IllegalArgumentException if the maximum number of connections
+     *         is less than one or a timeout is negative.
+     */
+    public PooledHttpTransport(final int maxConnectionsPerHost, final int connectTimeout, final int readTimeout, final long keepAliveTimeout) {
+        if (maxConnectionsPerHost < 1)
+            throw new IllegalArgumentException("Maximum connections per host " + maxConnectionsPerHost + " must be positive.");
+        if (connectTimeout < 0 || readTimeout < 0 || keepAliveTimeout < 0)
+            throw new IllegalArgumentException("Timeouts must be non-negative.");
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+    
+    /* (non-Javadoc)
+     * @see com.netflix.msl.msg.Transport#openConnection(java.net.URL, int)
+     */
+    @Override
+    public Connection openConnection(final URL remoteEntity, final int timeout) throws IOException {
+        if (closed)
+            throw new IOException("Transport already closed.");
+        final String protocol = remoteEntity.getProtocol().toLowerCase(Locale.ENGLISH);
+        if (!isDirect(protocol, remoteEntity))
+            return fallback.openConnection(remoteEntity, timeout);
+        
+        final int connectTimeout = (this.connectTimeout > 0) ? this.connectTimeout : timeout;
+        final int readTimeout = (this.readTimeout > 0) ? this.readTimeout : timeout;
+        final int port = (remoteEntity.getPort() != -1) ? remoteEntity.getPort() : remoteEntity.getDefaultPort();
+        final String key = protocol + "://" + remoteEntity.getHost().toLowerCase(Locale.ENGLISH) + ":" + port;
+        HostPool pool = pools.get(key);
+        if (pool == null) {
+            final HostPool newPool = new HostPool(maxConnectionsPerHost);
+            pool = pools.putIfAbsent(key, newPool);
+            if (pool == null) pool = newPool;
+        }
+        
+        // Wait for a connection to become available. A zero timeout waits
+        // indefinitely, as it does for a URL connection.
+        try {
+            if (connectTimeout == 0)
+                pool.permits.acquire();
+            else if (!pool.permits.tryAcquire(connectTimeout, TimeUnit.MILLISECONDS))
+                throw new SocketTimeoutException("Timed out waiting for a connection to " + key + ".");
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a connection to " + key + ".");
+        }
+        
+        PooledSocket socket = null;
+        try {
+            socket = takeIdle(pool);
+            if (socket == null)
+                socket = connect(protocol, remoteEntity.getHost(), port, connectTimeout);
+            socket.socket.setSoTimeout(readTimeout);
+            return new HttpConnection(remoteEntity, pool, socket);
+        } catch (final IOException e) {
+            if (socket != null) socket.closeQuietly();
+            pool.permits.release();
+            throw e;
+        } catch (final RuntimeException e) {
+            if (socket != null) socket.closeQuietly();
+            pool.permits.release();
+            throw e;
+        }
+    }
+    
+    /**
+     * @return the number of idle connections across all hosts.
+     */
+    public int getIdleConnectionCount() {
+        int count = 0;
+        for (final HostPool pool : pools.values()) {
+            synchronized (pool.idle) {
+                count += pool.idle.size();
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Close all idle connections. Connections in use are closed when they
+     * are released. No new connections may be opened.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (final HostPool pool : pools.values())
+            closeIdle(pool);
+    }
+    
+    /**
+     * Return the most recently used idle connection that is still usable,
+     * closing any expired or stale idle connections found along the way.
+     * 
+     * @param pool the host pool.
+     * @return an idle connection or {@code null} if none is available.
+     */
+    private PooledSocket takeIdle(final HostPool pool) {
+        final long now = System.currentTimeMillis();
+        while (true) {
+            final PooledSocket socket;
+            synchronized (pool.idle) {
+                socket = pool.idle.pollLast();
+            }
+            if (socket == null)
+                return null;
+            if (now - socket.idleSince <= keepAliveTimeout && !isStale(socket))
+                return socket;
+            socket.closeQuietly();
+        }
+    }
+    
+    /**
+     * Open a new connection.
+     * 
+     * @param protocol the protocol.
+     * @param host the host.
+     * @param port the port.
+     * @param connectTimeout connect timeout in milliseconds.
+     * @return the connected socket.
+     * @throws IOException if the connection cannot be established.
+     */
+    private static PooledSocket connect(final String protocol, final String host, final int port, final int connectTimeout) throws IOException {
+        // Open the socket through a channel so it can be checked with a
+        // non-blocking read while idle.
+        final SocketChannel channel = SocketChannel.open();
+        final Socket socket = channel.socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            if (!HTTPS.equals(protocol))
+                return new PooledSocket(socket, channel);
+            
+            final SSLSocketFactory factory = (SSLSocketFactory)SSLSocketFactory.getDefault();
+            final SSLSocket sslSocket = (SSLSocket)factory.createSocket(socket, host, port, true);
+            final SSLParameters params = sslSocket.getSSLParameters();
+            params.setEndpointIdentificationAlgorithm("HTTPS");
+            sslSocket.setSSLParameters(params);
+            sslSocket.setSoTimeout(connectTimeout);
+            sslSocket.startHandshake();
+            return new PooledSocket(sslSocket, channel);
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Returns true if the request should be made over a direct, pooled
+     * connection. Other requests are made by the fallback transport.
+     * 
+     * @param protocol the lowercase protocol.
+     * @param remoteEntity remote entity URL.
+     * @return true if the request should use a pooled connection.
+     */
+    private static boolean isDirect(final String protocol, final URL remoteEntity) {
+        if (!HTTP.equals(protocol) && !HTTPS.equals(protocol))
+            return false;
+        final ProxySelector selector = ProxySelector.getDefault();
+        if (selector == null)
+            return true;
+        try {
+            for (final Proxy proxy : selector.select(remoteEntity.toURI())) {
+                if (!Proxy.Type.DIRECT.equals(proxy.type()))
+                    return false;
+            }
+            return true;
+        } catch (final URISyntaxException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * <p>Returns true if an idle connection can no longer be used, because
+     * the remote entity closed it or unexpectedly sent data.</p>
+     * 
+     * <p>The underlying socket channel is read once without blocking. An
+     * idle connection should have nothing to read, so either the end of the
+     * stream or any data, such as a TLS close notification, means it cannot
+     * be reused. This costs a single system call, so it is done on every
+     * reuse.</p>
+     * 
+     * @param socket the idle connection.
+     * @return true if the connection is stale.
+     */
+    private static boolean isStale(final PooledSocket socket) {
+        if (socket.socket.isClosed() || socket.socket.isInputShutdown() || socket.socket.isOutputShutdown())
+            return true;
+        try {
+            if (socket.in.available() > 0)
+                return true;
+            socket.channel.configureBlocking(false);
+            try {
+                return socket.channel.read(ByteBuffer.allocate(1)) != 0;
+            } finally {
+                socket.channel.configureBlocking(true);
+            }
+        } catch (final IOException e) {
+            return true;
+        }
+    }
+    
+    /**
+     * Return a connection to the pool after its response has been read.
+     * 
+     * @param pool the host pool.
+     * @param socket the connection.
+     */
+    private void release(final HostPool pool, final PooledSocket socket) {
+        socket.idleSince = System.currentTimeMillis();
+        synchronized (pool.idle) {
+            pool.idle.addLast(socket);
+        }
+        pool.permits.release();
+        if (closed) closeIdle(pool);
+    }
+    
+    /**
+     * Close a connection that cannot be reused.
+     * 
+     * @param pool the host pool.
+     * @param socket the connection.
+     */
+    private static void discard(final HostPool pool, final PooledSocket socket) {
+        if (socket.socket.isClosed()) return;
+        socket.closeQuietly();
+        pool.permits.release();
+    }
+    
+    /**
+     * Close all idle connections of a host pool.
+     * 
+     * @param pool the host pool.
+     */
+    private static void closeIdle(final HostPool pool) {
+        final List<PooledSocket> sockets;
+        synchronized (pool.idle) {
+            sockets = new ArrayList<PooledSocket>(pool.idle);
+            pool.idle.clear();
+        }
+        for (final PooledSocket socket : sockets)
+            socket.closeQuietly();
+    }
+    
+    /**
+     * Read an HTTP response status line.
+     * 
+     * @param in the socket input stream.
+     * @return the status code.
+     * @throws IOException if the status line cannot be read or is invalid.
+     */
+    private static int readStatus(final InputStream in) throws IOException {
+        final String line = readLine(in);
+        if (line == null)
+            throw new IOException("Connection closed before the response was received.");
+        final String[] parts = line.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/"))
+            throw new IOException("Invalid response status line " + line + ".");
+        try {
+            return Integer.parseInt(parts[1]);
+        } catch (final NumberFormatException e) {
+            throw new IOException("Invalid response status line " + line + ".", e);
+        }
+    }
+    
+    /**
+     * Read HTTP header lines up to and including the empty line ending them.
+     * 
+     * @param in the socket input stream.
+     * @return the header lines.
+     * @throws IOException if the headers cannot be read.
+     */
+    private static List<String> readHeaders(final InputStream in) throws IOException {
+        final List<String> headers = new ArrayList<String>();
+        while (true) {
+            final String line = readLine(in);
+            if (line == null)
+                throw new IOException("Connection closed while reading the response headers.");
+            if (line.isEmpty())
+                return headers;
+            headers.add(line);
+        }
+    }
+    
+    /**
+     * Read the size line of a response body chunk.
+     * 
+     * @param in the socket input stream.
+     * @return the chunk size.
+     * @throws IOException if the chunk size cannot be read or is invalid.
+     */
+    private static long readChunkSize(final InputStream in) throws IOException {
+        final String line = readLine(in);
+        if (line == null)
+            throw new IOException("Unexpected end of response body.");
+        final int semicolon = line.indexOf(';');
+        final String size = ((semicolon == -1) ? line : line.substring(0, semicolon)).trim();
+        try {
+            final long chunkSize = Long.parseLong(size, 16);
+            if (chunkSize < 0)
+                throw new IOException("Invalid chunk size " + line + ".");
+            return chunkSize;
+        } catch (final NumberFormatException e) {
+            throw new IOException("Invalid chunk size " + line + ".", e);
+        }
+    }
+    
+    /**
+     * Read and discard the trailer lines following the last chunk.
+     * 
+     * @param in the socket input stream.
+     * @throws IOException if the trailers cannot be read.
+     */
+    private static void readTrailers(final InputStream in) throws IOException {
+        readHeaders(in);
+    }
+    
+    /**
+     * Read the line terminator following chunk data.
+     * 
+     * @param in the socket input stream.
+     * @throws IOException if the line terminator cannot be read or is
+     *         invalid.
+     */
+    private static void readCrlf(final InputStream in) throws IOException {
+        final String line = readLine(in);
+        if (line == null || !line.isEmpty())
+            throw new IOException("Invalid chunk terminator.");
+    }
+    
+    /**
+     * Read a line terminated by CRLF or LF.
+     * 
+     * @param in the socket input stream.
+     * @return the line without its terminator or {@code null} if the end of
+     *         the stream was reached before any data.
+     * @throws IOException if the line cannot be read or is too long.
+     */
+    private static String readLine(final InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (true) {
+            final int b = in.read();
+            if (b == -1) {
+                if (line.size() == 0) return null;
+                throw new IOException("Unexpected end of stream in line.");
+            }
+            if (b == '\n') {
+                final byte[] bytes = line.toByteArray();
+                final int length = (bytes.length > 0 && bytes[bytes.length - 1] == '\r') ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, length, HEADER_CHARSET);
+            }
+            if (line.size() >= MAX_LINE_LENGTH)
+                throw new IOException("Line exceeds " + MAX_LINE_LENGTH + " bytes.");
+            line.write(b);
+        }
+    }
+    
+    /** Maximum number of connections in use per host. */
+    private final int maxConnectionsPerHost;
+    /** Connect timeout in milliseconds or zero. */
+    private final int connectTimeout;
+    /** Read timeout in milliseconds or zero. */
+    private final int readTimeout;
+    /** Maximum idle time in milliseconds. */
+    private final long keepAliveTimeout;
+    
+    /** Transport for requests that are not pooled. */
+    private final Transport fallback = new URLConnectionTransport();
+    /** Host pools by protocol, host, and port. */
+    private final ConcurrentMap<String,HostPool> pools = new ConcurrentHashMap<String,HostPool>();
+    /** True once closed. */
+    private volatile boolean closed = false;
+}
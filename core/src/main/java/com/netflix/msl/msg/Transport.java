@@ -0,0 +1,67 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.msg;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+
+/**
+ * <p>A transport opens connections to remote entities identified by URL.
+ * {@link MslControl} uses a transport to send each request message to a
+ * remote entity and receive the response.</p>
+ * 
+ * Implementations must be thread-safe.
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ * @see MslControl#setTransport(Transport)
+ */
+public interface Transport {
+    /**
+     * <p>A connection carrying a single request and its response.</p>
+     * 
+     * <p>The request is written to the output stream. The input stream is
+     * not requested until the application needs to read the response, and
+     * requesting it completes the request. Closing both streams releases the
+     * connection.</p>
+     */
+    public static interface Connection {
+        /**
+         * @return the output stream the request is written to.
+         * @throws IOException if the output stream cannot be opened.
+         */
+        public OutputStream getOutputStream() throws IOException;
+        
+        /**
+         * @return the input stream the response is read from.
+         * @throws IOException if the request cannot be completed or the
+         *         response cannot be received.
+         */
+        public InputStream getInputStream() throws IOException;
+    }
+    
+    /**
+     * Open a connection to the remote entity. The connection should be
+     * established before returning.
+     * 
+     * @param remoteEntity remote entity URL.
+     * @param timeout connect and read timeout in milliseconds.
+     * @return the connection.
+     * @throws IOException if the connection cannot be opened.
+     */
+    public Connection openConnection(final URL remoteEntity, final int timeout) throws IOException;
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.msg;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * <p>A transport that opens a new {@link URLConnection} for every request.
+ * Any connection reuse is left to the URL connection implementation.</p>
+ * 
+ * <p>{@link PooledHttpTransport} uses this transport for requests it does
+ * not pool.</p>
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+public class URLConnectionTransport implements Transport {
+    /**
+     * A connection backed by a URL connection.
+     */
+    private static class URLConnectionConnection implements Connection {
+        /**
+         * Create a new connection.
+         * 
+         * @param connection the connected URL connection.
+         */
+        public URLConnectionConnection(final URLConnection connection) {
+            this.connection = connection;
+        }
+        
+        /* (non-Javadoc)
+         * @see com.netflix.msl.msg.Transport.Connection#getOutputStream()
+         */
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return connection.getOutputStream();
+        }
+        
+        /* (non-Javadoc)
+         * @see com.netflix.msl.msg.Transport.Connection#getInputStream()
+         */
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return connection.getInputStream();
+        }
+        
+        /** URL connection. */
+        private final URLConnection connection;
+    }
+    
+    /* (non-Javadoc)
+     * @see com.netflix.msl.msg.Transport#openConnection(java.net.URL, int)
+     */
+    @Override
+    public Connection openConnection(final URL remoteEntity, final int timeout) throws IOException {
+        final URLConnection connection = remoteEntity.openConnection();
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        connection.setDoOutput(true);
+        connection.setDoInput(true);
+        connection.connect();
+        return new URLConnectionConnection(connection);
+    }
+}
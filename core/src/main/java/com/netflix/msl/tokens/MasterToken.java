@@ -264,29 +264,129 @@ public class MasterToken implements JSONString {
      *         serial number is out of range.
      */
     public MasterToken(final MslContext ctx, final JSONObject masterTokenJO) throws MslEncodingException, MslCryptoException, MslException {
-        this.ctx = ctx;
-        
-        // Grab the crypto context.
-        final ICryptoContext cryptoContext = ctx.getMslCryptoContext();
+        this(ctx, getTokendata(masterTokenJO), getSignature(masterTokenJO));
+    }
+    
+    /**
+     * <p>Return the master token represented by the provided JSON.</p>
+     * 
+     * <p>If the MSL context provides a token cache, a previously verified and
+     * decrypted master token with identical token data and signature is
+     * returned from the cache. Otherwise a new master token is created and,
+     * if verified and decrypted, added to the cache.</p>
+     * 
+     * @param ctx MSL context.
+     * @param masterTokenJO master token JSON object.
+     * @return the master token.
+     * @throws MslEncodingException if there is an error parsing the JSON,
+     *         the token data is missing or invalid, the signature is missing
+     *         or invalid, or the session data is missing or invalid.
+     * @throws MslCryptoException if there is an error verifying the token data
+     *         or extracting the session keys.
+     * @throws MslException if the expiration timestamp occurs before the
+     *         renewal window, or the sequence number is out of range, or the
+     *         serial number is out of range.
+     * @see MslContext#getTokenCache()
+     */
+    public static MasterToken parseMasterToken(final MslContext ctx, final JSONObject masterTokenJO) throws MslEncodingException, MslCryptoException, MslException {
+        return parseMasterToken(ctx, getTokendata(masterTokenJO), getSignature(masterTokenJO));
+    }
+    
+    /**
+     * <p>Return the master token with the provided raw token data and
+     * signature, as carried by binary encoded messages.</p>
+     * 
+     * <p>The token cache is used the same way as by
+     * {@link #parseMasterToken(MslContext, JSONObject)}.</p>
+     * 
+     * @param ctx MSL context.
+     * @param tokendata raw token data.
+     * @param signature raw token signature.
+     * @return the master token.
+     * @throws MslEncodingException if the token data is missing or there is
+     *         an error parsing the token data, or the session data is missing
+     *         or invalid.
+     * @throws MslCryptoException if there is an error verifying the token data
+     *         or extracting the session keys.
+     * @throws MslException if the expiration timestamp occurs before the
+     *         renewal window, or the sequence number is out of range, or the
+     *         serial number is out of range.
+     * @see MslContext#getTokenCache()
+     */
+    public static MasterToken parseMasterToken(final MslContext ctx, final byte[] tokendata, final byte[] signature) throws MslEncodingException, MslCryptoException, MslException {
+        if (tokendata.length == 0)
+            throw new MslEncodingException(MslError.MASTERTOKEN_TOKENDATA_MISSING, "mastertoken");
+        final TokenCache cache = ctx.getTokenCache();
+        if (cache == null)
+            return new MasterToken(ctx, tokendata, signature);
         
-        // Verify the JSON representation.
+        final MasterToken cached = cache.getMasterToken(tokendata, signature);
+        if (cached != null)
+            return cached;
+        final MasterToken masterToken = new MasterToken(ctx, tokendata, signature);
+        cache.putMasterToken(masterToken);
+        return masterToken;
+    }
+    
+    /**
+     * @param masterTokenJO master token JSON object.
+     * @return the decoded token data.
+     * @throws MslEncodingException if there is an error parsing the JSON or
+     *         the token data is missing or invalid.
+     */
+    private static byte[] getTokendata(final JSONObject masterTokenJO) throws MslEncodingException {
         try {
-            try {
-                tokendata = DatatypeConverter.parseBase64Binary(masterTokenJO.getString(KEY_TOKENDATA));
-            } catch (final IllegalArgumentException e) {
-                throw new MslEncodingException(MslError.MASTERTOKEN_TOKENDATA_INVALID, "mastertoken " + masterTokenJO.toString(), e);
-            }
+            final byte[] tokendata = DatatypeConverter.parseBase64Binary(masterTokenJO.getString(KEY_TOKENDATA));
             if (tokendata == null || tokendata.length == 0)
                 throw new MslEncodingException(MslError.MASTERTOKEN_TOKENDATA_MISSING, "mastertoken " + masterTokenJO.toString());
-            try {
-                signature = DatatypeConverter.parseBase64Binary(masterTokenJO.getString(KEY_SIGNATURE));
-            } catch (final IllegalArgumentException e) {
-                throw new MslEncodingException(MslError.MASTERTOKEN_SIGNATURE_INVALID, "mastertoken " + masterTokenJO.toString(), e);
-            }
-            verified = cryptoContext.verify(tokendata, signature);
+            return tokendata;
+        } catch (final IllegalArgumentException e) {
+            throw new MslEncodingException(MslError.MASTERTOKEN_TOKENDATA_INVALID, "mastertoken " + masterTokenJO.toString(), e);
+        } catch (final JSONException e) {
+            throw new MslEncodingException(MslError.JSON_PARSE_ERROR, "mastertoken " + masterTokenJO.toString(), e);
+        }
+    }
+    
+    /**
+     * @param masterTokenJO master token JSON object.
+     * @return the decoded signature.
+     * @throws MslEncodingException if there is an error parsing the JSON or
+     *         the signature is invalid.
+     */
+    private static byte[] getSignature(final JSONObject masterTokenJO) throws MslEncodingException {
+        try {
+            return DatatypeConverter.parseBase64Binary(masterTokenJO.getString(KEY_SIGNATURE));
+        } catch (final IllegalArgumentException e) {
+            throw new MslEncodingException(MslError.MASTERTOKEN_SIGNATURE_INVALID, "mastertoken " + masterTokenJO.toString(), e);
         } catch (final JSONException e) {
             throw new MslEncodingException(MslError.JSON_PARSE_ERROR, "mastertoken " + masterTokenJO.toString(), e);
         }
+    }
+    
+    /**
+     * Create a new master token from the raw token data and signature.
+     * 
+     * @param ctx MSL context.
+     * @param tokendata raw token data.
+     * @param signature raw token signature.
+     * @throws MslEncodingException if there is an error parsing the token
+     *         data or the session data is missing or invalid.
+     * @throws MslCryptoException if there is an error verifying the token data
+     *         or extracting the session keys.
+     * @throws MslException if the expiration timestamp occurs before the
+     *         renewal window, or the sequence number is out of range, or the
+     *         serial number is out of range.
+     */
+    private MasterToken(final MslContext ctx, final byte[] tokendata, final byte[] signature) throws MslEncodingException, MslCryptoException, MslException {
+        this.ctx = ctx;
+        
+        // Grab the crypto context.
+        final ICryptoContext cryptoContext = ctx.getMslCryptoContext();
+        
+        // Verify the token data.
+        this.tokendata = tokendata;
+        this.signature = signature;
+        verified = cryptoContext.verify(tokendata, signature);
         
         // Pull the token data.
         final String tokenDataJson = new String(tokendata, MslConstants.DEFAULT_CHARSET);
@@ -549,7 +649,24 @@ public class MasterToken implements JSONString {
     
     /** Token is verified. */
     private final boolean verified;
+    
+    /** Cached hash code. Zero if not yet computed. */
+    private int hashCode = 0;
 
+    /**
+     * @return the raw token data. The signature covers these bytes.
+     */
+    public byte[] getTokendata() {
+        return tokendata;
+    }
+    
+    /**
+     * @return the raw token signature.
+     */
+    public byte[] getSignature() {
+        return signature;
+    }
+    
     /* (non-Javadoc)
      * @see org.json.JSONString#toJSONString()
      */
@@ -625,6 +742,13 @@ public class MasterToken implements JSONString {
      */
     @Override
     public int hashCode() {
-        return (String.valueOf(serialNumber) + ":" + String.valueOf(sequenceNumber) + ":" + String.valueOf(expiration)).hashCode();
+        // Master tokens are used as map keys on every request, so compute
+        // the hash code once. A benign race may compute it more than once.
+        int h = hashCode;
+        if (h == 0) {
+            h = (String.valueOf(serialNumber) + ":" + String.valueOf(sequenceNumber) + ":" + String.valueOf(expiration)).hashCode();
+            hashCode = h;
+        }
+        return h;
     }
 }
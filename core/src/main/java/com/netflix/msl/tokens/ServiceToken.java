@@ -124,22 +124,30 @@ public class ServiceToken implements JSONString {
      * @throws MslEncodingException if there is a problem parsing the JSON.
      */
     private static ICryptoContext selectCryptoContext(final JSONObject serviceTokenJO, final Map<String,ICryptoContext> cryptoContexts) throws MslEncodingException {
+        return selectCryptoContext(getTokendata(serviceTokenJO, null, null), cryptoContexts);
+    }
+    
+    /**
+     * <p>Select the appropriate crypto context for the service token with the
+     * provided raw token data.</p>
+     * 
+     * @param tokendata raw token data.
+     * @param cryptoContexts the map of service token names onto crypto
+     *        contexts used to decrypt and verify service tokens.
+     * @return the correct crypto context for the service token or null.
+     * @throws MslEncodingException if there is a problem parsing the JSON.
+     * @see #selectCryptoContext(JSONObject, Map)
+     */
+    private static ICryptoContext selectCryptoContext(final byte[] tokendata, final Map<String,ICryptoContext> cryptoContexts) throws MslEncodingException {
+        final String tokenDataJson = new String(tokendata, MslConstants.DEFAULT_CHARSET);
         try {
-            final byte[] tokendata;
-            try {
-                tokendata = DatatypeConverter.parseBase64Binary(serviceTokenJO.getString(KEY_TOKENDATA));
-            } catch (final IllegalArgumentException e) {
-                throw new MslEncodingException(MslError.SERVICETOKEN_TOKENDATA_INVALID, "servicetoken " + serviceTokenJO.toString(), e);
-            }
-            if (tokendata == null || tokendata.length == 0)
-                throw new MslEncodingException(MslError.SERVICETOKEN_TOKENDATA_MISSING, "servicetoken " + serviceTokenJO.toString());
-            final JSONObject tokenDataJO = new JSONObject(new String(tokendata, MslConstants.DEFAULT_CHARSET));
+            final JSONObject tokenDataJO = new JSONObject(tokenDataJson);
             final String name = tokenDataJO.getString(KEY_NAME);
             if (cryptoContexts.containsKey(name))
                 return cryptoContexts.get(name);
             return cryptoContexts.get("");
         } catch (final JSONException e) {
-            throw new MslEncodingException(MslError.JSON_PARSE_ERROR, "servicetoken " + serviceTokenJO.toString(), e);
+            throw new MslEncodingException(MslError.JSON_PARSE_ERROR, "servicetokendata " + tokenDataJson, e);
         }
     }
     
@@ -294,23 +302,155 @@ public class ServiceToken implements JSONString {
      *         error uncompressing the data.
      */
     public ServiceToken(final MslContext ctx, final JSONObject serviceTokenJO, final MasterToken masterToken, final UserIdToken userIdToken, final ICryptoContext cryptoContext) throws MslCryptoException, MslEncodingException, MslException {
-        // Verify the JSON representation.
+        this(getTokendata(serviceTokenJO, masterToken, userIdToken), getSignature(serviceTokenJO, masterToken, userIdToken), masterToken, userIdToken, cryptoContext);
+    }
+    
+    /**
+     * <p>Return the service token represented by the provided JSON object.
+     * The crypto context is selected from the provided map of crypto contexts
+     * as described for
+     * {@link #ServiceToken(MslContext, JSONObject, MasterToken, UserIdToken, Map)}.</p>
+     * 
+     * <p>If the MSL context provides a token cache, a previously verified and
+     * decrypted service token with identical token data and signature, parsed
+     * against master and user ID tokens with the same serial numbers and
+     * using the same crypto context, is returned from the cache. Otherwise a
+     * new service token is created and, if verified and decrypted, added to
+     * the cache.</p>
+     * 
+     * @param ctx the MSL context.
+     * @param serviceTokenJO the JSON object.
+     * @param masterToken the master token. May be null.
+     * @param userIdToken the user ID token. May be null.
+     * @param cryptoContexts a map of service token names onto crypto contexts.
+     * @return the service token.
+     * @throws MslEncodingException if there is a problem parsing the JSON.
+     * @throws MslCryptoException if there is an error decrypting or verifying
+     *         the token data.
+     * @throws MslException if the service token is bound to a master token or
+     *         user ID token and the provided tokens are null or the serial
+     *         numbers do not match, or if bound to a user ID token but not to
+     *         a master token, or if the service data is missing, or if the
+     *         compression algorithm is not known or there is an error
+     *         uncompressing the data.
+     * @see MslContext#getTokenCache()
+     */
+    public static ServiceToken parseServiceToken(final MslContext ctx, final JSONObject serviceTokenJO, final MasterToken masterToken, final UserIdToken userIdToken, final Map<String,ICryptoContext> cryptoContexts) throws MslEncodingException, MslCryptoException, MslException {
+        return parseServiceToken(ctx, getTokendata(serviceTokenJO, masterToken, userIdToken), getSignature(serviceTokenJO, masterToken, userIdToken), masterToken, userIdToken, cryptoContexts);
+    }
+    
+    /**
+     * <p>Return the service token with the provided raw token data and
+     * signature, as carried by binary encoded messages.</p>
+     * 
+     * <p>The crypto context is selected and the token cache is used the same
+     * way as by
+     * {@link #parseServiceToken(MslContext, JSONObject, MasterToken, UserIdToken, Map)}.</p>
+     * 
+     * @param ctx the MSL context.
+     * @param tokendata raw token data.
+     * @param signature raw token signature.
+     * @param masterToken the master token. May be null.
+     * @param userIdToken the user ID token. May be null.
+     * @param cryptoContexts a map of service token names onto crypto contexts.
+     * @return the service token.
+     * @throws MslEncodingException if the token data is missing or there is
+     *         a problem parsing the token data.
+     * @throws MslCryptoException if there is an error decrypting or verifying
+     *         the token data.
+     * @throws MslException if the service token is bound to a master token or
+     *         user ID token and the provided tokens are null or the serial
+     *         numbers do not match, or if bound to a user ID token but not to
+     *         a master token, or if the service data is missing, or if the
+     *         compression algorithm is not known or there is an error
+     *         uncompressing the data.
+     * @see MslContext#getTokenCache()
+     */
+    public static ServiceToken parseServiceToken(final MslContext ctx, final byte[] tokendata, final byte[] signature, final MasterToken masterToken, final UserIdToken userIdToken, final Map<String,ICryptoContext> cryptoContexts) throws MslEncodingException, MslCryptoException, MslException {
+        if (tokendata.length == 0)
+            throw new MslEncodingException(MslError.SERVICETOKEN_TOKENDATA_MISSING, "servicetoken").setEntity(masterToken).setUser(userIdToken);
+        final ICryptoContext cryptoContext = selectCryptoContext(tokendata, cryptoContexts);
+        final TokenCache cache = ctx.getTokenCache();
+        if (cache == null)
+            return new ServiceToken(tokendata, signature, masterToken, userIdToken, cryptoContext);
+        
+        final ServiceToken cached = cache.getServiceToken(tokendata, signature, masterToken, userIdToken, cryptoContext);
+        if (cached != null)
+            return cached;
+        final ServiceToken serviceToken = new ServiceToken(tokendata, signature, masterToken, userIdToken, cryptoContext);
+        cache.putServiceToken(serviceToken, masterToken, userIdToken, cryptoContext);
+        return serviceToken;
+    }
+    
+    /**
+     * @param serviceTokenJO the JSON object.
+     * @param masterToken the master token. May be null.
+     * @param userIdToken the user ID token. May be null.
+     * @return the decoded token data.
+     * @throws MslEncodingException if there is an error parsing the JSON or
+     *         the token data is missing or invalid.
+     */
+    private static byte[] getTokendata(final JSONObject serviceTokenJO, final MasterToken masterToken, final UserIdToken userIdToken) throws MslEncodingException {
         try {
-            try {
-                tokendata = DatatypeConverter.parseBase64Binary(serviceTokenJO.getString(KEY_TOKENDATA));
-            } catch (final IllegalArgumentException e) {
-                throw new MslEncodingException(MslError.SERVICETOKEN_TOKENDATA_INVALID, "servicetoken " + serviceTokenJO.toString(), e).setEntity(masterToken).setUser(userIdToken);
-            }
+            final byte[] tokendata = DatatypeConverter.parseBase64Binary(serviceTokenJO.getString(KEY_TOKENDATA));
             if (tokendata == null || tokendata.length == 0)
                 throw new MslEncodingException(MslError.SERVICETOKEN_TOKENDATA_MISSING, "servicetoken " + serviceTokenJO.toString()).setEntity(masterToken).setUser(userIdToken);
-            try {
-                signature = DatatypeConverter.parseBase64Binary(serviceTokenJO.getString(KEY_SIGNATURE));
-            } catch (final IllegalArgumentException e) {
-                throw new MslEncodingException(MslError.SERVICETOKEN_SIGNATURE_INVALID, "servicetoken " + serviceTokenJO.toString(), e).setEntity(masterToken).setUser(userIdToken);
-            }
-            verified = (cryptoContext != null) ? cryptoContext.verify(tokendata, signature) : false;
+            return tokendata;
+        } catch (final IllegalArgumentException e) {
+            throw new MslEncodingException(MslError.SERVICETOKEN_TOKENDATA_INVALID, "servicetoken " + serviceTokenJO.toString(), e).setEntity(masterToken).setUser(userIdToken);
         } catch (final JSONException e) {
             throw new MslEncodingException(MslError.JSON_PARSE_ERROR, "servicetoken " + serviceTokenJO.toString(), e).setEntity(masterToken).setUser(userIdToken);
+        }
+    }
+    
+    /**
+     * @param serviceTokenJO the JSON object.
+     * @param masterToken the master token. May be null.
+     * @param userIdToken the user ID token. May be null.
+     * @return the decoded signature.
+     * @throws MslEncodingException if there is an error parsing the JSON or
+     *         the signature is invalid.
+     */
+    private static byte[] getSignature(final JSONObject serviceTokenJO, final MasterToken masterToken, final UserIdToken userIdToken) throws MslEncodingException {
+        try {
+            return DatatypeConverter.parseBase64Binary(serviceTokenJO.getString(KEY_SIGNATURE));
+        } catch (final IllegalArgumentException e) {
+            throw new MslEncodingException(MslError.SERVICETOKEN_SIGNATURE_INVALID, "servicetoken " + serviceTokenJO.toString(), e).setEntity(masterToken).setUser(userIdToken);
+        } catch (final JSONException e) {
+            throw new MslEncodingException(MslError.JSON_PARSE_ERROR, "servicetoken " + serviceTokenJO.toString(), e).setEntity(masterToken).setUser(userIdToken);
+        }
+    }
+    
+    /**
+     * <p>Construct a new service token from the raw token data and
+     * signature.</p>
+     * 
+     * @param tokendata raw token data.
+     * @param signature raw token signature.
+     * @param masterToken the master token. May be null.
+     * @param userIdToken the user ID token. May be null.
+     * @param cryptoContext the crypto context. May be null.
+     * @throws MslCryptoException if there is a problem decrypting or verifying
+     *         the token data.
+     * @throws MslEncodingException if there is a problem parsing the token
+     *         data.
+     * @throws MslException if the service token is bound to a master token or
+     *         user ID token and the provided tokens are null or the serial
+     *         numbers do not match, or if bound to a user ID token but not to
+     *         a master token, or if the service data is missing, or if the
+     *         service token master token serial number is out of range, or if
+     *         the service token user ID token serial number is out of range,
+     *         or if the compression algorithm is not known or there is an
+     *         error uncompressing the data.
+     * @see #ServiceToken(MslContext, JSONObject, MasterToken, UserIdToken, ICryptoContext)
+     */
+    private ServiceToken(final byte[] tokendata, final byte[] signature, final MasterToken masterToken, final UserIdToken userIdToken, final ICryptoContext cryptoContext) throws MslCryptoException, MslEncodingException, MslException {
+        this.tokendata = tokendata;
+        this.signature = signature;
+        
+        // Verify the token data.
+        try {
+            verified = (cryptoContext != null) ? cryptoContext.verify(tokendata, signature) : false;
         } catch (final MslCryptoException e) {
             e.setEntity(masterToken);
             throw e;
@@ -350,9 +490,10 @@ public class ServiceToken implements JSONString {
                 compressionAlgo = null;
             }
 
-            // If encrypted, and we were able to verify the data then we better
-            // be able to decrypt it. (An exception is thrown if decryption
-            // fails.)
+            // If verified, defer decryption and decompression until the
+            // service data is requested. Empty data marks the token for
+            // deletion and unencrypted, uncompressed data needs no further
+            // processing, so both are available immediately.
             final String data = tokenDataJO.getString(KEY_SERVICEDATA);
             if (verified) {
                 final byte[] ciphertext;
@@ -363,21 +504,17 @@ public class ServiceToken implements JSONString {
                 }
                 if (ciphertext == null)
                     throw new MslException(MslError.SERVICETOKEN_SERVICEDATA_INVALID, "servicetokendata " + tokenDataJson).setEntity(masterToken).setUser(userIdToken);
-                final byte[] compressedData = (encrypted && ciphertext.length > 0)
-                    ? cryptoContext.decrypt(ciphertext)
-                    : ciphertext;
-                servicedata = (compressionAlgo != null)
-                    ? MslUtils.uncompress(compressionAlgo, compressedData)
-                    : compressedData;
+                if (ciphertext.length == 0 || (!encrypted && compressionAlgo == null)) {
+                    servicedata = ciphertext;
+                } else {
+                    pendingServicedata = ciphertext;
+                    pendingCryptoContext = cryptoContext;
+                }
             } else {
                 servicedata = (data.isEmpty()) ? new byte[0] : null;
             }
         } catch (final JSONException e) {
             throw new MslEncodingException(MslError.JSON_PARSE_ERROR, "servicetokendata " + tokenDataJson, e).setEntity(masterToken).setUser(userIdToken);
-        } catch (final MslCryptoException e) {
-            e.setEntity(masterToken);
-            e.setUser(userIdToken);
-            throw e;
         }
         
         // Verify serial numbers.
@@ -395,9 +532,19 @@ public class ServiceToken implements JSONString {
     }
     
     /**
-     * @return true if the decrypted content is available. (Implies verified.)
+     * <p>Returns true if the decrypted content is available. (Implies
+     * verified.)</p>
+     * 
+     * <p>This will decrypt the service data if it has not already been
+     * decrypted. Service data that could not be decrypted or uncompressed
+     * is not available.</p>
+     * 
+     * @return true if the decrypted content is available.
+     * @see #getData()
      */
     public boolean isDecrypted() {
+        if (pendingServicedata != null)
+            decryptServicedata();
         return servicedata != null;
     }
     
@@ -432,18 +579,74 @@ public class ServiceToken implements JSONString {
     }
     
     /**
-     * Returns the service data if the token data was not encrypted or we were
-     * able to decrypt it.
+     * <p>Returns the service data if the token data was not encrypted or we
+     * were able to decrypt it.</p>
      * 
-     * Zero-length data indicates this token should be deleted.
+     * <p>Zero-length data indicates this token should be deleted.</p>
+     * 
+     * <p>The service data of a verified service token is decrypted and
+     * uncompressed the first time it is requested and then retained. If the
+     * verified service data cannot be decrypted or uncompressed, this returns
+     * null. {@link #decryptData()} reports the reason.</p>
      * 
      * @return the service data or null if we don't have it.
      * @see #isDeleted()
      */
     public byte[] getData() {
+        final byte[] data = servicedata;
+        if (data != null)
+            return data;
+        if (pendingServicedata != null)
+            decryptServicedata();
         return servicedata;
     }
     
+    /**
+     * <p>Returns the service data, decrypting and uncompressing it if that
+     * has not already been done.</p>
+     * 
+     * <p>Unlike {@link #getData()}, if the verified service data cannot be
+     * decrypted or uncompressed this and every later call throws the
+     * exception that occurred.</p>
+     * 
+     * @return the service data or null if the token was not verified.
+     * @throws MslCryptoException if the service data could not be decrypted.
+     * @throws MslException if the service data could not be uncompressed.
+     * @see #getData()
+     */
+    public byte[] decryptData() throws MslCryptoException, MslException {
+        final byte[] data = getData();
+        final MslException e = servicedataException;
+        if (e != null)
+            throw e;
+        return data;
+    }
+    
+    /**
+     * Decrypt and uncompress the pending service data, if that has not
+     * already been done by another thread. If that fails the exception is
+     * retained.
+     */
+    private synchronized void decryptServicedata() {
+        final byte[] ciphertext = pendingServicedata;
+        if (ciphertext == null)
+            return;
+        
+        try {
+            final byte[] compressedData = (encrypted)
+                ? pendingCryptoContext.decrypt(ciphertext)
+                : ciphertext;
+            servicedata = (compressionAlgo != null)
+                ? MslUtils.uncompress(compressionAlgo, compressedData)
+                : compressedData;
+        } catch (final MslException e) {
+            servicedataException = e;
+        } finally {
+            pendingCryptoContext = null;
+            pendingServicedata = null;
+        }
+    }
+    
     /**
      * Returns the serial number of the master token this service token is
      * bound to.
@@ -505,6 +708,20 @@ public class ServiceToken implements JSONString {
         return mtSerialNumber == -1 && uitSerialNumber == -1;
     }
     
+    /**
+     * @return the raw token data. The signature covers these bytes.
+     */
+    public byte[] getTokendata() {
+        return tokendata;
+    }
+    
+    /**
+     * @return the raw token signature.
+     */
+    public byte[] getSignature() {
+        return signature;
+    }
+    
     /** Token data. */
     private final byte[] tokendata;
     /** Token data signature. */
@@ -521,7 +738,13 @@ public class ServiceToken implements JSONString {
     /** Compression algorithm. */
     private final CompressionAlgorithm compressionAlgo;
     /** The service token data. */
-    private final byte[] servicedata;
+    private volatile byte[] servicedata;
+    /** Verified service data pending decryption and decompression. */
+    private volatile byte[] pendingServicedata = null;
+    /** Crypto context for the pending service data. */
+    private ICryptoContext pendingCryptoContext = null;
+    /** Exception thrown decrypting or uncompressing the service data. */
+    private volatile MslException servicedataException = null;
     
     /** Token is verified. */
     private final boolean verified;
@@ -551,7 +774,10 @@ public class ServiceToken implements JSONString {
             tokendataJO.put(KEY_NAME, name);
             tokendataJO.put(KEY_MASTER_TOKEN_SERIAL_NUMBER, mtSerialNumber);
             tokendataJO.put(KEY_USER_ID_TOKEN_SERIAL_NUMBER, uitSerialNumber);
-            tokendataJO.put(KEY_SERVICEDATA, DatatypeConverter.printBase64Binary(servicedata));
+            // Only service data that has already been decrypted is included.
+            final byte[] data = servicedata;
+            if (data != null)
+                tokendataJO.put(KEY_SERVICEDATA, DatatypeConverter.printBase64Binary(data));
             
             final JSONObject jsonObj = new JSONObject();
             jsonObj.put(KEY_TOKENDATA, tokendataJO);
@@ -0,0 +1,495 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.tokens;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.netflix.msl.crypto.ICryptoContext;
+
+/**
+ * <p>A bounded cache of verified and decrypted tokens, keyed by the raw
+ * token data and signature bytes and the serial numbers of the tokens they
+ * were bound to when parsed. Parsing a token found in the cache skips
+ * verification, decryption, and parsing of the token data.</p>
+ * 
+ * <p>Only verified and decrypted tokens that are not expired are cached, and
+ * a cached token is discarded once it expires. Service tokens are cached once
+ * verified, since their service data is decrypted on first use and retained
+ * by the cached service token. Service tokens do not expire
+ * themselves; a cached service token is discarded once the master token or
+ * user ID token it was parsed with expires. A cached service token is only
+ * returned if it is looked up with the same crypto context that was used to
+ * verify it.</p>
+ * 
+ * <p>Revocation is not checked by the cache; tokens returned from the cache
+ * are subject to the same revocation checks as freshly parsed tokens. Tokens
+ * known to be revoked can be removed from the cache.</p>
+ * 
+ * <p>Lookups do not lock the cache. When the cache is full the
+ * approximately least recently used token is discarded.</p>
+ * 
+ * <p>A token cache verifies tokens using the MSL crypto context of a single
+ * MSL context and must not be shared between MSL contexts.</p>
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+public class TokenCache {
+    /**
+     * Token cache key identifying a token by its raw bytes and the serial
+     * numbers of the tokens it was parsed with.
+     */
+    private static class Key {
+        /**
+         * Create a new key.
+         * 
+         * @param tokendata raw token data.
+         * @param signature raw token signature.
+         * @param mtSerialNumber master token serial number or -1.
+         * @param uitSerialNumber user ID token serial number or -1.
+         */
+        public Key(final byte[] tokendata, final byte[] signature, final long mtSerialNumber, final long uitSerialNumber) {
+            this.tokendata = tokendata;
+            this.signature = signature;
+            this.mtSerialNumber = mtSerialNumber;
+            this.uitSerialNumber = uitSerialNumber;
+            this.hashCode = Arrays.hashCode(tokendata) ^ Arrays.hashCode(signature) ^
+                Long.valueOf(mtSerialNumber).hashCode() ^ (31 * Long.valueOf(uitSerialNumber).hashCode());
+        }
+        
+        /* (non-Javadoc)
+         * @see java.lang.Object#equals(java.lang.Object)
+         */
+        @Override
+        public boolean equals(final Object obj) {
+            if (obj == this) return true;
+            if (!(obj instanceof Key)) return false;
+            final Key that = (Key)obj;
+            return hashCode == that.hashCode &&
+                mtSerialNumber == that.mtSerialNumber &&
+                uitSerialNumber == that.uitSerialNumber &&
+                Arrays.equals(tokendata, that.tokendata) &&
+                Arrays.equals(signature, that.signature);
+        }
+        
+        /* (non-Javadoc)
+         * @see java.lang.Object#hashCode()
+         */
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+        
+        /** Raw token data. */
+        private final byte[] tokendata;
+        /** Raw token signature. */
+        private final byte[] signature;
+        /** Master token serial number or -1. */
+        private final long mtSerialNumber;
+        /** User ID token serial number or -1. */
+        private final long uitSerialNumber;
+        /** Cached hash code. */
+        private final int hashCode;
+    }
+    
+    /**
+     * A cached service token and the crypto context used to verify it.
+     */
+    private static class ServiceTokenEntry {
+        /**
+         * Create a new service token entry.
+         * 
+         * @param serviceToken the service token.
+         * @param cryptoContext the crypto context.
+         */
+        public ServiceTokenEntry(final ServiceToken serviceToken, final ICryptoContext cryptoContext) {
+            this.serviceToken = serviceToken;
+            this.cryptoContext = cryptoContext;
+        }
+        
+        /** Service token. */
+        public final ServiceToken serviceToken;
+        /** Crypto context used to verify the service token. */
+        public final ICryptoContext cryptoContext;
+    }
+    
+    /**
+     * A cached value and the time it was last used.
+     */
+    private static class Stamped<V> {
+        /**
+         * Create a new stamped value.
+         * 
+         * @param value the value.
+         * @param stamp the time the value was last used.
+         */
+        public Stamped(final V value, final long stamp) {
+            this.value = value;
+            this.stamp = stamp;
+        }
+        
+        /** Value. */
+        public final V value;
+        /** Time the value was last used. */
+        public volatile long stamp;
+    }
+    
+    /**
+     * <p>An approximately least recently used map holding at most a fixed
+     * number of entries.</p>
+     * 
+     * <p>Entries are held in a {@link ConcurrentHashMap} and stamped from a
+     * logical clock each time they are used, so lookups do not take a lock.
+     * When an insert takes the map over capacity the entries are scanned and
+     * the one with the oldest stamp is evicted. Concurrent lookups and
+     * inserts may race with the scan, so the evicted entry is not always
+     * the least recently used and the map may briefly exceed its capacity.</p>
+     */
+    private static class LruMap<V> {
+        /**
+         * Create a new least recently used map.
+         * 
+         * @param capacity the maximum number of entries.
+         */
+        public LruMap(final int capacity) {
+            this.capacity = capacity;
+        }
+        
+        /**
+         * Return the value mapped to the provided key and mark it as the most
+         * recently used.
+         * 
+         * @param key the key.
+         * @return the value or {@code null} if none found.
+         */
+        public V get(final Key key) {
+            final Stamped<V> entry = entries.get(key);
+            if (entry == null)
+                return null;
+            entry.stamp = clock.incrementAndGet();
+            return entry.value;
+        }
+        
+        /**
+         * Map the provided key to the provided value, evicting the least
+         * recently used entries if the map is over capacity.
+         * 
+         * @param key the key.
+         * @param value the value.
+         */
+        public void put(final Key key, final V value) {
+            entries.put(key, new Stamped<V>(value, clock.incrementAndGet()));
+            while (entries.size() > capacity)
+                evict();
+        }
+        
+        /**
+         * Remove the provided key if it is still mapped to the provided
+         * value.
+         * 
+         * @param key the key.
+         * @param value the value.
+         */
+        public void remove(final Key key, final V value) {
+            final Stamped<V> entry = entries.get(key);
+            if (entry != null && entry.value == value)
+                entries.remove(key, entry);
+        }
+        
+        /**
+         * Remove the provided key.
+         * 
+         * @param key the key.
+         */
+        public void remove(final Key key) {
+            entries.remove(key);
+        }
+        
+        /**
+         * @return an iterator over the keys that supports removal.
+         */
+        public Iterator<Key> keys() {
+            return entries.keySet().iterator();
+        }
+        
+        /**
+         * Remove all entries.
+         */
+        public void clear() {
+            entries.clear();
+        }
+        
+        /**
+         * Remove the entry with the oldest stamp.
+         */
+        private void evict() {
+            Map.Entry<Key,Stamped<V>> eldest = null;
+            for (final Map.Entry<Key,Stamped<V>> entry : entries.entrySet()) {
+                if (eldest == null || entry.getValue().stamp < eldest.getValue().stamp)
+                    eldest = entry;
+            }
+            if (eldest != null)
+                entries.remove(eldest.getKey(), eldest.getValue());
+        }
+        
+        /** Entries by key. */
+        private final ConcurrentHashMap<Key,Stamped<V>> entries = new ConcurrentHashMap<Key,Stamped<V>>();
+        /** Logical clock used to stamp entries. */
+        private final AtomicLong clock = new AtomicLong(0);
+        /** Maximum number of entries. */
+        private final int capacity;
+    }
+    
+    /**
+     * Create a new token cache.
+     * 
+     * @param capacity the maximum number of tokens of each type to cache.
+     * @throws IllegalArgumentException if the capacity is less than one.
+     */
+    public TokenCache(final int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Token cache capacity " + capacity + " must be positive.");
+        this.masterTokens = new LruMap<MasterToken>(capacity);
+        this.userIdTokens = new LruMap<UserIdToken>(capacity);
+        this.serviceTokens = new LruMap<ServiceTokenEntry>(capacity);
+    }
+    
+    /**
+     * Return the cached master token with the provided token data and
+     * signature. An expired master token is discarded.
+     * 
+     * @param tokendata raw master token data.
+     * @param signature raw master token signature.
+     * @return the cached master token or {@code null} if none found.
+     */
+    public MasterToken getMasterToken(final byte[] tokendata, final byte[] signature) {
+        final Key key = new Key(tokendata, signature, -1, -1);
+        final MasterToken masterToken = masterTokens.get(key);
+        if (masterToken == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (masterToken.isExpired(null)) {
+            masterTokens.remove(key, masterToken);
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return masterToken;
+    }
+    
+    /**
+     * Cache a master token. The master token is only cached if it is
+     * verified, decrypted, and not expired.
+     * 
+     * @param masterToken the master token.
+     */
+    public void putMasterToken(final MasterToken masterToken) {
+        if (!masterToken.isVerified() || !masterToken.isDecrypted() || masterToken.isExpired(null))
+            return;
+        final Key key = new Key(masterToken.getTokendata(), masterToken.getSignature(), -1, -1);
+        masterTokens.put(key, masterToken);
+    }
+    
+    /**
+     * Remove a master token from the cache, for example because it has been
+     * revoked.
+     * 
+     * @param masterToken the master token.
+     */
+    public void removeMasterToken(final MasterToken masterToken) {
+        final Key key = new Key(masterToken.getTokendata(), masterToken.getSignature(), -1, -1);
+        masterTokens.remove(key);
+    }
+    
+    /**
+     * Return the cached user ID token with the provided token data and
+     * signature that was bound to the provided master token. An expired user
+     * ID token is discarded.
+     * 
+     * @param tokendata raw user ID token data.
+     * @param signature raw user ID token signature.
+     * @param masterToken the master token.
+     * @return the cached user ID token or {@code null} if none found.
+     */
+    public UserIdToken getUserIdToken(final byte[] tokendata, final byte[] signature, final MasterToken masterToken) {
+        final Key key = new Key(tokendata, signature, masterToken.getSerialNumber(), -1);
+        final UserIdToken userIdToken = userIdTokens.get(key);
+        if (userIdToken == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (userIdToken.isExpired(null)) {
+            userIdTokens.remove(key, userIdToken);
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return userIdToken;
+    }
+    
+    /**
+     * Cache a user ID token. The user ID token is only cached if it is
+     * verified, decrypted, and not expired.
+     * 
+     * @param userIdToken the user ID token.
+     */
+    public void putUserIdToken(final UserIdToken userIdToken) {
+        if (!userIdToken.isVerified() || !userIdToken.isDecrypted() || userIdToken.isExpired(null))
+            return;
+        final Key key = new Key(userIdToken.getTokendata(), userIdToken.getSignature(), userIdToken.getMasterTokenSerialNumber(), -1);
+        userIdTokens.put(key, userIdToken);
+    }
+    
+    /**
+     * Remove a user ID token from the cache, for example because it has been
+     * revoked.
+     * 
+     * @param userIdToken the user ID token.
+     */
+    public void removeUserIdToken(final UserIdToken userIdToken) {
+        final Key key = new Key(userIdToken.getTokendata(), userIdToken.getSignature(), userIdToken.getMasterTokenSerialNumber(), -1);
+        userIdTokens.remove(key);
+    }
+    
+    /**
+     * Return the cached service token with the provided token data and
+     * signature that was parsed with the provided master token and user ID
+     * token and verified by the provided crypto context. The service token is
+     * discarded if the master token or user ID token is expired.
+     * 
+     * @param tokendata raw service token data.
+     * @param signature raw service token signature.
+     * @param masterToken the master token. May be null.
+     * @param userIdToken the user ID token. May be null.
+     * @param cryptoContext the service token crypto context. May be null.
+     * @return the cached service token or {@code null} if none found.
+     */
+    public ServiceToken getServiceToken(final byte[] tokendata, final byte[] signature, final MasterToken masterToken, final UserIdToken userIdToken, final ICryptoContext cryptoContext) {
+        final Key key = new Key(tokendata, signature, serialNumber(masterToken), serialNumber(userIdToken));
+        final ServiceTokenEntry entry = serviceTokens.get(key);
+        if (entry == null || entry.cryptoContext != cryptoContext) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (isExpired(masterToken, userIdToken)) {
+            serviceTokens.remove(key, entry);
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.serviceToken;
+    }
+    
+    /**
+     * Cache a service token parsed with the provided master token and user ID
+     * token and verified by the provided crypto context. The service token is
+     * only cached if it is verified and the master token and user ID token are
+     * not expired. Service data is decrypted on first use and retained by the
+     * cached service token.
+     * 
+     * @param serviceToken the service token.
+     * @param masterToken the master token. May be null.
+     * @param userIdToken the user ID token. May be null.
+     * @param cryptoContext the service token crypto context.
+     */
+    public void putServiceToken(final ServiceToken serviceToken, final MasterToken masterToken, final UserIdToken userIdToken, final ICryptoContext cryptoContext) {
+        if (!serviceToken.isVerified() || isExpired(masterToken, userIdToken))
+            return;
+        final Key key = new Key(serviceToken.getTokendata(), serviceToken.getSignature(), serialNumber(masterToken), serialNumber(userIdToken));
+        serviceTokens.put(key, new ServiceTokenEntry(serviceToken, cryptoContext));
+    }
+    
+    /**
+     * Remove all cached instances of a service token from the cache, for
+     * example because it has been revoked.
+     * 
+     * @param serviceToken the service token.
+     */
+    public void removeServiceToken(final ServiceToken serviceToken) {
+        final byte[] tokendata = serviceToken.getTokendata();
+        final byte[] signature = serviceToken.getSignature();
+        final Iterator<Key> keys = serviceTokens.keys();
+        while (keys.hasNext()) {
+            final Key key = keys.next();
+            if (Arrays.equals(tokendata, key.tokendata) && Arrays.equals(signature, key.signature))
+                keys.remove();
+        }
+    }
+    
+    /**
+     * Remove all tokens from the cache.
+     */
+    public void clear() {
+        masterTokens.clear();
+        userIdTokens.clear();
+        serviceTokens.clear();
+    }
+    
+    /**
+     * @return the number of lookups that returned a cached token.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+    
+    /**
+     * @return the number of lookups that did not return a cached token.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+    
+    /**
+     * @param masterToken the master token. May be null.
+     * @return the master token serial number or -1 if null.
+     */
+    private static long serialNumber(final MasterToken masterToken) {
+        return (masterToken != null) ? masterToken.getSerialNumber() : -1;
+    }
+    
+    /**
+     * @param userIdToken the user ID token. May be null.
+     * @return the user ID token serial number or -1 if null.
+     */
+    private static long serialNumber(final UserIdToken userIdToken) {
+        return (userIdToken != null) ? userIdToken.getSerialNumber() : -1;
+    }
+    
+    /**
+     * @param masterToken the master token. May be null.
+     * @param userIdToken the user ID token. May be null.
+     * @return true if either token is expired.
+     */
+    private static boolean isExpired(final MasterToken masterToken, final UserIdToken userIdToken) {
+        return (masterToken != null && masterToken.isExpired(null)) ||
+            (userIdToken != null && userIdToken.isExpired(null));
+    }
+    
+    /** Master tokens by raw bytes. */
+    private final LruMap<MasterToken> masterTokens;
+    /** User ID tokens by raw bytes and master token serial number. */
+    private final LruMap<UserIdToken> userIdTokens;
+    /** Service tokens by raw bytes and master token and user ID token serial numbers. */
+    private final LruMap<ServiceTokenEntry> serviceTokens;
+    /** Number of cache hits. */
+    private final AtomicLong hits = new AtomicLong(0);
+    /** Number of cache misses. */
+    private final AtomicLong misses = new AtomicLong(0);
+}
@@ -207,29 +207,146 @@ public class UserIdToken implements JSONString {
      *         out of range.
      */
     public UserIdToken(final MslContext ctx, final JSONObject userIdTokenJO, final MasterToken masterToken) throws MslEncodingException, MslCryptoException, MslException {
-        this.ctx = ctx;
-        
-        // Grab the crypto context.
-        final ICryptoContext cryptoContext = ctx.getMslCryptoContext();
+        this(ctx, getTokendata(userIdTokenJO, masterToken), getSignature(userIdTokenJO, masterToken), masterToken);
+    }
+    
+    /**
+     * <p>Return the user ID token represented by the provided JSON object.
+     * The associated master token must be provided to verify the user ID
+     * token.</p>
+     * 
+     * <p>If the MSL context provides a token cache, a previously verified and
+     * decrypted user ID token with identical token data and signature that is
+     * bound to the same master token is returned from the cache. Otherwise a
+     * new user ID token is created and, if verified and decrypted, added to
+     * the cache.</p>
+     * 
+     * @param ctx MSL context.
+     * @param userIdTokenJO user ID token JSON object.
+     * @param masterToken the master token.
+     * @return the user ID token.
+     * @throws MslEncodingException if there is an error parsing the JSON, the
+     *         token data is missing or invalid, or the signature is invalid.
+     * @throws MslCryptoException if there is an error verifying the token
+     *         data.
+     * @throws MslException if the user ID token master token serial number
+     *         does not match the master token serial number, or the expiration
+     *         timestamp occurs before the renewal window, or the user data is
+     *         missing or invalid, or the user ID token master token serial
+     *         number is out of range, or the user ID token serial number is
+     *         out of range.
+     * @see MslContext#getTokenCache()
+     */
+    public static UserIdToken parseUserIdToken(final MslContext ctx, final JSONObject userIdTokenJO, final MasterToken masterToken) throws MslEncodingException, MslCryptoException, MslException {
+        return parseUserIdToken(ctx, getTokendata(userIdTokenJO, masterToken), getSignature(userIdTokenJO, masterToken), masterToken);
+    }
+    
+    /**
+     * <p>Return the user ID token with the provided raw token data and
+     * signature, as carried by binary encoded messages. The associated
+     * master token must be provided to verify the user ID token.</p>
+     * 
+     * <p>The token cache is used the same way as by
+     * {@link #parseUserIdToken(MslContext, JSONObject, MasterToken)}.</p>
+     * 
+     * @param ctx MSL context.
+     * @param tokendata raw token data.
+     * @param signature raw token signature.
+     * @param masterToken the master token.
+     * @return the user ID token.
+     * @throws MslEncodingException if the token data is missing or there is
+     *         an error parsing the token data.
+     * @throws MslCryptoException if there is an error verifying the token
+     *         data.
+     * @throws MslException if the user ID token master token serial number
+     *         does not match the master token serial number, or the expiration
+     *         timestamp occurs before the renewal window, or the user data is
+     *         missing or invalid, or the user ID token master token serial
+     *         number is out of range, or the user ID token serial number is
+     *         out of range.
+     * @see MslContext#getTokenCache()
+     */
+    public static UserIdToken parseUserIdToken(final MslContext ctx, final byte[] tokendata, final byte[] signature, final MasterToken masterToken) throws MslEncodingException, MslCryptoException, MslException {
+        if (tokendata.length == 0)
+            throw new MslEncodingException(MslError.USERIDTOKEN_TOKENDATA_MISSING, "useridtoken").setEntity(masterToken);
+        final TokenCache cache = ctx.getTokenCache();
+        if (cache == null || masterToken == null)
+            return new UserIdToken(ctx, tokendata, signature, masterToken);
         
-        // Verify the JSON representation.
+        final UserIdToken cached = cache.getUserIdToken(tokendata, signature, masterToken);
+        if (cached != null)
+            return cached;
+        final UserIdToken userIdToken = new UserIdToken(ctx, tokendata, signature, masterToken);
+        cache.putUserIdToken(userIdToken);
+        return userIdToken;
+    }
+    
+    /**
+     * @param userIdTokenJO user ID token JSON object.
+     * @param masterToken the master token.
+     * @return the decoded token data.
+     * @throws MslEncodingException if there is an error parsing the JSON or
+     *         the token data is missing or invalid.
+     */
+    private static byte[] getTokendata(final JSONObject userIdTokenJO, final MasterToken masterToken) throws MslEncodingException {
         try {
-            try {
-                tokendata = DatatypeConverter.parseBase64Binary(userIdTokenJO.getString(KEY_TOKENDATA));
-            } catch (final IllegalArgumentException e) {
-                throw new MslEncodingException(MslError.USERIDTOKEN_TOKENDATA_INVALID, "useridtoken " + userIdTokenJO.toString(), e).setEntity(masterToken);
-            }
+            final byte[] tokendata = DatatypeConverter.parseBase64Binary(userIdTokenJO.getString(KEY_TOKENDATA));
             if (tokendata == null || tokendata.length == 0)
                 throw new MslEncodingException(MslError.USERIDTOKEN_TOKENDATA_MISSING, "useridtoken " + userIdTokenJO.toString()).setEntity(masterToken);
-            try {
-                signature = DatatypeConverter.parseBase64Binary(userIdTokenJO.getString(KEY_SIGNATURE));
-            } catch (final IllegalArgumentException e) {
-                throw new MslEncodingException(MslError.USERIDTOKEN_SIGNATURE_INVALID, "useridtoken " + userIdTokenJO.toString(), e).setEntity(masterToken);
-            }
-            verified = cryptoContext.verify(tokendata, signature);
+            return tokendata;
+        } catch (final IllegalArgumentException e) {
+            throw new MslEncodingException(MslError.USERIDTOKEN_TOKENDATA_INVALID, "useridtoken " + userIdTokenJO.toString(), e).setEntity(masterToken);
         } catch (final JSONException e) {
             throw new MslEncodingException(MslError.JSON_PARSE_ERROR, "useridtoken " + userIdTokenJO.toString(), e).setEntity(masterToken);
         }
+    }
+    
+    /**
+     * @param userIdTokenJO user ID token JSON object.
+     * @param masterToken the master token.
+     * @return the decoded signature.
+     * @throws MslEncodingException if there is an error parsing the JSON or
+     *         the signature is invalid.
+     */
+    private static byte[] getSignature(final JSONObject userIdTokenJO, final MasterToken masterToken) throws MslEncodingException {
+        try {
+            return DatatypeConverter.parseBase64Binary(userIdTokenJO.getString(KEY_SIGNATURE));
+        } catch (final IllegalArgumentException e) {
+            throw new MslEncodingException(MslError.USERIDTOKEN_SIGNATURE_INVALID, "useridtoken " + userIdTokenJO.toString(), e).setEntity(masterToken);
+        } catch (final JSONException e) {
+            throw new MslEncodingException(MslError.JSON_PARSE_ERROR, "useridtoken " + userIdTokenJO.toString(), e).setEntity(masterToken);
+        }
+    }
+    
+    /**
+     * Create a new user ID token from the raw token data and signature. The
+     * associated master token must be provided to verify the user ID token.
+     * 
+     * @param ctx MSL context.
+     * @param tokendata raw token data.
+     * @param signature raw token signature.
+     * @param masterToken the master token.
+     * @throws MslEncodingException if there is an error parsing the token
+     *         data.
+     * @throws MslCryptoException if there is an error verifying the token
+     *         data.
+     * @throws MslException if the user ID token master token serial number
+     *         does not match the master token serial number, or the expiration
+     *         timestamp occurs before the renewal window, or the user data is
+     *         missing or invalid, or the user ID token master token serial
+     *         number is out of range, or the user ID token serial number is
+     *         out of range.
+     */
+    private UserIdToken(final MslContext ctx, final byte[] tokendata, final byte[] signature, final MasterToken masterToken) throws MslEncodingException, MslCryptoException, MslException {
+        this.ctx = ctx;
+        this.tokendata = tokendata;
+        this.signature = signature;
+        
+        // Grab the crypto context.
+        final ICryptoContext cryptoContext = ctx.getMslCryptoContext();
+        
+        // Verify the token data.
+        verified = cryptoContext.verify(tokendata, signature);
         
         // Pull the token data.
         final String tokenDataJson = new String(tokendata, MslConstants.DEFAULT_CHARSET);
@@ -406,6 +523,20 @@ public class UserIdToken implements JSONString {
         return masterToken != null && masterToken.getSerialNumber() == mtSerialNumber;
     }
     
+    /**
+     * @return the raw token data. The signature covers these bytes.
+     */
+    public byte[] getTokendata() {
+        return tokendata;
+    }
+    
+    /**
+     * @return the raw token signature.
+     */
+    public byte[] getSignature() {
+        return signature;
+    }
+    
     /** MSL context. */
     private final MslContext ctx;
 
@@ -29,6 +29,7 @@ import com.netflix.msl.keyx.KeyExchangeFactory;
 import com.netflix.msl.keyx.KeyExchangeScheme;
 import com.netflix.msl.msg.MessageCapabilities;
 import com.netflix.msl.msg.MslControl;
+import com.netflix.msl.tokens.TokenCache;
 import com.netflix.msl.tokens.TokenFactory;
 import com.netflix.msl.userauth.UserAuthenticationFactory;
 import com.netflix.msl.userauth.UserAuthenticationScheme;
@@ -253,6 +254,20 @@ public abstract class MslContext {
      * @return the MSL store.
      */
     public abstract MslStore getMslStore();
+    
+    /**
+     * <p>Returns the cache of verified and decrypted tokens used when parsing
+     * received messages, or {@code null} if received tokens should always be
+     * verified and decrypted.</p>
+     * 
+     * <p>The default implementation returns {@code null}. The returned cache
+     * must be specific to this MSL context.</p>
+     * 
+     * @return the token cache. May be {@code null}.
+     */
+    public TokenCache getTokenCache() {
+        return null;
+    }
 
     /**
      * <p>Update the remote entity time.</p>
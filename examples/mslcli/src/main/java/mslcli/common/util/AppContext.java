@@ -432,7 +432,9 @@ public final class AppContext {
         try {
             final KeyPairGenerator generator = CryptoCache.getKeyPairGenerator("DH");
             generator.initialize(paramSpec);
-            return generator.generateKeyPair();
+            final KeyPair keyPair = generator.generateKeyPair();
+            CryptoCache.releaseKeyPairGenerator("DH", generator);
+            return keyPair;
         } catch (final NoSuchAlgorithmException e) {
             throw new MslInternalException("DiffieHellman algorithm not found.", e);
         } catch (final InvalidAlgorithmParameterException e) {
@@ -450,7 +452,9 @@ public final class AppContext {
             info("Generating RSA Key Pair - please, wait ...");
             final KeyPairGenerator generator = CryptoCache.getKeyPairGenerator("RSA");
             generator.initialize(4096);
-            return generator.generateKeyPair();
+            final KeyPair keyPair = generator.generateKeyPair();
+            CryptoCache.releaseKeyPairGenerator("RSA", generator);
+            return keyPair;
         } catch (final NoSuchAlgorithmException e) {
             throw new MslInternalException("RSA algorithm not found.", e);
         }
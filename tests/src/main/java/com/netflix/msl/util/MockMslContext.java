@@ -61,6 +61,7 @@ import com.netflix.msl.keyx.MockDiffieHellmanParameters;
 import com.netflix.msl.keyx.SymmetricWrappedExchange;
 import com.netflix.msl.msg.MessageCapabilities;
 import com.netflix.msl.tokens.MockTokenFactory;
+import com.netflix.msl.tokens.TokenCache;
 import com.netflix.msl.tokens.TokenFactory;
 import com.netflix.msl.userauth.MockEmailPasswordAuthenticationFactory;
 import com.netflix.msl.userauth.MockUserIdTokenAuthenticationFactory;
@@ -370,6 +371,15 @@ public class MockMslContext extends MslContext {
         this.store = store;
     }
 
+    @Override
+    public TokenCache getTokenCache() {
+        return tokenCache;
+    }
+
+    public void setTokenCache(final TokenCache cache) {
+        this.tokenCache = cache;
+    }
+
     /** Peer-to-peer mode. */
     private final boolean peerToPeer;
     /** Message capabilities. */
@@ -388,4 +398,6 @@ public class MockMslContext extends MslContext {
     private final SortedSet<KeyExchangeFactory> keyxFactories;
     /** MSL store. */
     private MslStore store;
+    /** Token cache. */
+    private TokenCache tokenCache = null;
 }
@@ -0,0 +1,218 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.netflix.msl.MslConstants;
+import com.netflix.msl.MslCryptoException;
+import com.netflix.msl.MslEncodingException;
+import com.netflix.msl.MslError;
+import com.netflix.msl.MslMasterTokenException;
+import com.netflix.msl.entityauth.EntityAuthenticationScheme;
+import com.netflix.msl.entityauth.MockPresharedAuthenticationFactory;
+import com.netflix.msl.test.ExpectedMslException;
+import com.netflix.msl.tokens.MasterToken;
+import com.netflix.msl.util.MockMslContext;
+import com.netflix.msl.util.MslContext;
+
+/**
+ * AES-GCM crypto context unit tests.
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+public class AesGcmCryptoContextTest {
+    /** Key set ID. */
+    private static final String KEYSET_ID = "keysetid";
+    
+    @Rule
+    public ExpectedMslException thrown = ExpectedMslException.none();
+    
+    /** MSL context. */
+    private static MslContext ctx;
+    /** Random. */
+    private static Random random;
+    /** Crypto context. */
+    private static ICryptoContext cryptoContext;
+    
+    @BeforeClass
+    public static void setup() throws MslEncodingException, MslCryptoException {
+        ctx = new MockMslContext(EntityAuthenticationScheme.PSK, false);
+        random = new Random();
+        cryptoContext = new AesGcmCryptoContext(ctx, KEYSET_ID, MockPresharedAuthenticationFactory.KPE);
+    }
+    
+    @Test
+    public void encryptDecrypt() throws MslCryptoException {
+        final byte[] message = new byte[100];
+        random.nextBytes(message);
+        
+        final byte[] ciphertext = cryptoContext.encrypt(message);
+        assertTrue(MslCiphertextEnvelope.isBinary(ciphertext));
+        assertArrayEquals(message, cryptoContext.decrypt(ciphertext));
+        
+        final byte[] empty = cryptoContext.encrypt(new byte[0]);
+        assertArrayEquals(new byte[0], cryptoContext.decrypt(empty));
+    }
+    
+    @Test
+    public void tamperedCiphertext() throws MslCryptoException {
+        thrown.expect(MslCryptoException.class);
+        thrown.expectMslError(MslError.DECRYPT_ERROR);
+        
+        final byte[] message = new byte[32];
+        random.nextBytes(message);
+        final byte[] ciphertext = cryptoContext.encrypt(message);
+        ciphertext[ciphertext.length - 20] ^= 1;
+        cryptoContext.decrypt(ciphertext);
+    }
+    
+    @Test
+    public void notEnvelope() throws MslCryptoException {
+        thrown.expect(MslCryptoException.class);
+        thrown.expectMslError(MslError.CIPHERTEXT_ENVELOPE_PARSE_ERROR);
+        
+        final byte[] message = new byte[32];
+        random.nextBytes(message);
+        final byte[] ciphertext = new SymmetricCryptoContext(ctx, KEYSET_ID, MockPresharedAuthenticationFactory.KPE, null, null).encrypt(message);
+        cryptoContext.decrypt(ciphertext);
+    }
+    
+    @Test
+    public void idMismatch() throws MslCryptoException {
+        thrown.expect(MslCryptoException.class);
+        thrown.expectMslError(MslError.ENVELOPE_KEY_ID_MISMATCH);
+        
+        final ICryptoContext cryptoContextB = new AesGcmCryptoContext(ctx, KEYSET_ID + "B", MockPresharedAuthenticationFactory.KPE);
+        final byte[] message = new byte[32];
+        random.nextBytes(message);
+        cryptoContextB.decrypt(cryptoContext.encrypt(message));
+    }
+    
+    @Test
+    public void keysMismatch() throws MslCryptoException {
+        thrown.expect(MslCryptoException.class);
+        thrown.expectMslError(MslError.DECRYPT_ERROR);
+        
+        final ICryptoContext cryptoContextB = new AesGcmCryptoContext(ctx, KEYSET_ID, MockPresharedAuthenticationFactory.KPE2);
+        final byte[] message = new byte[32];
+        random.nextBytes(message);
+        cryptoContextB.decrypt(cryptoContext.encrypt(message));
+    }
+    
+    @Test
+    public void signVerifyEnvelope() throws MslCryptoException {
+        final byte[] message = new byte[64];
+        random.nextBytes(message);
+        final byte[] ciphertext = cryptoContext.encrypt(message);
+        
+        final byte[] signature = cryptoContext.sign(ciphertext);
+        assertEquals(1 + 12 + 16, signature.length);
+        assertTrue(cryptoContext.verify(ciphertext, signature));
+        
+        // A signature over a different envelope must not verify.
+        final byte[] otherCiphertext = cryptoContext.encrypt(message);
+        assertFalse(cryptoContext.verify(otherCiphertext, signature));
+        
+        // A modified envelope tag must not verify.
+        final byte[] modified = ciphertext.clone();
+        modified[modified.length - 1] ^= 1;
+        assertFalse(cryptoContext.verify(modified, signature));
+        
+        // A crypto context with a different key must not verify.
+        final ICryptoContext cryptoContextB = new AesGcmCryptoContext(ctx, KEYSET_ID, MockPresharedAuthenticationFactory.KPE2);
+        assertFalse(cryptoContextB.verify(ciphertext, signature));
+    }
+    
+    @Test
+    public void forgedEnvelopeTagSignature() throws MslCryptoException {
+        thrown.expect(MslCryptoException.class);
+        thrown.expectMslError(MslError.UNIDENTIFIED_SIGNATURE_ENVELOPE);
+        
+        // The envelope authentication tag can be read by anyone, so it must
+        // not be accepted as a signature.
+        final byte[] message = new byte[64];
+        random.nextBytes(message);
+        final byte[] ciphertext = cryptoContext.encrypt(message);
+        final byte[] signature = new byte[1 + 16];
+        signature[0] = 1;
+        System.arraycopy(ciphertext, ciphertext.length - 16, signature, 1, 16);
+        cryptoContext.verify(ciphertext, signature);
+    }
+    
+    @Test
+    public void signVerifyData() throws MslCryptoException {
+        final byte[] messageA = "{\"tokendata\":\"a\"}".getBytes(MslConstants.DEFAULT_CHARSET);
+        final byte[] messageB = "{\"tokendata\":\"b\"}".getBytes(MslConstants.DEFAULT_CHARSET);
+        
+        final byte[] signatureA = cryptoContext.sign(messageA);
+        assertEquals(1 + 12 + 16, signatureA.length);
+        assertTrue(cryptoContext.verify(messageA, signatureA));
+        assertFalse(cryptoContext.verify(messageB, signatureA));
+        
+        final ICryptoContext cryptoContextB = new AesGcmCryptoContext(ctx, KEYSET_ID, MockPresharedAuthenticationFactory.KPE2);
+        assertFalse(cryptoContextB.verify(messageA, signatureA));
+    }
+    
+    @Test
+    public void envelopeSignatureOnData() throws MslCryptoException {
+        final byte[] message = new byte[64];
+        random.nextBytes(message);
+        final byte[] signature = cryptoContext.sign(cryptoContext.encrypt(message));
+        assertFalse(cryptoContext.verify(message, signature));
+    }
+    
+    @Test
+    public void wrap() throws MslCryptoException {
+        thrown.expect(MslCryptoException.class);
+        thrown.expectMslError(MslError.WRAP_NOT_SUPPORTED);
+        
+        cryptoContext.wrap(new byte[16]);
+    }
+    
+    @Test
+    public void session() throws MslEncodingException, MslCryptoException, MslMasterTokenException {
+        final Date renewalWindow = new Date(System.currentTimeMillis() + 1000);
+        final Date expiration = new Date(System.currentTimeMillis() + 2000);
+        final String identity = MockPresharedAuthenticationFactory.PSK_ESN;
+        final SecretKey encryptionKey = MockPresharedAuthenticationFactory.KPE;
+        final SecretKey signatureKey = MockPresharedAuthenticationFactory.KPH;
+        final MasterToken masterToken = new MasterToken(ctx, renewalWindow, expiration, 1L, 1L, null, identity, encryptionKey, signatureKey);
+        final ICryptoContext sessionCryptoContext = new AesGcmSessionCryptoContext(ctx, masterToken);
+        
+        final byte[] message = new byte[32];
+        random.nextBytes(message);
+        final byte[] ciphertext = sessionCryptoContext.encrypt(message);
+        final byte[] signature = sessionCryptoContext.sign(ciphertext);
+        assertTrue(sessionCryptoContext.verify(ciphertext, signature));
+        assertArrayEquals(message, sessionCryptoContext.decrypt(ciphertext));
+        
+        final ICryptoContext keysCryptoContext = new AesGcmSessionCryptoContext(ctx, masterToken, identity, encryptionKey);
+        assertArrayEquals(message, keysCryptoContext.decrypt(ciphertext));
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import com.netflix.msl.crypto.CryptoCache.Primitive;
+
+/**
+ * Crypto cache unit tests.
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+@RunWith(Parameterized.class)
+public class CryptoCacheTest {
+    /** Cipher transform. */
+    private static final String TRANSFORM = "AES/CBC/PKCS5Padding";
+    /** Digest algorithm. */
+    private static final String DIGEST = "SHA-256";
+    
+    @Parameters
+    public static List<Object[]> data() {
+        return Arrays.asList(new Object[][] {
+            { new ThreadLocalCryptoCacheStrategy() },
+            { new PooledCryptoCacheStrategy(4) },
+            { new StripedCryptoCacheStrategy(4) },
+        });
+    }
+    
+    /**
+     * Create a new crypto cache test instance.
+     * 
+     * @param strategy crypto cache strategy.
+     */
+    public CryptoCacheTest(final CryptoCacheStrategy strategy) {
+        this.strategy = strategy;
+    }
+    
+    @Before
+    public void setup() {
+        original = CryptoCache.getStrategy();
+        CryptoCache.setStrategy(strategy);
+    }
+    
+    @After
+    public void teardown() {
+        CryptoCache.setStrategy(original);
+    }
+    
+    @Test
+    public void releaseReuses() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        final CryptoCacheStatistics before = CryptoCache.getStatistics();
+        
+        final Cipher cipher = CryptoCache.getCipher(TRANSFORM);
+        assertNotNull(cipher);
+        CryptoCache.releaseCipher(TRANSFORM, cipher);
+        assertSame(cipher, CryptoCache.getCipher(TRANSFORM));
+        CryptoCache.releaseCipher(TRANSFORM, cipher);
+        
+        final CryptoCacheStatistics after = CryptoCache.getStatistics();
+        assertEquals(1, after.getMisses() - before.getMisses());
+        assertEquals(1, after.getCreations() - before.getCreations());
+        assertEquals(1, after.getHits() - before.getHits());
+    }
+    
+    @Test
+    public void resetDiscards() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        final Cipher cipher = CryptoCache.getCipher(TRANSFORM);
+        CryptoCache.resetCipher(TRANSFORM);
+        assertNotSame(cipher, CryptoCache.getCipher(TRANSFORM));
+    }
+    
+    @Test
+    public void primitivesAreSeparate() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        final MessageDigest digest = CryptoCache.getMessageDigest(DIGEST);
+        CryptoCache.releaseMessageDigest(DIGEST, digest);
+        final Object instance = strategy.get(Primitive.SIGNATURE, "SHA256withRSA");
+        assertTrue(instance instanceof java.security.Signature);
+    }
+    
+    @Test
+    public void bounded() throws NoSuchAlgorithmException {
+        // Acquire more instances than any bounded strategy will keep.
+        final List<MessageDigest> digests = new ArrayList<MessageDigest>();
+        for (int i = 0; i < 16; ++i)
+            digests.add(CryptoCache.getMessageDigest(DIGEST));
+        final CryptoCacheStatistics before = CryptoCache.getStatistics();
+        for (final MessageDigest digest : digests)
+            CryptoCache.releaseMessageDigest(DIGEST, digest);
+        final CryptoCacheStatistics after = CryptoCache.getStatistics();
+        
+        // Thread-local instances are never discarded.
+        if (strategy instanceof ThreadLocalCryptoCacheStrategy)
+            assertEquals(0, after.getDiscards() - before.getDiscards());
+        else
+            assertTrue(after.getDiscards() - before.getDiscards() >= 12);
+    }
+    
+    @Test
+    public void concurrentOperations() throws InterruptedException, ExecutionException {
+        final ExecutorService service = Executors.newFixedThreadPool(8);
+        final List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < 64; ++i) {
+            results.add(service.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws NoSuchAlgorithmException {
+                    final byte[] data = new byte[64];
+                    final byte[] expected = MessageDigest.getInstance(DIGEST).digest(data);
+                    for (int j = 0; j < 16; ++j) {
+                        final MessageDigest digest = CryptoCache.getMessageDigest(DIGEST);
+                        final byte[] hash = digest.digest(data);
+                        CryptoCache.releaseMessageDigest(DIGEST, digest);
+                        if (!Arrays.equals(expected, hash))
+                            return false;
+                    }
+                    return true;
+                }
+            }));
+        }
+        service.shutdown();
+        for (final Future<Boolean> result : results)
+            assertTrue(result.get());
+    }
+    
+    /** Crypto cache strategy under test. */
+    private final CryptoCacheStrategy strategy;
+    /** Original crypto cache strategy. */
+    private CryptoCacheStrategy original;
+}
@@ -20,6 +20,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -53,7 +54,8 @@ import com.netflix.msl.test.ExpectedMslException;
  */
 @RunWith(Suite.class)
 @SuiteClasses({MslCiphertextEnvelopeTest.Version1.class,
-               MslCiphertextEnvelopeTest.Version2.class})
+               MslCiphertextEnvelopeTest.Version2.class,
+               MslCiphertextEnvelopeTest.Version3.class})
 public class MslCiphertextEnvelopeTest {
     /** JSON key version. */
     private final static String KEY_VERSION = "version";
@@ -386,4 +388,88 @@ public class MslCiphertextEnvelopeTest {
             new MslCiphertextEnvelope(jo);
         }
     }
+    
+    public static class Version3 {
+        @Rule
+        public ExpectedMslException thrown = ExpectedMslException.none();
+        
+        @Test
+        public void ctors() throws MslCryptoException {
+            final MslCiphertextEnvelope envelope = new MslCiphertextEnvelope(KEY_ID, IV, CIPHERTEXT, Version.V3);
+            assertEquals(KEY_ID, envelope.getKeyId());
+            assertNull(envelope.getCipherSpec());
+            assertArrayEquals(IV, envelope.getIv());
+            assertArrayEquals(CIPHERTEXT, envelope.getCiphertext());
+            final byte[] bytes = envelope.getBytes();
+            assertNotNull(bytes);
+            assertTrue(MslCiphertextEnvelope.isBinary(bytes));
+            
+            final MslCiphertextEnvelope binEnvelope = MslCiphertextEnvelope.parse(bytes);
+            assertEquals(envelope.getKeyId(), binEnvelope.getKeyId());
+            assertEquals(envelope.getCipherSpec(), binEnvelope.getCipherSpec());
+            assertArrayEquals(envelope.getIv(), binEnvelope.getIv());
+            assertArrayEquals(envelope.getCiphertext(), binEnvelope.getCiphertext());
+            assertArrayEquals(bytes, binEnvelope.getBytes());
+        }
+        
+        @Test
+        public void ctorsNullIv() throws MslCryptoException {
+            final MslCiphertextEnvelope envelope = new MslCiphertextEnvelope(KEY_ID, null, CIPHERTEXT, Version.V3);
+            final byte[] bytes = envelope.getBytes();
+            
+            final MslCiphertextEnvelope binEnvelope = MslCiphertextEnvelope.parse(bytes);
+            assertEquals(KEY_ID, binEnvelope.getKeyId());
+            assertNull(binEnvelope.getIv());
+            assertArrayEquals(CIPHERTEXT, binEnvelope.getCiphertext());
+            assertArrayEquals(bytes, binEnvelope.getBytes());
+        }
+        
+        @Test
+        public void smallerThanJson() {
+            final byte[] json = new MslCiphertextEnvelope(KEY_ID, IV, CIPHERTEXT).getBytes();
+            final byte[] binary = new MslCiphertextEnvelope(KEY_ID, IV, CIPHERTEXT, Version.V3).getBytes();
+            assertFalse(MslCiphertextEnvelope.isBinary(json));
+            assertTrue(binary.length < json.length);
+        }
+        
+        @Test
+        public void truncated() throws MslCryptoException {
+            thrown.expect(MslCryptoException.class);
+            thrown.expectMslError(MslError.CIPHERTEXT_ENVELOPE_PARSE_ERROR);
+            
+            final byte[] bytes = new MslCiphertextEnvelope(KEY_ID, IV, CIPHERTEXT, Version.V3).getBytes();
+            final byte[] truncated = new byte[KEY_ID.length()];
+            System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+            MslCiphertextEnvelope.parse(truncated);
+        }
+        
+        @Test
+        public void ciphertextLengthMismatch() throws MslCryptoException {
+            thrown.expect(MslCryptoException.class);
+            thrown.expectMslError(MslError.INVALID_CIPHERTEXT);
+            
+            final byte[] bytes = new MslCiphertextEnvelope(KEY_ID, IV, CIPHERTEXT, Version.V3).getBytes();
+            final byte[] extended = new byte[bytes.length + 1];
+            System.arraycopy(bytes, 0, extended, 0, bytes.length);
+            MslCiphertextEnvelope.parse(extended);
+        }
+        
+        @Test
+        public void notBinary() throws MslCryptoException {
+            thrown.expect(MslCryptoException.class);
+            thrown.expectMslError(MslError.UNIDENTIFIED_CIPHERTEXT_ENVELOPE);
+            
+            MslCiphertextEnvelope.parse(new MslCiphertextEnvelope(KEY_ID, IV, CIPHERTEXT).getBytes());
+        }
+        
+        @Test
+        public void json() throws JSONException, MslCryptoException, MslEncodingException {
+            thrown.expect(MslCryptoException.class);
+            thrown.expectMslError(MslError.UNSUPPORTED_CIPHERTEXT_ENVELOPE);
+            
+            final JSONObject jo = new JSONObject(new MslCiphertextEnvelope(KEY_ID, IV, CIPHERTEXT).toJSONString());
+            jo.put(KEY_VERSION, Version.V3.intValue());
+            new MslCiphertextEnvelope(jo);
+        }
+    }
 }
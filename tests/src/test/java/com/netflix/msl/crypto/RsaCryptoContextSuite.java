@@ -25,6 +25,7 @@ import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
@@ -34,8 +35,10 @@ import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.Security;
 import java.security.spec.InvalidParameterSpecException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.Random;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
@@ -211,6 +214,67 @@ public class RsaCryptoContextSuite{
             final RsaCryptoContext cryptoContextB = new RsaCryptoContext(ctx, KEYPAIR_ID, privateKeyB, publicKeyB, mode);
             cryptoContextB.decrypt(ciphertext);
         }
+        
+        @Test
+        public void encryptDecryptBuffers() throws MslCryptoException {
+            final byte[] message = new byte[messageSize];
+            random.nextBytes(message);
+            
+            final RsaCryptoContext cryptoContext = new RsaCryptoContext(ctx, KEYPAIR_ID, privateKeyA, publicKeyA, mode);
+            final ByteBuffer data = ByteBuffer.allocateDirect(message.length);
+            data.put(message).flip();
+            final ByteBuffer ciphertext = ByteBuffer.allocate(1024);
+            final int ciphertextLength = cryptoContext.encrypt(data, ciphertext);
+            assertFalse(data.hasRemaining());
+            assertEquals(ciphertextLength, ciphertext.position());
+            ciphertext.flip();
+            
+            // The array and buffer operations must understand each other.
+            final byte[] ciphertextBytes = Arrays.copyOf(ciphertext.array(), ciphertextLength);
+            assertArrayEquals(message, cryptoContext.decrypt(ciphertextBytes));
+            
+            final ByteBuffer plaintext = ByteBuffer.allocateDirect(message.length);
+            assertEquals(message.length, cryptoContext.decrypt(ciphertext, plaintext));
+            assertFalse(ciphertext.hasRemaining());
+            plaintext.flip();
+            final byte[] plaintextBytes = new byte[plaintext.remaining()];
+            plaintext.get(plaintextBytes);
+            assertArrayEquals(message, plaintextBytes);
+            
+            final ByteBuffer arrayCiphertext = ByteBuffer.wrap(cryptoContext.encrypt(message));
+            final ByteBuffer arrayPlaintext = ByteBuffer.allocate(message.length);
+            assertEquals(message.length, cryptoContext.decrypt(arrayCiphertext, arrayPlaintext));
+            assertArrayEquals(message, arrayPlaintext.array());
+        }
+        
+        @Test
+        public void decryptBuffersIdMismatch() throws MslCryptoException {
+            thrown.expect(MslCryptoException.class);
+            thrown.expectMslError(MslError.ENVELOPE_KEY_ID_MISMATCH);
+
+            final byte[] message = new byte[messageSize];
+            random.nextBytes(message);
+            
+            final RsaCryptoContext cryptoContextA = new RsaCryptoContext(ctx, KEYPAIR_ID + "A", privateKeyA, publicKeyA, mode);
+            final ByteBuffer ciphertext = ByteBuffer.wrap(cryptoContextA.encrypt(message));
+            
+            final RsaCryptoContext cryptoContextB = new RsaCryptoContext(ctx, KEYPAIR_ID + "B", privateKeyA, publicKeyA, mode);
+            cryptoContextB.decrypt(ciphertext, ByteBuffer.allocate(message.length));
+        }
+        
+        @Test
+        public void wrapBuffers() throws MslCryptoException {
+            thrown.expect(MslCryptoException.class);
+            thrown.expectMslError(MslError.WRAP_NOT_SUPPORTED);
+            
+            final ICryptoContext cryptoContext = new RsaCryptoContext(ctx, KEYPAIR_ID, privateKeyA, publicKeyA, mode);
+            final ByteBuffer keydata = ByteBuffer.allocate(8);
+            try {
+                cryptoContext.wrap(keydata, ByteBuffer.allocate(1024));
+            } finally {
+                assertEquals(0, keydata.position());
+            }
+        }
 
         @Test
         public void wrapUnwrapOneBlock() throws MslCryptoException {
@@ -847,6 +911,46 @@ public class RsaCryptoContextSuite{
             }
             cryptoContext.verify(message, signature);
         }
+        
+        @Test
+        public void signVerifyAll() throws MslCryptoException {
+            final RsaCryptoContext cryptoContext = new RsaCryptoContext(ctx, KEYPAIR_ID, privateKeyA, publicKeyA, Mode.SIGN_VERIFY);
+            final List<byte[]> messages = new ArrayList<byte[]>();
+            final List<byte[]> signatures = new ArrayList<byte[]>();
+            for (int i = 0; i < 16; ++i) {
+                final byte[] message = new byte[32];
+                random.nextBytes(message);
+                messages.add(message);
+                signatures.add(cryptoContext.sign(message));
+            }
+            
+            // Swap two signatures so they no longer match their data.
+            final byte[] signature = signatures.get(3);
+            signatures.set(3, signatures.get(11));
+            signatures.set(11, signature);
+            
+            final boolean[] verified = cryptoContext.verifyAll(messages, signatures);
+            assertEquals(messages.size(), verified.length);
+            for (int i = 0; i < verified.length; ++i)
+                assertEquals(i != 3 && i != 11, verified[i]);
+        }
+        
+        @Test
+        public void verifyAllNullPublic() throws MslCryptoException {
+            thrown.expect(MslCryptoException.class);
+            thrown.expectMslError(MslError.VERIFY_NOT_SUPPORTED);
+            
+            final RsaCryptoContext cryptoContext = new RsaCryptoContext(ctx, KEYPAIR_ID, privateKeyA, null, Mode.SIGN_VERIFY);
+            final List<byte[]> messages = new ArrayList<byte[]>();
+            final List<byte[]> signatures = new ArrayList<byte[]>();
+            for (int i = 0; i < 16; ++i) {
+                final byte[] message = new byte[32];
+                random.nextBytes(message);
+                messages.add(message);
+                signatures.add(cryptoContext.sign(message));
+            }
+            cryptoContext.verifyAll(messages, signatures);
+        }
     }
     
     /** RSA public key A. */
@@ -18,6 +18,7 @@ package com.netflix.msl.crypto;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
@@ -25,6 +26,8 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Random;
@@ -190,6 +193,130 @@ public class SessionCryptoContextTest {
         assertArrayEquals(messageB, plaintextB);
     }
     
+    @Test
+    public void encryptDecryptBuffers() throws MslEncodingException, MslCryptoException, MslMasterTokenException, JSONException {
+        final MasterToken masterToken = getTrustedMasterToken(ctx);
+        final SessionCryptoContext cryptoContext = new SessionCryptoContext(ctx, masterToken);
+        
+        // Span several chunks with a length that does not fill a Base64
+        // group.
+        final byte[] message = new byte[10000];
+        random.nextBytes(message);
+        final ByteBuffer data = ByteBuffer.allocateDirect(message.length);
+        data.put(message).flip();
+        
+        final ByteBuffer ciphertext = ByteBuffer.allocateDirect(2 * message.length);
+        final int ciphertextLength = cryptoContext.encrypt(data, ciphertext);
+        assertFalse(data.hasRemaining());
+        assertEquals(ciphertextLength, ciphertext.position());
+        ciphertext.flip();
+        
+        // The buffer ciphertext must be a version 1 envelope understood by
+        // the array operations.
+        final byte[] ciphertextBytes = new byte[ciphertext.remaining()];
+        ciphertext.duplicate().get(ciphertextBytes);
+        final JSONObject envelopeJo = new JSONObject(new String(ciphertextBytes, MslConstants.DEFAULT_CHARSET));
+        final MslCiphertextEnvelope envelope = new MslCiphertextEnvelope(envelopeJo);
+        assertEquals(masterToken.getIdentity() + "_" + masterToken.getSequenceNumber(), envelope.getKeyId());
+        assertArrayEquals(message, cryptoContext.decrypt(ciphertextBytes));
+        
+        // Decrypt into a buffer with room for only the plaintext.
+        final ByteBuffer plaintext = ByteBuffer.allocateDirect(message.length);
+        final int plaintextLength = cryptoContext.decrypt(ciphertext, plaintext);
+        assertFalse(ciphertext.hasRemaining());
+        assertEquals(message.length, plaintextLength);
+        plaintext.flip();
+        final byte[] plaintextBytes = new byte[plaintext.remaining()];
+        plaintext.get(plaintextBytes);
+        assertArrayEquals(message, plaintextBytes);
+        
+        // The buffer operations must understand the array ciphertext.
+        final ByteBuffer arrayCiphertext = ByteBuffer.wrap(cryptoContext.encrypt(message));
+        final ByteBuffer arrayPlaintext = ByteBuffer.allocate(message.length);
+        assertEquals(message.length, cryptoContext.decrypt(arrayCiphertext, arrayPlaintext));
+        assertArrayEquals(message, arrayPlaintext.array());
+    }
+    
+    @Test
+    public void encryptDecryptEmptyBuffers() throws MslEncodingException, MslCryptoException, MslMasterTokenException {
+        final MasterToken masterToken = getTrustedMasterToken(ctx);
+        final SessionCryptoContext cryptoContext = new SessionCryptoContext(ctx, masterToken);
+        
+        final ByteBuffer ciphertext = ByteBuffer.allocate(256);
+        final int ciphertextLength = cryptoContext.encrypt(ByteBuffer.allocate(0), ciphertext);
+        assertEquals(ciphertextLength, ciphertext.position());
+        ciphertext.flip();
+        final byte[] ciphertextBytes = Arrays.copyOf(ciphertext.array(), ciphertextLength);
+        assertEquals(0, cryptoContext.decrypt(ciphertextBytes).length);
+        
+        final ByteBuffer plaintext = ByteBuffer.allocate(0);
+        assertEquals(0, cryptoContext.decrypt(ciphertext, plaintext));
+        assertFalse(ciphertext.hasRemaining());
+    }
+    
+    @Test
+    public void encryptDecryptNonCompactBuffers() throws MslEncodingException, MslCryptoException, MslMasterTokenException, JSONException {
+        final MasterToken masterToken = getTrustedMasterToken(ctx);
+        final SessionCryptoContext cryptoContext = new SessionCryptoContext(ctx, masterToken);
+        
+        final byte[] message = new byte[100];
+        random.nextBytes(message);
+        
+        // Envelopes with whitespace are parsed by the array operations.
+        final byte[] data = cryptoContext.encrypt(message);
+        final JSONObject envelopeJo = new JSONObject(new String(data, MslConstants.DEFAULT_CHARSET));
+        final ByteBuffer ciphertext = ByteBuffer.wrap(envelopeJo.toString(4).getBytes(MslConstants.DEFAULT_CHARSET));
+        final ByteBuffer plaintext = ByteBuffer.allocate(message.length);
+        assertEquals(message.length, cryptoContext.decrypt(ciphertext, plaintext));
+        assertFalse(ciphertext.hasRemaining());
+        assertArrayEquals(message, plaintext.array());
+    }
+    
+    @Test
+    public void encryptBufferOverflow() throws MslEncodingException, MslCryptoException, MslMasterTokenException {
+        final MasterToken masterToken = getTrustedMasterToken(ctx);
+        final SessionCryptoContext cryptoContext = new SessionCryptoContext(ctx, masterToken);
+        
+        final byte[] message = new byte[100];
+        random.nextBytes(message);
+        final ByteBuffer data = ByteBuffer.wrap(message);
+        final ByteBuffer ciphertext = ByteBuffer.allocate(message.length);
+        try {
+            cryptoContext.encrypt(data, ciphertext);
+            fail("Ciphertext should not fit.");
+        } catch (final BufferOverflowException e) {
+            assertEquals(0, data.position());
+            assertEquals(0, ciphertext.position());
+        }
+    }
+    
+    @Test
+    public void invalidCiphertextBuffers() throws MslEncodingException, MslCryptoException, JSONException, MslMasterTokenException {
+        thrown.expect(MslCryptoException.class);
+        thrown.expectMslError(MslError.CIPHERTEXT_BAD_PADDING);
+
+        final MasterToken masterToken = getTrustedMasterToken(ctx);
+        final SessionCryptoContext cryptoContext = new SessionCryptoContext(ctx, masterToken);
+
+        final byte[] message = new byte[32];
+        random.nextBytes(message);
+
+        final byte[] data = cryptoContext.encrypt(message);
+        final JSONObject envelopeJo = new JSONObject(new String(data, MslConstants.DEFAULT_CHARSET));
+        final MslCiphertextEnvelope envelope = new MslCiphertextEnvelope(envelopeJo);
+        final byte[] ciphertext = envelope.getCiphertext();
+        ++ciphertext[ciphertext.length - 1];
+        final MslCiphertextEnvelope corruptEnvelope = new MslCiphertextEnvelope(envelope.getKeyId(), envelope.getIv(), ciphertext);
+        final ByteBuffer corruptCiphertext = ByteBuffer.wrap(corruptEnvelope.toJSONString().getBytes(MslConstants.DEFAULT_CHARSET));
+        final ByteBuffer plaintext = ByteBuffer.allocate(ciphertext.length);
+        try {
+            cryptoContext.decrypt(corruptCiphertext, plaintext);
+        } finally {
+            assertEquals(0, corruptCiphertext.position());
+            assertEquals(0, plaintext.position());
+        }
+    }
+    
     @Test
     public void invalidCiphertext() throws MslEncodingException, MslCryptoException, JSONException, MslMasterTokenException, UnsupportedEncodingException {
         thrown.expect(MslCryptoException.class);
@@ -359,6 +486,27 @@ public class SessionCryptoContextTest {
         cryptoContextB.decrypt(ciphertext);
     }
     
+    @Test
+    public void decryptBuffersIdMismatch() throws JSONException, MslException {
+        thrown.expect(MslCryptoException.class);
+        thrown.expectMslError(MslError.ENVELOPE_KEY_ID_MISMATCH);
+
+        final String identity = MockPresharedAuthenticationFactory.PSK_ESN;
+        final SecretKey encryptionKey = MockPresharedAuthenticationFactory.KPE;
+        final SecretKey signatureKey = MockPresharedAuthenticationFactory.KPH;
+        final MasterToken masterToken = getUntrustedMasterToken(ctx, encryptionKey, signatureKey);
+        final SessionCryptoContext cryptoContextA = new SessionCryptoContext(ctx, masterToken, identity + "A", encryptionKey, signatureKey);
+        final SessionCryptoContext cryptoContextB = new SessionCryptoContext(ctx, masterToken, identity + "B", encryptionKey, signatureKey);
+        
+        final byte[] message = new byte[32];
+        random.nextBytes(message);
+        final ByteBuffer ciphertext = ByteBuffer.allocate(256);
+        cryptoContextA.encrypt(ByteBuffer.wrap(message), ciphertext);
+        ciphertext.flip();
+        
+        cryptoContextB.decrypt(ciphertext, ByteBuffer.allocate(message.length));
+    }
+    
     @Test
     public void encryptDecryptKeysMismatch() throws JSONException, MslException {
         thrown.expect(MslCryptoException.class);
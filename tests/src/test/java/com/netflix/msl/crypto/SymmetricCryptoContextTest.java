@@ -18,6 +18,7 @@ package com.netflix.msl.crypto;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
@@ -25,9 +26,17 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
@@ -82,6 +91,34 @@ public class SymmetricCryptoContextTest {
         (byte)0x1F, (byte)0xA6, (byte)0x8B, (byte)0x0A, (byte)0x81, (byte)0x12, (byte)0xB4, (byte)0x47,
         (byte)0xAE, (byte)0xF3, (byte)0x4B, (byte)0xD8, (byte)0xFB, (byte)0x5A, (byte)0x7B, (byte)0x82,
         (byte)0x9D, (byte)0x3E, (byte)0x86, (byte)0x23, (byte)0x71, (byte)0xD2, (byte)0xCF, (byte)0xE5 };
+    
+    /** RFC 4493 AES-CMAC key. */
+    private final byte[] RFC_CMAC_KEY = {
+        (byte)0x2B, (byte)0x7E, (byte)0x15, (byte)0x16, (byte)0x28, (byte)0xAE, (byte)0xD2, (byte)0xA6,
+        (byte)0xAB, (byte)0xF7, (byte)0x15, (byte)0x88, (byte)0x09, (byte)0xCF, (byte)0x4F, (byte)0x3C };
+    /** RFC 4493 AES-CMAC 16-byte message. */
+    private final byte[] RFC_CMAC_MESSAGE_16 = {
+        (byte)0x6B, (byte)0xC1, (byte)0xBE, (byte)0xE2, (byte)0x2E, (byte)0x40, (byte)0x9F, (byte)0x96,
+        (byte)0xE9, (byte)0x3D, (byte)0x7E, (byte)0x11, (byte)0x73, (byte)0x93, (byte)0x17, (byte)0x2A };
+    /** RFC 4493 AES-CMAC 40-byte message. */
+    private final byte[] RFC_CMAC_MESSAGE_40 = {
+        (byte)0x6B, (byte)0xC1, (byte)0xBE, (byte)0xE2, (byte)0x2E, (byte)0x40, (byte)0x9F, (byte)0x96,
+        (byte)0xE9, (byte)0x3D, (byte)0x7E, (byte)0x11, (byte)0x73, (byte)0x93, (byte)0x17, (byte)0x2A,
+        (byte)0xAE, (byte)0x2D, (byte)0x8A, (byte)0x57, (byte)0x1E, (byte)0x03, (byte)0xAC, (byte)0x9C,
+        (byte)0x9E, (byte)0xB7, (byte)0x6F, (byte)0xAC, (byte)0x45, (byte)0xAF, (byte)0x8E, (byte)0x51,
+        (byte)0x30, (byte)0xC8, (byte)0x1C, (byte)0x46, (byte)0xA3, (byte)0x5C, (byte)0xE4, (byte)0x11 };
+    /** RFC 4493 AES-CMAC of the empty message. */
+    private final byte[] RFC_CMAC_0 = {
+        (byte)0xBB, (byte)0x1D, (byte)0x69, (byte)0x29, (byte)0xE9, (byte)0x59, (byte)0x37, (byte)0x28,
+        (byte)0x7F, (byte)0xA3, (byte)0x7D, (byte)0x12, (byte)0x9B, (byte)0x75, (byte)0x67, (byte)0x46 };
+    /** RFC 4493 AES-CMAC of the 16-byte message. */
+    private final byte[] RFC_CMAC_16 = {
+        (byte)0x07, (byte)0x0A, (byte)0x16, (byte)0xB4, (byte)0x6B, (byte)0x4D, (byte)0x41, (byte)0x44,
+        (byte)0xF7, (byte)0x9B, (byte)0xDD, (byte)0x9D, (byte)0xD0, (byte)0x4A, (byte)0x28, (byte)0x7C };
+    /** RFC 4493 AES-CMAC of the 40-byte message. */
+    private final byte[] RFC_CMAC_40 = {
+        (byte)0xDF, (byte)0xA6, (byte)0x67, (byte)0x47, (byte)0xDE, (byte)0x9A, (byte)0xE6, (byte)0x30,
+        (byte)0x30, (byte)0xCA, (byte)0x32, (byte)0x61, (byte)0x14, (byte)0x97, (byte)0xC8, (byte)0x27 };
 
     @Rule
     public ExpectedMslException thrown = ExpectedMslException.none();
@@ -149,6 +186,90 @@ public class SymmetricCryptoContextTest {
         assertArrayEquals(messageB, plaintextB);
     }
     
+    @Test
+    public void encryptDecryptBinaryEnvelope() throws MslCryptoException {
+        final ICryptoContext binaryCryptoContext = new SymmetricCryptoContext(ctx, KEYSET_ID, MockPresharedAuthenticationFactory.KPE, MockPresharedAuthenticationFactory.KPH, MockPresharedAuthenticationFactory.KPW, MslCiphertextEnvelope.Version.V3);
+        
+        final byte[] message = new byte[32];
+        random.nextBytes(message);
+        
+        final byte[] ciphertext = binaryCryptoContext.encrypt(message);
+        assertTrue(MslCiphertextEnvelope.isBinary(ciphertext));
+        assertArrayEquals(message, binaryCryptoContext.decrypt(ciphertext));
+        
+        // JSON envelopes must be accepted by a binary crypto context and vice
+        // versa.
+        final ICryptoContext jsonCryptoContext = new SymmetricCryptoContext(ctx, KEYSET_ID, MockPresharedAuthenticationFactory.KPE, MockPresharedAuthenticationFactory.KPH, MockPresharedAuthenticationFactory.KPW);
+        assertArrayEquals(message, jsonCryptoContext.decrypt(ciphertext));
+        assertArrayEquals(message, binaryCryptoContext.decrypt(jsonCryptoContext.encrypt(message)));
+    }
+    
+    @Test
+    public void binaryEnvelopeMissingIv() throws MslCryptoException {
+        thrown.expect(MslCryptoException.class);
+        thrown.expectMslError(MslError.INVALID_IV);
+        
+        final byte[] ciphertext = new byte[32];
+        random.nextBytes(ciphertext);
+        final byte[] envelope = new MslCiphertextEnvelope(KEYSET_ID, null, ciphertext, MslCiphertextEnvelope.Version.V3).getBytes();
+        cryptoContext.decrypt(envelope);
+    }
+    
+    @Test
+    public void encryptDecryptBuffers() throws MslCryptoException {
+        final ICryptoContext binaryCryptoContext = new SymmetricCryptoContext(ctx, KEYSET_ID, MockPresharedAuthenticationFactory.KPE, MockPresharedAuthenticationFactory.KPH, MockPresharedAuthenticationFactory.KPW, MslCiphertextEnvelope.Version.V3);
+        
+        final byte[] message = new byte[100];
+        random.nextBytes(message);
+        final ByteBuffer data = ByteBuffer.allocateDirect(message.length);
+        data.put(message).flip();
+        
+        final ByteBuffer ciphertext = ByteBuffer.allocateDirect(256);
+        final int ciphertextLength = binaryCryptoContext.encrypt(data, ciphertext);
+        assertFalse(data.hasRemaining());
+        assertEquals(ciphertextLength, ciphertext.position());
+        ciphertext.flip();
+        
+        // The buffer ciphertext must be identical to the array ciphertext.
+        final byte[] ciphertextBytes = new byte[ciphertext.remaining()];
+        ciphertext.duplicate().get(ciphertextBytes);
+        assertTrue(MslCiphertextEnvelope.isBinary(ciphertextBytes));
+        assertArrayEquals(message, binaryCryptoContext.decrypt(ciphertextBytes));
+        
+        final ByteBuffer plaintext = ByteBuffer.allocateDirect(ciphertextLength);
+        final int plaintextLength = binaryCryptoContext.decrypt(ciphertext, plaintext);
+        assertFalse(ciphertext.hasRemaining());
+        assertEquals(message.length, plaintextLength);
+        plaintext.flip();
+        final byte[] plaintextBytes = new byte[plaintext.remaining()];
+        plaintext.get(plaintextBytes);
+        assertArrayEquals(message, plaintextBytes);
+        
+        // Version 1 envelopes decrypt into a buffer with room for only the
+        // plaintext.
+        final ByteBuffer jsonCiphertext = ByteBuffer.wrap(cryptoContext.encrypt(message));
+        final ByteBuffer jsonPlaintext = ByteBuffer.allocate(message.length);
+        binaryCryptoContext.decrypt(jsonCiphertext, jsonPlaintext);
+        assertArrayEquals(message, jsonPlaintext.array());
+    }
+    
+    @Test
+    public void encryptBufferOverflow() throws MslCryptoException {
+        final ICryptoContext binaryCryptoContext = new SymmetricCryptoContext(ctx, KEYSET_ID, MockPresharedAuthenticationFactory.KPE, MockPresharedAuthenticationFactory.KPH, MockPresharedAuthenticationFactory.KPW, MslCiphertextEnvelope.Version.V3);
+        
+        final byte[] message = new byte[100];
+        random.nextBytes(message);
+        final ByteBuffer data = ByteBuffer.wrap(message);
+        final ByteBuffer ciphertext = ByteBuffer.allocate(message.length);
+        try {
+            binaryCryptoContext.encrypt(data, ciphertext);
+            fail("Ciphertext should not fit.");
+        } catch (final BufferOverflowException e) {
+            assertEquals(0, data.position());
+            assertEquals(0, ciphertext.position());
+        }
+    }
+    
     @Test
     public void invalidCiphertext() throws MslEncodingException, MslCryptoException, JSONException, UnsupportedEncodingException {
         thrown.expect(MslCryptoException.class);
@@ -460,6 +581,28 @@ public class SymmetricCryptoContextTest {
         assertArrayEquals(RFC_PLAINTEXT, unwrapped);
     }
     
+    @Test
+    public void rfcCmacSignVerify() throws MslCryptoException, MslEncodingException {
+        final SecretKey signatureKey = new SecretKeySpec(RFC_CMAC_KEY, JcaAlgorithm.AES_CMAC);
+        final ICryptoContext cryptoContext = new SymmetricCryptoContext(ctx, "RFC", null, signatureKey, null);
+        
+        // Alternate messages so each pooled CMAC is reused after a
+        // computation over a different message length.
+        for (int i = 0; i < 3; ++i) {
+            final byte[] signature0 = cryptoContext.sign(new byte[0]);
+            assertArrayEquals(RFC_CMAC_0, MslSignatureEnvelope.parse(signature0).getSignature());
+            final byte[] signature40 = cryptoContext.sign(RFC_CMAC_MESSAGE_40);
+            assertArrayEquals(RFC_CMAC_40, MslSignatureEnvelope.parse(signature40).getSignature());
+            final byte[] signature16 = cryptoContext.sign(RFC_CMAC_MESSAGE_16);
+            assertArrayEquals(RFC_CMAC_16, MslSignatureEnvelope.parse(signature16).getSignature());
+            
+            assertTrue(cryptoContext.verify(new byte[0], signature0));
+            assertTrue(cryptoContext.verify(RFC_CMAC_MESSAGE_40, signature40));
+            assertTrue(cryptoContext.verify(RFC_CMAC_MESSAGE_16, signature16));
+            assertFalse(cryptoContext.verify(RFC_CMAC_MESSAGE_16, signature40));
+        }
+    }
+    
     @Test
     public void signVerify() throws MslCryptoException, MslEncodingException, MslMasterTokenException {
         final byte[] messageA = new byte[32];
@@ -483,6 +626,30 @@ public class SymmetricCryptoContextTest {
         assertFalse(cryptoContext.verify(messageB, signatureA));
     }
     
+    @Test
+    public void signVerifyBuffers() throws MslCryptoException {
+        final byte[] message = new byte[100];
+        random.nextBytes(message);
+        final ByteBuffer data = ByteBuffer.allocateDirect(message.length);
+        data.put(message).flip();
+        
+        final ByteBuffer signature = ByteBuffer.allocate(256);
+        final int signatureLength = cryptoContext.sign(data, signature);
+        assertFalse(data.hasRemaining());
+        assertEquals(signatureLength, signature.position());
+        signature.flip();
+        
+        final byte[] signatureBytes = new byte[signature.remaining()];
+        signature.duplicate().get(signatureBytes);
+        assertTrue(cryptoContext.verify(message, signatureBytes));
+        
+        data.rewind();
+        assertTrue(cryptoContext.verify(data, signature));
+        
+        ++message[0];
+        assertFalse(cryptoContext.verify(ByteBuffer.wrap(message), ByteBuffer.wrap(signatureBytes)));
+    }
+    
     @Test
     public void signVerifyContextMismatch() throws MslEncodingException, JSONException, MslCryptoException {
         final ICryptoContext cryptoContextA = new SymmetricCryptoContext(ctx, KEYSET_ID, MockPresharedAuthenticationFactory.KPE, MockPresharedAuthenticationFactory.KPH, MockPresharedAuthenticationFactory.KPW);
@@ -545,6 +712,37 @@ public class SymmetricCryptoContextTest {
         cryptoContext.verify(message, signature);
     }
     
+    @Test
+    public void concurrentOperations() throws InterruptedException, ExecutionException {
+        final ExecutorService service = Executors.newFixedThreadPool(8);
+        final List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < 64; ++i) {
+            results.add(service.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws MslCryptoException {
+                    final Random r = new Random();
+                    for (int j = 0; j < 16; ++j) {
+                        final byte[] message = new byte[r.nextInt(128) + 1];
+                        r.nextBytes(message);
+                        if (!Arrays.equals(message, cryptoContext.decrypt(cryptoContext.encrypt(message))))
+                            return false;
+                        if (!cryptoContext.verify(message, cryptoContext.sign(message)))
+                            return false;
+                        
+                        final byte[] keydata = new byte[16];
+                        r.nextBytes(keydata);
+                        if (!Arrays.equals(keydata, cryptoContext.unwrap(cryptoContext.wrap(keydata))))
+                            return false;
+                    }
+                    return true;
+                }
+            }));
+        }
+        service.shutdown();
+        for (final Future<Boolean> result : results)
+            assertTrue(result.get());
+    }
+    
     /** MSL context. */
     private static MslContext ctx;
     /** Random. */
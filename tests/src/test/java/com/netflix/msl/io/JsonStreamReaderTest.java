@@ -0,0 +1,209 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * JSON stream reader tests.
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+public class JsonStreamReaderTest {
+    /**
+     * Create a JSON stream reader over the provided string.
+     * 
+     * @param json the JSON string.
+     * @param charset the character set used to encode the string.
+     * @return the JSON stream reader.
+     */
+    private static JsonStreamReader createReader(final String json, final Charset charset) {
+        return new JsonStreamReader(new ByteArrayInputStream(json.getBytes(charset)), charset);
+    }
+    
+    @Test
+    public void empty() {
+        final JsonStreamReader reader = createReader("  \n ", StandardCharsets.UTF_8);
+        assertFalse(reader.more());
+    }
+    
+    @Test
+    public void objectBuffered() {
+        final JsonStreamReader reader = createReader("{} {\"a\":[\"}\\\"\"]} {\"b\":{}", StandardCharsets.UTF_8);
+        assertTrue(reader.isObjectBuffered());
+        reader.nextValue();
+        assertTrue(reader.isObjectBuffered());
+        assertEquals("}\"", ((JSONObject)reader.nextValue()).getJSONArray("a").getString(0));
+        assertFalse(reader.isObjectBuffered());
+    }
+    
+    @Test
+    public void arrayNotObjectBuffered() {
+        final JsonStreamReader reader = createReader("[{}]", StandardCharsets.UTF_8);
+        assertFalse(reader.isObjectBuffered());
+    }
+    
+    @Test
+    public void values() {
+        final JSONObject jo = new JSONObject();
+        jo.put("string", "h\u00e9llo \u4e16\u754c </script>");
+        jo.put("int", 1);
+        jo.put("long", 3000000000L);
+        jo.put("double", 2.5);
+        jo.put("boolean", true);
+        jo.put("array", new JSONArray().put(1).put("two").put(new JSONObject().put("three", 3)));
+        
+        for (final Charset charset : new Charset[] { StandardCharsets.UTF_8, StandardCharsets.UTF_16 }) {
+            final JsonStreamReader reader = createReader(jo.toString() + " " + jo.toString(), charset);
+            for (int i = 0; i < 2; ++i) {
+                assertTrue(reader.more());
+                final JSONObject value = (JSONObject)reader.nextValue();
+                assertEquals(jo.getString("string"), value.getString("string"));
+                assertEquals(jo.getInt("int"), value.getInt("int"));
+                assertEquals(jo.getLong("long"), value.getLong("long"));
+                assertEquals(jo.getDouble("double"), value.getDouble("double"), 0);
+                assertEquals(jo.getBoolean("boolean"), value.getBoolean("boolean"));
+                assertEquals(jo.getJSONArray("array").toString(), value.getJSONArray("array").toString());
+            }
+            assertFalse(reader.more());
+        }
+    }
+    
+    @Test
+    public void members() {
+        final JsonStreamReader reader = createReader("{ \"a\" : \"1\", \"b\" : 2, \"c\" : \"true\", \"d\" : { \"e\" : [] } }", StandardCharsets.UTF_8);
+        reader.beginObject();
+        assertTrue(reader.hasNextMember());
+        assertEquals("a", reader.nextName());
+        assertEquals(1, reader.nextLong());
+        assertTrue(reader.hasNextMember());
+        assertEquals("b", reader.nextName());
+        assertEquals(2, reader.nextLong());
+        assertTrue(reader.hasNextMember());
+        assertEquals("c", reader.nextName());
+        assertTrue(reader.nextBoolean());
+        assertTrue(reader.hasNextMember());
+        assertEquals("d", reader.nextName());
+        reader.skipValue();
+        assertFalse(reader.hasNextMember());
+        assertFalse(reader.more());
+    }
+    
+    @Test
+    public void base64() {
+        final Random random = new Random();
+        for (int length = 0; length < 64; ++length) {
+            final byte[] data = new byte[length];
+            random.nextBytes(data);
+            final String b64 = DatatypeConverter.printBase64Binary(data);
+            final JsonStreamReader reader = createReader("\"" + b64 + "\" \"" + b64.replace("/", "\\/") + "\"", StandardCharsets.UTF_8);
+            assertArrayEquals(data, reader.nextBase64());
+            assertArrayEquals(data, reader.nextBase64());
+        }
+    }
+    
+    @Test
+    public void largeBase64() {
+        final byte[] data = new byte[4 * 1024 * 1024 + 1];
+        new Random().nextBytes(data);
+        final JsonStreamReader reader = createReader("\"" + DatatypeConverter.printBase64Binary(data) + "\"", StandardCharsets.UTF_8);
+        assertArrayEquals(data, reader.nextBase64());
+    }
+    
+    @Test
+    public void invalidBase64() {
+        final JsonStreamReader reader = createReader("\"x\"", StandardCharsets.UTF_8);
+        assertNull(reader.nextBase64());
+    }
+    
+    @Test(expected = JSONException.class)
+    public void notBase64String() {
+        final JsonStreamReader reader = createReader("1", StandardCharsets.UTF_8);
+        reader.nextBase64();
+    }
+    
+    @Test(expected = JSONException.class)
+    public void unterminatedString() {
+        final JsonStreamReader reader = createReader("\"abc", StandardCharsets.UTF_8);
+        reader.nextString();
+    }
+    
+    @Test(expected = JSONException.class)
+    public void unterminatedObject() {
+        final JsonStreamReader reader = createReader("{\"a\":1", StandardCharsets.UTF_8);
+        reader.nextValue();
+    }
+    
+    @Test(expected = JSONException.class)
+    public void duplicateKey() {
+        final JsonStreamReader reader = createReader("{\"a\":1,\"a\":2}", StandardCharsets.UTF_8);
+        reader.nextValue();
+    }
+    
+    @Test(expected = JSONException.class)
+    public void duplicateMember() {
+        final JsonStreamReader reader = createReader("{\"a\":1,\"b\":2,\"a\":3}", StandardCharsets.UTF_8);
+        reader.beginObject();
+        while (reader.hasNextMember()) {
+            reader.nextName();
+            reader.skipValue();
+        }
+    }
+    
+    @Test
+    public void membersOfConsecutiveObjects() {
+        final JsonStreamReader reader = createReader("{\"a\":1} {\"a\":2}", StandardCharsets.UTF_8);
+        for (int i = 1; i <= 2; ++i) {
+            reader.beginObject();
+            assertTrue(reader.hasNextMember());
+            assertEquals("a", reader.nextName());
+            assertEquals(i, reader.nextLong());
+            assertFalse(reader.hasNextMember());
+        }
+    }
+    
+    @Test(expected = JSONException.class)
+    public void missingComma() {
+        final JsonStreamReader reader = createReader("{\"a\":1 \"b\":2}", StandardCharsets.UTF_8);
+        reader.beginObject();
+        while (reader.hasNextMember()) {
+            reader.nextName();
+            reader.skipValue();
+        }
+    }
+    
+    @Test(expected = JSONException.class)
+    public void notLong() {
+        final JsonStreamReader reader = createReader("\"x\"", StandardCharsets.UTF_8);
+        reader.nextLong();
+    }
+}
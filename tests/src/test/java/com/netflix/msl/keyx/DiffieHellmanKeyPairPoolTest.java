@@ -0,0 +1,152 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.keyx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+
+import javax.crypto.interfaces.DHPrivateKey;
+import javax.crypto.interfaces.DHPublicKey;
+import javax.crypto.spec.DHParameterSpec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.netflix.msl.MslError;
+import com.netflix.msl.MslKeyExchangeException;
+import com.netflix.msl.test.ExpectedMslException;
+
+/**
+ * Diffie-Hellman key pair pool unit tests.
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+public class DiffieHellmanKeyPairPoolTest {
+    /** Parameters ID. */
+    private static final String PARAMETERS_ID = MockDiffieHellmanParameters.DEFAULT_ID;
+    /** Low-water mark. */
+    private static final int LOW_WATER_MARK = 1;
+    /** Capacity. */
+    private static final int CAPACITY = 4;
+    /** Maximum time to wait for a refill in milliseconds. */
+    private static final long TIMEOUT = 10000;
+    
+    @Rule
+    public ExpectedMslException thrown = ExpectedMslException.none();
+    
+    /**
+     * Wait for the pool to hold at least the expected number of key pairs.
+     * 
+     * @param expected the expected number of key pairs.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private void waitForSize(final int expected) throws InterruptedException {
+        final long end = System.currentTimeMillis() + TIMEOUT;
+        while (pool.getSize(PARAMETERS_ID) < expected && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+    }
+    
+    @Before
+    public void setup() {
+        params = MockDiffieHellmanParameters.getDefaultParameters();
+        pool = new DiffieHellmanKeyPairPool(params, LOW_WATER_MARK, CAPACITY);
+    }
+    
+    @After
+    public void teardown() {
+        pool.shutdown();
+    }
+    
+    @Test
+    public void takeWhenEmpty() throws MslKeyExchangeException {
+        final KeyPair keyPair = pool.take(PARAMETERS_ID);
+        assertNotNull(keyPair);
+        final DHParameterSpec expected = params.getParameterSpec(PARAMETERS_ID);
+        final DHParameterSpec actual = ((DHPrivateKey)keyPair.getPrivate()).getParams();
+        assertEquals(expected.getP(), actual.getP());
+        assertEquals(expected.getG(), actual.getG());
+    }
+    
+    @Test
+    public void prefill() throws InterruptedException {
+        assertEquals(0, pool.getSize(PARAMETERS_ID));
+        pool.prefill(PARAMETERS_ID);
+        waitForSize(CAPACITY);
+        assertEquals(CAPACITY, pool.getSize(PARAMETERS_ID));
+    }
+    
+    @Test
+    public void refillAtLowWaterMark() throws InterruptedException, MslKeyExchangeException {
+        pool.prefill(PARAMETERS_ID);
+        waitForSize(CAPACITY);
+        for (int i = 0; i < CAPACITY - LOW_WATER_MARK; ++i)
+            pool.take(PARAMETERS_ID);
+        waitForSize(CAPACITY);
+        assertEquals(CAPACITY, pool.getSize(PARAMETERS_ID));
+    }
+    
+    @Test
+    public void uniqueKeyPairs() throws InterruptedException, MslKeyExchangeException {
+        pool.prefill(PARAMETERS_ID);
+        waitForSize(CAPACITY);
+        final KeyPair first = pool.take(PARAMETERS_ID);
+        final KeyPair second = pool.take(PARAMETERS_ID);
+        assertNotSame(first, second);
+        final BigInteger firstY = ((DHPublicKey)first.getPublic()).getY();
+        final BigInteger secondY = ((DHPublicKey)second.getPublic()).getY();
+        assertTrue(!firstY.equals(secondY));
+    }
+    
+    @Test
+    public void clear() throws InterruptedException {
+        pool.prefill(PARAMETERS_ID);
+        waitForSize(CAPACITY);
+        pool.clear(PARAMETERS_ID);
+        assertEquals(0, pool.getSize(PARAMETERS_ID));
+    }
+    
+    @Test
+    public void unknownParametersId() throws MslKeyExchangeException {
+        thrown.expect(MslKeyExchangeException.class);
+        thrown.expectMslError(MslError.UNKNOWN_KEYX_PARAMETERS_ID);
+        
+        pool.take("x");
+    }
+    
+    @Test
+    public void takeAfterShutdown() throws MslKeyExchangeException {
+        pool.shutdown();
+        assertNotNull(pool.take(PARAMETERS_ID));
+        assertEquals(0, pool.getSize(PARAMETERS_ID));
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityNotAboveLowWaterMark() {
+        new DiffieHellmanKeyPairPool(params, CAPACITY, CAPACITY);
+    }
+    
+    /** Diffie-Hellman parameters. */
+    private MockDiffieHellmanParameters params;
+    /** Key pair pool. */
+    private DiffieHellmanKeyPairPool pool;
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.keyx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.security.interfaces.RSAPublicKey;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.netflix.msl.MslError;
+import com.netflix.msl.MslKeyExchangeException;
+import com.netflix.msl.keyx.AsymmetricWrappedExchange.RequestData;
+import com.netflix.msl.keyx.AsymmetricWrappedExchange.RequestData.Mechanism;
+import com.netflix.msl.test.ExpectedMslException;
+
+/**
+ * RSA key pair pool unit tests.
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+public class RsaKeyPairPoolTest {
+    /** Key pair ID. */
+    private static final String KEYPAIR_ID = "keypairId";
+    /** RSA modulus size in bits. */
+    private static final int KEY_SIZE = 1024;
+    /** Low-water mark. */
+    private static final int LOW_WATER_MARK = 1;
+    /** Capacity. */
+    private static final int CAPACITY = 3;
+    /** Maximum time to wait for a refill in milliseconds. */
+    private static final long TIMEOUT = 30000;
+    
+    @Rule
+    public ExpectedMslException thrown = ExpectedMslException.none();
+    
+    /**
+     * Wait for the pool to hold at least the expected number of key pairs.
+     * 
+     * @param expected the expected number of key pairs.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private void waitForSize(final int expected) throws InterruptedException {
+        final long end = System.currentTimeMillis() + TIMEOUT;
+        while (pool.getSize(KEYPAIR_ID) < expected && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+    }
+    
+    @Before
+    public void setup() {
+        pool = new RsaKeyPairPool(KEY_SIZE, LOW_WATER_MARK, CAPACITY);
+    }
+    
+    @After
+    public void teardown() {
+        pool.shutdown();
+    }
+    
+    @Test
+    public void missWhenEmpty() throws MslKeyExchangeException {
+        assertNotNull(pool.take(KEYPAIR_ID));
+        assertEquals(0, pool.getHits());
+        assertEquals(1, pool.getMisses());
+    }
+    
+    @Test
+    public void hitWhenFilled() throws InterruptedException, MslKeyExchangeException {
+        pool.prefill(KEYPAIR_ID);
+        waitForSize(CAPACITY);
+        assertNotNull(pool.take(KEYPAIR_ID));
+        assertEquals(1, pool.getHits());
+        assertEquals(0, pool.getMisses());
+    }
+    
+    @Test
+    public void createRequestData() throws InterruptedException, MslKeyExchangeException {
+        pool.prefill(KEYPAIR_ID);
+        waitForSize(CAPACITY);
+        final RequestData first = pool.createRequestData(KEYPAIR_ID, Mechanism.JWE_RSA);
+        final RequestData second = pool.createRequestData(KEYPAIR_ID, Mechanism.JWE_RSA);
+        assertEquals(KEYPAIR_ID, first.getKeyPairId());
+        assertEquals(Mechanism.JWE_RSA, first.getMechanism());
+        assertNotNull(first.getPrivateKey());
+        assertEquals(KEY_SIZE, ((RSAPublicKey)first.getPublicKey()).getModulus().bitLength());
+        assertNotSame(first.getPublicKey(), second.getPublicKey());
+        assertEquals(2, pool.getHits());
+    }
+    
+    @Test
+    public void callerExecutorNotShutdown() throws InterruptedException, MslKeyExchangeException {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final RsaKeyPairPool callerPool = new RsaKeyPairPool(KEY_SIZE, LOW_WATER_MARK, CAPACITY, executor);
+            callerPool.shutdown();
+            assertFalse(executor.isShutdown());
+            
+            // No key pairs are generated in the background once shut down.
+            callerPool.prefill(KEYPAIR_ID);
+            assertNotNull(callerPool.take(KEYPAIR_ID));
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(TIMEOUT, TimeUnit.MILLISECONDS));
+            assertEquals(0, callerPool.getSize(KEYPAIR_ID));
+            assertEquals(1, callerPool.getMisses());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void eccMechanism() throws MslKeyExchangeException {
+        thrown.expect(MslKeyExchangeException.class);
+        thrown.expectMslError(MslError.UNSUPPORTED_KEYX_MECHANISM);
+        
+        pool.createRequestData(KEYPAIR_ID, Mechanism.ECC);
+    }
+    
+    /** Key pair pool. */
+    private RsaKeyPairPool pool;
+}
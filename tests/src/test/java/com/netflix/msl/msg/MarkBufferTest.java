@@ -0,0 +1,100 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.msg;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Mark buffer unit tests.
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+public class MarkBufferTest {
+    /** Test data. */
+    private static final byte[] DATA = new byte[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 };
+    
+    @Test
+    public void nothingRecordedWithoutMark() throws IOException {
+        final MarkBuffer buffer = new MarkBuffer(DATA.length, null);
+        buffer.record(DATA, 0, DATA.length);
+        assertEquals(0, buffer.available());
+        assertEquals(0, buffer.replay(new byte[DATA.length], 0, DATA.length));
+    }
+    
+    @Test
+    public void markDuringReplay() throws IOException {
+        final MarkBuffer buffer = new MarkBuffer(DATA.length, null);
+        buffer.mark(DATA.length);
+        buffer.record(DATA, 0, DATA.length);
+        buffer.reset();
+        
+        // Marking part way through the replay keeps the unreplayed data.
+        final byte[] replayed = new byte[DATA.length];
+        assertEquals(4, buffer.replay(replayed, 0, 4));
+        buffer.mark(DATA.length);
+        assertEquals(DATA.length - 4, buffer.available());
+        assertEquals(DATA.length - 4, buffer.replay(replayed, 4, DATA.length));
+        buffer.reset();
+        assertEquals(DATA.length - 4, buffer.replay(replayed, 4, DATA.length));
+        assertArrayEquals(DATA, replayed);
+    }
+    
+    @Test
+    public void unreplayedDataKeptAfterInvalidMark() throws IOException {
+        final MarkBuffer buffer = new MarkBuffer(DATA.length, null);
+        buffer.mark(DATA.length);
+        buffer.record(DATA, 0, DATA.length);
+        buffer.reset();
+        
+        // A mark with too small a read limit is invalid but the recorded data
+        // must still be replayed.
+        buffer.mark(2);
+        final byte[] replayed = new byte[DATA.length];
+        assertEquals(DATA.length, buffer.replay(replayed, 0, DATA.length));
+        assertArrayEquals(DATA, replayed);
+        assertEquals(0, buffer.available());
+    }
+    
+    @Test(expected = IOException.class)
+    public void invalidMark() throws IOException {
+        final MarkBuffer buffer = new MarkBuffer(DATA.length, null);
+        buffer.mark(DATA.length);
+        buffer.record(DATA, 0, DATA.length);
+        buffer.record(DATA, 0, 1);
+        buffer.reset();
+    }
+    
+    @Test
+    public void spill() throws IOException {
+        final MarkBuffer buffer = new MarkBuffer(4, new File(System.getProperty("java.io.tmpdir")));
+        buffer.mark(2 * DATA.length);
+        buffer.record(DATA, 0, DATA.length);
+        buffer.record(DATA, 0, DATA.length);
+        buffer.reset();
+        final byte[] replayed = new byte[2 * DATA.length];
+        assertEquals(replayed.length, buffer.replay(replayed, 0, replayed.length));
+        assertArrayEquals(DATA, Arrays.copyOfRange(replayed, 0, DATA.length));
+        assertArrayEquals(DATA, Arrays.copyOfRange(replayed, DATA.length, replayed.length));
+        buffer.close();
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.msg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.netflix.msl.MslCryptoException;
+import com.netflix.msl.MslEncodingException;
+import com.netflix.msl.crypto.NullCryptoContext;
+import com.netflix.msl.entityauth.EntityAuthenticationScheme;
+import com.netflix.msl.tokens.MasterToken;
+import com.netflix.msl.util.MockMslContext;
+import com.netflix.msl.util.MslStore;
+import com.netflix.msl.util.MslTestUtils;
+
+/**
+ * Master token deletion queue unit tests.
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+public class MasterTokenDeletionQueueTest {
+    /** Time to wait for deletions in milliseconds. */
+    private static final long TIMEOUT = 5000;
+    
+    /** MSL context. */
+    private static MockMslContext ctx;
+    /** Master token. */
+    private static MasterToken masterToken;
+    /** Other master token. */
+    private static MasterToken otherMasterToken;
+    
+    @BeforeClass
+    public static void setup() throws MslEncodingException, MslCryptoException {
+        ctx = new MockMslContext(EntityAuthenticationScheme.PSK, false);
+        masterToken = MslTestUtils.getMasterToken(ctx, 1, 1);
+        otherMasterToken = MslTestUtils.getMasterToken(ctx, 1, 2);
+    }
+    
+    @AfterClass
+    public static void teardown() {
+        otherMasterToken = null;
+        masterToken = null;
+        ctx = null;
+    }
+    
+    @Before
+    public void createQueue() {
+        store = ctx.getMslStore();
+        store.setCryptoContext(masterToken, new NullCryptoContext());
+        store.setCryptoContext(otherMasterToken, new NullCryptoContext());
+        locks = new MasterTokenLockRegistry();
+        queue = new MasterTokenDeletionQueue(locks);
+    }
+    
+    @After
+    public void reset() {
+        store.clearCryptoContexts();
+    }
+    
+    @Test
+    public void delete() {
+        final ReadWriteLock lock = locks.getOrCreate(ctx, masterToken);
+        queue.delete(ctx, masterToken, lock);
+        
+        assertNull(store.getCryptoContext(masterToken));
+        assertNotNull(store.getCryptoContext(otherMasterToken));
+        assertFalse(queue.isRetired(ctx, masterToken));
+        assertNull(locks.get(ctx, masterToken));
+        
+        final MasterTokenDeletionStatistics stats = queue.getStatistics();
+        assertEquals(1, stats.getQueued());
+        assertEquals(1, stats.getCompleted());
+        assertEquals(0, stats.getPending());
+        assertEquals(1, stats.getPeakPending());
+    }
+    
+    @Test
+    public void waitsForReaders() {
+        final ReadWriteLock lock = locks.getOrCreate(ctx, masterToken);
+        lock.readLock().lock();
+        lock.readLock().lock();
+        queue.delete(ctx, masterToken, lock);
+        
+        // The master token is retired but not removed while it is in use.
+        assertTrue(queue.isRetired(ctx, masterToken));
+        assertNotNull(store.getCryptoContext(masterToken));
+        assertEquals(1, queue.getStatistics().getPending());
+        
+        // Only releasing the last read lock completes the deletion.
+        queue.release(ctx, masterToken, lock);
+        assertTrue(queue.isRetired(ctx, masterToken));
+        assertNotNull(store.getCryptoContext(masterToken));
+        queue.release(ctx, masterToken, lock);
+        assertNull(store.getCryptoContext(masterToken));
+        assertFalse(queue.isRetired(ctx, masterToken));
+        assertNull(locks.get(ctx, masterToken));
+        assertEquals(0, queue.getStatistics().getPending());
+    }
+    
+    @Test
+    public void stuckReaderDoesNotBlockOtherDeletions() throws InterruptedException {
+        // Another thread holds on to the master token.
+        final ReadWriteLock lock = locks.getOrCreate(ctx, masterToken);
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                lock.readLock().lock();
+                acquired.countDown();
+                try {
+                    done.await();
+                } catch (final InterruptedException e) {
+                    // Fall through and release the master token.
+                }
+                queue.release(ctx, masterToken, lock);
+            }
+        });
+        reader.start();
+        assertTrue(acquired.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        
+        // Deleting the master token does not wait for the reader, and the
+        // other master token is still deleted right away.
+        queue.delete(ctx, masterToken, lock);
+        queue.delete(ctx, otherMasterToken, locks.getOrCreate(ctx, otherMasterToken));
+        assertNotNull(store.getCryptoContext(masterToken));
+        assertNull(store.getCryptoContext(otherMasterToken));
+        assertFalse(queue.isRetired(ctx, otherMasterToken));
+        final MasterTokenDeletionStatistics stats = queue.getStatistics();
+        assertEquals(2, stats.getQueued());
+        assertEquals(1, stats.getCompleted());
+        assertEquals(1, stats.getPending());
+        
+        // The reader completes the deletion when it releases the master
+        // token.
+        done.countDown();
+        reader.join(TIMEOUT);
+        assertFalse(reader.isAlive());
+        assertNull(store.getCryptoContext(masterToken));
+        assertFalse(queue.isRetired(ctx, masterToken));
+        final MasterTokenDeletionStatistics after = queue.getStatistics();
+        assertEquals(2, after.getCompleted());
+        assertEquals(0, after.getPending());
+        assertEquals(2, after.getPeakPending());
+    }
+    
+    @Test
+    public void duplicateDelete() {
+        final ReadWriteLock lock = locks.getOrCreate(ctx, masterToken);
+        lock.readLock().lock();
+        queue.delete(ctx, masterToken, lock);
+        queue.delete(ctx, masterToken, lock);
+        assertEquals(1, queue.getStatistics().getQueued());
+        queue.release(ctx, masterToken, lock);
+        assertEquals(1, queue.getStatistics().getCompleted());
+    }
+    
+    @Test
+    public void releaseNotRetired() {
+        final ReadWriteLock lock = locks.getOrCreate(ctx, masterToken);
+        lock.readLock().lock();
+        queue.release(ctx, masterToken, lock);
+        assertNotNull(store.getCryptoContext(masterToken));
+        assertNotNull(locks.get(ctx, masterToken));
+        assertEquals(0, queue.getStatistics().getCompleted());
+    }
+    
+    /** MSL store. */
+    private MslStore store;
+    /** Master token lock registry. */
+    private MasterTokenLockRegistry locks;
+    /** Master token deletion queue. */
+    private MasterTokenDeletionQueue queue;
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.msg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.netflix.msl.MslCryptoException;
+import com.netflix.msl.MslEncodingException;
+import com.netflix.msl.MslException;
+import com.netflix.msl.entityauth.EntityAuthenticationScheme;
+import com.netflix.msl.tokens.MasterToken;
+import com.netflix.msl.util.MockMslContext;
+import com.netflix.msl.util.MslTestUtils;
+
+/**
+ * Master token lock registry unit tests.
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+public class MasterTokenLockRegistryTest {
+    /** MSL context. */
+    private static MockMslContext ctx;
+    /** Other MSL context. */
+    private static MockMslContext otherCtx;
+    /** Master token. */
+    private static MasterToken masterToken;
+    
+    @BeforeClass
+    public static void setup() throws MslEncodingException, MslCryptoException {
+        ctx = new MockMslContext(EntityAuthenticationScheme.PSK, false);
+        otherCtx = new MockMslContext(EntityAuthenticationScheme.PSK, false);
+        masterToken = MslTestUtils.getMasterToken(ctx, 1, 1);
+    }
+    
+    @AfterClass
+    public static void teardown() {
+        masterToken = null;
+        otherCtx = null;
+        ctx = null;
+    }
+    
+    @Before
+    public void createRegistry() {
+        registry = new MasterTokenLockRegistry();
+    }
+    
+    @Test
+    public void getMissing() {
+        assertNull(registry.get(ctx, masterToken));
+        assertEquals(0, registry.size());
+    }
+    
+    @Test
+    public void reused() throws MslException, JSONException {
+        final ReadWriteLock lock = registry.getOrCreate(ctx, masterToken);
+        assertNotNull(lock);
+        assertSame(lock, registry.getOrCreate(ctx, masterToken));
+        assertSame(lock, registry.get(ctx, masterToken));
+        
+        // An equal master token finds the same lock.
+        final MasterToken equalMasterToken = new MasterToken(ctx, new JSONObject(masterToken.toJSONString()));
+        assertSame(lock, registry.get(ctx, equalMasterToken));
+        assertEquals(1, registry.size());
+    }
+    
+    @Test
+    public void contextsAreSeparate() throws MslEncodingException, MslCryptoException {
+        final ReadWriteLock lock = registry.getOrCreate(ctx, masterToken);
+        assertNull(registry.get(otherCtx, masterToken));
+        assertNotSame(lock, registry.getOrCreate(otherCtx, masterToken));
+        assertNotSame(lock, registry.getOrCreate(ctx, MslTestUtils.getMasterToken(ctx, 2, 1)));
+        assertEquals(3, registry.size());
+    }
+    
+    @Test
+    public void remove() {
+        final ReadWriteLock lock = registry.getOrCreate(ctx, masterToken);
+        registry.remove(ctx, masterToken, lock);
+        assertNull(registry.get(ctx, masterToken));
+        assertNotSame(lock, registry.getOrCreate(ctx, masterToken));
+    }
+    
+    @Test
+    public void removeOtherLock() {
+        final ReadWriteLock lock = registry.getOrCreate(ctx, masterToken);
+        registry.remove(ctx, masterToken, registry.getOrCreate(otherCtx, masterToken));
+        registry.remove(otherCtx, masterToken, lock);
+        assertSame(lock, registry.get(ctx, masterToken));
+    }
+    
+    @Test
+    public void readLockReleasedByOtherThread() throws InterruptedException {
+        final ReentrantReadWriteLock lock = registry.getOrCreate(ctx, masterToken);
+        lock.readLock().lockInterruptibly();
+        final AtomicReference<Throwable> thrown = new AtomicReference<Throwable>();
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    lock.readLock().unlock();
+                } catch (final Throwable t) {
+                    thrown.set(t);
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+        
+        // The foreign release must fail and leave the read lock held.
+        assertTrue(thrown.get() instanceof IllegalMonitorStateException);
+        assertEquals(1, lock.getReadHoldCount());
+        assertFalse(lock.writeLock().tryLock());
+        lock.readLock().unlock();
+        assertTrue(lock.writeLock().tryLock());
+        lock.writeLock().unlock();
+    }
+    
+    @Test(expected = IllegalMonitorStateException.class)
+    public void unbalancedReadUnlock() {
+        final ReentrantReadWriteLock lock = registry.getOrCreate(ctx, masterToken);
+        lock.readLock().lock();
+        lock.readLock().unlock();
+        lock.readLock().unlock();
+    }
+    
+    /** Master token lock registry. */
+    private MasterTokenLockRegistry registry;
+}
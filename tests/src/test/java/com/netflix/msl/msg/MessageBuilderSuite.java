@@ -30,6 +30,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -56,6 +57,7 @@ import org.junit.runners.Suite.SuiteClasses;
 
 import com.netflix.msl.MslConstants;
 import com.netflix.msl.MslConstants.CompressionAlgorithm;
+import com.netflix.msl.MslConstants.EncoderFormat;
 import com.netflix.msl.MslCryptoException;
 import com.netflix.msl.MslEncodingException;
 import com.netflix.msl.MslEntityAuthException;
@@ -1296,6 +1298,52 @@ public class MessageBuilderSuite {
             p2pCtx.getMslStore().clearServiceTokens();
         }
         
+        @Test
+        public void encoderFormatNegotiation() throws MslEncodingException, MslCryptoException, MslMessageException, MslMasterTokenException, MslEntityAuthException, MslException {
+            final MockMslContext ctx = new MockMslContext(EntityAuthenticationScheme.PSK, false);
+            final MessageCapabilities binaryCaps = new MessageCapabilities(null, null, EnumSet.of(EncoderFormat.BINARY));
+            ctx.setMessageCapabilities(binaryCaps);
+            
+            // Requests are JSON encoded until a format has been negotiated.
+            final MessageBuilder requestBuilder = MessageBuilder.createRequest(ctx, null, null, null);
+            assertEquals(EncoderFormat.JSON, requestBuilder.getEncoderFormat());
+            final MessageHeader request = requestBuilder.getHeader();
+            
+            // Responses use the binary encoding if both entities support it.
+            final MessageBuilder responseBuilder = MessageBuilder.createResponse(ctx, request);
+            assertEquals(EncoderFormat.BINARY, responseBuilder.getEncoderFormat());
+            
+            // Otherwise responses are JSON encoded.
+            final MockMslContext jsonCtx = new MockMslContext(EntityAuthenticationScheme.PSK, false);
+            final MessageBuilder jsonResponseBuilder = MessageBuilder.createResponse(jsonCtx, request);
+            assertEquals(EncoderFormat.JSON, jsonResponseBuilder.getEncoderFormat());
+        }
+        
+        @Test
+        public void negotiatedRequestEncoderFormat() throws MslEncodingException, MslCryptoException, MslMessageException, MslMasterTokenException, MslEntityAuthException, MslException {
+            final MockMslContext ctx = new MockMslContext(EntityAuthenticationScheme.PSK, false);
+            final MessageCapabilities binaryCaps = new MessageCapabilities(null, null, EnumSet.of(EncoderFormat.BINARY));
+            ctx.setMessageCapabilities(binaryCaps);
+            
+            // Requests use the negotiated format if the local entity supports
+            // it.
+            final MessageBuilder requestBuilder = MessageBuilder.createRequest(ctx, null, null, null, EncoderFormat.BINARY);
+            assertEquals(EncoderFormat.BINARY, requestBuilder.getEncoderFormat());
+            final MessageBuilder idRequestBuilder = MessageBuilder.createRequest(ctx, null, null, null, REQUEST_MESSAGE_ID, EncoderFormat.BINARY);
+            assertEquals(EncoderFormat.BINARY, idRequestBuilder.getEncoderFormat());
+            assertEquals(REQUEST_MESSAGE_ID, idRequestBuilder.getMessageId());
+            
+            // The binary header data is understood by the remote entity.
+            final MessageHeader request = requestBuilder.getHeader();
+            final MessageBuilder responseBuilder = MessageBuilder.createResponse(ctx, request);
+            assertEquals(EncoderFormat.BINARY, responseBuilder.getEncoderFormat());
+            
+            // Otherwise requests are JSON encoded.
+            final MockMslContext jsonCtx = new MockMslContext(EntityAuthenticationScheme.PSK, false);
+            final MessageBuilder jsonRequestBuilder = MessageBuilder.createRequest(jsonCtx, null, null, null, EncoderFormat.BINARY);
+            assertEquals(EncoderFormat.JSON, jsonRequestBuilder.getEncoderFormat());
+        }
+        
         @Test
         public void createNullResponse() throws MslEncodingException, MslCryptoException, MslMessageException, MslMasterTokenException, MslEntityAuthException, MslException {
             // This will not exercise any of the complex logic, so no key
@@ -23,6 +23,7 @@ import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -35,6 +36,7 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import com.netflix.msl.MslConstants.CompressionAlgorithm;
+import com.netflix.msl.MslConstants.EncoderFormat;
 import com.netflix.msl.MslEncodingException;
 
 /**
@@ -45,6 +47,8 @@ import com.netflix.msl.MslEncodingException;
 public class MessageCapabilitiesTest {
     /** JSON key compression algorithms. */
     private static final String KEY_COMPRESSION_ALGOS = "compressionalgos";
+    /** JSON key encoder formats. */
+    private static final String KEY_ENCODER_FORMATS = "encoderformats";
     
     private static final Set<CompressionAlgorithm> ALGOS = new HashSet<CompressionAlgorithm>();
     private static final List<String> LANGUAGES = Arrays.asList(new String[] { "en-US", "es" });
@@ -216,4 +220,55 @@ public class MessageCapabilitiesTest {
         assertNull(intersectionA);
         assertNull(intersectionB);
     }
+    
+    @Test
+    public void encoderFormats() throws MslEncodingException, JSONException {
+        final Set<EncoderFormat> formats = EnumSet.of(EncoderFormat.BINARY);
+        final MessageCapabilities caps = new MessageCapabilities(ALGOS, LANGUAGES, formats);
+        assertEquals(formats, caps.getEncoderFormats());
+        
+        final MessageCapabilities joCaps = new MessageCapabilities(new JSONObject(caps.toJSONString()));
+        assertEquals(caps.getEncoderFormats(), joCaps.getEncoderFormats());
+        assertEquals(caps, joCaps);
+        assertEquals(caps.hashCode(), joCaps.hashCode());
+    }
+    
+    @Test
+    public void noEncoderFormats() throws MslEncodingException, JSONException {
+        final MessageCapabilities caps = new MessageCapabilities(ALGOS, LANGUAGES);
+        assertNotNull(caps.getEncoderFormats());
+        assertEquals(0, caps.getEncoderFormats().size());
+        
+        // Older entities do not know about encoder formats so none should be
+        // advertised.
+        final JSONObject jo = new JSONObject(caps.toJSONString());
+        assertFalse(jo.has(KEY_ENCODER_FORMATS));
+        assertEquals(EncoderFormat.JSON, EncoderFormat.getPreferredFormat(caps.getEncoderFormats()));
+    }
+    
+    @Test
+    public void unknownEncoderFormat() throws JSONException, MslEncodingException {
+        final MessageCapabilities caps = new MessageCapabilities(ALGOS, LANGUAGES, EnumSet.of(EncoderFormat.BINARY));
+        final JSONObject jo = new JSONObject(caps.toJSONString());
+        
+        final JSONArray ja = jo.getJSONArray(KEY_ENCODER_FORMATS);
+        ja.put("CATZ");
+        jo.put(KEY_ENCODER_FORMATS, ja);
+        
+        final MessageCapabilities joCaps = new MessageCapabilities(jo);
+        assertEquals(caps.getEncoderFormats(), joCaps.getEncoderFormats());
+    }
+    
+    @Test
+    public void encoderFormatIntersection() {
+        final MessageCapabilities capsA = new MessageCapabilities(ALGOS, LANGUAGES, EnumSet.of(EncoderFormat.BINARY));
+        final MessageCapabilities capsB = new MessageCapabilities(ALGOS, LANGUAGES);
+        
+        final MessageCapabilities selfIntersection = MessageCapabilities.intersection(capsA, capsA);
+        assertEquals(EncoderFormat.BINARY, EncoderFormat.getPreferredFormat(selfIntersection.getEncoderFormats()));
+        
+        final MessageCapabilities intersection = MessageCapabilities.intersection(capsA, capsB);
+        assertEquals(0, intersection.getEncoderFormats().size());
+        assertEquals(EncoderFormat.JSON, EncoderFormat.getPreferredFormat(intersection.getEncoderFormats()));
+    }
 }
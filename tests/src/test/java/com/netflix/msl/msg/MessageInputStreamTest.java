@@ -24,12 +24,16 @@ import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -37,6 +41,13 @@ import java.util.ListIterator;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
@@ -50,6 +61,7 @@ import org.junit.Rule;
 import org.junit.Test;
 
 import com.netflix.msl.MslConstants;
+import com.netflix.msl.MslConstants.EncoderFormat;
 import com.netflix.msl.MslConstants.ResponseCode;
 import com.netflix.msl.MslCryptoException;
 import com.netflix.msl.MslEncodingException;
@@ -83,6 +95,7 @@ import com.netflix.msl.msg.MessageHeader.HeaderPeerData;
 import com.netflix.msl.test.ExpectedMslException;
 import com.netflix.msl.tokens.MasterToken;
 import com.netflix.msl.tokens.MockTokenFactory;
+import com.netflix.msl.tokens.ServiceToken;
 import com.netflix.msl.tokens.UserIdToken;
 import com.netflix.msl.userauth.MockEmailPasswordAuthenticationFactory;
 import com.netflix.msl.util.MockAuthenticationUtils;
@@ -173,6 +186,23 @@ public class MessageInputStreamTest {
         return new ByteArrayInputStream(baos.toByteArray());
     }
     
+    /**
+     * Create a new input stream containing a binary encoded MSL message
+     * constructed from the provided header and payloads.
+     * 
+     * @param header message header.
+     * @param payloads zero or more payload chunks.
+     * @return an input stream containing the MSL message.
+     * @throws IOException if there is an error creating the input stream.
+     */
+    private static InputStream generateBinaryInputStream(final MessageHeader header, final List<PayloadChunk> payloads) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BinaryEncoding.writeHeader(baos, header);
+        for (final PayloadChunk payload : payloads)
+            BinaryEncoding.writePayloadChunk(baos, payload);
+        return new ByteArrayInputStream(baos.toByteArray());
+    }
+    
     @Rule
     public ExpectedMslException thrown = ExpectedMslException.none();
     
@@ -1337,4 +1367,512 @@ public class MessageInputStreamTest {
         
         mis.close();
     }
+    
+    @Test
+    public void binaryMessage() throws MslEncodingException, MslException, IOException {
+        final ICryptoContext cryptoContext = MESSAGE_HEADER.getCryptoContext();
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        for (int i = 0; i < MAX_PAYLOAD_CHUNKS; ++i) {
+            final byte[] data = new byte[random.nextInt(MAX_DATA_SIZE) + 1];
+            random.nextBytes(data);
+            payloads.add(new PayloadChunk(SEQ_NO + i, MSG_ID, (i == MAX_PAYLOAD_CHUNKS - 1), null, data, cryptoContext));
+            baos.write(data);
+        }
+        final byte[] appdata = baos.toByteArray();
+        final InputStream is = generateBinaryInputStream(MESSAGE_HEADER, payloads);
+        final MessageInputStream mis = new MessageInputStream(trustedNetCtx, is, MslConstants.DEFAULT_CHARSET, KEY_REQUEST_DATA, cryptoContexts);
+        assertEquals(EncoderFormat.BINARY, mis.getEncoderFormat());
+        assertEquals(MESSAGE_HEADER, mis.getMessageHeader());
+        
+        assertEquals(appdata.length, mis.read(buffer));
+        assertArrayEquals(appdata, Arrays.copyOfRange(buffer, 0, appdata.length));
+        assertEquals(-1, mis.read());
+        
+        mis.close();
+    }
+    
+    @Test
+    public void binaryHeaderdata() throws MslEncodingException, MslException, IOException {
+        final MasterToken masterToken = MslTestUtils.getMasterToken(trustedNetCtx, 1, 1);
+        final UserIdToken userIdToken = MslTestUtils.getUserIdToken(trustedNetCtx, masterToken, 1, MockEmailPasswordAuthenticationFactory.USER);
+        final Set<ServiceToken> serviceTokens = MslTestUtils.getServiceTokens(trustedNetCtx, masterToken, userIdToken);
+        final MessageCapabilities capabilities = new MessageCapabilities(null, null, EnumSet.of(EncoderFormat.BINARY));
+        final HeaderData headerData = new HeaderData("recipient", MSG_ID, 17L, true, false, capabilities, KEY_REQUEST_DATA, null, null, userIdToken, serviceTokens);
+        final HeaderPeerData peerData = new HeaderPeerData(null, null, null);
+        final MessageHeader messageHeader = new MessageHeader(trustedNetCtx, null, masterToken, headerData, peerData, EncoderFormat.BINARY);
+        
+        final InputStream is = generateBinaryInputStream(messageHeader, payloads);
+        final MessageInputStream mis = new MessageInputStream(trustedNetCtx, is, MslConstants.DEFAULT_CHARSET, KEY_REQUEST_DATA, cryptoContexts);
+        final MessageHeader header = mis.getMessageHeader();
+        assertEquals(messageHeader, header);
+        assertEquals(userIdToken, header.getUserIdToken());
+        assertEquals(serviceTokens, header.getServiceTokens());
+        assertEquals(userIdToken.getUser(), mis.getUser());
+        
+        mis.close();
+    }
+    
+    @Test
+    public void binaryHeaderdataKeyResponseData() throws MslEncodingException, MslException, IOException {
+        final EntityAuthenticationData entityAuthData = trustedNetCtx.getEntityAuthenticationData(null);
+        final HeaderData headerData = new HeaderData(null, MSG_ID, null, true, false, null, null, KEY_RESPONSE_DATA, null, null, null);
+        final HeaderPeerData peerData = new HeaderPeerData(null, null, null);
+        final MessageHeader messageHeader = new MessageHeader(trustedNetCtx, entityAuthData, null, headerData, peerData, EncoderFormat.BINARY);
+        
+        final InputStream is = generateBinaryInputStream(messageHeader, payloads);
+        final MessageInputStream mis = new MessageInputStream(trustedNetCtx, is, MslConstants.DEFAULT_CHARSET, KEY_REQUEST_DATA, cryptoContexts);
+        final MessageHeader header = mis.getMessageHeader();
+        assertEquals(messageHeader, header);
+        assertEquals(KEY_RESPONSE_DATA, header.getKeyResponseData());
+        assertTrue(header.isRenewable());
+        
+        mis.close();
+    }
+    
+    @Test
+    public void binaryHeaderdataPeerTokens() throws MslEncodingException, MslException, IOException {
+        final MasterToken masterToken = MslTestUtils.getMasterToken(p2pCtx, 1, 1);
+        final MasterToken peerMasterToken = MslTestUtils.getMasterToken(p2pCtx, 1, 2);
+        final UserIdToken peerUserIdToken = MslTestUtils.getUserIdToken(p2pCtx, peerMasterToken, 1, MockEmailPasswordAuthenticationFactory.USER);
+        final Set<ServiceToken> peerServiceTokens = MslTestUtils.getServiceTokens(p2pCtx, peerMasterToken, peerUserIdToken);
+        final HeaderData headerData = new HeaderData(null, MSG_ID, null, false, false, null, null, null, null, null, null);
+        final HeaderPeerData peerData = new HeaderPeerData(peerMasterToken, peerUserIdToken, peerServiceTokens);
+        final MessageHeader messageHeader = new MessageHeader(p2pCtx, null, masterToken, headerData, peerData, EncoderFormat.BINARY);
+        
+        final InputStream is = generateBinaryInputStream(messageHeader, payloads);
+        final MessageInputStream mis = new MessageInputStream(p2pCtx, is, MslConstants.DEFAULT_CHARSET, KEY_REQUEST_DATA, cryptoContexts);
+        final MessageHeader header = mis.getMessageHeader();
+        assertEquals(messageHeader, header);
+        assertEquals(peerMasterToken, header.getPeerMasterToken());
+        assertEquals(peerUserIdToken, header.getPeerUserIdToken());
+        assertEquals(peerServiceTokens, header.getPeerServiceTokens());
+        
+        mis.close();
+    }
+    
+    @Test
+    public void binaryHeaderdataInJsonMessage() throws MslEncodingException, MslException, IOException {
+        final MasterToken masterToken = MslTestUtils.getMasterToken(trustedNetCtx, 1, 1);
+        final UserIdToken userIdToken = MslTestUtils.getUserIdToken(trustedNetCtx, masterToken, 1, MockEmailPasswordAuthenticationFactory.USER);
+        final HeaderData headerData = new HeaderData(null, MSG_ID, null, false, false, null, null, null, null, userIdToken, null);
+        final HeaderPeerData peerData = new HeaderPeerData(null, null, null);
+        final MessageHeader messageHeader = new MessageHeader(trustedNetCtx, null, masterToken, headerData, peerData, EncoderFormat.BINARY);
+        
+        // The header data encoding is identified independently of the
+        // message encoding.
+        final InputStream is = generateInputStream(messageHeader, payloads);
+        final MessageInputStream mis = new MessageInputStream(trustedNetCtx, is, MslConstants.DEFAULT_CHARSET, KEY_REQUEST_DATA, cryptoContexts);
+        assertEquals(EncoderFormat.JSON, mis.getEncoderFormat());
+        assertEquals(messageHeader, mis.getMessageHeader());
+        
+        mis.close();
+    }
+    
+    @Test
+    public void binaryMissingEndOfMessage() throws MslEncodingException, MslException, IOException {
+        final InputStream is = generateBinaryInputStream(MESSAGE_HEADER, payloads);
+        final MessageInputStream mis = new MessageInputStream(trustedNetCtx, is, MslConstants.DEFAULT_CHARSET, KEY_REQUEST_DATA, cryptoContexts);
+
+        // If there are no more frames we'll receive end of message anyway.
+        assertEquals(-1, mis.read(buffer));
+        
+        mis.close();
+    }
+    
+    @Test
+    public void binaryUnsupportedVersion() throws IOException, MslException {
+        thrown.expect(MslEncodingException.class);
+        thrown.expectMslError(MslError.MESSAGE_FORMAT_ERROR);
+        
+        final InputStream is = new ByteArrayInputStream(new byte[] { (byte)BinaryEncoding.MAGIC, (byte)(BinaryEncoding.VERSION + 1) });
+        new MessageInputStream(trustedNetCtx, is, MslConstants.DEFAULT_CHARSET, KEY_REQUEST_DATA, cryptoContexts);
+    }
+    
+    @Test
+    public void binaryTruncatedHeader() throws IOException, MslException {
+        thrown.expect(MslEncodingException.class);
+        thrown.expectMslError(MslError.MESSAGE_FORMAT_ERROR);
+        
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BinaryEncoding.writeHeader(baos, MESSAGE_HEADER);
+        final byte[] message = baos.toByteArray();
+        final InputStream is = new ByteArrayInputStream(Arrays.copyOf(message, message.length - 1));
+        new MessageInputStream(trustedNetCtx, is, MslConstants.DEFAULT_CHARSET, KEY_REQUEST_DATA, cryptoContexts);
+    }
+    
+    @Test(expected = IOException.class)
+    public void binaryTruncatedPayloadChunk() throws IOException, MslException {
+        final ICryptoContext cryptoContext = MESSAGE_HEADER.getCryptoContext();
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BinaryEncoding.writeHeader(baos, MESSAGE_HEADER);
+        BinaryEncoding.writePayloadChunk(baos, new PayloadChunk(SEQ_NO, MSG_ID, END_OF_MSG, null, DATA, cryptoContext));
+        final byte[] message = baos.toByteArray();
+        final InputStream is = new ByteArrayInputStream(Arrays.copyOf(message, message.length - 1));
+        final MessageInputStream mis = new MessageInputStream(trustedNetCtx, is, MslConstants.DEFAULT_CHARSET, KEY_REQUEST_DATA, cryptoContexts);
+        try {
+            mis.read(buffer);
+        } finally {
+            mis.close();
+        }
+    }
+    
+    @Test
+    public void binaryOversizedHeader() throws IOException, MslException {
+        thrown.expect(MslEncodingException.class);
+        thrown.expectMslError(MslError.MESSAGE_FORMAT_ERROR);
+        
+        // The frame length must be rejected before the body is allocated.
+        final byte[] message = new byte[] {
+            (byte)BinaryEncoding.MAGIC, (byte)BinaryEncoding.VERSION,
+            1, (byte)0x7F, (byte)0xFF, (byte)0xFF, (byte)0xFF,
+        };
+        new MessageInputStream(trustedNetCtx, new ByteArrayInputStream(message), MslConstants.DEFAULT_CHARSET, KEY_REQUEST_DATA, cryptoContexts);
+    }
+    
+    @Test
+    public void binaryOversizedPayloadChunk() throws IOException, MslException {
+        final ICryptoContext cryptoContext = MESSAGE_HEADER.getCryptoContext();
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BinaryEncoding.writeHeader(baos, MESSAGE_HEADER);
+        
+        // Limit frames to the header frame body size.
+        final int maxFrameSize = baos.size() - 2 - 5;
+        final byte[] data = new byte[maxFrameSize];
+        random.nextBytes(data);
+        BinaryEncoding.writePayloadChunk(baos, new PayloadChunk(SEQ_NO, MSG_ID, END_OF_MSG, null, data, cryptoContext));
+        
+        final InputStream is = new ByteArrayInputStream(baos.toByteArray());
+        final MessageInputStream mis = new MessageInputStream(trustedNetCtx, is, MslConstants.DEFAULT_CHARSET, KEY_REQUEST_DATA, cryptoContexts, maxFrameSize);
+        try {
+            mis.read(buffer);
+            fail("Oversized payload chunk frame was read.");
+        } catch (final IOException e) {
+            final Throwable cause = e.getCause();
+            assertTrue(cause instanceof MslEncodingException);
+            assertEquals(MslError.MESSAGE_FORMAT_ERROR, ((MslEncodingException)cause).getError());
+        } finally {
+            mis.close();
+        }
+    }
+    
+    @Test
+    public void readAhead() throws MslEncodingException, MslException, IOException {
+        final ICryptoContext cryptoContext = MESSAGE_HEADER.getCryptoContext();
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        for (int i = 0; i < MAX_PAYLOAD_CHUNKS; ++i) {
+            final byte[] data = new byte[random.nextInt(MAX_DATA_SIZE) + 1];
+            random.nextBytes(data);
+            payloads.add(new PayloadChunk(SEQ_NO + i, MSG_ID, (i == MAX_PAYLOAD_CHUNKS - 1), null, data, cryptoContext));
+            baos.write(data);
+        }
+        final byte[] appdata = baos.toByteArray();
+        
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (final boolean binary : new boolean[] { false, true }) {
+                final InputStream is = (binary) ? generateBinaryInputStream(MESSAGE_HEADER, payloads) : generateInputStream(MESSAGE_HEADER, payloads);
+                final MessageInputStream mis = new MessageInputStream(trustedNetCtx, is, MslConstants.DEFAULT_CHARSET, KEY_REQUEST_DATA, cryptoContexts);
+                mis.enableReadAhead(executor, 3);
+                
+                // Read a few bytes at a time so payload chunks are consumed
+                // while later ones are read ahead.
+                final ByteArrayOutputStream read = new ByteArrayOutputStream();
+                final byte[] b = new byte[7];
+                int count;
+                while ((count = mis.read(b)) != -1)
+                    read.write(b, 0, count);
+                assertArrayEquals(appdata, read.toByteArray());
+                
+                mis.close();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void readAheadIncorrectSequenceNumber() throws MslCryptoException, MslEncodingException, MslException, IOException {
+        // Payloads with an incorrect sequence number should still be skipped.
+        int badPayloads = 0;
+        long sequenceNumber = SEQ_NO;
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final ICryptoContext cryptoContext = MESSAGE_HEADER.getCryptoContext();
+        for (int i = 0; i < MAX_PAYLOAD_CHUNKS; ++i) {
+            final byte[] data = new byte[random.nextInt(MAX_DATA_SIZE) + 1];
+            random.nextBytes(data);
+            if (i == MAX_PAYLOAD_CHUNKS - 1 || random.nextBoolean()) {
+                payloads.add(new PayloadChunk(sequenceNumber++, MSG_ID, (i == MAX_PAYLOAD_CHUNKS - 1), null, data, cryptoContext));
+                baos.write(data);
+            } else {
+                payloads.add(new PayloadChunk(2 * sequenceNumber + i, MSG_ID, false, null, data, cryptoContext));
+                ++badPayloads;
+            }
+        }
+        final byte[] appdata = baos.toByteArray();
+        final InputStream is = generateInputStream(MESSAGE_HEADER, payloads);
+        final MessageInputStream mis = new MessageInputStream(trustedNetCtx, is, MslConstants.DEFAULT_CHARSET, KEY_REQUEST_DATA, cryptoContexts);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        mis.enableReadAhead(executor, MAX_PAYLOAD_CHUNKS);
+
+        // Read everything. Each bad payload should throw an exception.
+        int offset = 0;
+        int caughtExceptions = 0;
+        try {
+            while (true) {
+                try {
+                    final int bytesRead = mis.read(buffer, offset, buffer.length - offset);
+                    if (bytesRead == -1) break;
+                    offset += bytesRead;
+                } catch (final IOException e) {
+                    ++caughtExceptions;
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(badPayloads, caughtExceptions);
+        assertArrayEquals(appdata, Arrays.copyOfRange(buffer, 0, appdata.length));
+        
+        mis.close();
+    }
+    
+    @Test
+    public void readAheadStopsAtEndOfMessage() throws MslEncodingException, MslException, IOException {
+        // Payload chunks after the end of message are never returned, even if
+        // they were read ahead.
+        final ICryptoContext cryptoContext = MESSAGE_HEADER.getCryptoContext();
+        payloads.add(new PayloadChunk(SEQ_NO, MSG_ID, true, null, DATA, cryptoContext));
+        payloads.add(new PayloadChunk(SEQ_NO + 1, MSG_ID, false, null, DATA, cryptoContext));
+        final InputStream is = generateInputStream(MESSAGE_HEADER, payloads);
+        final MessageInputStream mis = new MessageInputStream(trustedNetCtx, is, MslConstants.DEFAULT_CHARSET, KEY_REQUEST_DATA, cryptoContexts);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        mis.enableReadAhead(executor, 2);
+        try {
+            assertEquals(DATA.length, mis.read(buffer));
+            assertArrayEquals(DATA, Arrays.copyOfRange(buffer, 0, DATA.length));
+            assertEquals(-1, mis.read(buffer));
+        } finally {
+            executor.shutdown();
+        }
+        
+        mis.close();
+    }
+    
+    @Test
+    public void readAheadPartialPayloadChunk() throws MslEncodingException, MslException, IOException, InterruptedException, ExecutionException, TimeoutException {
+        // The first payload chunk must be returned while the second payload
+        // chunk has only partially arrived.
+        final ICryptoContext cryptoContext = MESSAGE_HEADER.getCryptoContext();
+        final byte[] first = new byte[MAX_DATA_SIZE];
+        random.nextBytes(first);
+        final byte[] second = new byte[MAX_DATA_SIZE];
+        random.nextBytes(second);
+        final PayloadChunk firstChunk = new PayloadChunk(SEQ_NO, MSG_ID, false, null, first, cryptoContext);
+        final PayloadChunk secondChunk = new PayloadChunk(SEQ_NO + 1, MSG_ID, true, null, second, cryptoContext);
+        
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (final boolean binary : new boolean[] { false, true }) {
+                // Split the encoded message inside the second payload chunk,
+                // after the binary frame length has arrived.
+                final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                if (binary) {
+                    BinaryEncoding.writeHeader(baos, MESSAGE_HEADER);
+                    BinaryEncoding.writePayloadChunk(baos, firstChunk);
+                } else {
+                    baos.write(MESSAGE_HEADER.toJSONString().getBytes(MslConstants.DEFAULT_CHARSET));
+                    baos.write(firstChunk.toJSONString().getBytes(MslConstants.DEFAULT_CHARSET));
+                }
+                final int split = baos.size() + 16;
+                if (binary)
+                    BinaryEncoding.writePayloadChunk(baos, secondChunk);
+                else
+                    baos.write(secondChunk.toJSONString().getBytes(MslConstants.DEFAULT_CHARSET));
+                final byte[] message = baos.toByteArray();
+                
+                final PipedOutputStream out = new PipedOutputStream();
+                final PipedInputStream is = new PipedInputStream(out, message.length);
+                out.write(message, 0, split);
+                final MessageInputStream mis = new MessageInputStream(trustedNetCtx, is, MslConstants.DEFAULT_CHARSET, KEY_REQUEST_DATA, cryptoContexts);
+                mis.enableReadAhead(executor, 2);
+                
+                final Future<byte[]> firstRead = executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws IOException {
+                        final byte[] b = new byte[first.length];
+                        int offset = 0;
+                        while (offset < b.length) {
+                            final int count = mis.read(b, offset, b.length - offset);
+                            if (count == -1)
+                                break;
+                            offset += count;
+                        }
+                        return Arrays.copyOf(b, offset);
+                    }
+                });
+                assertArrayEquals(first, firstRead.get(5, TimeUnit.SECONDS));
+                
+                // Deliver the rest of the second payload chunk.
+                out.write(message, split, message.length - split);
+                out.close();
+                final byte[] b = new byte[second.length + 1];
+                assertEquals(second.length, mis.read(b));
+                assertArrayEquals(second, Arrays.copyOf(b, second.length));
+                assertEquals(-1, mis.read());
+                
+                mis.close();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidReadAheadWindow() throws MslEncodingException, MslException, IOException {
+        final InputStream is = generateInputStream(MESSAGE_HEADER, payloads);
+        final MessageInputStream mis = new MessageInputStream(trustedNetCtx, is, MslConstants.DEFAULT_CHARSET, KEY_REQUEST_DATA, cryptoContexts);
+        try {
+            mis.enableReadAhead(Executors.newSingleThreadExecutor(), 0);
+        } finally {
+            mis.close();
+        }
+    }
+    
+    /**
+     * @return a message input stream with {@link #MAX_PAYLOAD_CHUNKS}
+     *         payload chunks, whose concatenated data is appended to the
+     *         provided output stream.
+     */
+    private MessageInputStream generateMultiplePayloads(final ByteArrayOutputStream appdata) throws MslException, IOException {
+        final ICryptoContext cryptoContext = MESSAGE_HEADER.getCryptoContext();
+        for (int i = 0; i < MAX_PAYLOAD_CHUNKS; ++i) {
+            final byte[] data = new byte[random.nextInt(MAX_DATA_SIZE) + 1];
+            random.nextBytes(data);
+            payloads.add(new PayloadChunk(SEQ_NO + i, MSG_ID, (i == MAX_PAYLOAD_CHUNKS - 1), null, data, cryptoContext));
+            appdata.write(data);
+        }
+        final InputStream is = generateInputStream(MESSAGE_HEADER, payloads);
+        return new MessageInputStream(trustedNetCtx, is, MslConstants.DEFAULT_CHARSET, KEY_REQUEST_DATA, cryptoContexts);
+    }
+    
+    @Test
+    public void boundedMarkReset() throws MslException, IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final MessageInputStream mis = generateMultiplePayloads(baos);
+        final byte[] appdata = baos.toByteArray();
+        mis.enableBoundedMark(appdata.length, null);
+        
+        // Read a prefix, mark, and read across payload chunk boundaries.
+        final int prefix = appdata.length / 4;
+        final int marked = appdata.length / 2;
+        assertEquals(prefix, mis.read(buffer, 0, prefix));
+        mis.mark(marked);
+        assertEquals(marked, mis.read(buffer, prefix, marked));
+        mis.reset();
+        assertTrue(mis.available() >= marked);
+        
+        // Read everything after the mark again.
+        int offset = prefix;
+        while (true) {
+            final int bytesRead = mis.read(buffer, offset, buffer.length - offset);
+            if (bytesRead == -1) break;
+            offset += bytesRead;
+        }
+        assertEquals(appdata.length, offset);
+        assertArrayEquals(appdata, Arrays.copyOfRange(buffer, 0, appdata.length));
+        
+        mis.close();
+    }
+    
+    @Test(expected = IOException.class)
+    public void boundedMarkBudgetExceeded() throws MslException, IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final MessageInputStream mis = generateMultiplePayloads(baos);
+        final byte[] appdata = baos.toByteArray();
+        mis.enableBoundedMark(appdata.length / 4, null);
+        
+        // The read limit is capped at the budget.
+        mis.mark(appdata.length);
+        assertEquals(appdata.length / 2, mis.read(buffer, 0, appdata.length / 2));
+        try {
+            mis.reset();
+        } finally {
+            mis.close();
+        }
+    }
+    
+    @Test(expected = IOException.class)
+    public void boundedMarkReadlimitExceeded() throws MslException, IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final MessageInputStream mis = generateMultiplePayloads(baos);
+        final byte[] appdata = baos.toByteArray();
+        mis.enableBoundedMark(appdata.length, null);
+        
+        mis.mark(8);
+        assertEquals(9, mis.read(buffer, 0, 9));
+        try {
+            mis.reset();
+        } finally {
+            mis.close();
+        }
+    }
+    
+    @Test(expected = IOException.class)
+    public void boundedMarkResetWithoutMark() throws MslException, IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final MessageInputStream mis = generateMultiplePayloads(baos);
+        mis.enableBoundedMark(MAX_DATA_SIZE, null);
+        try {
+            mis.reset();
+        } finally {
+            mis.close();
+        }
+    }
+    
+    @Test
+    public void boundedMarkSpill() throws MslException, IOException {
+        final File directory = File.createTempFile("msl", "spill");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        try {
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            final MessageInputStream mis = generateMultiplePayloads(baos);
+            final byte[] appdata = baos.toByteArray();
+            mis.enableBoundedMark(16, directory);
+            
+            // Marked data beyond the budget spills to a file.
+            mis.mark(appdata.length);
+            assertEquals(appdata.length / 2, mis.skip(appdata.length / 2));
+            assertEquals(1, directory.list().length);
+            mis.reset();
+            
+            int offset = 0;
+            while (true) {
+                final int bytesRead = mis.read(buffer, offset, buffer.length - offset);
+                if (bytesRead == -1) break;
+                offset += bytesRead;
+            }
+            assertEquals(appdata.length, offset);
+            assertArrayEquals(appdata, Arrays.copyOfRange(buffer, 0, appdata.length));
+            
+            // The spill file is deleted on close.
+            mis.close();
+            assertEquals(0, directory.list().length);
+        } finally {
+            for (final File f : directory.listFiles())
+                f.delete();
+            directory.delete();
+        }
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeMarkBudget() throws MslException, IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final MessageInputStream mis = generateMultiplePayloads(baos);
+        try {
+            mis.enableBoundedMark(-1, null);
+        } finally {
+            mis.close();
+        }
+    }
 }
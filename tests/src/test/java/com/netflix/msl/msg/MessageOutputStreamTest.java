@@ -17,16 +17,25 @@ package com.netflix.msl.msg;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -38,9 +47,11 @@ import org.junit.Test;
 
 import com.netflix.msl.MslConstants;
 import com.netflix.msl.MslConstants.CompressionAlgorithm;
+import com.netflix.msl.MslConstants.EncoderFormat;
 import com.netflix.msl.MslCryptoException;
 import com.netflix.msl.MslEncodingException;
 import com.netflix.msl.MslEntityAuthException;
+import com.netflix.msl.MslError;
 import com.netflix.msl.MslException;
 import com.netflix.msl.MslInternalException;
 import com.netflix.msl.MslKeyExchangeException;
@@ -49,8 +60,10 @@ import com.netflix.msl.MslMessageException;
 import com.netflix.msl.MslUserAuthException;
 import com.netflix.msl.MslConstants.ResponseCode;
 import com.netflix.msl.crypto.ICryptoContext;
+import com.netflix.msl.crypto.NullCryptoContext;
 import com.netflix.msl.entityauth.EntityAuthenticationData;
 import com.netflix.msl.entityauth.EntityAuthenticationScheme;
+import com.netflix.msl.keyx.KeyRequestData;
 import com.netflix.msl.msg.MessageHeader.HeaderData;
 import com.netflix.msl.msg.MessageHeader.HeaderPeerData;
 import com.netflix.msl.util.MockMslContext;
@@ -694,4 +707,216 @@ public class MessageOutputStreamTest {
         assertEquals(1, payloads.size());
         assertEquals(CompressionAlgorithm.GZIP, payloads.get(0).getCompressionAlgo());
     }
+    
+    @Test
+    public void binaryEncoderFormat() throws IOException, MslEncodingException, MslCryptoException, MslMasterTokenException, MslEntityAuthException, MslMessageException, MslUserAuthException, MslKeyExchangeException, MslException {
+        final Set<EncoderFormat> formats = EnumSet.of(EncoderFormat.BINARY);
+        final MessageCapabilities capabilities = new MessageCapabilities(null, null, formats);
+        final MockMslContext ctx = new MockMslContext(EntityAuthenticationScheme.PSK, false);
+        ctx.setMessageCapabilities(capabilities);
+        
+        final HeaderData headerData = new HeaderData(null, 1, null, false, false, capabilities, null, null, null, null, null);
+        final HeaderPeerData peerData = new HeaderPeerData(null, null, null);
+        final MessageHeader messageHeader = new MessageHeader(ctx, ENTITY_AUTH_DATA, null, headerData, peerData);
+        
+        final MessageOutputStream mos = new MessageOutputStream(ctx, destination, MslConstants.DEFAULT_CHARSET, messageHeader, PAYLOAD_CRYPTO_CONTEXT, EncoderFormat.BINARY);
+        assertEquals(EncoderFormat.BINARY, mos.getEncoderFormat());
+        mos.write(COMPRESSIBLE_DATA);
+        mos.flush();
+        mos.write(COMPRESSIBLE_DATA);
+        mos.close();
+        
+        // The message starts with the binary encoding magic byte.
+        final byte[] mslMessage = destination.toByteArray();
+        assertEquals(BinaryEncoding.MAGIC, mslMessage[0] & 0xFF);
+        
+        // The message input stream should identify and read the message.
+        final MessageInputStream mis = new MessageInputStream(ctx, new ByteArrayInputStream(mslMessage), MslConstants.DEFAULT_CHARSET, new HashSet<KeyRequestData>(), cryptoContexts);
+        assertEquals(EncoderFormat.BINARY, mis.getEncoderFormat());
+        assertEquals(messageHeader, mis.getMessageHeader());
+        final byte[] data = new byte[2 * COMPRESSIBLE_DATA.length];
+        assertEquals(data.length, mis.read(data));
+        assertEquals(-1, mis.read());
+        assertArrayEquals(COMPRESSIBLE_DATA, Arrays.copyOf(data, COMPRESSIBLE_DATA.length));
+        assertArrayEquals(COMPRESSIBLE_DATA, Arrays.copyOfRange(data, COMPRESSIBLE_DATA.length, data.length));
+        mis.close();
+    }
+    
+    @Test(expected = MslInternalException.class)
+    public void unsupportedEncoderFormat() throws IOException {
+        new MessageOutputStream(ctx, destination, MslConstants.DEFAULT_CHARSET, MESSAGE_HEADER, PAYLOAD_CRYPTO_CONTEXT, EncoderFormat.BINARY);
+    }
+    
+    @Test
+    public void pipelined() throws IOException, MslEncodingException, MslCryptoException, MslMasterTokenException, MslEntityAuthException, MslMessageException, MslUserAuthException, MslKeyExchangeException, MslException {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final ByteArrayOutputStream message = new ByteArrayOutputStream();
+        try {
+            final MessageOutputStream mos = new MessageOutputStream(ctx, destination, MslConstants.DEFAULT_CHARSET, MESSAGE_HEADER, PAYLOAD_CRYPTO_CONTEXT);
+            mos.enablePipelining(executor, 3);
+            for (int i = 0; i < MAX_PAYLOAD_CHUNKS; ++i) {
+                final byte[] data = new byte[random.nextInt(MAX_DATA_SIZE / 8) + 1];
+                random.nextBytes(data);
+                mos.write(data);
+                mos.flush();
+                message.write(data);
+            }
+            mos.close();
+            
+            // The payload chunks must be cached in order.
+            final List<PayloadChunk> payloads = mos.getPayloads();
+            assertEquals(MAX_PAYLOAD_CHUNKS + 1, payloads.size());
+            for (int i = 0; i < payloads.size(); ++i)
+                assertEquals(i + 1, payloads.get(i).getSequenceNumber());
+        } finally {
+            executor.shutdown();
+        }
+        
+        // The message input stream verifies the sequence numbers.
+        final MessageInputStream mis = new MessageInputStream(ctx, new ByteArrayInputStream(destination.toByteArray()), MslConstants.DEFAULT_CHARSET, new HashSet<KeyRequestData>(), cryptoContexts);
+        final byte[] data = new byte[message.size()];
+        int offset = 0;
+        while (offset < data.length) {
+            final int read = mis.read(data, offset, data.length - offset);
+            assertTrue(read > 0);
+            offset += read;
+        }
+        assertEquals(-1, mis.read());
+        assertArrayEquals(message.toByteArray(), data);
+        mis.close();
+    }
+    
+    @Test
+    public void pipelinedBlockedDestination() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch unblock = new CountDownLatch(1);
+        final OutputStream blockingDestination = new OutputStream() {
+            @Override
+            public void write(final int b) throws IOException {
+                write(new byte[] { (byte)b }, 0, 1);
+            }
+            
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                if (blocking) {
+                    blocked.countDown();
+                    try {
+                        unblock.await();
+                    } catch (final InterruptedException e) {
+                        throw new IOException("Interrupted.", e);
+                    }
+                }
+                destination.write(b, off, len);
+            }
+            
+            @Override
+            public void flush() {
+                // The header is flushed when the message output stream is
+                // created. Block every write after that.
+                blocking = true;
+            }
+            
+            /** True once writes should block. */
+            private volatile boolean blocking = false;
+        };
+        
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        final ExecutorService writer = Executors.newSingleThreadExecutor();
+        try {
+            final MessageOutputStream mos = new MessageOutputStream(ctx, blockingDestination, MslConstants.DEFAULT_CHARSET, MESSAGE_HEADER, PAYLOAD_CRYPTO_CONTEXT);
+            mos.enablePipelining(executor, 3);
+            
+            // The first payload chunk blocks writing to the destination.
+            mos.write(COMPRESSIBLE_DATA);
+            mos.flush();
+            assertTrue(blocked.await(5, TimeUnit.SECONDS));
+            
+            // Further payload chunks can still be queued and created.
+            final Future<Boolean> queued = writer.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws IOException {
+                    mos.write(COMPRESSIBLE_DATA);
+                    mos.flush();
+                    return Boolean.TRUE;
+                }
+            });
+            assertTrue(queued.get(5, TimeUnit.SECONDS));
+            
+            unblock.countDown();
+            mos.close();
+            final List<PayloadChunk> payloads = mos.getPayloads();
+            assertEquals(3, payloads.size());
+            for (int i = 0; i < payloads.size(); ++i)
+                assertEquals(i + 1, payloads.get(i).getSequenceNumber());
+        } finally {
+            unblock.countDown();
+            writer.shutdownNow();
+            executor.shutdown();
+        }
+        
+        // The payload chunks were written in order.
+        final MessageInputStream mis = new MessageInputStream(ctx, new ByteArrayInputStream(destination.toByteArray()), MslConstants.DEFAULT_CHARSET, new HashSet<KeyRequestData>(), cryptoContexts);
+        final byte[] data = new byte[2 * COMPRESSIBLE_DATA.length];
+        int offset = 0;
+        while (offset < data.length) {
+            final int read = mis.read(data, offset, data.length - offset);
+            assertTrue(read > 0);
+            offset += read;
+        }
+        assertEquals(-1, mis.read());
+        mis.close();
+    }
+    
+    @Test(expected = IOException.class)
+    public void pipelinedError() throws IOException {
+        final ICryptoContext cryptoContext = new NullCryptoContext() {
+            @Override
+            public byte[] encrypt(final byte[] data) throws MslCryptoException {
+                throw new MslCryptoException(MslError.ENCRYPT_ERROR);
+            }
+        };
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final MessageOutputStream mos = new MessageOutputStream(ctx, destination, MslConstants.DEFAULT_CHARSET, MESSAGE_HEADER, cryptoContext);
+            mos.enablePipelining(executor, 2);
+            mos.write(COMPRESSIBLE_DATA);
+            mos.close();
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void chunkSize() throws IOException {
+        final int chunkSize = 1000;
+        final byte[] data = new byte[3 * chunkSize + chunkSize / 2];
+        random.nextBytes(data);
+        
+        final MessageOutputStream mos = new MessageOutputStream(ctx, destination, MslConstants.DEFAULT_CHARSET, MESSAGE_HEADER, PAYLOAD_CRYPTO_CONTEXT);
+        mos.setChunkSize(chunkSize);
+        assertEquals(chunkSize, mos.getChunkSize());
+        mos.write(data, 0, chunkSize / 2);
+        mos.write(data, chunkSize / 2, data.length - chunkSize / 2);
+        
+        // Full payload chunks are sent without flushing.
+        assertEquals(3, mos.getPayloads().size());
+        mos.close();
+        
+        final List<PayloadChunk> payloads = mos.getPayloads();
+        assertEquals(4, payloads.size());
+        final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        for (int i = 0; i < payloads.size(); ++i) {
+            final PayloadChunk payload = payloads.get(i);
+            assertEquals((i < 3) ? chunkSize : chunkSize / 2, payload.getData().length);
+            assertEquals(i == 3, payload.isEndOfMessage());
+            sent.write(payload.getData());
+        }
+        assertArrayEquals(data, sent.toByteArray());
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeChunkSize() throws IOException {
+        final MessageOutputStream mos = new MessageOutputStream(ctx, destination, MslConstants.DEFAULT_CHARSET, MESSAGE_HEADER, PAYLOAD_CRYPTO_CONTEXT);
+        mos.setChunkSize(-1);
+    }
 }
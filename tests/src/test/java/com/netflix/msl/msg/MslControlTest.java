@@ -0,0 +1,381 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.msg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.URL;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.netflix.msl.MslConstants;
+import com.netflix.msl.MslException;
+import com.netflix.msl.crypto.JcaAlgorithm;
+import com.netflix.msl.crypto.SessionCryptoContext;
+import com.netflix.msl.crypto.SymmetricCryptoContext;
+import com.netflix.msl.entityauth.EntityAuthenticationScheme;
+import com.netflix.msl.entityauth.MockPresharedAuthenticationFactory;
+import com.netflix.msl.entityauth.PresharedAuthenticationData;
+import com.netflix.msl.keyx.KeyRequestData;
+import com.netflix.msl.keyx.SymmetricWrappedExchange;
+import com.netflix.msl.keyx.SymmetricWrappedExchange.KeyId;
+import com.netflix.msl.msg.MslControl.MslChannel;
+import com.netflix.msl.tokens.MasterToken;
+import com.netflix.msl.userauth.UserAuthenticationScheme;
+import com.netflix.msl.util.MockMslContext;
+import com.netflix.msl.util.SimpleMslStore;
+
+/**
+ * MSL control unit tests.
+ * 
+ * <p>A trusted network client and server exchange messages over piped
+ * streams.</p>
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+public class MslControlTest {
+    /** Operation timeout in milliseconds. */
+    private static final int TIMEOUT = 5000;
+    /** Pipe buffer size in bytes. */
+    private static final int PIPE_SIZE = 65536;
+    
+    /**
+     * A transport that connects each request to the server over piped
+     * streams.
+     */
+    private class PipeTransport implements Transport {
+        /* (non-Javadoc)
+         * @see com.netflix.msl.msg.Transport#openConnection(java.net.URL, int)
+         */
+        @Override
+        public Connection openConnection(final URL remoteEntity, final int timeout) throws IOException {
+            connectionThread = Thread.currentThread();
+            final PipedOutputStream requestOut = new PipedOutputStream();
+            final PipedInputStream requestIn = new PipedInputStream(requestOut, PIPE_SIZE);
+            final PipedOutputStream responseOut = new PipedOutputStream();
+            final PipedInputStream responseIn = new PipedInputStream(responseOut, PIPE_SIZE);
+            serverResults.add(serverExecutor.submit(new Callable<MessageInputStream>() {
+                @Override
+                public MessageInputStream call() throws Exception {
+                    try {
+                        final MessageInputStream request = server.receive(serverCtx, serverMsgCtx, requestIn, responseOut, TIMEOUT).get();
+                        final MslChannel channel = server.respond(serverCtx, serverMsgCtx, requestIn, responseOut, request, TIMEOUT).get();
+                        channel.output.close();
+                        return request;
+                    } finally {
+                        responseOut.close();
+                    }
+                }
+            }));
+            return new Connection() {
+                @Override
+                public OutputStream getOutputStream() {
+                    return requestOut;
+                }
+                
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    // Requesting the response completes the request.
+                    requestOut.close();
+                    return responseIn;
+                }
+            };
+        }
+    }
+    
+    @Before
+    public void setup() throws Exception {
+        clientCtx = new MockMslContext(EntityAuthenticationScheme.PSK, false);
+        clientStore = new SimpleMslStore();
+        clientCtx.setMslStore(clientStore);
+        
+        // The client cannot open master tokens issued by the server.
+        final Random random = new Random();
+        final byte[] encryptionBytes = new byte[16];
+        final byte[] hmacBytes = new byte[32];
+        final byte[] wrapBytes = new byte[16];
+        random.nextBytes(encryptionBytes);
+        random.nextBytes(hmacBytes);
+        random.nextBytes(wrapBytes);
+        clientCtx.setMslCryptoContext(new SymmetricCryptoContext(clientCtx, "ClientMslKeys", new SecretKeySpec(encryptionBytes, JcaAlgorithm.AES), new SecretKeySpec(hmacBytes, JcaAlgorithm.HMAC_SHA256), new SecretKeySpec(wrapBytes, JcaAlgorithm.AESKW)));
+        clientMsgCtx = new MockMessageContext(clientCtx, null, UserAuthenticationScheme.EMAIL_PASSWORD);
+        final Set<KeyRequestData> keyRequestData = new HashSet<KeyRequestData>();
+        keyRequestData.add(new SymmetricWrappedExchange.RequestData(KeyId.PSK));
+        clientMsgCtx.setKeyRequestData(keyRequestData);
+        
+        serverCtx = new MockMslContext(EntityAuthenticationScheme.PSK, false);
+        serverCtx.setEntityAuthenticationData(new PresharedAuthenticationData(MockPresharedAuthenticationFactory.PSK_ESN2));
+        serverMsgCtx = new MockMessageContext(serverCtx, null, UserAuthenticationScheme.EMAIL_PASSWORD);
+        
+        client = new MslControl(0);
+        client.setTransport(new PipeTransport());
+        server = new MslControl(0);
+        serverExecutor = Executors.newCachedThreadPool();
+        serverResults = new LinkedBlockingQueue<Future<MessageInputStream>>();
+    }
+    
+    @After
+    public void teardown() {
+        serverExecutor.shutdownNow();
+        server.shutdown();
+        client.shutdown();
+    }
+    
+    /**
+     * Store a master token in the client MSL store that is renewable but not
+     * expired.
+     * 
+     * @return the master token.
+     * @throws MslException if there is an error creating the master token.
+     */
+    private MasterToken setRenewableMasterToken() throws MslException {
+        final Date renewalWindow = new Date(System.currentTimeMillis() - 10000);
+        final Date expiration = new Date(System.currentTimeMillis() + 60000);
+        final String identity = clientCtx.getEntityAuthenticationData(null).getIdentity();
+        final MasterToken masterToken = new MasterToken(serverCtx, renewalWindow, expiration, 1, 1, null, identity, MockPresharedAuthenticationFactory.KPE, MockPresharedAuthenticationFactory.KPH);
+        clientStore.setCryptoContext(masterToken, new SessionCryptoContext(serverCtx, masterToken));
+        return masterToken;
+    }
+    
+    /**
+     * Send a request to the server and return the response.
+     * 
+     * @return the response.
+     * @throws Exception if the request or the server fails.
+     */
+    private MessageInputStream request() throws Exception {
+        final MslChannel channel = client.request(clientCtx, clientMsgCtx, new URL("http://localhost/msl"), TIMEOUT).get(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertNotNull(serverResults.take().get(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertNotNull(channel);
+        assertNull(channel.input.getErrorHeader());
+        return channel.input;
+    }
+    
+    /**
+     * Wait for the client master token deletions to complete.
+     * 
+     * @param completed expected number of completed deletions.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private void awaitDeletions(final long completed) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (client.getMasterTokenDeletionStatistics().getCompleted() < completed && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+    }
+    
+    @Test
+    public void renewMasterToken() throws Exception {
+        final MasterToken masterToken = setRenewableMasterToken();
+        
+        // The renewal deletes the old master token while the request still
+        // holds its read lock. The request completes the deletion when it
+        // releases its master token.
+        final MessageInputStream response = request();
+        final MessageHeader responseHeader = response.getMessageHeader();
+        assertNotNull(responseHeader.getKeyResponseData());
+        final MasterToken newMasterToken = responseHeader.getKeyResponseData().getMasterToken();
+        assertEquals(masterToken.getSequenceNumber() + 1, newMasterToken.getSequenceNumber());
+        
+        // The deletion completes once the old master token is no longer in
+        // use, which requires the read lock to have been released exactly
+        // once.
+        awaitDeletions(1);
+        final MasterTokenDeletionStatistics stats = client.getMasterTokenDeletionStatistics();
+        assertEquals(1, stats.getCompleted());
+        assertEquals(0, stats.getPending());
+        assertNull(clientStore.getCryptoContext(masterToken));
+        assertEquals(newMasterToken, clientStore.getMasterToken());
+        
+        // The new master token is used for the next request.
+        final MessageInputStream next = request();
+        assertEquals(newMasterToken, next.getMessageHeader().getMasterToken());
+        assertTrue(next.getMessageHeader().getKeyResponseData() == null);
+    }
+    
+    @Test
+    public void requestAsync() throws Exception {
+        final MslControl asyncClient = new MslControl(1);
+        try {
+            asyncClient.setTransport(new PipeTransport());
+            final CompletableFuture<MslChannel> future = asyncClient.requestAsync(clientCtx, clientMsgCtx, new URL("http://localhost/msl"), TIMEOUT);
+            final MslChannel channel = future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            assertNotNull(serverResults.take().get(TIMEOUT, TimeUnit.MILLISECONDS));
+            assertFalse(future.isCompletedExceptionally());
+            assertNotNull(channel);
+            assertNull(channel.input.getErrorHeader());
+            assertNotNull(channel.input.getMessageHeader());
+        } finally {
+            asyncClient.shutdown();
+        }
+    }
+    
+    @Test
+    public void receiveAsyncException() throws Exception {
+        // With zero threads the operation runs on the calling thread, so the
+        // future is already complete.
+        final InputStream in = new ByteArrayInputStream("x".getBytes(MslConstants.DEFAULT_CHARSET));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final CompletableFuture<MessageInputStream> future = server.receiveAsync(serverCtx, serverMsgCtx, in, out, TIMEOUT);
+        assertTrue(future.isDone());
+        assertTrue(future.isCompletedExceptionally());
+        
+        try {
+            future.get();
+            fail("Receive should fail.");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof MslException);
+        }
+        try {
+            future.join();
+            fail("Receive should fail.");
+        } catch (final CompletionException e) {
+            assertTrue(e.getCause() instanceof MslException);
+        }
+        
+        // An error response was sent.
+        assertTrue(out.size() > 0);
+    }
+    
+    @Test
+    public void cancelAsync() throws Exception {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final InputStream in = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                reading.countDown();
+                try {
+                    Thread.sleep(TIMEOUT);
+                } catch (final InterruptedException e) {
+                    interrupted.countDown();
+                    throw new InterruptedIOException("Read interrupted.");
+                }
+                return -1;
+            }
+        };
+        
+        final MslControl asyncServer = new MslControl(1);
+        try {
+            final CompletableFuture<MessageInputStream> future = asyncServer.receiveAsync(serverCtx, serverMsgCtx, in, new ByteArrayOutputStream(), TIMEOUT);
+            assertTrue(reading.await(TIMEOUT, TimeUnit.MILLISECONDS));
+            assertTrue(future.cancel(true));
+            assertTrue(future.isCancelled());
+            assertTrue(interrupted.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        } finally {
+            asyncServer.shutdown();
+        }
+    }
+    
+    @Test
+    public void injectedExecutor() throws Exception {
+        final Set<Thread> threads = new HashSet<Thread>();
+        final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "InjectedExecutor");
+                synchronized (threads) {
+                    threads.add(thread);
+                }
+                return thread;
+            }
+        });
+        try {
+            final MslControl injected = new MslControl(executor, null, null);
+            injected.setTransport(new PipeTransport());
+            final MslChannel channel = injected.request(clientCtx, clientMsgCtx, new URL("http://localhost/msl"), TIMEOUT).get(TIMEOUT, TimeUnit.MILLISECONDS);
+            assertNotNull(serverResults.take().get(TIMEOUT, TimeUnit.MILLISECONDS));
+            assertNotNull(channel);
+            synchronized (threads) {
+                assertTrue(threads.contains(connectionThread));
+            }
+            
+            // Shutting down MSL control rejects new operations but leaves the
+            // caller's executor running.
+            injected.shutdown();
+            assertFalse(executor.isShutdown());
+            try {
+                injected.request(clientCtx, clientMsgCtx, new URL("http://localhost/msl"), TIMEOUT);
+                fail("Request after shutdown should be rejected.");
+            } catch (final RejectedExecutionException e) {
+                // Expected.
+            }
+            final Future<Boolean> task = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return Boolean.TRUE;
+                }
+            });
+            assertTrue(task.get(TIMEOUT, TimeUnit.MILLISECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    /** Client MSL context. */
+    private MockMslContext clientCtx;
+    /** Client MSL store. */
+    private SimpleMslStore clientStore;
+    /** Client message context. */
+    private MockMessageContext clientMsgCtx;
+    /** Server MSL context. */
+    private MockMslContext serverCtx;
+    /** Server message context. */
+    private MockMessageContext serverMsgCtx;
+    /** Client MSL control. */
+    private MslControl client;
+    /** Server MSL control. */
+    private MslControl server;
+    /** Server executor. */
+    private ExecutorService serverExecutor;
+    /** Server request results. */
+    private BlockingQueue<Future<MessageInputStream>> serverResults;
+    /** Thread that most recently opened a transport connection. */
+    private volatile Thread connectionThread;
+}
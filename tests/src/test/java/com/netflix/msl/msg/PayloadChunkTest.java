@@ -42,6 +42,7 @@ import org.junit.Test;
 
 import com.netflix.msl.MslConstants;
 import com.netflix.msl.MslConstants.CompressionAlgorithm;
+import com.netflix.msl.MslConstants.EncoderFormat;
 import com.netflix.msl.MslCryptoException;
 import com.netflix.msl.MslEncodingException;
 import com.netflix.msl.MslError;
@@ -52,6 +53,7 @@ import com.netflix.msl.crypto.ICryptoContext;
 import com.netflix.msl.crypto.JcaAlgorithm;
 import com.netflix.msl.crypto.SymmetricCryptoContext;
 import com.netflix.msl.entityauth.EntityAuthenticationScheme;
+import com.netflix.msl.io.JsonStreamReader;
 import com.netflix.msl.io.LZWInputStream;
 import com.netflix.msl.io.LZWOutputStreamTest;
 import com.netflix.msl.test.ExpectedMslException;
@@ -210,6 +212,140 @@ public class PayloadChunkTest {
         assertEquals(jsonString, joJsonString);
     }
     
+    @Test
+    public void binaryPayload() throws MslEncodingException, MslCryptoException, MslException {
+        for (final CompressionAlgorithm algo : new CompressionAlgorithm[] { null, CompressionAlgorithm.GZIP, CompressionAlgorithm.LZW }) {
+            final PayloadChunk chunk = new PayloadChunk(SEQ_NO, MSG_ID, END_OF_MSG, algo, DATA, CRYPTO_CONTEXT, EncoderFormat.BINARY);
+            final PayloadChunk parsed = new PayloadChunk(chunk.getPayload(), chunk.getSignature(), CRYPTO_CONTEXT);
+            assertEquals(chunk, parsed);
+            assertEquals(END_OF_MSG, parsed.isEndOfMessage());
+            assertEquals(MSG_ID, parsed.getMessageId());
+            assertEquals(SEQ_NO, parsed.getSequenceNumber());
+            assertArrayEquals(DATA, parsed.getData());
+        }
+    }
+    
+    @Test
+    public void binaryPayloadSmaller() throws MslEncodingException, MslCryptoException, MslException {
+        final byte[] data = new byte[4096];
+        random.nextBytes(data);
+        final PayloadChunk jsonChunk = new PayloadChunk(SEQ_NO, MSG_ID, false, null, data, CRYPTO_CONTEXT, EncoderFormat.JSON);
+        final PayloadChunk binaryChunk = new PayloadChunk(SEQ_NO, MSG_ID, false, null, data, CRYPTO_CONTEXT, EncoderFormat.BINARY);
+        assertTrue(binaryChunk.getPayload().length < jsonChunk.getPayload().length * 4 / 5);
+        assertFalse(binaryChunk.isEndOfMessage());
+        assertArrayEquals(data, new PayloadChunk(binaryChunk.getPayload(), binaryChunk.getSignature(), CRYPTO_CONTEXT).getData());
+    }
+    
+    @Test
+    public void binaryPayloadEmptyEndOfMessage() throws MslEncodingException, MslCryptoException, MslException {
+        final PayloadChunk chunk = new PayloadChunk(SEQ_NO, MSG_ID, true, null, new byte[0], CRYPTO_CONTEXT, EncoderFormat.BINARY);
+        final PayloadChunk parsed = new PayloadChunk(chunk.getPayload(), chunk.getSignature(), CRYPTO_CONTEXT);
+        assertTrue(parsed.isEndOfMessage());
+        assertEquals(0, parsed.getData().length);
+    }
+    
+    @Test
+    public void binaryPayloadMissingData() throws MslEncodingException, MslCryptoException, MslException {
+        thrown.expect(MslMessageException.class);
+        thrown.expectMslError(MslError.PAYLOAD_DATA_MISSING);
+        
+        final PayloadChunk chunk = new PayloadChunk(SEQ_NO, MSG_ID, false, null, new byte[0], CRYPTO_CONTEXT, EncoderFormat.BINARY);
+        new PayloadChunk(chunk.getPayload(), chunk.getSignature(), CRYPTO_CONTEXT);
+    }
+    
+    @Test
+    public void binaryPayloadTruncated() throws MslEncodingException, MslCryptoException, MslException {
+        thrown.expect(MslEncodingException.class);
+        thrown.expectMslError(MslError.MESSAGE_FORMAT_ERROR);
+        
+        final byte[] plaintext = new byte[] { (byte)BinaryEncoding.MAGIC, (byte)BinaryEncoding.VERSION, 0, 0 };
+        final byte[] payload = CRYPTO_CONTEXT.encrypt(plaintext);
+        new PayloadChunk(payload, CRYPTO_CONTEXT.sign(payload), CRYPTO_CONTEXT);
+    }
+    
+    @Test
+    public void binaryPayloadUnknownCompression() throws MslEncodingException, MslCryptoException, MslException {
+        thrown.expect(MslMessageException.class);
+        thrown.expectMslError(MslError.UNIDENTIFIED_COMPRESSION);
+        
+        final byte[] plaintext = BinaryEncoding.encodePayload(SEQ_NO, MSG_ID, END_OF_MSG, null, DATA);
+        plaintext[3] = (byte)0x7f;
+        final byte[] payload = CRYPTO_CONTEXT.encrypt(plaintext);
+        new PayloadChunk(payload, CRYPTO_CONTEXT.sign(payload), CRYPTO_CONTEXT);
+    }
+    
+    @Test
+    public void parsePayloadChunk() throws MslEncodingException, MslCryptoException, MslException {
+        final PayloadChunk chunk = new PayloadChunk(SEQ_NO, MSG_ID, END_OF_MSG, CompressionAlgorithm.GZIP, DATA, CRYPTO_CONTEXT);
+        final String jsonString = chunk.toJSONString();
+        final InputStream source = new ByteArrayInputStream((jsonString + jsonString).getBytes(MslConstants.DEFAULT_CHARSET));
+        final JsonStreamReader reader = new JsonStreamReader(source, MslConstants.DEFAULT_CHARSET);
+        
+        for (int i = 0; i < 2; ++i) {
+            final PayloadChunk streamChunk = PayloadChunk.parsePayloadChunk(reader, CRYPTO_CONTEXT);
+            assertEquals(chunk, streamChunk);
+            assertEquals(jsonString, streamChunk.toJSONString());
+        }
+        assertFalse(reader.more());
+    }
+    
+    @Test
+    public void parseMissingSignature() throws MslEncodingException, MslCryptoException, MslException, JSONException {
+        thrown.expect(MslEncodingException.class);
+        thrown.expectMslError(MslError.JSON_PARSE_ERROR);
+        
+        final PayloadChunk chunk = new PayloadChunk(SEQ_NO, MSG_ID, END_OF_MSG, null, DATA, CRYPTO_CONTEXT);
+        final JSONObject jo = new JSONObject(chunk.toJSONString());
+        jo.remove(KEY_SIGNATURE);
+        final InputStream source = new ByteArrayInputStream(jo.toString().getBytes(MslConstants.DEFAULT_CHARSET));
+        PayloadChunk.parsePayloadChunk(new JsonStreamReader(source, MslConstants.DEFAULT_CHARSET), CRYPTO_CONTEXT);
+    }
+    
+    @Test
+    public void parseDuplicateSignature() throws MslEncodingException, MslCryptoException, MslException, JSONException {
+        thrown.expect(MslEncodingException.class);
+        thrown.expectMslError(MslError.JSON_PARSE_ERROR);
+        
+        final PayloadChunk chunk = new PayloadChunk(SEQ_NO, MSG_ID, END_OF_MSG, null, DATA, CRYPTO_CONTEXT);
+        final JSONObject jo = new JSONObject(chunk.toJSONString());
+        final String json = "{\"" + KEY_SIGNATURE + "\":\"" + jo.getString(KEY_SIGNATURE) + "\"," + jo.toString().substring(1);
+        final InputStream source = new ByteArrayInputStream(json.getBytes(MslConstants.DEFAULT_CHARSET));
+        PayloadChunk.parsePayloadChunk(new JsonStreamReader(source, MslConstants.DEFAULT_CHARSET), CRYPTO_CONTEXT);
+    }
+    
+    @Test
+    public void parseDuplicateData() throws MslEncodingException, MslCryptoException, MslException, JSONException {
+        thrown.expect(MslEncodingException.class);
+        thrown.expectMslError(MslError.JSON_PARSE_ERROR);
+        
+        final PayloadChunk chunk = new PayloadChunk(SEQ_NO, MSG_ID, END_OF_MSG, null, DATA, CRYPTO_CONTEXT);
+        final JSONObject jo = new JSONObject(chunk.toJSONString());
+        
+        final byte[] ciphertext = DatatypeConverter.parseBase64Binary(jo.getString(KEY_PAYLOAD));
+        final byte[] payload = CRYPTO_CONTEXT.decrypt(ciphertext);
+        final String payloadJson = new String(payload, MslConstants.DEFAULT_CHARSET);
+        final String duplicateJson = "{\"" + KEY_DATA + "\":\"" + DatatypeConverter.printBase64Binary(new byte[] { 1 }) + "\"," + payloadJson.substring(1);
+        
+        final byte[] newPayload = CRYPTO_CONTEXT.encrypt(duplicateJson.getBytes(MslConstants.DEFAULT_CHARSET));
+        final byte[] signature = CRYPTO_CONTEXT.sign(newPayload);
+        jo.put(KEY_PAYLOAD, DatatypeConverter.printBase64Binary(newPayload));
+        jo.put(KEY_SIGNATURE, DatatypeConverter.printBase64Binary(signature));
+        final InputStream source = new ByteArrayInputStream(jo.toString().getBytes(MslConstants.DEFAULT_CHARSET));
+        PayloadChunk.parsePayloadChunk(new JsonStreamReader(source, MslConstants.DEFAULT_CHARSET), CRYPTO_CONTEXT);
+    }
+    
+    @Test
+    public void parseInvalidPayload() throws MslEncodingException, MslCryptoException, MslException, JSONException {
+        thrown.expect(MslMessageException.class);
+        thrown.expectMslError(MslError.PAYLOAD_INVALID);
+        
+        final PayloadChunk chunk = new PayloadChunk(SEQ_NO, MSG_ID, END_OF_MSG, null, DATA, CRYPTO_CONTEXT);
+        final JSONObject jo = new JSONObject(chunk.toJSONString());
+        jo.put(KEY_PAYLOAD, "x");
+        final InputStream source = new ByteArrayInputStream(jo.toString().getBytes(MslConstants.DEFAULT_CHARSET));
+        PayloadChunk.parsePayloadChunk(new JsonStreamReader(source, MslConstants.DEFAULT_CHARSET), CRYPTO_CONTEXT);
+    }
+    
     @Test(expected = MslInternalException.class)
     public void negativeSequenceNumberCtor() throws MslEncodingException, MslCryptoException, MslException {
         final long sequenceNumber = -1;
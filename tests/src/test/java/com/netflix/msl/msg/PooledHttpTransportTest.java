@@ -0,0 +1,393 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.msg;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Pooled HTTP transport unit tests.
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+public class PooledHttpTransportTest {
+    /** HTTP character set. */
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    /** Request timeout in milliseconds. */
+    private static final int TIMEOUT = 2000;
+    
+    /** Response body framing used by the server. */
+    private static enum Framing {
+        CONTENT_LENGTH,
+        CHUNKED,
+        CLOSE,
+    }
+    
+    /**
+     * A minimal HTTP/1.1 server that echoes each request body as the
+     * response body.
+     */
+    private static class EchoServer implements Runnable {
+        /**
+         * Create and start a new echo server on an ephemeral port.
+         * 
+         * @throws IOException if the server socket cannot be opened.
+         */
+        public EchoServer() throws IOException {
+            server = new ServerSocket(0);
+            final Thread thread = new Thread(this, "EchoServer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        
+        /* (non-Javadoc)
+         * @see java.lang.Runnable#run()
+         */
+        @Override
+        public void run() {
+            while (!server.isClosed()) {
+                try {
+                    final Socket socket = server.accept();
+                    connections.incrementAndGet();
+                    final Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    });
+                    thread.setDaemon(true);
+                    thread.start();
+                } catch (final IOException e) {
+                    return;
+                }
+            }
+        }
+        
+        /**
+         * Serve requests on a connection until it is closed.
+         * 
+         * @param socket the connection.
+         */
+        private void serve(final Socket socket) {
+            try {
+                final InputStream in = new BufferedInputStream(socket.getInputStream());
+                final OutputStream out = socket.getOutputStream();
+                while (true) {
+                    final String requestLine = readLine(in);
+                    if (requestLine == null) break;
+                    assertTrue(requestLine.startsWith("POST /msl HTTP/1.1"));
+                    boolean chunked = false;
+                    String line;
+                    while (!(line = readLine(in)).isEmpty()) {
+                        if (line.toLowerCase(Locale.ENGLISH).equals("transfer-encoding: chunked"))
+                            chunked = true;
+                    }
+                    assertTrue(chunked);
+                    
+                    // Read the chunked request body.
+                    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+                    while (true) {
+                        final int size = Integer.parseInt(readLine(in), 16);
+                        if (size == 0) {
+                            readLine(in);
+                            break;
+                        }
+                        for (int i = 0; i < size; ++i)
+                            body.write(in.read());
+                        readLine(in);
+                    }
+                    final byte[] data = body.toByteArray();
+                    
+                    // Write the response.
+                    if (status != 200) {
+                        out.write(("HTTP/1.1 " + status + " Error\r\nContent-Length: 0\r\n\r\n").getBytes(ASCII));
+                    } else if (framing == Framing.CONTENT_LENGTH) {
+                        out.write(("HTTP/1.1 100 Continue\r\n\r\n").getBytes(ASCII));
+                        out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + data.length + "\r\n\r\n").getBytes(ASCII));
+                        out.write(data);
+                    } else if (framing == Framing.CHUNKED) {
+                        out.write("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n".getBytes(ASCII));
+                        for (int off = 0; off < data.length; off += 3) {
+                            final int len = Math.min(3, data.length - off);
+                            out.write((Integer.toHexString(len) + "\r\n").getBytes(ASCII));
+                            out.write(data, off, len);
+                            out.write("\r\n".getBytes(ASCII));
+                        }
+                        out.write("0\r\n\r\n".getBytes(ASCII));
+                    } else {
+                        out.write("HTTP/1.1 200 OK\r\nConnection: close\r\n\r\n".getBytes(ASCII));
+                        out.write(data);
+                        out.flush();
+                        break;
+                    }
+                    out.flush();
+                    
+                    // Close without telling the client.
+                    if (closeAfterResponse)
+                        break;
+                }
+            } catch (final IOException e) {
+                // Connection closed by the client.
+            } finally {
+                try {
+                    socket.close();
+                } catch (final IOException e) {
+                    // Nothing to do.
+                }
+            }
+        }
+        
+        /**
+         * @return the server URL.
+         * @throws IOException if the URL is invalid.
+         */
+        public URL getUrl() throws IOException {
+            return new URL("http://localhost:" + server.getLocalPort() + "/msl");
+        }
+        
+        /**
+         * Stop the server.
+         * 
+         * @throws IOException if the server socket cannot be closed.
+         */
+        public void close() throws IOException {
+            server.close();
+        }
+        
+        /** Server socket. */
+        private final ServerSocket server;
+        /** Number of accepted connections. */
+        public final AtomicInteger connections = new AtomicInteger(0);
+        /** Response body framing. */
+        public volatile Framing framing = Framing.CONTENT_LENGTH;
+        /** Response status. */
+        public volatile int status = 200;
+        /** True to close each connection after a response. */
+        public volatile boolean closeAfterResponse = false;
+    }
+    
+    /**
+     * Read a CRLF-terminated line.
+     * 
+     * @param in the input stream.
+     * @return the line or {@code null} if the stream ended.
+     * @throws IOException if there is an error reading.
+     */
+    private static String readLine(final InputStream in) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        while (true) {
+            final int b = in.read();
+            if (b == -1) return (sb.length() == 0) ? null : sb.toString();
+            if (b == '\n') break;
+            if (b != '\r') sb.append((char)b);
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * Send a request and return the response body.
+     * 
+     * @param transport the transport.
+     * @param url the remote entity URL.
+     * @param request the request body.
+     * @return the response body.
+     * @throws IOException if there is an error sending the request or
+     *         receiving the response.
+     */
+    private static byte[] send(final Transport transport, final URL url, final byte[] request) throws IOException {
+        final Transport.Connection connection = transport.openConnection(url, TIMEOUT);
+        final OutputStream out = connection.getOutputStream();
+        out.write(request);
+        out.close();
+        final InputStream in = connection.getInputStream();
+        final ByteArrayOutputStream response = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[16];
+        int n;
+        while ((n = in.read(buffer)) != -1)
+            response.write(buffer, 0, n);
+        in.close();
+        return response.toByteArray();
+    }
+    
+    @Before
+    public void setup() throws IOException {
+        server = new EchoServer();
+        transport = new PooledHttpTransport(2, 0, 0, 60000);
+    }
+    
+    @After
+    public void teardown() throws IOException {
+        transport.close();
+        server.close();
+    }
+    
+    @Test
+    public void contentLengthReused() throws IOException {
+        final byte[] first = "first request".getBytes(ASCII);
+        final byte[] second = "second request".getBytes(ASCII);
+        assertArrayEquals(first, send(transport, server.getUrl(), first));
+        assertArrayEquals(second, send(transport, server.getUrl(), second));
+        assertEquals(1, server.connections.get());
+        assertEquals(1, transport.getIdleConnectionCount());
+    }
+    
+    @Test
+    public void chunkedReused() throws IOException {
+        server.framing = Framing.CHUNKED;
+        final byte[] data = new byte[20000];
+        for (int i = 0; i < data.length; ++i)
+            data[i] = (byte)i;
+        assertArrayEquals(data, send(transport, server.getUrl(), data));
+        assertArrayEquals(data, send(transport, server.getUrl(), data));
+        assertEquals(1, server.connections.get());
+    }
+    
+    @Test
+    public void connectionCloseNotReused() throws IOException {
+        server.framing = Framing.CLOSE;
+        final byte[] data = "close".getBytes(ASCII);
+        assertArrayEquals(data, send(transport, server.getUrl(), data));
+        assertArrayEquals(data, send(transport, server.getUrl(), data));
+        assertEquals(2, server.connections.get());
+        assertEquals(0, transport.getIdleConnectionCount());
+    }
+    
+    @Test
+    public void idleClosedNotReused() throws IOException, InterruptedException {
+        server.closeAfterResponse = true;
+        final byte[] first = "first request".getBytes(ASCII);
+        assertArrayEquals(first, send(transport, server.getUrl(), first));
+        assertEquals(1, transport.getIdleConnectionCount());
+        
+        // The server closed the idle connection, which is detected when the
+        // connection is next reused.
+        Thread.sleep(100);
+        final byte[] second = "second request".getBytes(ASCII);
+        assertArrayEquals(second, send(transport, server.getUrl(), second));
+        assertEquals(2, server.connections.get());
+    }
+    
+    @Test
+    public void abandonedNotReused() throws IOException {
+        final Transport.Connection connection = transport.openConnection(server.getUrl(), TIMEOUT);
+        connection.getOutputStream().write("abandoned".getBytes(ASCII));
+        final InputStream in = connection.getInputStream();
+        in.read();
+        in.close();
+        assertEquals(0, transport.getIdleConnectionCount());
+        
+        final byte[] data = "next".getBytes(ASCII);
+        assertArrayEquals(data, send(transport, server.getUrl(), data));
+        assertEquals(2, server.connections.get());
+    }
+    
+    @Test
+    public void errorStatus() throws IOException {
+        server.status = 500;
+        try {
+            send(transport, server.getUrl(), "error".getBytes(ASCII));
+            fail("Error status should throw.");
+        } catch (final IOException e) {
+            assertTrue(e.getMessage().contains("500"));
+        }
+        
+        // The connection permit must have been released.
+        server.status = 200;
+        final byte[] data = "recovered".getBytes(ASCII);
+        assertArrayEquals(data, send(transport, server.getUrl(), data));
+        assertArrayEquals(data, send(transport, server.getUrl(), data));
+    }
+    
+    @Test
+    public void maxConnectionsPerHost() throws IOException {
+        final Transport.Connection first = transport.openConnection(server.getUrl(), TIMEOUT);
+        final Transport.Connection second = transport.openConnection(server.getUrl(), TIMEOUT);
+        try {
+            transport.openConnection(server.getUrl(), 100);
+            fail("Third connection should time out.");
+        } catch (final SocketTimeoutException e) {
+            // Expected.
+        }
+        
+        // Completing a request makes its connection available.
+        first.getOutputStream().close();
+        first.getInputStream().close();
+        final Transport.Connection third = transport.openConnection(server.getUrl(), 100);
+        third.getOutputStream().close();
+        third.getInputStream().close();
+        second.getOutputStream().close();
+        second.getInputStream().close();
+        assertEquals(2, server.connections.get());
+    }
+    
+    @Test
+    public void otherProtocolNotPooled() throws IOException {
+        final File file = File.createTempFile("msl", ".txt");
+        try {
+            final byte[] data = "file".getBytes(ASCII);
+            final OutputStream out = new FileOutputStream(file);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+            
+            // Other protocols are handed to a URL connection.
+            final Transport.Connection connection = transport.openConnection(file.toURI().toURL(), TIMEOUT);
+            final InputStream in = connection.getInputStream();
+            final byte[] response = new byte[data.length];
+            assertEquals(data.length, in.read(response));
+            assertEquals(-1, in.read());
+            in.close();
+            assertArrayEquals(data, response);
+            assertEquals(0, server.connections.get());
+            assertEquals(0, transport.getIdleConnectionCount());
+        } finally {
+            file.delete();
+        }
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidMaxConnections() {
+        new PooledHttpTransport(0, 0, 0, 0);
+    }
+    
+    /** Echo server. */
+    private EchoServer server;
+    /** Pooled HTTP transport. */
+    private PooledHttpTransport transport;
+}
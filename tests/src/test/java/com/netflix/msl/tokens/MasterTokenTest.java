@@ -243,6 +243,24 @@ public class MasterTokenTest {
         new MasterToken(ctx, jo);
     }
     
+    @Test
+    public void rawTokendata() throws MslException {
+        final MasterToken masterToken = new MasterToken(ctx, RENEWAL_WINDOW, EXPIRATION, SEQUENCE_NUMBER, SERIAL_NUMBER, ISSUER_DATA, IDENTITY, ENCRYPTION_KEY, SIGNATURE_KEY);
+        final MasterToken rawMasterToken = MasterToken.parseMasterToken(ctx, masterToken.getTokendata(), masterToken.getSignature());
+        assertTrue(rawMasterToken.isVerified());
+        assertEquals(masterToken, rawMasterToken);
+        assertEquals(masterToken.toJSONString(), rawMasterToken.toJSONString());
+    }
+    
+    @Test
+    public void emptyRawTokendata() throws MslException {
+        thrown.expect(MslEncodingException.class);
+        thrown.expectMslError(MslError.MASTERTOKEN_TOKENDATA_MISSING);
+        
+        final MasterToken masterToken = new MasterToken(ctx, RENEWAL_WINDOW, EXPIRATION, SEQUENCE_NUMBER, SERIAL_NUMBER, ISSUER_DATA, IDENTITY, ENCRYPTION_KEY, SIGNATURE_KEY);
+        MasterToken.parseMasterToken(ctx, new byte[0], masterToken.getSignature());
+    }
+    
     @Test(expected = MslEncodingException.class)
     public void invalidTokendata() throws JSONException, MslException {
         final MasterToken masterToken = new MasterToken(ctx, RENEWAL_WINDOW, EXPIRATION, SEQUENCE_NUMBER, SERIAL_NUMBER, ISSUER_DATA, IDENTITY, ENCRYPTION_KEY, SIGNATURE_KEY);
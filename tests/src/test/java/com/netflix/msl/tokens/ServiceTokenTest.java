@@ -21,6 +21,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
@@ -28,6 +29,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
@@ -653,7 +655,7 @@ public class ServiceTokenTest {
         assertEquals(0, joServiceToken.getData().length);
     }
     
-    @Test(expected = MslCryptoException.class)
+    @Test
     public void corruptServicedata() throws JSONException, MslCryptoException, MslEncodingException, MslException, UnsupportedEncodingException {
         final ServiceToken serviceToken = new ServiceToken(ctx, NAME, DATA, MASTER_TOKEN, USER_ID_TOKEN, ENCRYPTED, compressionAlgo, CRYPTO_CONTEXT);
         final String jsonString = serviceToken.toJSONString();
@@ -671,7 +673,70 @@ public class ServiceTokenTest {
         jo.put(KEY_TOKENDATA, DatatypeConverter.printBase64Binary(modifiedTokendata));
         jo.put(KEY_SIGNATURE, DatatypeConverter.printBase64Binary(signature));
         
-        new ServiceToken(ctx, jo, MASTER_TOKEN, USER_ID_TOKEN, CRYPTO_CONTEXT);
+        // Corrupt service data is only detected when it is decrypted.
+        final ServiceToken joServiceToken = new ServiceToken(ctx, jo, MASTER_TOKEN, USER_ID_TOKEN, CRYPTO_CONTEXT);
+        assertTrue(joServiceToken.isVerified());
+        assertFalse(joServiceToken.isDeleted());
+        assertFalse(joServiceToken.isDecrypted());
+        
+        // Corrupt service data is not available, and the decryption
+        // failure is reported every time the data is decrypted.
+        for (int i = 0; i < 2; ++i) {
+            assertNull(joServiceToken.getData());
+            assertFalse(joServiceToken.isDecrypted());
+            try {
+                joServiceToken.decryptData();
+                fail("Corrupt service data should not be returned.");
+            } catch (final MslCryptoException e) {
+                // Expected.
+            }
+        }
+        assertNotNull(joServiceToken.toString());
+    }
+    
+    @Test
+    public void lazyDecryption() throws JSONException, MslException {
+        final AtomicInteger decryptions = new AtomicInteger(0);
+        final ICryptoContext cryptoContext = new ICryptoContext() {
+            @Override
+            public byte[] encrypt(final byte[] data) throws MslCryptoException {
+                return CRYPTO_CONTEXT.encrypt(data);
+            }
+            @Override
+            public byte[] decrypt(final byte[] data) throws MslCryptoException {
+                decryptions.incrementAndGet();
+                return CRYPTO_CONTEXT.decrypt(data);
+            }
+            @Override
+            public byte[] wrap(final byte[] data) throws MslCryptoException {
+                return CRYPTO_CONTEXT.wrap(data);
+            }
+            @Override
+            public byte[] unwrap(final byte[] data) throws MslCryptoException {
+                return CRYPTO_CONTEXT.unwrap(data);
+            }
+            @Override
+            public byte[] sign(final byte[] data) throws MslCryptoException {
+                return CRYPTO_CONTEXT.sign(data);
+            }
+            @Override
+            public boolean verify(final byte[] data, final byte[] signature) throws MslCryptoException {
+                return CRYPTO_CONTEXT.verify(data, signature);
+            }
+        };
+        
+        final ServiceToken serviceToken = new ServiceToken(ctx, NAME, DATA, MASTER_TOKEN, USER_ID_TOKEN, ENCRYPTED, compressionAlgo, cryptoContext);
+        final JSONObject jo = new JSONObject(serviceToken.toJSONString());
+        final ServiceToken joServiceToken = new ServiceToken(ctx, jo, MASTER_TOKEN, USER_ID_TOKEN, cryptoContext);
+        assertTrue(joServiceToken.isVerified());
+        assertFalse(joServiceToken.isDeleted());
+        assertNotNull(joServiceToken.toString());
+        assertEquals(0, decryptions.get());
+        
+        assertArrayEquals(DATA, joServiceToken.getData());
+        assertArrayEquals(DATA, joServiceToken.decryptData());
+        assertTrue(joServiceToken.isDecrypted());
+        assertEquals(1, decryptions.get());
     }
     
     @Test
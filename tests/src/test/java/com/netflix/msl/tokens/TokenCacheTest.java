@@ -0,0 +1,314 @@
+/**
+ * Copyright (c) 2015 Netflix, Inc.  All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.msl.tokens;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+import javax.xml.bind.DatatypeConverter;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.netflix.msl.MslCryptoException;
+import com.netflix.msl.MslEncodingException;
+import com.netflix.msl.MslError;
+import com.netflix.msl.MslException;
+import com.netflix.msl.crypto.ICryptoContext;
+import com.netflix.msl.crypto.NullCryptoContext;
+import com.netflix.msl.entityauth.EntityAuthenticationScheme;
+import com.netflix.msl.entityauth.MockPresharedAuthenticationFactory;
+import com.netflix.msl.test.ExpectedMslException;
+import com.netflix.msl.userauth.MockEmailPasswordAuthenticationFactory;
+import com.netflix.msl.util.MockMslContext;
+import com.netflix.msl.util.MslTestUtils;
+
+/**
+ * Token cache unit tests.
+ * 
+ * @author Wesley Miaw <wmiaw@netflix.com>
+ */
+public class TokenCacheTest {
+    /** JSON key signature. */
+    private static final String KEY_SIGNATURE = "signature";
+    
+    private static final long SEQUENCE_NUMBER = 1;
+    private static final String IDENTITY = MockPresharedAuthenticationFactory.PSK_ESN;
+    private static final SecretKey ENCRYPTION_KEY = MockPresharedAuthenticationFactory.KPE;
+    private static final SecretKey SIGNATURE_KEY = MockPresharedAuthenticationFactory.KPH;
+    
+    private static final String NAME = "servicetoken";
+    private static final byte[] DATA = "servicedata".getBytes();
+    
+    @Rule
+    public ExpectedMslException thrown = ExpectedMslException.none();
+    
+    /** MSL context. */
+    private static MockMslContext ctx;
+    
+    @BeforeClass
+    public static void setup() throws MslEncodingException, MslCryptoException {
+        ctx = new MockMslContext(EntityAuthenticationScheme.PSK, false);
+    }
+    
+    @AfterClass
+    public static void teardown() {
+        ctx = null;
+    }
+    
+    @Before
+    public void createCache() {
+        cache = new TokenCache(2);
+        ctx.setTokenCache(cache);
+    }
+    
+    @After
+    public void removeCache() {
+        ctx.setTokenCache(null);
+    }
+    
+    /**
+     * @param serialNumber master token serial number.
+     * @param expiration master token expiration.
+     * @return the JSON representation of a new master token.
+     */
+    private static JSONObject createMasterTokenJO(final long serialNumber, final Date expiration) throws MslEncodingException, MslCryptoException, JSONException {
+        final Date renewalWindow = new Date(expiration.getTime() - 60000);
+        final MasterToken masterToken = new MasterToken(ctx, renewalWindow, expiration, SEQUENCE_NUMBER, serialNumber, null, IDENTITY, ENCRYPTION_KEY, SIGNATURE_KEY);
+        return new JSONObject(masterToken.toJSONString());
+    }
+    
+    /**
+     * @param masterToken the master token.
+     * @return the JSON representation of a new user ID token bound to the
+     *         master token.
+     */
+    private static JSONObject createUserIdTokenJO(final MasterToken masterToken) throws MslEncodingException, MslCryptoException, JSONException {
+        final UserIdToken userIdToken = MslTestUtils.getUserIdToken(ctx, masterToken, 1, MockEmailPasswordAuthenticationFactory.USER);
+        return new JSONObject(userIdToken.toJSONString());
+    }
+    
+    /**
+     * @param masterToken the master token. May be null.
+     * @param userIdToken the user ID token. May be null.
+     * @param cryptoContext the crypto context.
+     * @return the JSON representation of a new service token bound to the
+     *         provided tokens.
+     */
+    private static JSONObject createServiceTokenJO(final MasterToken masterToken, final UserIdToken userIdToken, final ICryptoContext cryptoContext) throws MslException, JSONException {
+        final ServiceToken serviceToken = new ServiceToken(ctx, NAME, DATA, masterToken, userIdToken, true, null, cryptoContext);
+        return new JSONObject(serviceToken.toJSONString());
+    }
+    
+    @Test
+    public void noCache() throws MslException, JSONException {
+        ctx.setTokenCache(null);
+        final JSONObject masterTokenJO = createMasterTokenJO(1, new Date(System.currentTimeMillis() + 120000));
+        final MasterToken first = MasterToken.parseMasterToken(ctx, masterTokenJO);
+        final MasterToken second = MasterToken.parseMasterToken(ctx, masterTokenJO);
+        assertNotSame(first, second);
+        assertEquals(first, second);
+    }
+    
+    @Test
+    public void masterTokenHit() throws MslException, JSONException {
+        final JSONObject masterTokenJO = createMasterTokenJO(1, new Date(System.currentTimeMillis() + 120000));
+        final MasterToken first = MasterToken.parseMasterToken(ctx, masterTokenJO);
+        assertTrue(first.isDecrypted());
+        final MasterToken second = MasterToken.parseMasterToken(ctx, masterTokenJO);
+        assertSame(first, second);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+    
+    @Test
+    public void rawTokensHit() throws MslException, JSONException {
+        final JSONObject masterTokenJO = createMasterTokenJO(1, new Date(System.currentTimeMillis() + 120000));
+        final MasterToken masterToken = MasterToken.parseMasterToken(ctx, masterTokenJO);
+        assertSame(masterToken, MasterToken.parseMasterToken(ctx, masterToken.getTokendata(), masterToken.getSignature()));
+        final UserIdToken userIdToken = UserIdToken.parseUserIdToken(ctx, createUserIdTokenJO(masterToken), masterToken);
+        assertSame(userIdToken, UserIdToken.parseUserIdToken(ctx, userIdToken.getTokendata(), userIdToken.getSignature(), masterToken));
+    }
+    
+    @Test
+    public void unverifiedNotCached() throws MslException, JSONException {
+        final JSONObject masterTokenJO = createMasterTokenJO(1, new Date(System.currentTimeMillis() + 120000));
+        final byte[] signature = DatatypeConverter.parseBase64Binary(masterTokenJO.getString(KEY_SIGNATURE));
+        ++signature[0];
+        masterTokenJO.put(KEY_SIGNATURE, DatatypeConverter.printBase64Binary(signature));
+        
+        final MasterToken first = MasterToken.parseMasterToken(ctx, masterTokenJO);
+        assertFalse(first.isVerified());
+        final MasterToken second = MasterToken.parseMasterToken(ctx, masterTokenJO);
+        assertNotSame(first, second);
+        assertEquals(0, cache.getHits());
+    }
+    
+    @Test
+    public void expiredNotCached() throws MslException, JSONException {
+        final JSONObject masterTokenJO = createMasterTokenJO(1, new Date(System.currentTimeMillis() - 1000));
+        final MasterToken first = MasterToken.parseMasterToken(ctx, masterTokenJO);
+        assertTrue(first.isExpired(null));
+        final MasterToken second = MasterToken.parseMasterToken(ctx, masterTokenJO);
+        assertNotSame(first, second);
+    }
+    
+    @Test
+    public void expiresInCache() throws MslException, JSONException, InterruptedException {
+        final JSONObject masterTokenJO = createMasterTokenJO(1, new Date(System.currentTimeMillis() + 1500));
+        final MasterToken first = MasterToken.parseMasterToken(ctx, masterTokenJO);
+        assertSame(first, MasterToken.parseMasterToken(ctx, masterTokenJO));
+        Thread.sleep(2000);
+        assertNotSame(first, MasterToken.parseMasterToken(ctx, masterTokenJO));
+    }
+    
+    @Test
+    public void leastRecentlyUsedEvicted() throws MslException, JSONException {
+        final Date expiration = new Date(System.currentTimeMillis() + 120000);
+        final JSONObject a = createMasterTokenJO(1, expiration);
+        final JSONObject b = createMasterTokenJO(2, expiration);
+        final JSONObject c = createMasterTokenJO(3, expiration);
+        final MasterToken tokenA = MasterToken.parseMasterToken(ctx, a);
+        final MasterToken tokenB = MasterToken.parseMasterToken(ctx, b);
+        assertSame(tokenA, MasterToken.parseMasterToken(ctx, a));
+        MasterToken.parseMasterToken(ctx, c);
+        assertSame(tokenA, MasterToken.parseMasterToken(ctx, a));
+        assertNotSame(tokenB, MasterToken.parseMasterToken(ctx, b));
+    }
+    
+    @Test
+    public void removeMasterToken() throws MslException, JSONException {
+        final JSONObject masterTokenJO = createMasterTokenJO(1, new Date(System.currentTimeMillis() + 120000));
+        final MasterToken first = MasterToken.parseMasterToken(ctx, masterTokenJO);
+        cache.removeMasterToken(first);
+        assertNotSame(first, MasterToken.parseMasterToken(ctx, masterTokenJO));
+    }
+    
+    @Test
+    public void clear() throws MslException, JSONException {
+        final JSONObject masterTokenJO = createMasterTokenJO(1, new Date(System.currentTimeMillis() + 120000));
+        final MasterToken first = MasterToken.parseMasterToken(ctx, masterTokenJO);
+        cache.clear();
+        assertNotSame(first, MasterToken.parseMasterToken(ctx, masterTokenJO));
+    }
+    
+    @Test
+    public void userIdTokenHit() throws MslException, JSONException {
+        final MasterToken masterToken = MslTestUtils.getMasterToken(ctx, 1, 1);
+        final JSONObject userIdTokenJO = createUserIdTokenJO(masterToken);
+        final UserIdToken first = UserIdToken.parseUserIdToken(ctx, userIdTokenJO, masterToken);
+        assertTrue(first.isDecrypted());
+        assertSame(first, UserIdToken.parseUserIdToken(ctx, userIdTokenJO, masterToken));
+        assertEquals(1, cache.getHits());
+        
+        cache.removeUserIdToken(first);
+        assertNotSame(first, UserIdToken.parseUserIdToken(ctx, userIdTokenJO, masterToken));
+    }
+    
+    @Test
+    public void userIdTokenMasterTokenMismatch() throws MslException, JSONException {
+        thrown.expect(MslException.class);
+        thrown.expectMslError(MslError.USERIDTOKEN_MASTERTOKEN_MISMATCH);
+        
+        final MasterToken masterToken = MslTestUtils.getMasterToken(ctx, 1, 1);
+        final JSONObject userIdTokenJO = createUserIdTokenJO(masterToken);
+        UserIdToken.parseUserIdToken(ctx, userIdTokenJO, masterToken);
+        
+        final MasterToken otherMasterToken = MslTestUtils.getMasterToken(ctx, 1, 2);
+        UserIdToken.parseUserIdToken(ctx, userIdTokenJO, otherMasterToken);
+    }
+    
+    @Test
+    public void serviceTokenHit() throws MslException, JSONException {
+        final MasterToken masterToken = MslTestUtils.getMasterToken(ctx, 1, 1);
+        final UserIdToken userIdToken = MslTestUtils.getUserIdToken(ctx, masterToken, 1, MockEmailPasswordAuthenticationFactory.USER);
+        final ICryptoContext cryptoContext = ctx.getMslCryptoContext();
+        final Map<String,ICryptoContext> cryptoContexts = Collections.singletonMap(NAME, cryptoContext);
+        final JSONObject serviceTokenJO = createServiceTokenJO(masterToken, userIdToken, cryptoContext);
+        
+        final ServiceToken first = ServiceToken.parseServiceToken(ctx, serviceTokenJO, masterToken, userIdToken, cryptoContexts);
+        assertTrue(first.isDecrypted());
+        final ServiceToken second = ServiceToken.parseServiceToken(ctx, serviceTokenJO, masterToken, userIdToken, cryptoContexts);
+        assertSame(first, second);
+        assertEquals(1, cache.getHits());
+        
+        cache.removeServiceToken(first);
+        assertNotSame(first, ServiceToken.parseServiceToken(ctx, serviceTokenJO, masterToken, userIdToken, cryptoContexts));
+    }
+    
+    @Test
+    public void serviceTokenCryptoContextMismatch() throws MslException, JSONException {
+        final ICryptoContext cryptoContext = new NullCryptoContext();
+        final JSONObject serviceTokenJO = createServiceTokenJO(null, null, cryptoContext);
+        final ServiceToken first = ServiceToken.parseServiceToken(ctx, serviceTokenJO, null, null, Collections.singletonMap(NAME, cryptoContext));
+        assertTrue(first.isDecrypted());
+        
+        final Map<String,ICryptoContext> noCryptoContexts = Collections.emptyMap();
+        final ServiceToken second = ServiceToken.parseServiceToken(ctx, serviceTokenJO, null, null, noCryptoContexts);
+        assertNotSame(first, second);
+        assertFalse(second.isVerified());
+    }
+    
+    @Test
+    public void serviceTokenBindingMismatch() throws MslException, JSONException {
+        final MasterToken masterToken = MslTestUtils.getMasterToken(ctx, 1, 1);
+        final ICryptoContext cryptoContext = ctx.getMslCryptoContext();
+        final Map<String,ICryptoContext> cryptoContexts = Collections.singletonMap(NAME, cryptoContext);
+        final JSONObject serviceTokenJO = createServiceTokenJO(masterToken, null, cryptoContext);
+        ServiceToken.parseServiceToken(ctx, serviceTokenJO, masterToken, null, cryptoContexts);
+        
+        thrown.expect(MslException.class);
+        thrown.expectMslError(MslError.SERVICETOKEN_MASTERTOKEN_MISMATCH);
+        final MasterToken otherMasterToken = MslTestUtils.getMasterToken(ctx, 1, 2);
+        ServiceToken.parseServiceToken(ctx, serviceTokenJO, otherMasterToken, null, cryptoContexts);
+    }
+    
+    @Test
+    public void serviceTokenExpiresWithMasterToken() throws MslException, JSONException, InterruptedException {
+        final JSONObject masterTokenJO = createMasterTokenJO(1, new Date(System.currentTimeMillis() + 1500));
+        final MasterToken masterToken = MasterToken.parseMasterToken(ctx, masterTokenJO);
+        final ICryptoContext cryptoContext = ctx.getMslCryptoContext();
+        final Map<String,ICryptoContext> cryptoContexts = Collections.singletonMap(NAME, cryptoContext);
+        final JSONObject serviceTokenJO = createServiceTokenJO(masterToken, null, cryptoContext);
+        
+        final ServiceToken first = ServiceToken.parseServiceToken(ctx, serviceTokenJO, masterToken, null, cryptoContexts);
+        assertSame(first, ServiceToken.parseServiceToken(ctx, serviceTokenJO, masterToken, null, cryptoContexts));
+        Thread.sleep(2000);
+        assertNotSame(first, ServiceToken.parseServiceToken(ctx, serviceTokenJO, masterToken, null, cryptoContexts));
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidCapacity() {
+        new TokenCache(0);
+    }
+    
+    /** Token cache. */
+    private TokenCache cache;
+}